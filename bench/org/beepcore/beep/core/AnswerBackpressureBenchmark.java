@@ -0,0 +1,346 @@
+/*
+ * AnswerBackpressureBenchmark.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.beepcore.beep.transport.tcp.TCPSessionConfig;
+import org.beepcore.beep.transport.tcp.TCPSessionCreator;
+
+/**
+ * Sends a MSG over loopback to a handler answering it with many ANS
+ * replies, sending each once the one a few before it has been written.
+ * The client copies the answers out of the channel and a worker takes a
+ * millisecond over each. The run is repeated with a
+ * <code>ReplyListener</code> copying every answer as it arrives and with
+ * <code>sendMSGAnswers</code>, whose subscriber copies only the answers
+ * the worker has asked for. The client's window is 1 MB, set once the
+ * MSG has been sent. Both ends disable Nagle's algorithm, which would
+ * otherwise delay each SEQ. Reports the time taken and the most answers
+ * sent but not yet worked on.
+ *
+ * Usage: AnswerBackpressureBenchmark [answers] [answer bytes]
+ *                                    [worker ms] [demand]
+ */
+public class AnswerBackpressureBenchmark {
+
+    private static final String URI = "http://example.org/beep/bench/answers";
+
+    private static final int WINDOW_SIZE = 1024 * 1024;
+
+    // answers the handler may have queued but not yet written
+    private static final int SEND_AHEAD = 4;
+
+    private static final byte[] END = new byte[0];
+
+    public static void main(String[] args) throws Exception {
+        int answers = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+        int work = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        int demand = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+
+        AtomicLong sent = new AtomicLong();
+        ProfileRegistry reg = new ProfileRegistry();
+        reg.addStartChannelListener(URI, new Listener(answers, size, sent),
+                                    null);
+
+        TCPSessionConfig config = new TCPSessionConfig();
+        config.setTcpNoDelay(true);
+
+        listen(10306, reg, config);
+        Thread.sleep(500);
+
+        System.out.println("answers            " + answers + " of " + size
+                           + " bytes");
+        System.out.println("worker             " + work + " ms an answer");
+
+        Session session =
+            TCPSessionCreator.initiate(InetAddress.getByName("127.0.0.1"),
+                                       10306, new ProfileRegistry(), null,
+                                       config);
+
+        for (int mode=0; mode<2; ++mode) {
+            ChannelImpl channel = (ChannelImpl) session.startChannel(URI);
+
+            sent.set(0);
+            Worker worker = new Worker(work, demand, sent);
+            long start = System.nanoTime();
+
+            if (mode == 0) {
+                channel.sendMSG(new StringOutputDataStream("answers"),
+                                new Copier(worker));
+            } else {
+                channel.sendMSGAnswers(new StringOutputDataStream("answers"))
+                    .subscribe(new Subscriber(worker));
+            }
+
+            // after the MSG, as a window already advertised can not be
+            // taken back
+            channel.setReceiveBufferSize(WINDOW_SIZE);
+
+            worker.run();
+
+            long ms = (System.nanoTime() - start) / 1000000;
+
+            System.out.println((mode == 0 ? "ReplyListener      "
+                                          : "sendMSGAnswers     ")
+                               + ms + " ms, " + worker.processed
+                               + " answers, at most " + worker.peak
+                               + " pending (" + worker.peak * size / 1024
+                               + " kB)");
+        }
+
+        System.exit(0);
+    }
+
+    /**
+     * Works on the copied answers one at a time, keeping the subscription,
+     * if any, <code>demand</code> answers ahead.
+     */
+    private static class Worker {
+        final LinkedBlockingQueue arrived = new LinkedBlockingQueue();
+        final LinkedBlockingQueue copies = new LinkedBlockingQueue();
+        final int work;
+        final int demand;
+        final AtomicLong sent;
+        volatile Flow.Subscription subscription = null;
+        long processed = 0;
+        long peak = 0;
+
+        Worker(int work, int demand, AtomicLong sent)
+        {
+            this.work = work;
+            this.demand = demand;
+            this.sent = sent;
+            startCopier();
+        }
+
+        void run() throws Exception
+        {
+            while (true) {
+                byte[] copy = (byte[]) copies.take();
+                if (copy == END) {
+                    return;
+                }
+
+                peak = Math.max(peak, sent.get() - processed);
+                Thread.sleep(work);
+                ++processed;
+
+                if (subscription != null && processed % (demand / 2) == 0) {
+                    subscription.request(demand / 2);
+                }
+            }
+        }
+
+        /**
+         * Queues the answer to be copied, in order, by a thread of its
+         * own as the rest of it may not have arrived yet.
+         */
+        void copy(Message message)
+        {
+            arrived.add(message);
+        }
+
+        /**
+         * Queues the end of the answers after those still to be copied.
+         */
+        void end()
+        {
+            arrived.add(END);
+        }
+
+        void startCopier()
+        {
+            Thread copier = new Thread("AnswerBackpressureBenchmark copier") {
+                    public void run() {
+                        try {
+                            while (true) {
+                                Object o = arrived.take();
+                                if (o == END) {
+                                    copies.put(END);
+                                    return;
+                                }
+                                copies.put(read((Message) o));
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                };
+            copier.setDaemon(true);
+            copier.start();
+        }
+
+        private static byte[] read(Message message) throws Exception
+        {
+            InputDataStreamAdapter in =
+                message.getDataStream().getInputStream();
+            ByteArrayOutputStream copy = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+
+            while ((n = in.read(buf)) != -1) {
+                copy.write(buf, 0, n);
+            }
+            in.close();
+
+            return copy.toByteArray();
+        }
+    }
+
+    private static class Copier implements ReplyListener {
+        private final Worker worker;
+
+        Copier(Worker worker)
+        {
+            this.worker = worker;
+        }
+
+        public void receiveANS(Message message) {
+            worker.copy(message);
+        }
+
+        public void receiveNUL(Message message) {
+            worker.end();
+        }
+
+        public void receiveRPY(Message message) {
+            message.getDataStream().close();
+        }
+
+        public void receiveERR(Message message) {
+            message.getDataStream().close();
+        }
+    }
+
+    private static class Subscriber implements Flow.Subscriber<Message> {
+        private final Worker worker;
+
+        Subscriber(Worker worker)
+        {
+            this.worker = worker;
+        }
+
+        public void onSubscribe(Flow.Subscription subscription) {
+            worker.subscription = subscription;
+            subscription.request(worker.demand);
+        }
+
+        public void onNext(Message message) {
+            worker.copy(message);
+        }
+
+        public void onError(Throwable e) {
+            e.printStackTrace();
+            worker.end();
+        }
+
+        public void onComplete() {
+            worker.end();
+        }
+    }
+
+    private static void listen(final int port, final ProfileRegistry reg,
+                               final TCPSessionConfig config)
+    {
+        Thread acceptor = new Thread("AnswerBackpressureBenchmark acceptor") {
+                public void run() {
+                    try {
+                        while (true) {
+                            TCPSessionCreator.listen(port, reg, config);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private static class Listener implements StartChannelListener {
+        private final int answers;
+        private final int size;
+        private final AtomicLong sent;
+
+        Listener(int answers, int size, AtomicLong sent)
+        {
+            this.answers = answers;
+            this.size = size;
+            this.sent = sent;
+        }
+
+        public boolean advertiseProfile(Session session) {
+            return true;
+        }
+
+        public void startChannel(Channel channel, String encoding,
+                                 String data) {
+            channel.setRequestHandler(new Handler(answers, size, sent));
+        }
+
+        public void closeChannel(Channel channel) {
+        }
+    }
+
+    private static class Handler implements RequestHandler {
+        private final int answers;
+        private final byte[] data;
+        private final AtomicLong sent;
+
+        Handler(int answers, int size, AtomicLong sent)
+        {
+            this.answers = answers;
+            this.data = new byte[size];
+            this.sent = sent;
+        }
+
+        public void receiveMSG(MessageMSG message) {
+            try {
+                message.getDataStream().close();
+
+                MessageStatus[] ahead = new MessageStatus[SEND_AHEAD];
+
+                for (int i=0; i<answers; ++i) {
+                    MessageStatus previous = ahead[i % SEND_AHEAD];
+
+                    // a producer which waits for the peer, not one queueing
+                    // all its answers in memory
+                    while (previous != null &&
+                           previous.getMessageStatus() !=
+                           MessageStatus.MESSAGE_STATUS_SENT)
+                    {
+                        Thread.sleep(1);
+                    }
+
+                    ahead[i % SEND_AHEAD] =
+                        message.sendANS(new ByteOutputDataStream(data));
+                    sent.incrementAndGet();
+                }
+
+                message.sendNUL();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * ChannelContentionBenchmark.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+import org.beepcore.beep.lib.Reply;
+import org.beepcore.beep.transport.tcp.TCPSessionCreator;
+
+/**
+ * Sends messages over loopback on many channels of one session at once.
+ * Each channel is read by its own thread in small pieces, so the reader
+ * thread posting frames and the threads freeing window space and
+ * building SEQs all update flow-control state at the same time. Reports
+ * the total throughput and the throughput per read.
+ *
+ * Usage: ChannelContentionBenchmark [channels] [megabytes per channel]
+ *                                   [read size]
+ */
+public class ChannelContentionBenchmark {
+
+    private static final String URI = "http://example.org/beep/bench/contention";
+
+    private static final int MESSAGE_SIZE = 64 * 1024;
+
+    private static final int WINDOW_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int channels = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int megabytes = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        final int readSize = args.length > 2 ? Integer.parseInt(args[2])
+                                             : 512;
+
+        final ProfileRegistry reg = new ProfileRegistry();
+        reg.addStartChannelListener(URI, new StartChannelListener() {
+                public boolean advertiseProfile(Session session) {
+                    return true;
+                }
+                public void startChannel(Channel channel, String encoding,
+                                         String data) {
+                    channel.setRequestHandler(new Sink(readSize));
+                }
+                public void closeChannel(Channel channel) {
+                }
+            }, null);
+
+        final int port = 10299;
+        Thread acceptor = new Thread("ChannelContentionBenchmark acceptor") {
+                public void run() {
+                    try {
+                        while (true) {
+                            TCPSessionCreator.listen(port, reg);
+                        }
+                    } catch (BEEPException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Thread.sleep(500);
+
+        Session session = TCPSessionCreator.initiate("127.0.0.1", port,
+                                                     new ProfileRegistry());
+        final int messages = megabytes * 1024 * 1024 / MESSAGE_SIZE;
+        Thread[] senders = new Thread[channels];
+
+        for (int i=0; i<channels; ++i) {
+            final Channel channel = session.startChannel(URI);
+
+            senders[i] = new Thread("ChannelContentionBenchmark sender") {
+                    public void run() {
+                        try {
+                            byte[] data = new byte[MESSAGE_SIZE];
+
+                            for (int j=0; j<messages; ++j) {
+                                Reply reply = new Reply();
+                                channel.sendMSG(new ByteOutputDataStream(data),
+                                                reply);
+                                reply.getNextReply();
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                };
+        }
+
+        // warm up
+        runSenders(senders);
+        for (int i=0; i<channels; ++i) {
+            senders[i] = copy(senders[i]);
+        }
+
+        long nanos = runSenders(senders);
+        double total = (double) channels * messages * MESSAGE_SIZE;
+
+        System.out.println("channels           " + channels);
+        System.out.println("data per channel   " + megabytes + " MB");
+        System.out.println("read size          " + readSize);
+        System.out.println("throughput         "
+                           + Math.round(total / 1024 / (nanos / 1e9))
+                           + " kB/s");
+        System.out.println("ns per read        "
+                           + Math.round(nanos / (total / readSize)));
+
+        System.exit(0);
+    }
+
+    private static long runSenders(Thread[] senders) throws Exception
+    {
+        long start = System.nanoTime();
+
+        for (int i=0; i<senders.length; ++i) {
+            senders[i].start();
+        }
+        for (int i=0; i<senders.length; ++i) {
+            senders[i].join();
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    private static Thread copy(Thread t)
+    {
+        return new Thread(t, t.getName());
+    }
+
+    private static class Sink implements RequestHandler {
+        private final byte[] buf;
+
+        Sink(int readSize)
+        {
+            buf = new byte[readSize];
+        }
+
+        public void receiveMSG(MessageMSG message) {
+            try {
+                // not set in startChannel, the SEQ would reach the peer
+                // before the reply starting the channel
+                ChannelImpl channel = (ChannelImpl) message.getChannel();
+                if (channel.getBufferSize() != WINDOW_SIZE) {
+                    channel.setReceiveBufferSize(WINDOW_SIZE);
+                }
+
+                InputDataStreamAdapter in =
+                    message.getDataStream().getInputStream();
+
+                while (in.read(buf) != -1) {
+                }
+                in.close();
+
+                message.sendRPY(new StringOutputDataStream("done"));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * FileTransferBenchmark.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import org.beepcore.beep.lib.Reply;
+import org.beepcore.beep.transport.tcp.TCPSessionConfig;
+import org.beepcore.beep.transport.tcp.TCPSessionCreator;
+
+/**
+ * Compares sending a file as a message over loopback the way it has to be
+ * done with a <code>ByteOutputDataStream</code>, reading the file onto
+ * the heap and copying each frame into the socket buffer, with a
+ * <code>FileOutputDataStream</code> whose frames are written with
+ * <code>FileChannel.transferTo</code>, and with a
+ * <code>StreamOutputDataStream</code> which reads the file a frame at a
+ * time as the window allows. Each is run with the default
+ * frame size and with larger frames. All use a larger window than the
+ * default, with the default window each SEQ round trip is stretched by
+ * delayed acknowledgements and the network dominates. The receiver reads
+ * the message into a small buffer and replies once it has read the
+ * whole message.
+ *
+ * Usage: FileTransferBenchmark [file size in megabytes] [messages per run]
+ */
+public class FileTransferBenchmark {
+
+    private static final String URI = "http://example.org/beep/bench/file";
+
+    private static final int LARGE_FRAME_SIZE = 64 * 1024;
+
+    private static final int BYTES = 0;
+    private static final int FILE = 1;
+    private static final int STREAM = 2;
+    private static final String[] NAMES = {
+        "ByteOutputDataStream", "FileOutputDataStream",
+        "StreamOutputDataStream"
+    };
+
+    private static final int WINDOW_SIZE = 256 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        File f = File.createTempFile("FileTransferBenchmark", ".dat");
+        f.deleteOnExit();
+        writeFile(f, megabytes);
+
+        final ProfileRegistry reg = new ProfileRegistry();
+        reg.addStartChannelListener(URI, new StartChannelListener() {
+                public boolean advertiseProfile(Session session) {
+                    return true;
+                }
+                public void startChannel(Channel channel, String encoding,
+                                         String data) {
+                    channel.setRequestHandler(new Sink());
+                }
+                public void closeChannel(Channel channel) {
+                }
+            }, null);
+
+        final int port = 10291;
+        Thread acceptor = new Thread("FileTransferBenchmark acceptor") {
+                public void run() {
+                    try {
+                        while (true) {
+                            TCPSessionCreator.listen(port, reg);
+                        }
+                    } catch (BEEPException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Thread.sleep(500);
+
+        System.out.println("file               " + megabytes + " MB x "
+                           + messages);
+        System.out.println(pad("", 30) + pad("MB/s", 8));
+
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        FileChannel file = raf.getChannel();
+
+        for (int large=0; large<2; ++large) {
+            int frameSize = large == 0 ? TCPSessionConfig.DEFAULT_MAX_FRAME_SIZE
+                                       : LARGE_FRAME_SIZE;
+
+            TCPSessionConfig config = new TCPSessionConfig();
+            config.setMaxFrameSize(frameSize);
+            Session session = TCPSessionCreator.initiate("127.0.0.1", port,
+                                                         new ProfileRegistry(),
+                                                         null, config);
+            Channel channel = session.startChannel(URI);
+            String sizes = Integer.toString(frameSize);
+
+            for (int kind=BYTES; kind<=STREAM; ++kind) {
+                // warm up
+                run(channel, f, file, kind, frameSize, 1);
+
+                System.out.println(pad(NAMES[kind] + " " + sizes, 30)
+                                   + rate(run(channel, f, file, kind,
+                                              frameSize, messages),
+                                          megabytes * messages));
+            }
+        }
+
+        raf.close();
+        System.exit(0);
+    }
+
+    private static long run(Channel channel, File f, FileChannel file,
+                            int kind, int frameSize, int messages)
+        throws Exception
+    {
+        long start = System.nanoTime();
+
+        for (int i=0; i<messages; ++i) {
+            OutputDataStream ds;
+            InputStream in = null;
+
+            if (kind == FILE) {
+                ds = new FileOutputDataStream(file);
+            } else if (kind == STREAM) {
+                in = new FileInputStream(f);
+                ds = new StreamOutputDataStream(new MimeHeaders(), in,
+                                                frameSize);
+            } else {
+                ds = new ByteOutputDataStream(readFile(f));
+            }
+
+            Reply reply = new Reply();
+            channel.sendMSG(ds, reply);
+            reply.getNextReply();
+
+            if (in != null) {
+                in.close();
+            }
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    private static class Sink implements RequestHandler {
+        private final byte[] buf = new byte[8192];
+
+        public void receiveMSG(MessageMSG message) {
+            try {
+                // not set in startChannel, the SEQ would reach the peer
+                // before the reply starting the channel
+                ChannelImpl channel = (ChannelImpl) message.getChannel();
+                if (channel.getBufferSize() != WINDOW_SIZE) {
+                    channel.setReceiveBufferSize(WINDOW_SIZE);
+                }
+
+                InputDataStreamAdapter in =
+                    message.getDataStream().getInputStream();
+
+                while (in.read(buf) != -1) {
+                }
+                in.close();
+
+                message.sendRPY(new StringOutputDataStream("done"));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void writeFile(File f, int megabytes) throws IOException
+    {
+        byte[] b = new byte[1024 * 1024];
+        FileOutputStream os = new FileOutputStream(f);
+
+        new Random(0).nextBytes(b);
+        for (int i=0; i<megabytes; ++i) {
+            os.write(b);
+        }
+        os.close();
+    }
+
+    private static byte[] readFile(File f) throws IOException
+    {
+        byte[] b = new byte[(int) f.length()];
+        InputStream is = new FileInputStream(f);
+
+        for (int n=0; n<b.length; ) {
+            n += is.read(b, n, b.length - n);
+        }
+        is.close();
+
+        return b;
+    }
+
+    private static String rate(long nanos, long megabytes)
+    {
+        return Long.toString(Math.round(megabytes / (nanos / 1e9)));
+    }
+
+    private static String pad(String s, int width)
+    {
+        StringBuffer sb = new StringBuffer(s);
+
+        while (sb.length() < width) {
+            sb.append(' ');
+        }
+
+        return sb.toString();
+    }
+}
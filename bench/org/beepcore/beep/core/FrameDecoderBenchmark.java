@@ -0,0 +1,189 @@
+/*
+ * FrameDecoderBenchmark.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+import java.lang.management.ManagementFactory;
+import java.util.Hashtable;
+
+import org.beepcore.beep.util.HeaderParser;
+import org.beepcore.beep.util.StringUtil;
+
+/**
+ * Compares decoding frame headers with <code>FrameDecoder</code> to the
+ * previous <code>HeaderParser</code> based path, which looked the type
+ * up by <code>String</code> and the channel by
+ * <code>Integer.toString</code>. The new path finds the channel with an
+ * array read as <code>SessionImpl</code>'s channel cache does. Reports
+ * the time and the bytes allocated per header, both for whole headers
+ * and for headers split into small reads.
+ *
+ * Usage: FrameDecoderBenchmark [headers per run]
+ */
+public class FrameDecoderBenchmark {
+
+    private static final String[] HEADERS = {
+        "MSG 1 12 . 3456 1024\r\n",
+        "RPY 3 7 * 4294967295 4096\r\n",
+        "ANS 5 2 . 0 512 17\r\n",
+        "NUL 5 2 . 512 0\r\n",
+        "SEQ 1 4096 4096\r\n",
+    };
+
+    private static final String[] TYPES = {
+        "UNK", "MSG", "RPY", "ERR", "ANS", "NUL"
+    };
+
+    private static final int SPLIT_READ_SIZE = 7;
+
+    private static byte[][] headers;
+    private static Hashtable channels = new Hashtable();
+    private static Object[] channelCache = new Object[64];
+    private static long sink;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+
+        headers = new byte[HEADERS.length][];
+        for (int i=0; i<HEADERS.length; ++i) {
+            headers[i] = StringUtil.stringToAscii(HEADERS[i]);
+        }
+        for (int i=0; i<8; ++i) {
+            channels.put(Integer.toString(i), new Object());
+            channelCache[i] = channels.get(Integer.toString(i));
+        }
+
+        // warm up
+        for (int i=0; i<3; ++i) {
+            runHeaderParser(count / 10);
+            runDecoder(count / 10, Integer.MAX_VALUE);
+            runDecoder(count / 10, SPLIT_READ_SIZE);
+        }
+
+        System.out.println("headers            " + count);
+        report("HeaderParser", count, 0);
+        report("FrameDecoder", count, Integer.MAX_VALUE);
+        report("FrameDecoder split", count, SPLIT_READ_SIZE);
+
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    private static void report(String name, int count, int readSize)
+        throws BEEPException
+    {
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+
+        if (readSize == 0) {
+            runHeaderParser(count);
+        } else {
+            runDecoder(count, readSize);
+        }
+
+        long nanos = System.nanoTime() - start;
+        bytes = allocatedBytes() - bytes;
+
+        System.out.println(pad(name) + (nanos / count) + " ns/header  "
+                           + (bytes / count) + " bytes/header");
+    }
+
+    private static void runHeaderParser(int count) throws BEEPException
+    {
+        for (int i=0; i<count; ++i) {
+            byte[] b = headers[i % headers.length];
+            HeaderParser header = new HeaderParser(b, b.length - 2);
+            String type = new String(header.parseType());
+
+            if (type.equals("SEQ")) {
+                sink += channels.get(Integer.toString(header.parseInt()))
+                    .hashCode();
+                sink += header.parseUnsignedInt();
+                sink += header.parseInt();
+                continue;
+            }
+
+            int msgType = 0;
+            for (int t=0; t<TYPES.length; ++t) {
+                if (type.equals(TYPES[t])) {
+                    msgType = t;
+                    break;
+                }
+            }
+
+            sink += msgType;
+            sink += channels.get(Integer.toString(header.parseInt()))
+                .hashCode();
+            sink += header.parseInt();
+            sink += header.parseLast() ? 1 : 0;
+            sink += header.parseUnsignedInt();
+            sink += header.parseInt();
+            if (header.hasMoreTokens()) {
+                sink += header.parseInt();
+            }
+        }
+    }
+
+    private static void runDecoder(int count, int readSize)
+        throws BEEPException
+    {
+        FrameDecoder header = new FrameDecoder();
+
+        for (int i=0; i<count; ++i) {
+            byte[] b = headers[i % headers.length];
+
+            header.reset();
+            for (int off=0; header.isComplete() == false; ) {
+                off += header.decode(b, off, Math.min(readSize,
+                                                      b.length - off));
+            }
+
+            sink += channelCache[header.getChannel() & 63].hashCode();
+
+            if (header.isSEQ()) {
+                sink += header.getAckno();
+                sink += header.getWindow();
+                continue;
+            }
+
+            sink += header.getMessageType();
+            sink += header.getMsgno();
+            sink += header.isLast() ? 1 : 0;
+            sink += header.getSeqno();
+            sink += header.getSize();
+            sink += header.getAnsno();
+        }
+    }
+
+    private static long allocatedBytes()
+    {
+        return ((com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static String pad(String s)
+    {
+        StringBuffer sb = new StringBuffer(s);
+
+        while (sb.length() < 19) {
+            sb.append(' ');
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * FrameSendBenchmark.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+import java.lang.management.ManagementFactory;
+
+import org.beepcore.beep.util.BufferSegment;
+
+/**
+ * Measures the bytes allocated, and the time taken, per frame sent by
+ * <code>ChannelImpl</code>. The session is a stub whose
+ * <code>sendFrame</code> encodes the frame with <code>getBytes()</code>
+ * and acknowledges it immediately so the window never closes, leaving
+ * only the core send path. Messages are large so the per message
+ * allocations are spread over many frames.
+ *
+ * Usage: FrameSendBenchmark [messages per run] [message size]
+ */
+public class FrameSendBenchmark {
+
+    private static long sink;
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int messageSize = args.length > 1 ? Integer.parseInt(args[1])
+                                          : 1024 * 1024;
+
+        StubSession session = new StubSession();
+        ChannelImpl channel = new ChannelImpl("bench", "1", session);
+        channel.setState(ChannelImpl.STATE_ACTIVE);
+
+        byte[] payload = new byte[messageSize];
+
+        // warm up
+        for (int i=0; i<3; ++i) {
+            run(channel, session, payload, messages / 4);
+        }
+
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        long frames = run(channel, session, payload, messages);
+        long nanos = System.nanoTime() - start;
+        bytes = allocatedBytes() - bytes;
+
+        System.out.println("messages           " + messages + " x "
+                           + messageSize + " bytes");
+        System.out.println("frames             " + frames);
+        System.out.println("time               " + (nanos / frames)
+                           + " ns/frame");
+        System.out.println("allocated          " + (bytes / frames)
+                           + " bytes/frame, " + (bytes / messages)
+                           + " bytes/message");
+
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    private static long run(ChannelImpl channel, StubSession session,
+                            byte[] payload, int messages)
+        throws BEEPException
+    {
+        long frames = session.frames;
+
+        for (int i=0; i<messages; ++i) {
+            channel.sendMSG(new ByteOutputDataStream(payload), null);
+        }
+
+        return session.frames - frames;
+    }
+
+    private static long allocatedBytes()
+    {
+        return ((com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static class StubSession extends SessionImpl {
+        long frames = 0;
+
+        StubSession() throws BEEPException {
+            super(new ProfileRegistry(), 1, null, null, null, null);
+        }
+
+        protected void sendFrame(Frame f) throws BEEPException {
+            BufferSegment[] bs = f.getBytes();
+
+            for (int i=0; i<bs.length; ++i) {
+                sink += bs[i].getLength();
+            }
+            ++frames;
+
+            // acknowledge the frame so the window stays open
+            ((ChannelImpl) f.getChannel())
+                .updatePeerReceiveBufferSize(f.getSeqno() + f.getSize(),
+                                             ChannelImpl.DEFAULT_WINDOW_SIZE);
+        }
+
+        protected int getMaxFrameSize() {
+            return 1400;
+        }
+
+        protected boolean updateMyReceiveBufferSize(Channel channel,
+                                                    long currentSeq,
+                                                    int currentAvail) {
+            return true;
+        }
+
+        protected Session reset(SessionCredential localCred,
+                                SessionCredential peerCred,
+                                SessionTuningProperties tuning,
+                                ProfileRegistry registry, Object argument) {
+            return this;
+        }
+
+        protected void disableIO() {
+        }
+
+        protected void enableIO() {
+        }
+    }
+}
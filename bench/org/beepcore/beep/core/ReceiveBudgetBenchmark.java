@@ -0,0 +1,192 @@
+/*
+ * ReceiveBudgetBenchmark.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+import java.net.InetAddress;
+
+import org.beepcore.beep.lib.Reply;
+import org.beepcore.beep.transport.tcp.TCPSessionConfig;
+import org.beepcore.beep.transport.tcp.TCPSessionCreator;
+
+/**
+ * Sends messages over loopback on many channels of one session at once.
+ * Each receiving channel asks for a 256k window. The run is repeated
+ * without a limit and with a session receive budget. Both runs report
+ * the throughput and the most bytes the receiver's windows held, taken
+ * from a shared budget with no limit that serves as a meter.
+ *
+ * Usage: ReceiveBudgetBenchmark [channels] [megabytes per channel]
+ *                               [budget kB]
+ */
+public class ReceiveBudgetBenchmark {
+
+    private static final String URI = "http://example.org/beep/bench/budget";
+
+    private static final int MESSAGE_SIZE = 256 * 1024;
+
+    private static final int WINDOW_SIZE = 256 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int channels = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int megabytes = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int budget = args.length > 2 ? Integer.parseInt(args[2]) : 2048;
+
+        final ProfileRegistry reg = new ProfileRegistry();
+        reg.addStartChannelListener(URI, new StartChannelListener() {
+                public boolean advertiseProfile(Session session) {
+                    return true;
+                }
+                public void startChannel(Channel channel, String encoding,
+                                         String data) {
+                    channel.setRequestHandler(new Sink());
+                }
+                public void closeChannel(Channel channel) {
+                }
+            }, null);
+
+        System.out.println("channels           " + channels);
+        System.out.println("data per channel   " + megabytes + " MB");
+        System.out.println(pad("", 20) + pad("kB/s", 10) + "peak window kB");
+
+        for (int limited=0; limited<2; ++limited) {
+            ReceiveBudget meter = new ReceiveBudget(Long.MAX_VALUE);
+            TCPSessionConfig config = new TCPSessionConfig();
+            config.setSharedReceiveBudget(meter);
+            if (limited == 1) {
+                config.setReceiveBudget(budget * 1024L);
+            }
+
+            int port = 10297 + limited;
+            listen(port, reg, config);
+            Thread.sleep(500);
+
+            long[] peak = new long[1];
+            long rate = run(port, channels, megabytes, meter, peak);
+
+            System.out.println(pad(limited == 0 ? "no budget"
+                                                : budget + "k budget", 20)
+                               + pad(Long.toString(rate), 10)
+                               + peak[0] / 1024);
+        }
+
+        System.exit(0);
+    }
+
+    private static long run(int port, int channels, int megabytes,
+                            ReceiveBudget meter, long[] peak)
+        throws Exception
+    {
+        Session session = TCPSessionCreator.initiate("127.0.0.1", port,
+                                                     new ProfileRegistry());
+        final int messages = megabytes * 1024 * 1024 / MESSAGE_SIZE;
+        Thread[] senders = new Thread[channels];
+
+        for (int i=0; i<channels; ++i) {
+            final Channel channel = session.startChannel(URI);
+
+            senders[i] = new Thread("ReceiveBudgetBenchmark sender") {
+                    public void run() {
+                        try {
+                            byte[] data = new byte[MESSAGE_SIZE];
+
+                            for (int j=0; j<messages; ++j) {
+                                Reply reply = new Reply();
+                                channel.sendMSG(new ByteOutputDataStream(data),
+                                                reply);
+                                reply.getNextReply();
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                };
+        }
+
+        long start = System.nanoTime();
+
+        for (int i=0; i<channels; ++i) {
+            senders[i].start();
+        }
+        for (int i=0; i<channels; ++i) {
+            while (senders[i].isAlive()) {
+                peak[0] = Math.max(peak[0], meter.getReserved());
+                senders[i].join(1);
+            }
+        }
+
+        long nanos = System.nanoTime() - start;
+
+        return Math.round((double) channels * messages * MESSAGE_SIZE
+                          / 1024 / (nanos / 1e9));
+    }
+
+    private static void listen(final int port, final ProfileRegistry reg,
+                               final TCPSessionConfig config)
+    {
+        Thread acceptor = new Thread("ReceiveBudgetBenchmark acceptor") {
+                public void run() {
+                    try {
+                        while (true) {
+                            TCPSessionCreator.listen((InetAddress) null, port,
+                                                     reg, config);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private static class Sink implements RequestHandler {
+        private final byte[] buf = new byte[8192];
+
+        public void receiveMSG(MessageMSG message) {
+            try {
+                // not set in startChannel, the SEQ would reach the peer
+                // before the reply starting the channel
+                ChannelImpl channel = (ChannelImpl) message.getChannel();
+                if (channel.getBufferSize() != WINDOW_SIZE) {
+                    channel.setReceiveBufferSize(WINDOW_SIZE);
+                }
+
+                InputDataStreamAdapter in =
+                    message.getDataStream().getInputStream();
+
+                while (in.read(buf) != -1) {
+                }
+                in.close();
+
+                message.sendRPY(new StringOutputDataStream("done"));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static String pad(String s, int width)
+    {
+        StringBuffer sb = new StringBuffer(s);
+
+        while (sb.length() < width) {
+            sb.append(' ');
+        }
+
+        return sb.toString();
+    }
+}
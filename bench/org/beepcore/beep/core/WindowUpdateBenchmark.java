@@ -0,0 +1,157 @@
+/*
+ * WindowUpdateBenchmark.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.beepcore.beep.lib.Reply;
+import org.beepcore.beep.transport.tcp.TCPSessionCreator;
+
+/**
+ * Sends messages over loopback on several channels of one session at
+ * once and reports the SEQs the receiver sent for them. The receiver
+ * reads each message in small pieces, so without a threshold every read
+ * would be advertised with its own SEQ. A SEQ is sent once half of a
+ * channel's window has been read, about two a window, and the SEQs of
+ * channels read at the same time share a write.
+ *
+ * Usage: WindowUpdateBenchmark [channels] [megabytes per channel]
+ *                              [read size]
+ */
+public class WindowUpdateBenchmark {
+
+    private static final String URI = "http://example.org/beep/bench/seq";
+
+    private static final int MESSAGE_SIZE = 64 * 1024;
+
+    private static final AtomicLong seqs = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        int channels = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int megabytes = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        final int readSize = args.length > 2 ? Integer.parseInt(args[2])
+                                             : 256;
+
+        final ProfileRegistry reg = new ProfileRegistry();
+        reg.addStartChannelListener(URI, new StartChannelListener() {
+                public boolean advertiseProfile(Session session) {
+                    return true;
+                }
+                public void startChannel(Channel channel, String encoding,
+                                         String data) {
+                    channel.setRequestHandler(new Sink(readSize));
+                }
+                public void closeChannel(Channel channel) {
+                }
+            }, null);
+
+        final int port = 10296;
+        Thread acceptor = new Thread("WindowUpdateBenchmark acceptor") {
+                public void run() {
+                    try {
+                        while (true) {
+                            TCPSessionCreator.listen(port, reg);
+                        }
+                    } catch (BEEPException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Thread.sleep(500);
+
+        Session session = TCPSessionCreator.initiate("127.0.0.1", port,
+                                                     new ProfileRegistry());
+        final int messages = megabytes * 1024 * 1024 / MESSAGE_SIZE;
+        Thread[] senders = new Thread[channels];
+
+        for (int i=0; i<channels; ++i) {
+            final Channel channel = session.startChannel(URI);
+
+            senders[i] = new Thread("WindowUpdateBenchmark sender") {
+                    public void run() {
+                        try {
+                            byte[] data = new byte[MESSAGE_SIZE];
+
+                            for (int j=0; j<messages; ++j) {
+                                Reply reply = new Reply();
+                                channel.sendMSG(new ByteOutputDataStream(data),
+                                                reply);
+                                reply.getNextReply();
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                };
+        }
+
+        long start = System.nanoTime();
+
+        for (int i=0; i<channels; ++i) {
+            senders[i].start();
+        }
+        for (int i=0; i<channels; ++i) {
+            senders[i].join();
+        }
+
+        long nanos = System.nanoTime() - start;
+        double total = (double) channels * messages * MESSAGE_SIZE;
+
+        System.out.println("channels           " + channels);
+        System.out.println("data per channel   " + megabytes + " MB");
+        System.out.println("read size          " + readSize);
+        System.out.println("throughput         "
+                           + Math.round(total / 1024 / (nanos / 1e9))
+                           + " kB/s");
+        System.out.println("SEQs sent          " + seqs.get());
+        System.out.println("reads per SEQ      "
+                           + Math.round(total / readSize / seqs.get()));
+
+        System.exit(0);
+    }
+
+    private static class Sink implements RequestHandler {
+        private final byte[] buf;
+        private long counted = 0;
+
+        Sink(int readSize)
+        {
+            buf = new byte[readSize];
+        }
+
+        public void receiveMSG(MessageMSG message) {
+            try {
+                InputDataStreamAdapter in =
+                    message.getDataStream().getInputStream();
+
+                while (in.read(buf) != -1) {
+                }
+                in.close();
+
+                long sent = message.getChannel().getWindowUpdatesSent();
+                seqs.addAndGet(sent - counted);
+                counted = sent;
+
+                message.sendRPY(new StringOutputDataStream("done"));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * AsyncRequestBenchmark.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.transport.tcp;
+
+import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.Message;
+import org.beepcore.beep.core.MessageMSG;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.RequestHandler;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.core.StartChannelListener;
+import org.beepcore.beep.core.StringOutputDataStream;
+import org.beepcore.beep.lib.Reply;
+
+/**
+ * Sends requests over loopback on several channels, first from a thread
+ * per outstanding request blocking in <code>Reply.getNextReply</code>,
+ * then from a single thread with <code>sendMSGAsync</code> keeping many
+ * more outstanding. Reports the request rate of both and the threads
+ * they used. Finally sends requests with a deadline to a profile which
+ * never answers and reports how long the shared timer took to fail them.
+ *
+ * Usage: AsyncRequestBenchmark [channels] [seconds] [requests at once]
+ */
+public class AsyncRequestBenchmark {
+
+    private static final String ECHO = "http://example.org/beep/bench/echo";
+
+    private static final String SILENT = "http://example.org/beep/bench/silent";
+
+    // threads blocking in Reply.getNextReply
+    private static final int THREADS = 64;
+
+    private static final int DEADLINE_MS = 500;
+
+    public static void main(String[] args) throws Exception {
+        int channels = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int outstanding = args.length > 2 ? Integer.parseInt(args[2])
+                                          : 10000;
+
+        ProfileRegistry reg = new ProfileRegistry();
+        reg.addStartChannelListener(ECHO, new Listener(true), null);
+        reg.addStartChannelListener(SILENT, new Listener(false), null);
+
+        listen(10305, reg);
+        Thread.sleep(500);
+
+        Session session =
+            TCPSessionCreator.initiate(InetAddress.getByName("127.0.0.1"),
+                                       10305, new ProfileRegistry());
+        Channel[] echo = new Channel[channels];
+        for (int i=0; i<channels; ++i) {
+            echo[i] = session.startChannel(ECHO);
+        }
+
+        System.out.println("channels           " + channels);
+
+        long blocking = runBlocking(echo, seconds);
+        System.out.println("Reply              " + blocking / seconds
+                           + " requests/s, " + THREADS + " threads, "
+                           + THREADS + " outstanding");
+
+        long async = runAsync(echo, seconds, outstanding);
+        System.out.println("sendMSGAsync       " + async / seconds
+                           + " requests/s, 1 thread, " + outstanding
+                           + " outstanding");
+
+        Channel silent = session.startChannel(SILENT);
+        long start = System.nanoTime();
+        CompletableFuture[] requests = new CompletableFuture[outstanding];
+
+        for (int i=0; i<outstanding; ++i) {
+            requests[i] = silent.sendMSGAsync(
+                new StringOutputDataStream("request"), DEADLINE_MS,
+                TimeUnit.MILLISECONDS);
+        }
+
+        int timedOut = 0;
+        for (int i=0; i<outstanding; ++i) {
+            try {
+                requests[i].join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof TimeoutException) {
+                    ++timedOut;
+                }
+            }
+        }
+
+        System.out.println("deadline           " + timedOut + " of "
+                           + outstanding + " timed out after "
+                           + (System.nanoTime() - start) / 1000000
+                           + " ms, " + DEADLINE_MS + " ms deadline");
+
+        System.exit(0);
+    }
+
+    private static long runBlocking(final Channel[] channels, int seconds)
+        throws Exception
+    {
+        final long end = System.nanoTime() + seconds * 1000000000L;
+        final AtomicLong count = new AtomicLong();
+        Thread[] threads = new Thread[THREADS];
+
+        for (int i=0; i<THREADS; ++i) {
+            final Channel channel = channels[i % channels.length];
+
+            threads[i] = new Thread("AsyncRequestBenchmark blocking") {
+                    public void run() {
+                        try {
+                            while (System.nanoTime() < end) {
+                                Reply reply = new Reply();
+                                channel.sendMSG(new StringOutputDataStream("request"),
+                                                reply);
+                                reply.getNextReply().getDataStream().close();
+                                count.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                };
+            threads[i].start();
+        }
+
+        for (int i=0; i<THREADS; ++i) {
+            threads[i].join();
+        }
+
+        return count.get();
+    }
+
+    private static long runAsync(Channel[] channels, int seconds,
+                                 final int outstanding)
+        throws Exception
+    {
+        final Semaphore permits = new Semaphore(outstanding);
+        final AtomicLong count = new AtomicLong();
+        BiConsumer<Message, Throwable> done =
+            new BiConsumer<Message, Throwable>() {
+                public void accept(Message reply, Throwable error) {
+                    if (error != null) {
+                        error.printStackTrace();
+                    } else {
+                        reply.getDataStream().close();
+                        count.incrementAndGet();
+                    }
+                    permits.release();
+                }
+            };
+        long end = System.nanoTime() + seconds * 1000000000L;
+
+        for (int i=0; System.nanoTime() < end; ++i) {
+            permits.acquire();
+            channels[i % channels.length]
+                .sendMSGAsync(new StringOutputDataStream("request"))
+                .whenComplete(done);
+        }
+
+        // let the last replies arrive
+        permits.acquire(outstanding);
+
+        return count.get();
+    }
+
+    private static void listen(final int port, final ProfileRegistry reg)
+    {
+        Thread acceptor = new Thread("AsyncRequestBenchmark acceptor") {
+                public void run() {
+                    try {
+                        while (true) {
+                            TCPSessionCreator.listen(port, reg);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private static class Listener implements StartChannelListener {
+        private final boolean reply;
+
+        Listener(boolean reply)
+        {
+            this.reply = reply;
+        }
+
+        public boolean advertiseProfile(Session session) {
+            return true;
+        }
+
+        public void startChannel(Channel channel, String encoding,
+                                 String data) {
+            channel.setRequestHandler(new Handler(reply));
+        }
+
+        public void closeChannel(Channel channel) {
+        }
+    }
+
+    private static class Handler implements RequestHandler {
+        private final boolean reply;
+
+        Handler(boolean reply)
+        {
+            this.reply = reply;
+        }
+
+        public void receiveMSG(MessageMSG message) {
+            try {
+                // frees the window for the next request
+                message.getDataStream().close();
+                if (reply) {
+                    message.sendRPY(new StringOutputDataStream("done"));
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * ChannelStartBenchmark.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.transport.tcp;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.core.StartChannelListener;
+
+/**
+ * Measures how quickly channels can be started over loopback, first with
+ * one blocking <code>startChannel</code> call at a time and then with all
+ * of the starts sent with <code>startChannelAsync</code> before waiting
+ * for any of the replies.
+ *
+ * Usage: ChannelStartBenchmark [channels per run]
+ */
+public class ChannelStartBenchmark {
+
+    private static final String URI = "http://example.org/beep/bench/start";
+
+    public static void main(String[] args) throws Exception {
+        int channels = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+
+        final ProfileRegistry reg = new ProfileRegistry();
+        reg.addStartChannelListener(URI, new StartChannelListener() {
+                public boolean advertiseProfile(Session session) {
+                    return true;
+                }
+                public void startChannel(Channel channel, String encoding,
+                                         String data) {
+                }
+                public void closeChannel(Channel channel) {
+                }
+            }, null);
+
+        final int port = 10290;
+        Thread acceptor = new Thread("ChannelStartBenchmark acceptor") {
+                public void run() {
+                    try {
+                        while (true) {
+                            TCPSessionCreator.listen(port, reg);
+                        }
+                    } catch (BEEPException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Thread.sleep(500);
+
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+
+        // warm up both paths on a throw away session
+        Session warm = TCPSessionCreator.initiate(localhost, port, reg);
+        runSequential(warm, channels / 4);
+        runPipelined(warm, channels / 4);
+
+        Session sequential = TCPSessionCreator.initiate(localhost, port, reg);
+        Session pipelined = TCPSessionCreator.initiate(localhost, port, reg);
+
+        System.out.println("channels           " + channels);
+        System.out.println("startChannel       "
+                           + runSequential(sequential, channels)
+                           + " channels/s");
+        System.out.println("startChannelAsync  "
+                           + runPipelined(pipelined, channels)
+                           + " channels/s");
+
+        System.exit(0);
+    }
+
+    private static long runSequential(Session session, int channels)
+        throws BEEPException
+    {
+        long start = System.nanoTime();
+
+        for (int i=0; i<channels; ++i) {
+            session.startChannel(URI);
+        }
+
+        return rate(channels, System.nanoTime() - start);
+    }
+
+    private static long runPipelined(Session session, int channels)
+        throws Exception
+    {
+        long start = System.nanoTime();
+        List futures = new ArrayList(channels);
+
+        for (int i=0; i<channels; ++i) {
+            futures.add(session.startChannelAsync(URI));
+        }
+        for (int i=0; i<channels; ++i) {
+            ((CompletableFuture) futures.get(i)).get();
+        }
+
+        return rate(channels, System.nanoTime() - start);
+    }
+
+    private static long rate(int channels, long nanos)
+    {
+        return Math.round(channels / (nanos / 1e9));
+    }
+}
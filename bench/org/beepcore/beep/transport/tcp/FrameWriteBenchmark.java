@@ -0,0 +1,323 @@
+/*
+ * FrameWriteBenchmark.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.transport.tcp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.util.BufferSegment;
+
+/**
+ * Compares the two ways <code>TCPSession.sendFrame</code> can put a frame
+ * on the wire: copying the header, payload and trailer segments into a
+ * single buffer (written either to the socket's <code>OutputStream</code>
+ * or to its channel), and handing the segments to
+ * <code>GatheringByteChannel.write(ByteBuffer[])</code>.
+ * <p>
+ * Frames are written over loopback to a thread that discards them.
+ * <p>
+ * A second table measures contention in <code>AsyncFrameWriter</code>:
+ * several producer threads queue frames for one writer thread.
+ *
+ * Usage: FrameWriteBenchmark [megabytes per run]
+ */
+public class FrameWriteBenchmark {
+
+    private static final int[] PAYLOAD_SIZES =
+        {64, 1400, 4096, 8192, 16384, 65536, 262144};
+    private static final int[] ASYNC_PAYLOAD_SIZES = {64, 1400, 8192};
+    private static final int[] PRODUCERS = {1, 4, 16};
+    private static final byte[] TRAILER = "END\r\n".getBytes();
+
+    private byte[] outputBuf = new byte[0];
+
+    public static void main(String[] args) throws Exception {
+        long megabytes = args.length > 0 ? Long.parseLong(args[0]) : 256;
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        int port = server.socket().getLocalPort();
+        startSink(server);
+
+        FrameWriteBenchmark b = new FrameWriteBenchmark();
+
+        System.out.println(pad("payload", 10) + pad("copy MB/s", 13)
+                           + pad("copy+ch MB/s", 13)
+                           + pad("gather MB/s", 13));
+        for (int i=0; i<PAYLOAD_SIZES.length; ++i) {
+            BufferSegment[] frame = frame(PAYLOAD_SIZES[i]);
+            long frames = megabytes * 1024 * 1024 / PAYLOAD_SIZES[i];
+
+            Socket copy = new Socket("127.0.0.1", port);
+            SocketChannel gather =
+                SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+
+            // warm up both paths before measuring
+            b.runCopy(copy.getOutputStream(), frame, frames / 4);
+            b.runCopyChannel(gather, frame, frames / 4);
+            b.runGather(gather, frame, frames / 4);
+
+            double copyRate = b.runCopy(copy.getOutputStream(), frame, frames);
+            double copyChannelRate = b.runCopyChannel(gather, frame, frames);
+            double gatherRate = b.runGather(gather, frame, frames);
+
+            System.out.println(pad(Integer.toString(PAYLOAD_SIZES[i]), 10)
+                               + pad(format(copyRate), 13)
+                               + pad(format(copyChannelRate), 13)
+                               + pad(format(gatherRate), 13));
+
+            copy.close();
+            gather.close();
+        }
+
+        System.out.println();
+        System.out.println(pad("payload", 10) + pad("producers", 11)
+                           + pad("async MB/s", 13));
+        for (int i=0; i<ASYNC_PAYLOAD_SIZES.length; ++i) {
+            for (int j=0; j<PRODUCERS.length; ++j) {
+                long frames = megabytes * 1024 * 1024 / ASYNC_PAYLOAD_SIZES[i];
+
+                // warm up before measuring
+                runAsync(port, ASYNC_PAYLOAD_SIZES[i], PRODUCERS[j],
+                         frames / 4);
+
+                double rate = runAsync(port, ASYNC_PAYLOAD_SIZES[i],
+                                       PRODUCERS[j], frames);
+
+                System.out.println(pad(Integer.toString(ASYNC_PAYLOAD_SIZES[i]),
+                                       10)
+                                   + pad(Integer.toString(PRODUCERS[j]), 11)
+                                   + pad(format(rate), 13));
+            }
+        }
+
+        server.close();
+    }
+
+    /**
+     * Queues <code>frames</code> frames from <code>producers</code>
+     * threads, each with a frame of its own, on one
+     * <code>AsyncFrameWriter</code>.
+     */
+    private static double runAsync(int port, final int size, int producers,
+                                   long frames)
+        throws Exception
+    {
+        SocketChannel c =
+            SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+        final AsyncFrameWriter writer =
+            new AsyncFrameWriter(null, c.socket().getOutputStream(), c, null);
+        final long perProducer = frames / producers;
+        Thread[] threads = new Thread[producers];
+
+        long start = System.nanoTime();
+
+        for (int i=0; i<producers; ++i) {
+            threads[i] = new Thread() {
+                    public void run() {
+                        BufferSegment[] frame = frame(size);
+
+                        try {
+                            for (long f=0; f<perProducer; ++f) {
+                                writer.write(frame);
+                            }
+                        } catch (BEEPException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                };
+            threads[i].start();
+        }
+
+        for (int i=0; i<producers; ++i) {
+            threads[i].join();
+        }
+        writer.flush();
+
+        long nanos = System.nanoTime() - start;
+
+        writer.shutdown();
+        c.close();
+
+        return rate(perProducer * producers * (frame(size)[0].getLength()
+                                               + size + TRAILER.length),
+                    nanos);
+    }
+
+    private double runCopy(OutputStream os, BufferSegment[] bs, long frames)
+        throws IOException
+    {
+        long start = System.nanoTime();
+        long bytes = 0;
+
+        for (long f=0; f<frames; ++f) {
+            int n = 0;
+            for (int i=0; i<bs.length; ++i) {
+                n += bs[i].getLength();
+            }
+
+            if (n > outputBuf.length) {
+                outputBuf = new byte[n];
+            }
+
+            int off = 0;
+            for (int i=0; i<bs.length; ++i) {
+                System.arraycopy(bs[i].getData(), bs[i].getOffset(),
+                                 outputBuf, off, bs[i].getLength());
+                off += bs[i].getLength();
+            }
+
+            os.write(outputBuf, 0, n);
+            os.flush();
+            bytes += n;
+        }
+
+        return rate(bytes, System.nanoTime() - start);
+    }
+
+    private double runCopyChannel(GatheringByteChannel channel,
+                                  BufferSegment[] bs, long frames)
+        throws IOException
+    {
+        long start = System.nanoTime();
+        long bytes = 0;
+
+        for (long f=0; f<frames; ++f) {
+            int n = 0;
+            for (int i=0; i<bs.length; ++i) {
+                n += bs[i].getLength();
+            }
+
+            if (n > outputBuf.length) {
+                outputBuf = new byte[n];
+            }
+
+            int off = 0;
+            for (int i=0; i<bs.length; ++i) {
+                System.arraycopy(bs[i].getData(), bs[i].getOffset(),
+                                 outputBuf, off, bs[i].getLength());
+                off += bs[i].getLength();
+            }
+
+            ByteBuffer b = ByteBuffer.wrap(outputBuf, 0, n);
+            do {
+                bytes += channel.write(b);
+            } while (b.hasRemaining());
+        }
+
+        return rate(bytes, System.nanoTime() - start);
+    }
+
+    private double runGather(GatheringByteChannel channel, BufferSegment[] bs,
+                             long frames)
+        throws IOException
+    {
+        long start = System.nanoTime();
+        long bytes = 0;
+
+        for (long f=0; f<frames; ++f) {
+            ByteBuffer[] buffers = new ByteBuffer[bs.length];
+            for (int i=0; i<bs.length; ++i) {
+                buffers[i] = ByteBuffer.wrap(bs[i].getData(),
+                                             bs[i].getOffset(),
+                                             bs[i].getLength());
+            }
+
+            ByteBuffer last = buffers[buffers.length - 1];
+            do {
+                bytes += channel.write(buffers);
+            } while (last.hasRemaining());
+        }
+
+        return rate(bytes, System.nanoTime() - start);
+    }
+
+    private static BufferSegment[] frame(int size)
+    {
+        byte[] header = ("MSG 1 1 . 0 " + size + "\r\n").getBytes();
+        byte[] payload = new byte[size];
+
+        return new BufferSegment[] {
+            new BufferSegment(header),
+            new BufferSegment(payload),
+            new BufferSegment(TRAILER)
+        };
+    }
+
+    private static void startSink(final ServerSocketChannel server)
+    {
+        Thread t = new Thread("FrameWriteBenchmark sink") {
+                public void run() {
+                    try {
+                        while (true) {
+                            final SocketChannel c = server.accept();
+                            Thread r = new Thread() {
+                                    public void run() {
+                                        drain(c);
+                                    }
+                                };
+                            r.setDaemon(true);
+                            r.start();
+                        }
+                    } catch (IOException e) {
+                        // server closed
+                    }
+                }
+            };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static void drain(SocketChannel c)
+    {
+        ByteBuffer b = ByteBuffer.allocateDirect(256 * 1024);
+
+        try {
+            while (c.read(b) != -1) {
+                b.clear();
+            }
+            c.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private static double rate(long bytes, long nanos)
+    {
+        return (bytes / (1024.0 * 1024.0)) / (nanos / 1e9);
+    }
+
+    private static String format(double d)
+    {
+        return Long.toString(Math.round(d));
+    }
+
+    private static String pad(String s, int width)
+    {
+        StringBuffer sb = new StringBuffer(s);
+        while (sb.length() < width) {
+            sb.insert(0, ' ');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * PipelinedRequestBenchmark.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.transport.tcp;
+
+import java.net.InetAddress;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.Message;
+import org.beepcore.beep.core.MessageMSG;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.ReplyListener;
+import org.beepcore.beep.core.RequestHandler;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.core.StartChannelListener;
+import org.beepcore.beep.core.StringOutputDataStream;
+
+/**
+ * Pipelines requests over loopback on a single channel to a handler which
+ * waits a random few milliseconds over each, as if for a database, so
+ * they finish out of order. The run is repeated with the listening
+ * session handling one request of the channel at a time and several at
+ * once. Reports the request rate and checks the replies came back in
+ * the order the requests were sent.
+ *
+ * Usage: PipelinedRequestBenchmark [requests at once] [seconds]
+ *                                  [most handler ms]
+ */
+public class PipelinedRequestBenchmark {
+
+    private static final String URI = "http://example.org/beep/bench/pipeline";
+
+    // requests the client keeps outstanding
+    private static final int PIPELINE = 64;
+
+    public static void main(String[] args) throws Exception {
+        int concurrent = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int delay = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        System.out.println("pipelined requests " + PIPELINE);
+        System.out.println("handler            0-" + delay + " ms a request");
+
+        ProfileRegistry reg = new ProfileRegistry();
+        reg.addStartChannelListener(URI, new Listener(delay), null);
+
+        int[] modes = new int[] {1, concurrent};
+
+        for (int i=0; i<modes.length; ++i) {
+            TCPSessionConfig config = new TCPSessionConfig();
+            config.setConcurrentRequests(modes[i]);
+
+            int port = 10303 + i;
+            listen(port, reg, config);
+            Thread.sleep(500);
+
+            Counter counter = run(port, seconds);
+
+            System.out.println(modes[i] + " at a time" + "        ".substring(
+                                   Integer.toString(modes[i]).length())
+                               + counter.replies / seconds + " requests/s, "
+                               + (counter.outOfOrder == 0 ? "in order"
+                                  : counter.outOfOrder + " out of order"));
+        }
+
+        System.exit(0);
+    }
+
+    private static Counter run(int port, int seconds) throws Exception
+    {
+        Session session =
+            TCPSessionCreator.initiate(InetAddress.getByName("127.0.0.1"),
+                                       port, new ProfileRegistry());
+        Channel channel = session.startChannel(URI);
+        Counter counter = new Counter();
+        long end = System.nanoTime() + seconds * 1000000000L;
+
+        while (System.nanoTime() < end) {
+            counter.outstanding.acquire();
+            channel.sendMSG(new StringOutputDataStream("request"), counter);
+        }
+
+        // let the last replies arrive before the next run
+        counter.outstanding.acquire(PIPELINE);
+
+        return counter;
+    }
+
+    private static void listen(final int port, final ProfileRegistry reg,
+                               final TCPSessionConfig config)
+    {
+        Thread acceptor = new Thread("PipelinedRequestBenchmark acceptor") {
+                public void run() {
+                    try {
+                        while (true) {
+                            TCPSessionCreator.listen((InetAddress) null, port,
+                                                     reg, config);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private static class Counter implements ReplyListener {
+        final Semaphore outstanding = new Semaphore(PIPELINE);
+        volatile long replies = 0;
+        long outOfOrder = 0;
+        int lastMsgno = -1;
+
+        public void receiveRPY(Message message) {
+            message.getDataStream().close();
+
+            // msgnos count up from 1 on a new channel
+            if (message.getMsgno() != lastMsgno + 1 && lastMsgno != -1) {
+                ++outOfOrder;
+            }
+            lastMsgno = message.getMsgno();
+            ++replies;
+
+            outstanding.release();
+        }
+
+        public void receiveERR(Message message) {
+            receiveRPY(message);
+        }
+
+        public void receiveANS(Message message) {
+        }
+
+        public void receiveNUL(Message message) {
+        }
+    }
+
+    private static class Listener implements StartChannelListener {
+        private final int delay;
+
+        Listener(int delay)
+        {
+            this.delay = delay;
+        }
+
+        public boolean advertiseProfile(Session session) {
+            return true;
+        }
+
+        public void startChannel(Channel channel, String encoding,
+                                 String data) {
+            channel.setRequestHandler(new Handler(delay));
+        }
+
+        public void closeChannel(Channel channel) {
+        }
+    }
+
+    private static class Handler implements RequestHandler {
+        private final int delay;
+        private final Random random = new Random();
+
+        Handler(int delay)
+        {
+            this.delay = delay;
+        }
+
+        public void receiveMSG(MessageMSG message) {
+            try {
+                // frees the window for the next request
+                message.getDataStream().close();
+
+                int ms;
+                synchronized (random) {
+                    ms = random.nextInt(delay + 1);
+                }
+                Thread.sleep(ms);
+
+                message.sendRPY(new StringOutputDataStream("done"));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * ProfileExecutorBenchmark.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.transport.tcp;
+
+import java.net.InetAddress;
+
+import org.beepcore.beep.core.CallbackExecutor;
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.MessageMSG;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.RequestHandler;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.core.StartChannelListener;
+import org.beepcore.beep.core.StringOutputDataStream;
+import org.beepcore.beep.lib.Reply;
+
+/**
+ * Sends requests over loopback on many channels of a busy profile, whose
+ * handler takes a while over each, while one channel of an admin profile
+ * on the same session measures its round trip. The listening session
+ * calls its handlers on a small pool. The run is repeated with both
+ * profiles sharing that pool and with the busy profile given a pool of
+ * its own. Reports the admin round trip and the counters of the pools.
+ *
+ * Usage: ProfileExecutorBenchmark [busy channels] [seconds] [busy ms]
+ *                                 [threads]
+ */
+public class ProfileExecutorBenchmark {
+
+    private static final String BUSY = "http://example.org/beep/bench/busy";
+
+    private static final String ADMIN = "http://example.org/beep/bench/admin";
+
+    public static void main(String[] args) throws Exception {
+        int channels = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int delay = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+
+        System.out.println("busy channels      " + channels);
+        System.out.println("busy handler       " + delay + " ms a request");
+        System.out.println("pool threads       " + threads);
+
+        for (int own=0; own<2; ++own) {
+            ProfileRegistry reg = new ProfileRegistry();
+            reg.addStartChannelListener(BUSY, new Listener(delay), null);
+            reg.addStartChannelListener(ADMIN, new Listener(0), null);
+
+            CallbackExecutor shared =
+                CallbackExecutor.newThreadPool("Session Callback", threads);
+            CallbackExecutor busy = null;
+            if (own == 1) {
+                busy = CallbackExecutor.newThreadPool("Busy Callback",
+                                                      threads);
+                reg.setCallbackExecutor(BUSY, busy);
+            }
+
+            TCPSessionConfig config = new TCPSessionConfig();
+            config.setCallbackExecutor(shared);
+
+            int port = 10301 + own;
+            listen(port, reg, config);
+            Thread.sleep(500);
+
+            long[] result = run(port, channels, seconds);
+
+            System.out.println(own == 1 ? "busy profile pool" : "shared pool");
+            System.out.println("  admin            " + result[1] / 1000
+                               + " us round trip, " + result[0] / seconds
+                               + " requests/s");
+            System.out.println("  busy             " + result[2] / seconds
+                               + " requests/s");
+            print("  session pool     ", shared);
+            if (busy != null) {
+                print("  busy pool        ", busy);
+            }
+        }
+
+        System.exit(0);
+    }
+
+    /**
+     * @return the admin requests, their mean round trip in nanoseconds
+     * and the busy requests
+     */
+    private static long[] run(int port, int channels, int seconds)
+        throws Exception
+    {
+        Session session =
+            TCPSessionCreator.initiate(InetAddress.getByName("127.0.0.1"),
+                                       port, new ProfileRegistry());
+        final long end = System.nanoTime() + seconds * 1000000000L;
+        final long[] busyCount = new long[1];
+
+        Thread[] busy = new Thread[channels];
+
+        for (int i=0; i<channels; ++i) {
+            final Channel channel = session.startChannel(BUSY);
+
+            busy[i] = new Thread("ProfileExecutorBenchmark busy") {
+                    public void run() {
+                        long count = 0;
+
+                        try {
+                            while (System.nanoTime() < end) {
+                                request(channel);
+                                ++count;
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+
+                        synchronized (busyCount) {
+                            busyCount[0] += count;
+                        }
+                    }
+                };
+            busy[i].start();
+        }
+
+        Channel admin = session.startChannel(ADMIN);
+        long count = 0;
+        long nanos = 0;
+
+        while (System.nanoTime() < end) {
+            long start = System.nanoTime();
+            request(admin);
+            nanos += System.nanoTime() - start;
+            ++count;
+
+            // an occasional request, not a load of its own
+            Thread.sleep(10);
+        }
+
+        for (int i=0; i<channels; ++i) {
+            busy[i].join();
+        }
+
+        return new long[] {
+            count, count == 0 ? 0 : nanos / count, busyCount[0]
+        };
+    }
+
+    private static void request(Channel channel) throws Exception
+    {
+        Reply reply = new Reply();
+
+        channel.sendMSG(new StringOutputDataStream("ping"), reply);
+        // frees the window for the next reply
+        reply.getNextReply().getDataStream().close();
+    }
+
+    private static void print(String name, CallbackExecutor executor)
+    {
+        System.out.println(name + executor.getTaskCount() + " tasks, "
+                           + executor.getMeanQueueNanos() / 1000
+                           + " us mean wait, "
+                           + executor.getMaxQueueNanos() / 1000
+                           + " us max wait");
+    }
+
+    private static void listen(final int port, final ProfileRegistry reg,
+                               final TCPSessionConfig config)
+    {
+        Thread acceptor = new Thread("ProfileExecutorBenchmark acceptor") {
+                public void run() {
+                    try {
+                        while (true) {
+                            TCPSessionCreator.listen((InetAddress) null, port,
+                                                     reg, config);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private static class Listener implements StartChannelListener {
+        private final int delay;
+
+        Listener(int delay)
+        {
+            this.delay = delay;
+        }
+
+        public boolean advertiseProfile(Session session) {
+            return true;
+        }
+
+        public void startChannel(Channel channel, String encoding,
+                                 String data) {
+            channel.setRequestHandler(new Handler(delay));
+        }
+
+        public void closeChannel(Channel channel) {
+        }
+    }
+
+    private static class Handler implements RequestHandler {
+        private final int delay;
+
+        Handler(int delay)
+        {
+            this.delay = delay;
+        }
+
+        public void receiveMSG(MessageMSG message) {
+            try {
+                // frees the window for the next request
+                message.getDataStream().close();
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+                message.sendRPY(new StringOutputDataStream("done"));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
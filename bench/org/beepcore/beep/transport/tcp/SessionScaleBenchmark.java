@@ -0,0 +1,155 @@
+/*
+ * SessionScaleBenchmark.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.transport.tcp;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.util.VirtualThreads;
+
+/**
+ * Opens a large number of idle TCP sessions over loopback and reports the
+ * platform thread count and memory used, either with the default thread
+ * per session readers or with <code>TCPSessionConfig.setVirtualThreads</code>.
+ * Both ends of every session live in this JVM so each session accounts
+ * for two <code>TCPSession</code>s. Run each mode in its own JVM.
+ *
+ * Usage: SessionScaleBenchmark platform|virtual [sessions] [async]
+ */
+public class SessionScaleBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        boolean virtual = args.length > 0 && args[0].equals("virtual");
+        int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+
+        final TCPSessionConfig config = new TCPSessionConfig();
+        config.setVirtualThreads(virtual);
+        if (args.length > 2 && args[2].equals("async")) {
+            config.setAsyncWriter(true);
+        }
+
+        if (virtual && VirtualThreads.isSupported() == false) {
+            System.out.println("Virtual threads are not supported by this "
+                               + "JVM, the results are for platform threads");
+        }
+
+        final ProfileRegistry reg = new ProfileRegistry();
+        final int port = 10289;
+        final List listeners = new ArrayList();
+
+        Thread acceptor = new Thread("SessionScaleBenchmark acceptor") {
+                public void run() {
+                    try {
+                        while (true) {
+                            Session s = TCPSessionCreator.listen(port, reg,
+                                                                 config);
+                            synchronized (listeners) {
+                                listeners.add(s);
+                            }
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Thread.sleep(500);
+
+        Snapshot before = Snapshot.take();
+        long start = System.currentTimeMillis();
+
+        List initiators = new ArrayList(sessions);
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        for (int i=0; i<sessions; ++i) {
+            initiators.add(TCPSessionCreator.initiate(localhost, port, reg,
+                                                      null, config));
+            if ((i + 1) % 1000 == 0) {
+                System.out.println((i + 1) + " sessions");
+            }
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+        Snapshot after = Snapshot.take();
+
+        System.out.println("mode              " + (virtual ? "virtual" : "platform"));
+        System.out.println("sessions          " + sessions);
+        System.out.println("setup time        " + elapsed + " ms");
+        System.out.println("platform threads  " + before.threads + " -> "
+                           + after.threads);
+        System.out.println("heap used         " + mb(before.heap) + " -> "
+                           + mb(after.heap) + " MB");
+        if (after.rss > 0) {
+            System.out.println("resident set      " + mb(before.rss) + " -> "
+                               + mb(after.rss) + " MB");
+        }
+
+        System.exit(0);
+    }
+
+    private static String mb(long bytes)
+    {
+        return Long.toString(bytes / (1024 * 1024));
+    }
+
+    private static class Snapshot {
+        int threads;
+        long heap;
+        long rss;
+
+        static Snapshot take() {
+            Snapshot s = new Snapshot();
+
+            System.gc();
+            s.threads = ManagementFactory.getThreadMXBean().getThreadCount();
+            s.heap = ManagementFactory.getMemoryMXBean()
+                .getHeapMemoryUsage().getUsed();
+            s.rss = residentSetSize();
+
+            return s;
+        }
+
+        /** Returns the process RSS on Linux, 0 elsewhere */
+        private static long residentSetSize() {
+            try {
+                BufferedReader r =
+                    new BufferedReader(new FileReader("/proc/self/status"));
+                try {
+                    String line;
+                    while ((line = r.readLine()) != null) {
+                        if (line.startsWith("VmRSS:")) {
+                            String kb = line.substring(6).trim();
+                            kb = kb.substring(0, kb.indexOf(' '));
+                            return Long.parseLong(kb) * 1024;
+                        }
+                    }
+                } finally {
+                    r.close();
+                }
+            } catch (IOException e) {
+            }
+            return 0;
+        }
+    }
+}
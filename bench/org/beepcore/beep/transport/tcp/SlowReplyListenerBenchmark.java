@@ -0,0 +1,207 @@
+/*
+ * SlowReplyListenerBenchmark.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.transport.tcp;
+
+import java.net.InetAddress;
+
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.Message;
+import org.beepcore.beep.core.MessageMSG;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.ReplyListener;
+import org.beepcore.beep.core.RequestHandler;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.core.StartChannelListener;
+import org.beepcore.beep.core.StringOutputDataStream;
+import org.beepcore.beep.lib.Reply;
+
+/**
+ * Sends requests over loopback on several fast channels while a slow
+ * channel on the same session has a reply listener which takes a while
+ * over each reply. The run is repeated with replies delivered on the
+ * reader thread and with the reply dispatch mode, which hands them to a
+ * per-channel ordered executor. Reports the request rate and mean round
+ * trip of the fast channels.
+ *
+ * Usage: SlowReplyListenerBenchmark [fast channels] [seconds]
+ *                                   [slow listener ms]
+ */
+public class SlowReplyListenerBenchmark {
+
+    private static final String URI = "http://example.org/beep/bench/reply";
+
+    public static void main(String[] args) throws Exception {
+        int channels = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int delay = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        final ProfileRegistry reg = new ProfileRegistry();
+        reg.addStartChannelListener(URI, new StartChannelListener() {
+                public boolean advertiseProfile(Session session) {
+                    return true;
+                }
+                public void startChannel(Channel channel, String encoding,
+                                         String data) {
+                    channel.setRequestHandler(new Echo());
+                }
+                public void closeChannel(Channel channel) {
+                }
+            }, null);
+
+        listen(10300, reg);
+        Thread.sleep(500);
+
+        System.out.println("fast channels      " + channels);
+        System.out.println("slow listener      " + delay + " ms a reply");
+
+        for (int async=0; async<2; ++async) {
+            TCPSessionConfig config = new TCPSessionConfig();
+            config.setAsyncReplies(async == 1);
+
+            long[] result = run(config, channels, seconds, delay);
+
+            System.out.println((async == 1 ? "ordered executor   "
+                                           : "reader thread      ")
+                               + result[0] / seconds + " requests/s, "
+                               + result[1] / 1000 + " us round trip");
+        }
+
+        System.exit(0);
+    }
+
+    /**
+     * @return the requests completed on the fast channels and their mean
+     * round trip in nanoseconds
+     */
+    private static long[] run(TCPSessionConfig config, int channels,
+                              int seconds, int delay)
+        throws Exception
+    {
+        Session session =
+            TCPSessionCreator.initiate(InetAddress.getByName("127.0.0.1"),
+                                       10300, new ProfileRegistry(), null,
+                                       config);
+        final long end = System.nanoTime() + seconds * 1000000000L;
+        final long[] totals = new long[2];
+
+        Channel slow = session.startChannel(URI);
+        SlowListener listener = new SlowListener(delay);
+
+        // keep replies waiting for the slow listener for the whole run
+        for (int i=0; i<seconds * 1000 / delay + 1; ++i) {
+            slow.sendMSG(new StringOutputDataStream("slow"), listener);
+        }
+
+        Thread[] fast = new Thread[channels];
+
+        for (int i=0; i<channels; ++i) {
+            final Channel channel = session.startChannel(URI);
+
+            fast[i] = new Thread("SlowReplyListenerBenchmark fast") {
+                    public void run() {
+                        long count = 0;
+                        long nanos = 0;
+
+                        try {
+                            while (System.nanoTime() < end) {
+                                long start = System.nanoTime();
+                                Reply reply = new Reply();
+
+                                channel.sendMSG(new StringOutputDataStream("fast"),
+                                                reply);
+                                // frees the window for the next reply
+                                reply.getNextReply().getDataStream().close();
+                                nanos += System.nanoTime() - start;
+                                ++count;
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+
+                        synchronized (totals) {
+                            totals[0] += count;
+                            totals[1] += nanos;
+                        }
+                    }
+                };
+            fast[i].start();
+        }
+
+        for (int i=0; i<channels; ++i) {
+            fast[i].join();
+        }
+
+        return new long[] {
+            totals[0], totals[0] == 0 ? 0 : totals[1] / totals[0]
+        };
+    }
+
+    private static void listen(final int port, final ProfileRegistry reg)
+    {
+        Thread acceptor = new Thread("SlowReplyListenerBenchmark acceptor") {
+                public void run() {
+                    try {
+                        while (true) {
+                            TCPSessionCreator.listen(port, reg);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private static class Echo implements RequestHandler {
+        public void receiveMSG(MessageMSG message) {
+            try {
+                // frees the window for the next request
+                message.getDataStream().close();
+                message.sendRPY(new StringOutputDataStream("done"));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static class SlowListener implements ReplyListener {
+        private final int delay;
+
+        SlowListener(int delay)
+        {
+            this.delay = delay;
+        }
+
+        public void receiveRPY(Message message) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+            }
+            message.getDataStream().close();
+        }
+
+        public void receiveERR(Message message) {
+        }
+
+        public void receiveANS(Message message) {
+        }
+
+        public void receiveNUL(Message message) {
+        }
+    }
+}
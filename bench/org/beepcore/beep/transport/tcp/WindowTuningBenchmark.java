@@ -0,0 +1,243 @@
+/*
+ * WindowTuningBenchmark.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.transport.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.beepcore.beep.core.ByteOutputDataStream;
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.InputDataStreamAdapter;
+import org.beepcore.beep.core.MessageMSG;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.RequestHandler;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.core.StartChannelListener;
+import org.beepcore.beep.core.StringOutputDataStream;
+import org.beepcore.beep.lib.Reply;
+
+/**
+ * Measures the throughput of one channel over an emulated long link, a
+ * loopback proxy which delays everything it forwards, with the default
+ * 4k receive window and with receive window auto-tuning. Each run sends
+ * the same messages one after another, the receiver reads each message
+ * as it arrives and replies once it has read all of it. Nagle's
+ * algorithm is turned off so the window, not delayed acknowledgements,
+ * limits the transfer.
+ *
+ * Usage: WindowTuningBenchmark [round trip ms] [megabytes per run]
+ *                              [max window kB]
+ */
+public class WindowTuningBenchmark {
+
+    private static final String URI = "http://example.org/beep/bench/window";
+
+    private static final int MESSAGE_SIZE = 256 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int rtt = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+        int megabytes = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int maxWindow = args.length > 2 ? Integer.parseInt(args[2]) : 4096;
+
+        final ProfileRegistry reg = new ProfileRegistry();
+        reg.addStartChannelListener(URI, new StartChannelListener() {
+                public boolean advertiseProfile(Session session) {
+                    return true;
+                }
+                public void startChannel(Channel channel, String encoding,
+                                         String data) {
+                    channel.setRequestHandler(new Sink());
+                }
+                public void closeChannel(Channel channel) {
+                }
+            }, null);
+
+        TCPSessionConfig tuned = new TCPSessionConfig();
+        tuned.setMaxReceiveWindowSize(maxWindow * 1024);
+
+        listen(10292, reg, new TCPSessionConfig());
+        listen(10293, reg, tuned);
+        new DelayProxy(10294, 10292, rtt / 2).start();
+        new DelayProxy(10295, 10293, rtt / 2).start();
+        Thread.sleep(500);
+
+        System.out.println("round trip         " + rtt + " ms");
+        System.out.println("data               " + megabytes + " MB");
+        System.out.println("default window     "
+                           + run(10294, megabytes) + " kB/s");
+        System.out.println("auto-tuned window  "
+                           + run(10295, megabytes) + " kB/s (max "
+                           + maxWindow + "k)");
+
+        System.exit(0);
+    }
+
+    private static long run(int port, int megabytes) throws Exception
+    {
+        TCPSession session =
+            TCPSessionCreator.initiate(InetAddress.getByName("127.0.0.1"),
+                                       port, new ProfileRegistry());
+        session.getSocket().setTcpNoDelay(true);
+        Channel channel = session.startChannel(URI);
+        byte[] data = new byte[MESSAGE_SIZE];
+        int messages = megabytes * 1024 * 1024 / MESSAGE_SIZE;
+
+        long start = System.nanoTime();
+
+        for (int i=0; i<messages; ++i) {
+            Reply reply = new Reply();
+            channel.sendMSG(new ByteOutputDataStream(data), reply);
+            reply.getNextReply();
+        }
+
+        long nanos = System.nanoTime() - start;
+
+        return Math.round(messages * (MESSAGE_SIZE / 1024.0) / (nanos / 1e9));
+    }
+
+    private static void listen(final int port, final ProfileRegistry reg,
+                               final TCPSessionConfig config)
+    {
+        Thread acceptor = new Thread("WindowTuningBenchmark acceptor") {
+                public void run() {
+                    try {
+                        while (true) {
+                            TCPSessionCreator.listen((InetAddress) null, port,
+                                                     reg, config)
+                                .getSocket().setTcpNoDelay(true);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private static class Sink implements RequestHandler {
+        private final byte[] buf = new byte[8192];
+
+        public void receiveMSG(MessageMSG message) {
+            try {
+                InputDataStreamAdapter in =
+                    message.getDataStream().getInputStream();
+
+                while (in.read(buf) != -1) {
+                }
+                in.close();
+
+                message.sendRPY(new StringOutputDataStream("done"));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Accepts one connection at a time and forwards each direction to
+     * <code>target</code> after <code>delay</code> milliseconds.
+     */
+    private static class DelayProxy extends Thread {
+        private final int port;
+        private final int target;
+        private final int delay;
+
+        DelayProxy(int port, int target, int delay)
+        {
+            super("WindowTuningBenchmark proxy");
+            setDaemon(true);
+            this.port = port;
+            this.target = target;
+            this.delay = delay;
+        }
+
+        public void run()
+        {
+            try {
+                ServerSocket server = new ServerSocket(port);
+
+                while (true) {
+                    Socket a = server.accept();
+                    Socket b = new Socket("127.0.0.1", target);
+
+                    a.setTcpNoDelay(true);
+                    b.setTcpNoDelay(true);
+                    pipe(a.getInputStream(), b.getOutputStream());
+                    pipe(b.getInputStream(), a.getOutputStream());
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void pipe(final InputStream in, final OutputStream out)
+        {
+            final BlockingQueue queue = new LinkedBlockingQueue();
+
+            Thread reader = new Thread("WindowTuningBenchmark proxy reader") {
+                    public void run() {
+                        try {
+                            byte[] b = new byte[65536];
+                            int n;
+
+                            while ((n = in.read(b)) != -1) {
+                                byte[] chunk = new byte[n];
+
+                                System.arraycopy(b, 0, chunk, 0, n);
+                                queue.put(new Object[] {
+                                    Long.valueOf(System.nanoTime()
+                                                 + delay * 1000000L),
+                                    chunk
+                                });
+                            }
+                        } catch (Exception e) {
+                        }
+                    }
+                };
+            Thread writer = new Thread("WindowTuningBenchmark proxy writer") {
+                    public void run() {
+                        try {
+                            while (true) {
+                                Object[] o = (Object[]) queue.take();
+                                long wait = ((Long) o[0]).longValue()
+                                    - System.nanoTime();
+
+                                if (wait > 0) {
+                                    Thread.sleep(wait / 1000000L,
+                                                 (int) (wait % 1000000L));
+                                }
+                                out.write((byte[]) o[1]);
+                            }
+                        } catch (Exception e) {
+                        }
+                    }
+                };
+
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+    }
+}
@@ -40,7 +40,7 @@ import org.beepcore.beep.core.ProfileRegistry;
 import org.beepcore.beep.core.SessionTuningProperties;
 import org.beepcore.beep.profile.Profile;
 import org.beepcore.beep.profile.ProfileConfiguration;
-import org.beepcore.beep.transport.tcp.TCPSessionCreator;
+import org.beepcore.beep.transport.tcp.TCPServer;
 
 /**
  * Sample BEEP server analogous to inetd. Based on the configuration file
@@ -56,6 +56,8 @@ import org.beepcore.beep.transport.tcp.TCPSessionCreator;
  */
 public class Beepd extends Thread {
     private int port;
+    private int acceptors = 1;
+    private int backlog = -1;
     ProfileRegistry reg;
 
     private Log log = LogFactory.getLog(this.getClass());
@@ -76,6 +78,15 @@ public class Beepd extends Thread {
 
         port = Integer.parseInt(serverConfig.getAttribute("port"));
 
+        if (serverConfig.hasAttribute("acceptors")) {
+            acceptors =
+                Integer.parseInt(serverConfig.getAttribute("acceptors"));
+        }
+
+        if (serverConfig.hasAttribute("backlog")) {
+            backlog = Integer.parseInt(serverConfig.getAttribute("backlog"));
+        }
+
         // Parse the list of profile elements.
         NodeList profiles = serverConfig.getElementsByTagName("profile");
         for (int i=0; i<profiles.getLength(); ++i) {
@@ -212,11 +223,19 @@ public class Beepd extends Thread {
     }
 
     public void run() {
+        TCPServer server = new TCPServer(port, reg);
+
+        server.setAcceptorCount(acceptors);
+        if (backlog > 0) {
+            server.setBacklog(backlog);
+        }
+
         try {
-            // Loop listening for new Sessions
-            while (true) {
-                TCPSessionCreator.listen(port, reg);
-            }
+            // The server's acceptor threads listen for new Sessions
+            server.start();
+            server.awaitStop();
+        } catch (InterruptedException e) {
+            server.stop();
         } catch (Exception e) {
             log.error("Listener exiting", e);
         }
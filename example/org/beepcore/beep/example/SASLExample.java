@@ -222,7 +222,7 @@ public class SASLExample implements RequestHandler {
 								if (b == null) {
 									break;
 								}
-								System.out.print(new String(b.getData()));
+								System.out.print(new String(b.getData(), b.getOffset(), b.getLength()));
 							} catch (InterruptedException e) {
 								message.getChannel().getSession().terminate(e.getMessage());
 								return;
@@ -297,7 +297,7 @@ public class SASLExample implements RequestHandler {
 				if (b == null) {
 					break;
 				}
-				System.out.print(new String(b.getData()));
+				System.out.print(new String(b.getData(), b.getOffset(), b.getLength()));
 				data.add(b);
 			} catch (InterruptedException e) {
 				message.getChannel().getSession().terminate(e.getMessage());
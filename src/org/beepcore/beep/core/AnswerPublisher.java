@@ -0,0 +1,350 @@
+/*
+ * AnswerPublisher.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+
+import java.util.LinkedList;
+import java.util.concurrent.Flow;
+
+
+/**
+ * The publisher returned by <code>Channel.sendMSGAnswers</code>,
+ * listening for the ANS replies to the MSG and passing them on to a
+ * subscriber as it requests them. Answers the subscriber has not asked
+ * for are kept unread, and while the MSG's replies are arriving the
+ * channel advertises a window of only about as many bytes as the
+ * outstanding demand, estimated from the answers so far. A slow
+ * subscriber therefore makes the peer wait instead of answers piling up.
+ * <p>
+ * While an answer passed to the subscriber is still arriving, the window
+ * also allows for the rest of it, so reading it can not stall.
+ *
+ * @see Channel#sendMSGAnswers
+ */
+class AnswerPublisher implements Flow.Publisher<Message>, ReplyListener {
+
+    /** null if the window of the channel is not limited */
+    private final ChannelImpl channel;
+
+    /** receive sequence number of the channel when the MSG was sent */
+    private final long startSequence;
+
+    // guarded by this
+
+    private Flow.Subscriber<? super Message> subscriber = null;
+
+    /** set once <code>onSubscribe</code> has returned */
+    private boolean subscribed = false;
+
+    /** replies received but not yet passed on */
+    private final LinkedList replies = new LinkedList();
+
+    private long demand = 0;
+    private int received = 0;
+
+    /** the last reply passed on */
+    private Message current = null;
+
+    /** the RPY or ERR, which is passed again for each of its frames */
+    private Message reply = null;
+
+    private boolean finished = false;
+    private Throwable error = null;
+    private Throwable invalidRequest = null;
+    private boolean terminated = false;
+    private boolean cancelled = false;
+    private boolean draining = false;
+
+    AnswerPublisher(ChannelImpl channel, long startSequence)
+    {
+        this.channel = channel;
+        this.startSequence = startSequence;
+    }
+
+    public void subscribe(Flow.Subscriber<? super Message> s)
+    {
+        synchronized (this) {
+            if (subscriber == null) {
+                subscriber = s;
+                s = null;
+            }
+        }
+
+        if (s != null) {
+            s.onSubscribe(new Flow.Subscription() {
+                    public void request(long n) {
+                    }
+                    public void cancel() {
+                    }
+                });
+            s.onError(new IllegalStateException("Already subscribed"));
+            return;
+        }
+
+        subscriber.onSubscribe(new Subscription());
+
+        synchronized (this) {
+            subscribed = true;
+        }
+
+        drain();
+    }
+
+    /**
+     * Returns the bytes the peer may send beyond what has been received,
+     * or -1 if the window should not be limited. Called by the channel
+     * holding its windowLock while this publisher's MSG is the first one
+     * waiting for replies. The channel asks again whenever the peer uses
+     * up the window, so an answer larger than the estimate still arrives.
+     *
+     * @param sequence the channel's receive sequence number
+     */
+    synchronized int demandedBytes(long sequence)
+    {
+        if (cancelled || finished) {
+            return -1;
+        }
+
+        long bytes = sequence - startSequence;
+        if (bytes < 0) {
+            bytes += Frame.MAX_SEQUENCE_NUMBER + 1;
+        }
+
+        long size = received == 0 ? ChannelImpl.DEFAULT_WINDOW_SIZE
+                                  : Math.max(bytes / received, 1);
+
+        // answers already received cover part of the demand
+        long answers = Math.max(demand - replies.size(), 0);
+
+        if (answers > Integer.MAX_VALUE / size) {
+            return Integer.MAX_VALUE;
+        }
+
+        long wanted = answers * size;
+
+        // the rest of an answer being read
+        if (reading()) {
+            wanted += Math.max(size, ChannelImpl.DEFAULT_WINDOW_SIZE);
+        }
+
+        return (int) Math.min(wanted, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns true while the rest of the last answer passed on is still
+     * to arrive.
+     */
+    private boolean reading()
+    {
+        return current != null &&
+            current.getDataStream().isComplete() == false;
+    }
+
+    /**
+     * Ends the publisher with <code>e</code> if the MSG could not be
+     * sent.
+     */
+    void fail(Throwable e)
+    {
+        synchronized (this) {
+            finished = true;
+            error = e;
+        }
+
+        drain();
+    }
+
+    public void receiveANS(Message message)
+    {
+        synchronized (this) {
+            if (cancelled == false) {
+                replies.addLast(message);
+                ++received;
+                message = null;
+            }
+        }
+
+        if (message != null) {
+            // closed outside the lock as reading may send a SEQ
+            message.getDataStream().close();
+            return;
+        }
+
+        drain();
+
+        boolean reading;
+        synchronized (this) {
+            reading = reading();
+        }
+
+        // the window may have been limited before this answer was passed on
+        if (reading) {
+            updateWindow();
+        }
+    }
+
+    public void receiveNUL(Message message)
+    {
+        synchronized (this) {
+            finished = true;
+        }
+
+        drain();
+        updateWindow();
+    }
+
+    /**
+     * A RPY or ERR sent instead of answers is published as the only
+     * element.
+     */
+    public void receiveRPY(Message message)
+    {
+        synchronized (this) {
+            if (message == reply) {
+                return;
+            }
+            reply = message;
+        }
+
+        receiveANS(message);
+        receiveNUL(message);
+    }
+
+    public void receiveERR(Message message)
+    {
+        receiveRPY(message);
+    }
+
+    /**
+     * Passes on the replies the subscriber has asked for, then the end of
+     * the replies once all have been passed on. Only one thread delivers
+     * at a time, others leave their replies to it.
+     */
+    private void drain()
+    {
+        synchronized (this) {
+            if (draining || subscribed == false) {
+                return;
+            }
+            draining = true;
+        }
+
+        while (true) {
+            Message m = null;
+            Throwable e = null;
+            LinkedList dropped = null;
+
+            synchronized (this) {
+                if (cancelled) {
+                    dropped = new LinkedList(replies);
+                    replies.clear();
+
+                    if (invalidRequest == null || terminated) {
+                        draining = false;
+                    } else {
+                        terminated = true;
+                        e = invalidRequest;
+                    }
+                } else if (replies.isEmpty() == false && demand > 0) {
+                    m = (Message) replies.removeFirst();
+                    current = m;
+                    if (demand != Long.MAX_VALUE) {
+                        --demand;
+                    }
+                } else if (replies.isEmpty() && finished &&
+                           terminated == false)
+                {
+                    terminated = true;
+                    e = error;
+                } else {
+                    draining = false;
+                    return;
+                }
+            }
+
+            if (dropped != null) {
+                // closed outside the lock as reading may send a SEQ
+                while (dropped.isEmpty() == false) {
+                    ((Message) dropped.removeFirst()).getDataStream().close();
+                }
+
+                if (e == null) {
+                    return;
+                }
+                subscriber.onError(e);
+            } else if (m != null) {
+                subscriber.onNext(m);
+            } else if (e != null) {
+                subscriber.onError(e);
+            } else {
+                subscriber.onComplete();
+            }
+        }
+    }
+
+    /**
+     * Sends a SEQ advertising the window for the current demand.
+     */
+    private void updateWindow()
+    {
+        if (channel == null) {
+            return;
+        }
+
+        try {
+            channel.sendWindowUpdate();
+        } catch (BEEPException e) {
+            fail(e);
+        }
+    }
+
+    private class Subscription implements Flow.Subscription {
+
+        public void request(long n)
+        {
+            synchronized (AnswerPublisher.this) {
+                if (terminated || cancelled) {
+                    return;
+                }
+
+                if (n <= 0) {
+                    cancelled = true;
+                    invalidRequest =
+                        new IllegalArgumentException("request " + n);
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+            }
+
+            drain();
+            updateWindow();
+        }
+
+        public void cancel()
+        {
+            synchronized (AnswerPublisher.this) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+            }
+
+            drain();
+            updateWindow();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * CallbackExecutor.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Runs the callbacks of channels, <code>RequestHandler.receiveMSG</code>
+ * and, if the session dispatches replies asynchronously, the
+ * <code>ReplyListener</code>s, on an <code>Executor</code> and counts
+ * how long they waited and ran. A channel's callbacks are still
+ * delivered one at a time and in order, whatever the executor.
+ * <p>
+ * An executor may be set for a profile with
+ * <code>ProfileRegistry.setCallbackExecutor</code> or for a session with
+ * <code>TCPSessionConfig.setCallbackExecutor</code>. Channels of a
+ * profile with its own executor use it, others use the session's, and
+ * without either they share <code>getDefault()</code>, a pool which
+ * grows as needed.
+ *
+ * @see ProfileRegistry#setCallbackExecutor
+ * @see org.beepcore.beep.transport.tcp.TCPSessionConfig#setCallbackExecutor
+ */
+public class CallbackExecutor implements Executor {
+
+    private static CallbackExecutor defaultExecutor = null;
+
+    private final Executor executor;
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong tasks = new AtomicLong();
+    private final AtomicLong queueNanos = new AtomicLong();
+    private final AtomicLong maxQueueNanos = new AtomicLong();
+    private final AtomicLong runNanos = new AtomicLong();
+
+    /**
+     * @param executor runs the callbacks
+     */
+    public CallbackExecutor(Executor executor)
+    {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor is null");
+        }
+
+        this.executor = executor;
+    }
+
+    /**
+     * Returns a <code>CallbackExecutor</code> running callbacks on at
+     * most <code>threads</code> threads named <code>name</code>.
+     */
+    public static CallbackExecutor newThreadPool(String name, int threads)
+    {
+        return new CallbackExecutor(newPool(name, threads));
+    }
+
+    /**
+     * Returns the executor used by channels which have none set for their
+     * profile or session.
+     */
+    public static synchronized CallbackExecutor getDefault()
+    {
+        if (defaultExecutor == null) {
+            defaultExecutor =
+                new CallbackExecutor(newPool("BEEP Callback", 0));
+        }
+
+        return defaultExecutor;
+    }
+
+    /**
+     * Returns <code>executor</code> if it is a
+     * <code>CallbackExecutor</code>, otherwise one wrapping it.
+     */
+    static CallbackExecutor wrap(Executor executor)
+    {
+        if (executor == null || executor instanceof CallbackExecutor) {
+            return (CallbackExecutor) executor;
+        }
+
+        return new CallbackExecutor(executor);
+    }
+
+    public Executor getExecutor()
+    {
+        return executor;
+    }
+
+    public void execute(final Runnable task)
+    {
+        final long submitted = System.nanoTime();
+
+        queued.incrementAndGet();
+
+        try {
+            executor.execute(new Runnable() {
+                    public void run() {
+                        long start = System.nanoTime();
+
+                        queued.decrementAndGet();
+                        record(start - submitted);
+
+                        try {
+                            task.run();
+                        } finally {
+                            tasks.incrementAndGet();
+                            runNanos.addAndGet(System.nanoTime() - start);
+                        }
+                    }
+                });
+        } catch (RuntimeException e) {
+            queued.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the callbacks waiting for a thread.
+     */
+    public int getQueueDepth()
+    {
+        return queued.get();
+    }
+
+    /**
+     * Returns the callbacks which have run.
+     */
+    public long getTaskCount()
+    {
+        return tasks.get();
+    }
+
+    /**
+     * Returns the mean time callbacks waited for a thread.
+     */
+    public long getMeanQueueNanos()
+    {
+        long n = started.get();
+
+        return n == 0 ? 0 : queueNanos.get() / n;
+    }
+
+    /**
+     * Returns the longest time a callback waited for a thread.
+     */
+    public long getMaxQueueNanos()
+    {
+        return maxQueueNanos.get();
+    }
+
+    /**
+     * Returns the mean time callbacks took to run.
+     */
+    public long getMeanRunNanos()
+    {
+        long n = tasks.get();
+
+        return n == 0 ? 0 : runNanos.get() / n;
+    }
+
+    private void record(long waited)
+    {
+        started.incrementAndGet();
+        queueNanos.addAndGet(waited);
+
+        long max = maxQueueNanos.get();
+
+        while (waited > max && !maxQueueNanos.compareAndSet(max, waited)) {
+            max = maxQueueNanos.get();
+        }
+    }
+
+    /**
+     * @param threads the most threads, 0 for no limit
+     */
+    private static ExecutorService newPool(final String name, int threads)
+    {
+        ThreadFactory factory = new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, name + " #" +
+                                      count.incrementAndGet());
+                }
+            };
+
+        if (threads == 0) {
+            return Executors.newCachedThreadPool(factory);
+        }
+
+        return Executors.newFixedThreadPool(threads, factory);
+    }
+}
@@ -16,6 +16,11 @@
  */
 package org.beepcore.beep.core;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
 
 /**
  * This interface represents the operations available for all BEEP Channels.
@@ -36,6 +41,12 @@ public interface Channel {
     public static final int STATE_CLOSED = 7;
     public static final int STATE_ABORTED = 8;
 
+    /**
+     * The size of a channel's receive window, and the size assumed for
+     * the peer's, until it is changed.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 4096;
+
     /**
      * Closes the channel.
      *
@@ -104,6 +115,17 @@ public interface Channel {
      */
     public int getState();
 
+    /**
+     * Returns the number of SEQ frames sent to update the peer's view of
+     * this channel's receive window.
+     * <p>
+     * This default implementation returns 0.
+     */
+    public default long getWindowUpdatesSent()
+    {
+        return 0;
+    }
+
     /**
      * Sends a MSG message.
      *
@@ -122,6 +144,126 @@ public interface Channel {
                                  ReplyListener replyListener)
             throws BEEPException;
 
+    /**
+     * Sends a MSG message expecting a RPY or ERR in reply.
+     *
+     * @param stream Data contents of the MSG message to be sent.
+     *
+     * @return a future completed with the reply, or exceptionally with a
+     *         <code>BEEPException</code> if the MSG could not be sent
+     *
+     * @see #sendMSGAsync(OutputDataStream, Consumer, long, TimeUnit)
+     */
+    public default CompletableFuture<Message>
+        sendMSGAsync(OutputDataStream stream)
+    {
+        return sendMSGAsync(stream, null, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends a MSG message expecting a RPY or ERR in reply within
+     * <code>timeout</code>.
+     *
+     * @param stream Data contents of the MSG message to be sent.
+     * @param timeout how long to wait for the reply, 0 for ever
+     * @param unit
+     *
+     * @return a future completed with the reply, or exceptionally with a
+     *         <code>TimeoutException</code> if none arrived in time
+     *
+     * @see #sendMSGAsync(OutputDataStream, Consumer, long, TimeUnit)
+     */
+    public default CompletableFuture<Message>
+        sendMSGAsync(OutputDataStream stream, long timeout, TimeUnit unit)
+    {
+        return sendMSGAsync(stream, null, timeout, unit);
+    }
+
+    /**
+     * Sends a MSG message without blocking for its reply. Each ANS is
+     * passed to <code>answers</code> as it arrives, and the returned
+     * future is completed with the NUL ending them, or with the RPY or
+     * ERR if the peer replied with one instead.
+     * <p>
+     * Like the <code>ReplyListener</code> methods, <code>answers</code>
+     * and the stages depending on the future run on the thread
+     * delivering the replies, so they should not block; the receiver
+     * must close the data stream of each <code>Message</code> it is
+     * given. Replies arriving after the future was completed by its
+     * timeout or <code>cancel</code> are discarded. The MSG itself can
+     * not be withdrawn once sent.
+     *
+     * @param stream Data contents of the MSG message to be sent.
+     * @param answers receives the ANS replies, or <code>null</code> if
+     *                none are expected
+     * @param timeout how long to wait for the reply to end, 0 for ever
+     * @param unit
+     *
+     * @return a future completed with the final reply, or exceptionally
+     *         with a <code>BEEPException</code> if the MSG could not be
+     *         sent or a <code>TimeoutException</code>
+     */
+    public default CompletableFuture<Message>
+        sendMSGAsync(OutputDataStream stream,
+                     Consumer<? super Message> answers,
+                     long timeout, TimeUnit unit)
+    {
+        ReplyFuture reply = new ReplyFuture(answers);
+
+        reply.expireAfter(timeout, unit);
+
+        try {
+            sendMSG(stream, reply);
+        } catch (BEEPException e) {
+            reply.completeExceptionally(e);
+        }
+
+        return reply;
+    }
+
+    /**
+     * Sends a MSG message whose ANS replies are published to a
+     * <code>Flow.Subscriber</code> as it requests them, followed by
+     * <code>onComplete</code> on the NUL. A RPY or ERR sent instead is
+     * published as the only element.
+     * <p>
+     * While the MSG is the first one waiting for replies, the channel
+     * advertises a receive window of about as many bytes as the answers
+     * requested but not yet received, so a slow subscriber makes the
+     * peer wait instead of answers accumulating. The publisher accepts
+     * one subscriber, which must close the data stream of each
+     * <code>Message</code> it is given. Cancelling discards the answers
+     * still to come; the MSG itself can not be withdrawn once sent.
+     * <p>
+     * Until a subscriber requests answers the demand is nothing, so the
+     * peer may send no more than the window already advertised. A
+     * publisher which is never subscribed to therefore holds up the
+     * replies to the MSGs sent after it on the channel; to ignore the
+     * answers, subscribe and cancel.
+     * <p>
+     * This default implementation only publishes the answers, it does
+     * not limit the window of the channel.
+     *
+     * @param stream Data contents of the MSG message to be sent.
+     *
+     * @return the publisher of the replies, which signals
+     *         <code>onError</code> with a <code>BEEPException</code> if
+     *         the MSG could not be sent
+     */
+    public default Flow.Publisher<Message>
+        sendMSGAnswers(OutputDataStream stream)
+    {
+        AnswerPublisher answers = new AnswerPublisher(null, 0);
+
+        try {
+            sendMSG(stream, answers);
+        } catch (BEEPException e) {
+            answers.fail(e);
+        }
+
+        return answers;
+    }
+
     /**
      * @deprecated
      */
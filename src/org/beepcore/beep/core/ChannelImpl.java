@@ -39,16 +39,20 @@
 package org.beepcore.beep.core;
 
 
+import java.io.ByteArrayOutputStream;
 import java.util.*;
 
-import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.beepcore.beep.util.BufferSegment;
+import org.beepcore.beep.util.StringUtil;
 
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * ChannelImpl is a conduit for a certain kind of traffic over a session,
@@ -61,20 +65,12 @@ import java.util.concurrent.atomic.AtomicInteger;
  * @version $Revision: 1.12 $, $Date: 2006/02/25 17:48:37 $
  *
  */
-class ChannelImpl implements Channel, Runnable {
+class ChannelImpl implements Channel {
 
     // class variables
     private static final BufferSegment zeroLengthSegment =
         new BufferSegment(new byte[0]);
 
-    private static final PooledExecutor callbackQueue =
-        new PooledExecutor();
-
-    /** @todo check this */
-
-    // default values for some variables
-    static final int DEFAULT_WINDOW_SIZE = 4096;
-
     static final RequestHandler defaultHandler = new DefaultMSGHandler();
 
     // instance variables
@@ -90,6 +86,15 @@ class ChannelImpl implements Channel, Runnable {
     /** channel number on the session */
     private String number;
 
+    /** <code>number</code> as an int */
+    private final int intNumber;
+
+    /** <code>number</code> encoded for frame headers */
+    private final byte[] numberBytes;
+
+    /** reused by <code>sendFrames</code> for each frame sent */
+    private Frame outgoing;
+
     /** Used to pass data sent on the Start Channel request */
     private String startData;
 
@@ -111,6 +116,28 @@ class ChannelImpl implements Channel, Runnable {
     /** MSG we've received by awaiting proceesing of a former MSG */
     private LinkedList recvMSGQueue;
 
+    /**
+     * MSGs at the head of <code>recvMSGQueue</code> which have been
+     * handed to the handler, guarded by <code>recvMSGQueue</code>
+     */
+    private int dispatchedMSGs = 0;
+
+    /** MSG whose last frame has not been received yet */
+    private MessageMSGImpl partialMSG = null;
+
+    /**
+     * runs the callbacks of this channel, chosen by
+     * <code>getCallbackExecutor</code> when first needed
+     */
+    private volatile CallbackExecutor callbackExecutor = null;
+
+    /**
+     * notifies reply listeners one at a time on
+     * <code>callbackExecutor</code> when replies are dispatched
+     * asynchronously, only used by the thread posting frames
+     */
+    private SerialExecutor replyNotifier = null;
+
     /** messages queued to be sent */
     private LinkedList pendingSendMessages;
 
@@ -136,12 +163,86 @@ class ChannelImpl implements Channel, Runnable {
 
     private AtomicInteger recvWindowFreed;
 
+    /**
+     * guards the receive sequence and window accounting of this channel,
+     * so channels do not contend with each other
+     */
+    private final Object windowLock = new Object();
+
+    /** set while a SEQ is queued on the session, guarded by windowLock */
+    private boolean windowUpdatePending = false;
+
+    /** number of SEQs sent */
+    private final AtomicLong windowUpdatesSent = new AtomicLong();
+
+    /**
+     * budget the receive window is reserved from, or null. Volatile as
+     * windowUpdateDue reads it without windowLock.
+     */
+    private volatile ReceiveBudget budget = null;
+
+    /**
+     * bytes reserved from budget, those received but not yet read plus
+     * the window advertised to the peer. Changed while holding
+     * windowLock and the lock on budget, read without them by
+     * windowUpdateDue.
+     */
+    private volatile int windowReserved = DEFAULT_WINDOW_SIZE;
+
+    private boolean windowReleased = false;
+
+    // Receive window auto-tuning, guarded by windowLock. The
+    // window is sized to twice the bytes the application reads in a SEQ
+    // round trip, up to maxWindowSize.
+
+    /** largest window auto-tuning may advertise, 0 if not auto-tuning */
+    private int maxWindowSize = 0;
+
+    /** bytes the peer may still send under the last SEQ */
+    private int peerRemaining = DEFAULT_WINDOW_SIZE;
+
+    /**
+     * sequence number and window of the last SEQ, which an
+     * <code>AnswerPublisher</code> may not move back
+     */
+    private long advertisedSeq = 0;
+    private int advertisedAvail = DEFAULT_WINDOW_SIZE;
+
+    /**
+     * what <code>takeWindowUpdate</code> changed, undone by
+     * <code>windowUpdateFailed</code> if the SEQ is not written
+     */
+    private int takenFreed = 0;
+    private long takenAdvertisedSeq = 0;
+    private int takenAdvertisedAvail = DEFAULT_WINDOW_SIZE;
+
+    /** set while the last SEQ was limited by an AnswerPublisher */
+    private boolean windowLimited = false;
+
+    /** set when the peer uses up its window, cleared when tuning */
+    private boolean windowFilled = false;
+
+    /** when a SEQ reopened a window the peer had used up, or 0 */
+    private long seqNanos = 0;
+
+    /** smallest SEQ round trip seen */
+    private long rttNanos = 0;
+
+    /** bytes the application has read since drainNanos */
+    private long drained = 0;
+
+    private long drainNanos = System.nanoTime();
+
     private Object applicationData = null;
 
     // tuningProfile indicates that the profile for this channel will
     // request a tuning reset
     private boolean tuningProfile = false;
 
+    // payload of the MSG being received on channel zero, see
+    // SessionImpl.isQuiescingMSG
+    private ByteArrayOutputStream zeroPayload = null;
+
     /* (non-Javadoc)
      * @see java.lang.Object#toString()
      */
@@ -156,6 +257,8 @@ class ChannelImpl implements Channel, Runnable {
         this.profile = profile;
         this.encoding = Constants.ENCODING_DEFAULT;
         this.number = number;
+        this.intNumber = Integer.parseInt(number);
+        this.numberBytes = StringUtil.stringToAscii(number);
         this.setRequestHandler(handler, tuningReset);
         this.session = session;
         sentSequence = 0;
@@ -171,6 +274,10 @@ class ChannelImpl implements Channel, Runnable {
         recvWindowFreed = new AtomicInteger(0);
         recvWindowSize = new AtomicInteger(DEFAULT_WINDOW_SIZE);
         peerWindowSize = new AtomicInteger(DEFAULT_WINDOW_SIZE);
+
+        if (intNumber != 0 && session != null) {
+            maxWindowSize = session.getMaxReceiveWindowSize();
+        }
     }
 
     ChannelImpl(String profile, String number, SessionImpl session)
@@ -183,7 +290,7 @@ class ChannelImpl implements Channel, Runnable {
                                          RequestHandler handler)
     {
         ChannelImpl channel = new ChannelImpl(null, "0", handler,
-                                              true, session);
+                                              false, session);
 
         // Add a MSG to the SentMSGQueue to fake channel into accepting the
         // greeting which comes in an unsolicited RPY.
@@ -191,6 +298,7 @@ class ChannelImpl implements Channel, Runnable {
                                                    Message.MESSAGE_TYPE_MSG, 0,
                                                    null, reply));
         channel.recvMSGQueue.add(new MessageMSGImpl(channel, 0, null));
+        channel.dispatchedMSGs = 1;
 
         channel.state = STATE_ACTIVE;
 
@@ -261,11 +369,12 @@ class ChannelImpl implements Channel, Runnable {
      */
     public int getNumber()
     {
-        return Integer.parseInt(number);
+        return intNumber;
     }
 
     /**
      * Sets the receive buffer size for this channel.  Default size is 4K.
+     * This turns off auto-tuning of the channel's window.
      *
      *
      * @param size
@@ -288,7 +397,10 @@ class ChannelImpl implements Channel, Runnable {
             }
 
             // set the new size and copy the buffer
-            recvWindowSize.set(size);
+            synchronized (windowLock) {
+                maxWindowSize = 0;
+                recvWindowSize.set(size);
+            }
 
             if (log.isDebugEnabled()) {
                 log.debug("Buffer size for channel " + number + " set to "
@@ -347,18 +459,6 @@ class ChannelImpl implements Channel, Runnable {
         return this.session;
     }
 
-    public void run() {
-        MessageMSGImpl m;
-        synchronized (recvMSGQueue) {
-                m = (MessageMSGImpl) recvMSGQueue.getFirst();
-                synchronized (m) {
-                    m.setNotified();
-                }
-        }
-
-        handler.receiveMSG(m);
-    }
-
     /**
      * Sends a message of type MSG.
      *
@@ -411,6 +511,23 @@ class ChannelImpl implements Channel, Runnable {
         return status;
     }
 
+    public Flow.Publisher<Message> sendMSGAnswers(OutputDataStream stream)
+    {
+        AnswerPublisher answers;
+
+        synchronized (windowLock) {
+            answers = new AnswerPublisher(this, recvSequence);
+        }
+
+        try {
+            sendMSG(stream, answers);
+        } catch (BEEPException e) {
+            answers.fail(e);
+        }
+
+        return answers;
+    }
+
     void abort()
     {
         setState(ChannelImpl.STATE_ABORTED);
@@ -418,13 +535,10 @@ class ChannelImpl implements Channel, Runnable {
 
     void addPiggybackedMSG(PiggybackedMSG msg) throws BEEPException
     {
-        recvMSGQueue.add(msg);
-        try {
-            callbackQueue.execute(this);
-        } catch (InterruptedException e) {
-            /** @TODO handle this better */
-            throw new BEEPException(e);
+        synchronized (recvMSGQueue) {
+            recvMSGQueue.add(msg);
         }
+        dispatchMSGs();
     }
 
     /**
@@ -436,6 +550,11 @@ class ChannelImpl implements Channel, Runnable {
         return number;
     }
 
+    byte[] getNumberAsBytes()
+    {
+        return numberBytes;
+    }
+
     public int getState()
     {
         return state;
@@ -475,16 +594,15 @@ class ChannelImpl implements Channel, Runnable {
             boolean notify = false;
 
             synchronized (recvMSGQueue) {
-                MessageMSGImpl m = null;
-                if (recvMSGQueue.size() != 0) {
-                    m = (MessageMSGImpl) recvMSGQueue.getLast();
+                // the handler may have replied and the MSG left the queue
+                // before its last frame arrived
+                MessageMSGImpl m = partialMSG;
 
-                    if (m.getMsgno() != frame.getMsgno()) {
-                        m = null;
+                if (m != null) {
+                    if (frame.isLast()) {
+                        partialMSG = null;
                     }
-                }
 
-                if (m != null) {
                     /// Move this code to DataStream...
                     Iterator i = frame.getPayload();
                     synchronized (m) {
@@ -512,20 +630,15 @@ class ChannelImpl implements Channel, Runnable {
 
                 if (frame.isLast()) {
                     m.getDataStream().setComplete();
+                } else {
+                    partialMSG = m;
                 }
 
                 recvMSGQueue.addLast(m);
-                
-                if (recvMSGQueue.size() == 1) {
-                    try {
-                        callbackQueue.execute(this);
-                    } catch (InterruptedException e) {
-                        /** @TODO handle this better */
-                        throw new BEEPException(e);
-                    }
-                }
             }
 
+            dispatchMSGs();
+
             return;
         }
 
@@ -585,7 +698,7 @@ class ChannelImpl implements Channel, Runnable {
                 log.debug("Notifying reply listener for channel " + this.getNumber() + " => " + replyListener + " for NUL message");
             }
 
-            replyListener.receiveNUL(m);
+            notifyReplyListener(replyListener, m);
 
             return;
         }
@@ -677,12 +790,59 @@ class ChannelImpl implements Channel, Runnable {
 
         } // end sync
 
+        notifyReplyListener(replyListener, m);
+    }
+
+    /**
+     * Passes a reply to its listener. If the session dispatches replies
+     * asynchronously the reply is queued for the callback executor, which
+     * notifies the listeners of this channel one at a time and in the
+     * order the replies were received, and the reader thread returns to
+     * the socket.
+     */
+    private void notifyReplyListener(final ReplyListener listener,
+                                     final MessageImpl m)
+        throws BEEPException
+    {
+        if (session.isAsyncReplies() == false) {
+            deliverReply(listener, m);
+            return;
+        }
+
+        if (replyNotifier == null) {
+            replyNotifier = new SerialExecutor(getCallbackExecutor());
+        }
+
+        try {
+            replyNotifier.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            deliverReply(listener, m);
+                        } catch (AbortChannelException e) {
+                            session.terminate(e.getMessage());
+                        } catch (Throwable e) {
+                            log.error("Error notifying reply listener", e);
+                            session.terminate("Uncaught exception, " +
+                                              "terminating session");
+                        }
+                    }
+                });
+        } catch (RejectedExecutionException e) {
+            throw new BEEPException(e);
+        }
+    }
+
+    private static void deliverReply(ReplyListener listener, MessageImpl m)
+        throws AbortChannelException
+    {
         if (m.messageType == Message.MESSAGE_TYPE_RPY) {
-            replyListener.receiveRPY(m);
+            listener.receiveRPY(m);
         } else if (m.messageType == Message.MESSAGE_TYPE_ERR) {
-            replyListener.receiveERR(m);
+            listener.receiveERR(m);
         } else if (m.messageType == Message.MESSAGE_TYPE_ANS) {
-            replyListener.receiveANS(m);
+            listener.receiveANS(m);
+        } else if (m.messageType == Message.MESSAGE_TYPE_NUL) {
+            listener.receiveNUL(m);
         }
     }
 
@@ -704,7 +864,39 @@ class ChannelImpl implements Channel, Runnable {
 
         validateFrame(frame);
 
-	synchronized(session) {
+        boolean stop = false;
+        boolean refill = false;
+
+        // reading stops after a MSG on channel zero that may start a
+        // tuning profile or close the session, see
+        // SessionImpl.isQuiescingMSG
+        if (frame.getMessageType() == Message.MESSAGE_TYPE_MSG &&
+            intNumber == 0)
+        {
+            if (zeroPayload == null) {
+                zeroPayload = new ByteArrayOutputStream(frame.getSize());
+            }
+
+            Iterator i = frame.getPayload();
+            while (i.hasNext()) {
+                BufferSegment b = (BufferSegment) i.next();
+                zeroPayload.write(b.getData(), b.getOffset(), b.getLength());
+            }
+
+            if (frame.isLast()) {
+                byte[] payload = zeroPayload.toByteArray();
+                zeroPayload = null;
+
+                if (session.isQuiescingMSG(payload)) {
+                    stop = true;
+
+                    // must be recorded before the MSG is dispatched
+                    session.setQuiescingMsgno(frame.getMsgno());
+                }
+            }
+        }
+
+	synchronized (windowLock) {
 
 		recvSequence += frame.getSize();
 		if (recvSequence > frame.MAX_SEQUENCE_NUMBER)
@@ -716,16 +908,38 @@ class ChannelImpl implements Channel, Runnable {
 		recvWindowUsed.getAndAdd(frame.getSize());
 
 		// make sure we didn't overflow the buffer
-		if (recvWindowUsed.intValue() > recvWindowSize.intValue()) {
+		if (recvWindowUsed.intValue() > windowLimit()) {
 		    throw new BEEPException("Channel window overflow");
 		}
 
+		if (maxWindowSize != 0) {
+		    if (seqNanos != 0) {
+			// the peer was waiting for the SEQ
+			long rtt = System.nanoTime() - seqNanos;
+			if (rttNanos == 0 || rtt < rttNanos) {
+			    rttNanos = rtt;
+			}
+			seqNanos = 0;
+		    }
+		    peerRemaining -= frame.getSize();
+		    if (peerRemaining <= 0) {
+			windowFilled = true;
+		    }
+		}
+
+		// the peer used up a window limited by an AnswerPublisher,
+		// which may want more once it has seen this frame
+		refill = windowLimited && advertisedUsed() >= advertisedAvail;
 	}
 
         receiveFrame(frame);
 
+        if (refill) {
+            sendWindowUpdate();
+        }
+
         if (frame.getMessageType() == Message.MESSAGE_TYPE_MSG) {
-            return !(frame.isLast() == true && tuningProfile == true);
+            return !(stop || (frame.isLast() == true && tuningProfile == true));
         } else {
             return !(frame.isLast() == true && getState() == STATE_TUNING);
         }
@@ -748,13 +962,56 @@ class ChannelImpl implements Channel, Runnable {
 
     private void sendToPeer(MessageStatus status) throws BEEPException
     {
-        synchronized (pendingSendMessages) {
-            pendingSendMessages.add(status);
+        if (status.getMessageType() != Message.MESSAGE_TYPE_MSG &&
+            concurrentRequests() > 1)
+        {
+            synchronized (recvMSGQueue) {
+                MessageMSGImpl m = findMSG(status.getMsgno());
+
+                // BEEP requires replies in msgno order, so hold those of
+                // later MSGs until the ones before them are answered
+                if (m != null && m != recvMSGQueue.getFirst()) {
+                    if (m.heldReplies == null) {
+                        m.heldReplies = new LinkedList();
+                    }
+                    m.heldReplies.addLast(status);
+                    status.getMessageData().setChannel(this);
+                    return;
+                }
+
+                synchronized (pendingSendMessages) {
+                    pendingSendMessages.add(status);
+                }
+            }
+        } else {
+            synchronized (pendingSendMessages) {
+                pendingSendMessages.add(status);
+            }
         }
         status.getMessageData().setChannel(this);
         sendQueuedMessages();
     }
 
+    /**
+     * Returns the MSG in <code>recvMSGQueue</code> with the specified
+     * msgno, or <code>null</code>. The caller must hold
+     * <code>recvMSGQueue</code>.
+     */
+    private MessageMSGImpl findMSG(int msgno)
+    {
+        Iterator i = recvMSGQueue.iterator();
+
+        while (i.hasNext()) {
+            MessageMSGImpl m = (MessageMSGImpl) i.next();
+
+            if (m.getMsgno() == msgno) {
+                return m;
+            }
+        }
+
+        return null;
+    }
+
     synchronized void sendQueuedMessages() throws BEEPException
     {
         synchronized(this) {
@@ -768,7 +1025,7 @@ class ChannelImpl implements Channel, Runnable {
                     status = (MessageStatus) pendingSendMessages.removeFirst();
                 }
 
-                if (this.recvWindowFreed.intValue() != 0) {
+                if (windowUpdateDue()) {
                     sendWindowUpdate();
                 }
                 
@@ -791,15 +1048,24 @@ class ChannelImpl implements Channel, Runnable {
     {
         int sessionBufferSize = session.getMaxFrameSize();
         OutputDataStream ds = status.getMessageData();
+        // a stream may only find its end after its last bytes are sent, so
+        // loop until a frame is sent with the last flag
+        boolean last;
 
         do {
             synchronized (this) {
-                Frame frame;
-                // create a frame
-                frame = new Frame(status.getMessageType(),
-                                  this, status.getMsgno(),
-                                  false,
-                                  sentSequence, 0, status.getAnsno());
+                Frame frame = outgoing;
+                // reuse this channel's frame
+                if (frame == null) {
+                    frame = new Frame(status.getMessageType(),
+                                      this, status.getMsgno(),
+                                      false,
+                                      sentSequence, 0, status.getAnsno());
+                    outgoing = frame;
+                } else {
+                    frame.reset(status.getMessageType(), status.getMsgno(),
+                                sentSequence, status.getAnsno());
+                }
 
                 // make sure the other peer can accept something
                 if (peerWindowSize.intValue() == 0) {
@@ -815,6 +1081,15 @@ class ChannelImpl implements Channel, Runnable {
                 while (size < maxToSend) {
                     if (ds.availableSegment() == false) {
                         if (size == 0) {
+                            try {
+                                ds.checkFailed();
+                            } catch (BEEPException e) {
+                                log.error("sendFrames", e);
+                                status.setMessageStatus(MessageStatus.MESSAGE_STATUS_NOT_SENT);
+
+                                throw e;
+                            }
+
                             if (ds.isComplete() == false) {
                                 // More BufferSegments are expected...
                                 return;
@@ -827,15 +1102,17 @@ class ChannelImpl implements Channel, Runnable {
                         break;
                     }
 
-                    BufferSegment b = ds.getNextSegment(maxToSend - size);
+                    BufferSegment b =
+                        ds.getNextSegment(maxToSend - size,
+                                          frame.nextPayloadSegment());
 
                     frame.addPayload(b);
-
                     size += b.getLength();
                 }
 		//log.debug("Frame: " + sentSequence + " Actually sending: " + size);
 
-                if (ds.isComplete() && ds.availableSegment() == false) {
+                last = ds.isComplete() && ds.availableSegment() == false;
+                if (last) {
                     frame.setLast();
                 }
 
@@ -850,6 +1127,9 @@ class ChannelImpl implements Channel, Runnable {
                     status.setMessageStatus(MessageStatus.MESSAGE_STATUS_NOT_SENT);
 
                     throw e;
+                } finally {
+                    frame.clearPayload();
+                    ds.segmentsSent();
                 }
 
                 // update the sequence and peer window size
@@ -861,7 +1141,7 @@ class ChannelImpl implements Channel, Runnable {
 		}
                 peerWindowSize.getAndAdd(-1 * size);
             }
-        } while (ds.availableSegment() == true || ds.isComplete() == false);
+        } while (last == false);
 
         status.setMessageStatus(MessageStatus.MESSAGE_STATUS_SENT);
         
@@ -875,51 +1155,422 @@ class ChannelImpl implements Channel, Runnable {
     }
 
     public void removeFirstPiggyback() throws BEEPException {
+        boolean removed = false;
+
         synchronized(recvMSGQueue) {
             MessageMSG m = (MessageMSGImpl) recvMSGQueue.getFirst();
             if(m instanceof PiggybackedMSG) {
                 removeFirstFromMSGQueue();
+                removed = true;
             }
         }
+
+        if (removed) {
+            // send the replies released by removing it
+            sendQueuedMessages();
+        }
     }
 
 	private void removeFirstFromMSGQueue() throws BEEPException {
-		MessageMSGImpl m;
 		synchronized (recvMSGQueue) {
 		    Object removeFirst = recvMSGQueue.removeFirst();
+		    --dispatchedMSGs;
 
 		    if (recvMSGQueue.size() != 0) {
-		        m = (MessageMSGImpl) recvMSGQueue.getFirst();
+		        MessageMSGImpl m = (MessageMSGImpl) recvMSGQueue.getFirst();
 		        synchronized (m) {
 		            m.setNotified();
 		        }
-		    } else {
-		        m = null;
-		    }
-		}
 
-		if (m != null) {
-		    try {
-		        callbackQueue.execute(this);
-		    } catch (InterruptedException e) {
-		        /** @TODO handle this better */
-		        throw new BEEPException(e);
+		        // the replies held for the new head may now be sent
+		        if (m.heldReplies != null) {
+		            synchronized (pendingSendMessages) {
+		                pendingSendMessages.addAll(m.heldReplies);
+		            }
+		            m.heldReplies = null;
+		        }
 		    }
 		}
+
+		dispatchMSGs();
 	}
 
-    private void sendWindowUpdate() throws BEEPException
+    /**
+     * Returns the MSGs the handler may be given at once, more than one
+     * only if the session allows it and not on channel zero.
+     */
+    private int concurrentRequests()
     {
-	synchronized(session) {
-		if (session.updateMyReceiveBufferSize(this, recvSequence,
-						      recvWindowSize.intValue() -
-						      (recvWindowUsed.intValue() -
-						       recvWindowFreed.intValue())))
-		{
-		    recvWindowUsed.getAndAdd(-1 * recvWindowFreed.intValue());
-		    recvWindowFreed.set(0);
-		}
-	}
+        return intNumber == 0 ? 1 : session.getConcurrentRequests();
+    }
+
+    /**
+     * Hands the MSGs in <code>recvMSGQueue</code> which have not been
+     * dispatched yet to the handler, while fewer than
+     * <code>concurrentRequests()</code> are waiting for their replies.
+     */
+    private void dispatchMSGs() throws BEEPException
+    {
+        MessageMSGImpl[] ready;
+
+        synchronized (recvMSGQueue) {
+            int n = Math.min(recvMSGQueue.size(), concurrentRequests())
+                - dispatchedMSGs;
+
+            if (n <= 0) {
+                return;
+            }
+
+            ready = new MessageMSGImpl[n];
+            for (int i=0; i<n; ++i) {
+                ready[i] = (MessageMSGImpl) recvMSGQueue.get(dispatchedMSGs++);
+            }
+        }
+
+        for (int i=0; i<ready.length; ++i) {
+            dispatch(ready[i]);
+        }
+    }
+
+    /**
+     * Schedules the handler to be given <code>m</code>.
+     */
+    private void dispatch(final MessageMSGImpl m) throws BEEPException
+    {
+        try {
+            getCallbackExecutor().execute(new Runnable() {
+                    public void run() {
+                        synchronized (m) {
+                            m.setNotified();
+                        }
+
+                        handler.receiveMSG(m);
+                    }
+                });
+        } catch (RejectedExecutionException e) {
+            throw new BEEPException(e);
+        }
+    }
+
+    /**
+     * Returns the executor running the callbacks of this channel, the
+     * one registered for its profile, else the session's, else the pool
+     * shared by all sessions.
+     */
+    CallbackExecutor getCallbackExecutor()
+    {
+        CallbackExecutor executor = callbackExecutor;
+
+        if (executor != null) {
+            return executor;
+        }
+
+        ProfileRegistry registry = session.getProfileRegistry();
+
+        if (profile != null && registry != null) {
+            executor = registry.getCallbackExecutor(profile);
+        }
+        if (executor == null) {
+            executor = session.getCallbackExecutor();
+        }
+        if (executor == null) {
+            executor = CallbackExecutor.getDefault();
+        }
+
+        callbackExecutor = executor;
+
+        return executor;
+    }
+
+    /**
+     * Returns <code>true</code> once the application has freed half of
+     * the receive window. Advertising smaller amounts costs a SEQ for
+     * every read without letting the peer send much sooner.
+     */
+    private boolean windowUpdateDue()
+    {
+        return recvWindowFreed.intValue() >= windowLimit() / 2;
+    }
+
+    /**
+     * Returns the bytes the window may hold, the receive buffer size
+     * unless the budget allowed less. Only reads volatile fields, so it
+     * may be called without windowLock.
+     */
+    private int windowLimit()
+    {
+        return budget == null ? recvWindowSize.intValue() : windowReserved;
+    }
+
+    /**
+     * Reserves the window the channel starts with from
+     * <code>budget</code>, called once the channel has been added to the
+     * session.
+     */
+    void reserveWindow(ReceiveBudget budget)
+    {
+        if (budget == null) {
+            return;
+        }
+
+        synchronized (windowLock) {
+            synchronized (budget) {
+                this.budget = budget;
+                windowReserved = budget.resize(0, windowReserved,
+                                               windowReserved);
+            }
+        }
+    }
+
+    /**
+     * Gives the window back to the budget once the channel has been
+     * removed from the session.
+     */
+    void releaseWindow()
+    {
+        ReceiveBudget b;
+
+        synchronized (windowLock) {
+            b = budget;
+        }
+
+        if (b == null) {
+            return;
+        }
+
+        synchronized (b) {
+            if (windowReleased == false) {
+                windowReleased = true;
+                b.release(windowReserved);
+            }
+        }
+    }
+
+    /**
+     * Queues a SEQ for this channel on the session, which writes the
+     * SEQs of all channels waiting for one together.
+     */
+    void sendWindowUpdate() throws BEEPException
+    {
+        synchronized (windowLock) {
+            if (windowUpdatePending == false) {
+                windowUpdatePending = true;
+                session.queueWindowUpdate(this);
+            }
+        }
+
+        session.flushWindowUpdates();
+    }
+
+    /**
+     * Takes the sequence number and window to advertise in the queued
+     * SEQ, which is then written by the session.
+     */
+    void takeWindowUpdate(long[] seqs, int[] avails, int i)
+    {
+        synchronized (windowLock) {
+            windowUpdatePending = false;
+
+            if (maxWindowSize != 0) {
+                tuneWindow();
+            }
+
+            int freed = recvWindowFreed.intValue();
+            int unread = recvWindowUsed.intValue() - freed;
+            int avail = recvWindowSize.intValue() - unread;
+
+            if (budget != null) {
+                synchronized (budget) {
+                    if (windowReleased == false) {
+                        // the edge of the window may not move back, only
+                        // what has been read can be taken from it
+                        int minimum =
+                            Math.max(windowReserved - freed,
+                                     Math.min(DEFAULT_WINDOW_SIZE,
+                                              recvWindowSize.intValue()));
+
+                        windowReserved =
+                            budget.resize(windowReserved,
+                                          recvWindowSize.intValue(), minimum);
+                    }
+                }
+                avail = windowReserved - unread;
+            }
+
+            avail = limitWindow(avail);
+
+            // bytes may be freed meanwhile by the application, which does
+            // not take windowLock
+            recvWindowUsed.getAndAdd(-1 * freed);
+            recvWindowFreed.getAndAdd(-1 * freed);
+
+            takenFreed = freed;
+            takenAdvertisedSeq = advertisedSeq;
+            takenAdvertisedAvail = advertisedAvail;
+
+            if (maxWindowSize != 0) {
+                if (peerRemaining <= 0) {
+                    seqNanos = System.nanoTime();
+                }
+                peerRemaining = avail;
+            }
+
+            seqs[i] = recvSequence;
+            avails[i] = avail;
+            advertisedSeq = recvSequence;
+            advertisedAvail = avail;
+        }
+
+        windowUpdatesSent.incrementAndGet();
+    }
+
+    /**
+     * Called by the session if the SEQ taken by
+     * <code>takeWindowUpdate</code> could not be written. The bytes it
+     * freed are counted as freed again and the channel is queued for
+     * another SEQ, so they are not lost from the window.
+     */
+    void windowUpdateFailed()
+    {
+        synchronized (windowLock) {
+            recvWindowUsed.getAndAdd(takenFreed);
+            recvWindowFreed.getAndAdd(takenFreed);
+            takenFreed = 0;
+
+            advertisedSeq = takenAdvertisedSeq;
+            advertisedAvail = takenAdvertisedAvail;
+
+            if (windowUpdatePending == false) {
+                windowUpdatePending = true;
+                session.queueWindowUpdate(this);
+            }
+        }
+
+        windowUpdatesSent.decrementAndGet();
+    }
+
+    /**
+     * Limits the window to the demand of the subscribers of the
+     * <code>AnswerPublisher</code>s whose MSGs are waiting for replies,
+     * keeping at least what the last SEQ allowed. Replies arrive in msgno
+     * order, so the demand is added up from the first MSG until one
+     * whose replies are not limited; if that is the first the window is
+     * not limited at all. Called holding windowLock.
+     */
+    private int limitWindow(int avail)
+    {
+        Object[] waiting;
+
+        windowLimited = false;
+
+        synchronized (sentMSGQueue) {
+            waiting = sentMSGQueue.toArray();
+        }
+
+        long demanded = 0;
+        int limited = 0;
+
+        while (limited < waiting.length) {
+            ReplyListener listener =
+                ((MessageStatus) waiting[limited]).getReplyListener();
+
+            if (listener instanceof AnswerPublisher == false) {
+                break;
+            }
+
+            int bytes =
+                ((AnswerPublisher) listener).demandedBytes(recvSequence);
+
+            if (bytes < 0) {
+                break;
+            }
+
+            demanded += bytes;
+            ++limited;
+        }
+
+        if (limited == 0) {
+            return avail;
+        }
+
+        windowLimited = true;
+
+        int remaining = (int) Math.max(advertisedAvail - advertisedUsed(), 0);
+
+        return Math.max((int) Math.min(avail, demanded), remaining);
+    }
+
+    /**
+     * Returns the bytes received since the last SEQ. Called holding
+     * windowLock.
+     */
+    private long advertisedUsed()
+    {
+        long received = recvSequence - advertisedSeq;
+
+        if (received < 0) {
+            received += Frame.MAX_SEQUENCE_NUMBER + 1;
+        }
+
+        return received;
+    }
+
+    /**
+     * Returns the number of SEQ frames sent to update the peer's view of
+     * this channel's receive window.
+     */
+    public long getWindowUpdatesSent()
+    {
+        return windowUpdatesSent.get();
+    }
+
+    /**
+     * Resizes the receive window before a SEQ is sent, at most once a
+     * round trip. The window doubles while the peer keeps using it up and
+     * the application reads at least half of it in a round trip. It
+     * shrinks while unread bytes pile up, but never so far that the edge
+     * already advertised moves back. Called holding windowLock.
+     */
+    private void tuneWindow()
+    {
+        long now = System.nanoTime();
+        int freed = recvWindowFreed.intValue();
+
+        drained += freed;
+
+        // measure over at least a round trip
+        if (rttNanos == 0 || now - drainNanos < rttNanos) {
+            return;
+        }
+
+        double drainRate = drained * 1e9 / (now - drainNanos);
+        boolean limited = windowFilled;
+
+        drained = 0;
+        drainNanos = now;
+        windowFilled = false;
+
+        int size = recvWindowSize.intValue();
+        int unread = recvWindowUsed.intValue() - freed;
+        double target = 2 * drainRate * rttNanos / 1e9;
+        int newSize = size;
+
+        if (limited && target >= size && size < maxWindowSize) {
+            newSize = Math.min(2 * size, maxWindowSize);
+        } else if (target < size && unread > size / 2) {
+            newSize = (int) Math.max(Math.max(target, DEFAULT_WINDOW_SIZE),
+                                     size - freed);
+        }
+
+        if (newSize != size) {
+            if (log.isDebugEnabled()) {
+                log.debug("Window for channel " + number + " tuned from "
+                          + size + " to " + newSize + ", rtt "
+                          + (rttNanos / 1000) + "us, drain rate "
+                          + (long) drainRate + "B/s");
+            }
+            recvWindowSize.set(newSize);
+        }
     }
 
     /**
@@ -1080,29 +1731,31 @@ class ChannelImpl implements Channel, Runnable {
         
     }
     
-    synchronized void freeReceiveBufferBytes(int size)
+    /**
+     * Called as the application reads. Does not lock the channel, which
+     * may be held by a thread blocked sending on it.
+     */
+    void freeReceiveBufferBytes(int size)
     {
-        synchronized(this){
-            if (log.isTraceEnabled()) {
-                log.trace("Freed up " + size + " bytes on channel " + number);
-            }
+        if (log.isTraceEnabled()) {
+            log.trace("Freed up " + size + " bytes on channel " + number);
+        }
 
-            recvWindowFreed.getAndAdd(size);
+        recvWindowFreed.getAndAdd(size);
 
-            if (log.isTraceEnabled()) {
-                log.trace("recvWindowUsed = " + recvWindowUsed +
-                          " recvWindowFreed = " + recvWindowFreed +
-                          " recvWindowSize = " + recvWindowSize);
-            }
+        if (log.isTraceEnabled()) {
+            log.trace("recvWindowUsed = " + recvWindowUsed +
+                      " recvWindowFreed = " + recvWindowFreed +
+                      " recvWindowSize = " + recvWindowSize);
+        }
 
-            if (state == ChannelImpl.STATE_ACTIVE && recvWindowFreed.intValue() >= recvWindowSize.intValue() / 2) {
-                try {
-                    sendWindowUpdate();
-                } catch (BEEPException e) {
+        if (state == ChannelImpl.STATE_ACTIVE && windowUpdateDue()) {
+            try {
+                sendWindowUpdate();
+            } catch (BEEPException e) {
 
-                    // do nothing
-                    log.fatal("Error updating receive buffer size", e);
-                }
+                // do nothing
+                log.fatal("Error updating receive buffer size", e);
             }
         }
     }
@@ -0,0 +1,88 @@
+/*
+ * FileOutputDataStream.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import org.beepcore.beep.util.FileSegment;
+
+
+/**
+ * <code>FileOutputDataStream</code> represents a BEEP message's payload
+ * read from a region of a file. The file is not loaded onto the heap,
+ * over TCP the payload of each frame is written with
+ * <code>FileChannel.transferTo</code> while frames are still sized by
+ * the session's maximum frame size and the peer's window.
+ * <p>
+ * The <code>FileChannel</code> is not closed by the stream. It must stay
+ * open until the message has been sent, that is until its
+ * <code>MessageStatus</code> is <code>MESSAGE_STATUS_SENT</code>.
+ *
+ * @see org.beepcore.beep.util.FileSegment
+ * @see org.beepcore.beep.transport.tcp.TCPSessionConfig#setMaxFrameSize
+ */
+public class FileOutputDataStream extends OutputDataStream {
+
+    // FileSegment lengths are ints
+    private static final int MAX_SEGMENT_SIZE = 1024 * 1024 * 1024;
+
+    /**
+     * Creates a <code>FileOutputDataStream</code> for the whole of
+     * <code>file</code> with a content type of
+     * <code>DEFAULT_CONTENT_TYPE</code> and a transfer encoding of
+     * <code>DEFAULT_CONTENT_TRANSFER_ENCODING</code>.
+     *
+     * @param file The file containing the message's payload.
+     */
+    public FileOutputDataStream(FileChannel file) throws IOException
+    {
+        this(new MimeHeaders(), file, 0, file.size());
+    }
+
+    /**
+     * Creates a <code>FileOutputDataStream</code> for <code>count</code>
+     * bytes of <code>file</code> starting at <code>position</code>.
+     *
+     * @param headers Mime headers to be prepended to the file's bytes.
+     * @param file The file containing the message's payload.
+     * @param position The position in the file of the first byte.
+     * @param count The number of bytes.
+     */
+    public FileOutputDataStream(MimeHeaders headers, FileChannel file,
+                                long position, long count)
+    {
+        super(headers);
+
+        while (count > 0) {
+            int length = (int) Math.min(count, MAX_SEGMENT_SIZE);
+
+            add(new FileSegment(file, position, length));
+            position += length;
+            count -= length;
+        }
+    }
+
+    /**
+     * Returns <code>true</code>, the whole payload is available.
+     */
+    public boolean isComplete()
+    {
+        return true;
+    }
+}
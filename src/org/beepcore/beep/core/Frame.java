@@ -19,13 +19,12 @@ package org.beepcore.beep.core;
 
 
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.NoSuchElementException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.beepcore.beep.util.BufferSegment;
-import org.beepcore.beep.util.HeaderParser;
 import org.beepcore.beep.util.StringUtil;
 
 /**
@@ -85,7 +84,17 @@ public class Frame {
     private static final BufferSegment trailerBufferSegment =
         new BufferSegment(TRAILER.getBytes());
 
-    private Log log = LogFactory.getLog(this.getClass());
+    /** Header bytes for each message type, including the space */
+    private static final byte[][] typeBytes = new byte[6][];
+
+    static {
+        for (int i=0; i<typeBytes.length; ++i) {
+            typeBytes[i] =
+                StringUtil.stringToAscii(MessageType.getMessageType(i) + " ");
+        }
+    }
+
+    private static Log log = LogFactory.getLog(Frame.class);
 
     /** BEEP message type of  <code>Frame</code>. */
     private int messageType;
@@ -120,7 +129,14 @@ public class Frame {
     /**
      * The payload of a BEEP message.
      */
-    private LinkedList payload = new LinkedList();
+    private BufferSegment[] payload = new BufferSegment[2];
+    private int payloadCount = 0;
+
+    // Reused by getBytes() and nextPayloadSegment() when sending
+    private BufferSegment[] segments;
+    private BufferSegment[] payloadSegments;
+    private byte[] header;
+    private BufferSegment headerSegment;
 
     Frame(int messageType, ChannelImpl channel, int msgno, boolean last,
           long seqno, int size, int ansno)
@@ -140,31 +156,47 @@ public class Frame {
      */
     public void addPayload(BufferSegment buf)
     {
-        this.payload.add(buf);
+        if (payloadCount == payload.length) {
+            BufferSegment[] tmp = new BufferSegment[payload.length * 2];
+            System.arraycopy(payload, 0, tmp, 0, payloadCount);
+            payload = tmp;
+        }
+
+        payload[payloadCount++] = buf;
     }
 
     /**
-     * Returns an <code>iterator</code> to iterate over a collection of
-     * <code>BufferSegment</code> objects.
-     *
+     * Returns the header, payload and trailer of this frame as an array
+     * of <code>BufferSegment</code>s.
+     * <p>
+     * The array and the header are reused if the frame is reused to send
+     * the next frame on its channel, so they must not be held once the
+     * transport's <code>sendFrame</code> returns.
      */
     public BufferSegment[] getBytes()
     {
-        BufferSegment[] b = new BufferSegment[this.payload.size() + 2];
+        if (segments == null || segments.length != payloadCount + 2) {
+            segments = new BufferSegment[payloadCount + 2];
+        }
+
         this.size = 0;
 
-        int j=1;
-        Iterator i = this.payload.iterator();
-        while (i.hasNext()) {
-            b[j] = (BufferSegment) i.next();
-            this.size += b[j].getLength();
-            ++j;
+        for (int i=0; i<payloadCount; ++i) {
+            segments[i + 1] = payload[i];
+            this.size += payload[i].getLength();
+        }
+
+        if (header == null) {
+            header = new byte[MAX_HEADER_SIZE];
+            headerSegment = new BufferSegment(header);
         }
 
-        b[0] = new BufferSegment(buildHeader());
-        b[j] = trailerBufferSegment;
+        headerSegment.set(header, 0, encodeHeader(header));
 
-        return b;
+        segments[0] = headerSegment;
+        segments[payloadCount + 1] = trailerBufferSegment;
+
+        return segments;
     }
 
     /**
@@ -175,7 +207,24 @@ public class Frame {
      */
     public Iterator getPayload()
     {
-        return this.payload.iterator();
+        return new Iterator() {
+                private int i = 0;
+
+                public boolean hasNext() {
+                    return i < payloadCount;
+                }
+
+                public Object next() {
+                    if (i == payloadCount) {
+                        throw new NoSuchElementException();
+                    }
+                    return payload[i++];
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
     }
 
     /**
@@ -252,68 +301,130 @@ public class Frame {
     }
 
     /**
-     * Builds a BEEP Header from the given <code>Frame</code> and returns it
-     * as a byte array.
+     * Reinitializes this frame so it can be used to send the next frame on
+     * its channel.
+     */
+    void reset(int messageType, int msgno, long seqno, int ansno)
+    {
+        this.messageType = messageType;
+        this.msgno = msgno;
+        this.last = false;
+        this.seqno = seqno;
+        this.size = 0;
+        this.ansno = ansno;
+
+        clearPayload();
+    }
+
+    /**
+     * Drops the references to the payload so the frame does not keep the
+     * data of the last message sent reachable.
+     */
+    void clearPayload()
+    {
+        for (int i=0; i<payloadCount; ++i) {
+            payload[i] = null;
+        }
+        payloadCount = 0;
+
+        if (segments != null) {
+            for (int i=0; i<segments.length; ++i) {
+                segments[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Returns a <code>BufferSegment</code> owned by this frame which the
+     * caller can point at the bytes to send and then add with
+     * <code>addPayload</code>. The segment is reused after
+     * <code>reset</code>.
+     */
+    BufferSegment nextPayloadSegment()
+    {
+        if (payloadSegments == null) {
+            payloadSegments = new BufferSegment[2];
+        }
+
+        if (payloadCount >= payloadSegments.length) {
+            BufferSegment[] tmp = new BufferSegment[payloadCount * 2];
+            System.arraycopy(payloadSegments, 0, tmp, 0,
+                             payloadSegments.length);
+            payloadSegments = tmp;
+        }
+
+        BufferSegment b = payloadSegments[payloadCount];
+
+        if (b == null) {
+            b = new BufferSegment(null, 0, 0);
+            payloadSegments[payloadCount] = b;
+        }
+
+        return b;
+    }
+
+    /**
+     * Builds a BEEP Header from the given <code>Frame</code>.
      *
-     * @param f <code>Frame</code> from which we derive the BEEP Header.
+     * @return the number of bytes written to <code>buf</code>
      */
-    byte[] buildHeader()
+    int encodeHeader(byte[] buf)
     {
-        StringBuffer header = new StringBuffer(Frame.MAX_HEADER_SIZE);
-
-        // Create header
-        header.append(MessageType.getMessageType(this.messageType));
-        header.append(' ');
-        header.append(this.channel.getNumberAsString());
-        header.append(' ');
-        header.append(this.msgno);
-        header.append(' ');
-        header.append((this.last ? '.' : '*'));
-        header.append(' ');
-        header.append(this.seqno);
-        header.append(' ');
-        header.append(this.size);
+        byte[] type = typeBytes[this.messageType];
+        byte[] number = this.channel.getNumberAsBytes();
+        int off = type.length;
+
+        System.arraycopy(type, 0, buf, 0, off);
+        System.arraycopy(number, 0, buf, off, number.length);
+        off += number.length;
+        buf[off++] = ' ';
+        off = encodeNumber(buf, off, this.msgno);
+        buf[off++] = ' ';
+        buf[off++] = (byte) (this.last ? '.' : '*');
+        buf[off++] = ' ';
+        off = encodeNumber(buf, off, this.seqno);
+        buf[off++] = ' ';
+        off = encodeNumber(buf, off, this.size);
 
         if (this.messageType == Message.MESSAGE_TYPE_ANS) {
-            header.append(' ');
-            header.append(this.ansno);
+            buf[off++] = ' ';
+            off = encodeNumber(buf, off, this.ansno);
         }
 
-        header.append(Frame.CRLF);
+        buf[off++] = '\r';
+        buf[off++] = '\n';
 
         if (log.isTraceEnabled()) {
-            log.trace(header);
+            log.trace(new String(buf, 0, off));
         }
-        return StringUtil.stringBufferToAscii(header);
+
+        return off;
     }
 
-    static Frame parseHeader(SessionImpl session, byte[] headerBuffer, int length)
-        throws BEEPException
+    /**
+     * Writes the decimal digits of <code>value</code> to <code>buf</code>.
+     *
+     * @return the offset following the last digit
+     */
+    static int encodeNumber(byte[] buf, int off, long value)
     {
-        HeaderParser header = new HeaderParser(headerBuffer, length);
-
-        int msgType =
-            MessageType.getMessageType(new String(header.parseType()));
-        int channelNum = header.parseInt();
-        int msgNum = header.parseInt();
-        boolean last = header.parseLast();
-        long seqNum = header.parseUnsignedInt();
-        int size = header.parseInt();
-
-        int ansNum = -1;
-        if (header.hasMoreTokens()) {
-            ansNum = header.parseInt();
+        int digits = 1;
+
+        for (long v = value; v >= 10; v /= 10) {
+            ++digits;
         }
 
-        if (header.hasMoreTokens()) {
-            throw new BEEPException("Malformed BEEP Header");
+        int end = off + digits;
+
+        for (int i = end - 1; i >= off; --i) {
+            buf[i] = (byte) ('0' + (value % 10));
+            value /= 10;
         }
 
-        return new Frame(msgType, session.getValidChannel(channelNum), msgNum,
-                         last, seqNum, size, ansNum);
+        return end;
     }
 
-    private static class MessageType {
+    static class MessageType {
 
         public static final String MESSAGE_TYPE_UNK = "UNK";
         public static final String MESSAGE_TYPE_MSG = "MSG";
@@ -341,23 +452,6 @@ public class Frame {
             types[Message.MESSAGE_TYPE_NUL] = MessageType.MESSAGE_TYPE_NUL;
         }
 
-        static int getMessageType(String type)
-                throws IndexOutOfBoundsException
-        {
-            int ret = 0;
-            int i = 0;
-
-            for (i = 0; i < MESSAGE_TYPE_MAX; i++) {
-                if (type.equals(types[i])) {
-                    ret = i;
-
-                    break;
-                }
-            }
-
-            return ret;
-        }
-
         static String getMessageType(int type)
                 throws IndexOutOfBoundsException
         {
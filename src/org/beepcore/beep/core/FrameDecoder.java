@@ -0,0 +1,557 @@
+/*
+ * FrameDecoder.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Decodes BEEP frame headers (MSG, RPY, ERR, ANS, NUL) and TCP mapping
+ * SEQ headers directly from bytes.
+ * <p>
+ * The decoder consumes one header, up to and including its CRLF, and
+ * keeps its position between calls so a header split across several
+ * reads is decoded by passing each piece to <code>decode</code> as it
+ * arrives. Once <code>isComplete</code> returns <code>true</code> the
+ * fields of the header may be read; <code>reset</code> then prepares the
+ * decoder for the next header. Nothing is allocated while decoding so a
+ * transport can keep one decoder for the life of a session.
+ * <p>
+ * A decoder is not thread safe. After a <code>BEEPException</code> it
+ * must be reset before it is used again.
+ *
+ * @see SessionImpl#createFrame(FrameDecoder)
+ */
+public class FrameDecoder {
+
+    private static final int TYPE_MSG = ('M' << 16) | ('S' << 8) | 'G';
+    private static final int TYPE_RPY = ('R' << 16) | ('P' << 8) | 'Y';
+    private static final int TYPE_ERR = ('E' << 16) | ('R' << 8) | 'R';
+    private static final int TYPE_ANS = ('A' << 16) | ('N' << 8) | 'S';
+    private static final int TYPE_NUL = ('N' << 16) | ('U' << 8) | 'L';
+    private static final int TYPE_SEQ = ('S' << 16) | ('E' << 8) | 'Q';
+
+    private static final int MAX_NUMBER_LENGTH = 10;
+
+    // field indexes
+    private static final int FIELD_TYPE = 0;
+    private static final int FIELD_CHANNEL = 1;
+    private static final int FIELD_MSGNO = 2;
+    private static final int FIELD_MORE = 3;
+    private static final int FIELD_SEQNO = 4;
+    private static final int FIELD_SIZE = 5;
+    private static final int FIELD_ANSNO = 6;
+    private static final int FIELD_ACKNO = 2;
+    private static final int FIELD_WINDOW = 3;
+
+    private static final String ERR_MALFORMED = "Malformed BEEP header";
+
+    // decoding state
+    private int field;
+    private int tokenLength;
+    private long token;
+    private int headerLength;
+    private boolean cr;
+    private boolean complete;
+    private long number;
+
+    // decoded header
+    private boolean seq;
+    private int messageType;
+    private int channel;
+    private int msgno;
+    private boolean last;
+    private long seqno;
+    private int size;
+    private int ansno;
+    private long ackno;
+    private int window;
+
+    /** Used to decode from direct buffers */
+    private final byte[] scratch = new byte[Frame.MAX_HEADER_SIZE];
+
+    public FrameDecoder()
+    {
+        reset();
+    }
+
+    /**
+     * Prepares the decoder for the next header.
+     */
+    public void reset()
+    {
+        field = FIELD_TYPE;
+        tokenLength = 0;
+        token = 0;
+        headerLength = 0;
+        cr = false;
+        complete = false;
+
+        seq = false;
+        messageType = Message.MESSAGE_TYPE_UNK;
+        channel = 0;
+        msgno = 0;
+        last = false;
+        seqno = 0;
+        size = 0;
+        ansno = -1;
+        ackno = 0;
+        window = 0;
+    }
+
+    /**
+     * Decodes bytes from <code>buf</code> until the end of the header or
+     * of the given bytes. Bytes after the header are not consumed.
+     *
+     * @return the number of bytes consumed
+     *
+     * @throws BEEPException if the header is malformed
+     */
+    public int decode(byte[] buf, int off, int len) throws BEEPException
+    {
+        if (complete) {
+            return 0;
+        }
+
+        if (headerLength == 0) {
+            int n = decodeWhole(buf, off, off + len);
+
+            if (n != -1) {
+                return n;
+            }
+
+            reset();
+        }
+
+        // the state is kept in locals while decoding and saved on return
+        int field = this.field;
+        long token = this.token;
+        int tokenLength = this.tokenLength;
+        boolean numeric = field != FIELD_TYPE && (seq || field != FIELD_MORE);
+        boolean cr = this.cr;
+
+        int i = off;
+        int limit = off + Math.min(len, Frame.MAX_HEADER_SIZE - headerLength);
+
+        while (i < limit) {
+            int b = buf[i++] & 0xff;
+
+            if (cr) {
+                if (b != '\n') {
+                    throw new BEEPException(ERR_MALFORMED);
+                }
+
+                this.field = field;
+                endField(token, tokenLength);
+
+                if (field < (seq ? FIELD_WINDOW : FIELD_SIZE)) {
+                    throw new BEEPException(ERR_MALFORMED);
+                }
+
+                complete = true;
+                break;
+            }
+
+            int digit = b - '0';
+
+            if (numeric && digit >= 0 && digit <= 9) {
+                if (tokenLength == MAX_NUMBER_LENGTH) {
+                    throw new BEEPException(ERR_MALFORMED);
+                }
+                token = token * 10 + digit;
+                ++tokenLength;
+            } else if (b == ' ') {
+                this.field = field;
+                endField(token, tokenLength);
+
+                if (++field > (seq ? FIELD_WINDOW : FIELD_ANSNO)) {
+                    throw new BEEPException(ERR_MALFORMED);
+                }
+
+                numeric = seq || field != FIELD_MORE;
+                token = 0;
+                tokenLength = 0;
+            } else if (b == '\r') {
+                cr = true;
+            } else if (field == FIELD_TYPE) {
+                if (tokenLength == 3) {
+                    throw new BEEPException(ERR_MALFORMED);
+                }
+                token = (token << 8) | b;
+                ++tokenLength;
+            } else if (numeric == false && tokenLength == 0 &&
+                       (b == '*' || b == '.'))
+            {
+                token = b;
+                ++tokenLength;
+            } else {
+                throw new BEEPException(ERR_MALFORMED);
+            }
+        }
+
+        this.field = field;
+        this.token = token;
+        this.tokenLength = tokenLength;
+        this.cr = cr;
+        headerLength += i - off;
+
+        if (complete == false && headerLength == Frame.MAX_HEADER_SIZE) {
+            throw new BEEPException(ERR_MALFORMED + ", no CRLF");
+        }
+
+        return i - off;
+    }
+
+    /**
+     * Decodes bytes from the remaining bytes of <code>buf</code> until the
+     * end of the header, advancing its position past the bytes consumed.
+     *
+     * @return the number of bytes consumed
+     *
+     * @throws BEEPException if the header is malformed
+     */
+    public int decode(ByteBuffer buf) throws BEEPException
+    {
+        if (buf.hasArray()) {
+            int n = decode(buf.array(), buf.arrayOffset() + buf.position(),
+                           buf.remaining());
+            buf.position(buf.position() + n);
+            return n;
+        }
+
+        // copy from a direct buffer, at most the rest of the header
+        int n = Math.min(buf.remaining(), scratch.length - headerLength);
+        int position = buf.position();
+
+        buf.get(scratch, 0, n);
+        n = decode(scratch, 0, n);
+        buf.position(position + n);
+
+        return n;
+    }
+
+    /**
+     * Returns <code>true</code> once a whole header, including its CRLF,
+     * has been decoded.
+     */
+    public boolean isComplete()
+    {
+        return complete;
+    }
+
+    /**
+     * Returns <code>true</code> if the header is a SEQ header, in which
+     * case only the channel, ackno and window are set.
+     */
+    public boolean isSEQ()
+    {
+        return seq;
+    }
+
+    /**
+     * Returns one of the <code>Message.MESSAGE_TYPE_</code> constants,
+     * <code>MESSAGE_TYPE_UNK</code> for a SEQ header.
+     */
+    public int getMessageType()
+    {
+        return messageType;
+    }
+
+    public int getChannel()
+    {
+        return channel;
+    }
+
+    public int getMsgno()
+    {
+        return msgno;
+    }
+
+    public boolean isLast()
+    {
+        return last;
+    }
+
+    public long getSeqno()
+    {
+        return seqno;
+    }
+
+    public int getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the ansno or -1 if the header did not contain one.
+     */
+    public int getAnsno()
+    {
+        return ansno;
+    }
+
+    public long getAckno()
+    {
+        return ackno;
+    }
+
+    public int getWindow()
+    {
+        return window;
+    }
+
+    public String toString()
+    {
+        if (seq) {
+            return "SEQ " + channel + " " + ackno + " " + window;
+        }
+
+        return Frame.MessageType.getMessageType(messageType) + " " + channel
+            + " " + msgno + " " + (last ? '.' : '*') + " " + seqno + " "
+            + size + (ansno == -1 ? "" : " " + ansno);
+    }
+
+    /**
+     * Decodes a well formed header which is entirely in <code>buf</code>
+     * without going through the state machine in <code>decode</code>.
+     *
+     * @return the number of bytes consumed or -1 if the header is not
+     *         complete or is malformed, leaving <code>decode</code> to
+     *         handle it
+     */
+    private int decodeWhole(byte[] buf, int off, int end)
+    {
+        int i = off;
+
+        if (end - i < 4 || buf[i + 3] != ' ') {
+            return -1;
+        }
+
+        int type = ((buf[i] & 0xff) << 16) | ((buf[i + 1] & 0xff) << 8)
+            | (buf[i + 2] & 0xff);
+        i += 4;
+
+        switch (type) {
+        case TYPE_MSG:
+            messageType = Message.MESSAGE_TYPE_MSG;
+            break;
+        case TYPE_RPY:
+            messageType = Message.MESSAGE_TYPE_RPY;
+            break;
+        case TYPE_ERR:
+            messageType = Message.MESSAGE_TYPE_ERR;
+            break;
+        case TYPE_ANS:
+            messageType = Message.MESSAGE_TYPE_ANS;
+            break;
+        case TYPE_NUL:
+            messageType = Message.MESSAGE_TYPE_NUL;
+            break;
+        case TYPE_SEQ:
+            seq = true;
+            break;
+        default:
+            return -1;
+        }
+
+        if ((i = number(buf, i, end)) == -1 || buf[i++] != ' ' ||
+            number > Integer.MAX_VALUE)
+        {
+            return -1;
+        }
+        channel = (int) number;
+
+        if (seq) {
+            if ((i = number(buf, i, end)) == -1 || buf[i++] != ' ') {
+                return -1;
+            }
+            ackno = number;
+            if ((i = number(buf, i, end)) == -1 ||
+                number > Integer.MAX_VALUE)
+            {
+                return -1;
+            }
+            window = (int) number;
+        } else {
+            if ((i = number(buf, i, end)) == -1 || buf[i++] != ' ' ||
+                number > Integer.MAX_VALUE)
+            {
+                return -1;
+            }
+            msgno = (int) number;
+            if (end - i < 2 || (buf[i] != '.' && buf[i] != '*') ||
+                buf[i + 1] != ' ')
+            {
+                return -1;
+            }
+            last = buf[i] == '.';
+            i += 2;
+            if ((i = number(buf, i, end)) == -1 || buf[i++] != ' ') {
+                return -1;
+            }
+            seqno = number;
+            if ((i = number(buf, i, end)) == -1 ||
+                number > Integer.MAX_VALUE)
+            {
+                return -1;
+            }
+            size = (int) number;
+            if (buf[i] == ' ') {
+                if ((i = number(buf, i + 1, end)) == -1 ||
+                    number > Integer.MAX_VALUE)
+                {
+                    return -1;
+                }
+                ansno = (int) number;
+            }
+        }
+
+        if (end - i < 2 || buf[i] != '\r' || buf[i + 1] != '\n') {
+            return -1;
+        }
+
+        i += 2;
+        headerLength = i - off;
+        complete = true;
+
+        return i - off;
+    }
+
+    /**
+     * Parses the number at <code>i</code> into <code>number</code>.
+     *
+     * @return the index of the byte following the number, or -1 if there
+     *         is no number or nothing follows it
+     */
+    private int number(byte[] buf, int i, int end)
+    {
+        int limit = Math.min(end, i + MAX_NUMBER_LENGTH);
+        int start = i;
+        long value = 0;
+
+        while (i < limit) {
+            int digit = buf[i] - '0';
+
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            value = value * 10 + digit;
+            ++i;
+        }
+
+        if (i == start || i == end || value > Frame.MAX_SEQUENCE_NUMBER) {
+            return -1;
+        }
+
+        number = value;
+
+        return i;
+    }
+
+    private void endField(long token, int tokenLength) throws BEEPException
+    {
+        if (tokenLength == 0) {
+            throw new BEEPException(ERR_MALFORMED);
+        }
+
+        if (field == FIELD_TYPE) {
+            endType(token, tokenLength);
+        } else if (seq) {
+            switch (field) {
+            case FIELD_CHANNEL:
+                channel = toInt(token);
+                break;
+            case FIELD_ACKNO:
+                ackno = toUnsignedInt(token);
+                break;
+            case FIELD_WINDOW:
+                window = toInt(token);
+                break;
+            }
+        } else {
+            switch (field) {
+            case FIELD_CHANNEL:
+                channel = toInt(token);
+                break;
+            case FIELD_MSGNO:
+                msgno = toInt(token);
+                break;
+            case FIELD_MORE:
+                last = token == '.';
+                break;
+            case FIELD_SEQNO:
+                seqno = toUnsignedInt(token);
+                break;
+            case FIELD_SIZE:
+                size = toInt(token);
+                break;
+            case FIELD_ANSNO:
+                ansno = toInt(token);
+                break;
+            }
+        }
+    }
+
+    private void endType(long token, int tokenLength) throws BEEPException
+    {
+        if (tokenLength != 3) {
+            throw new BEEPException(ERR_MALFORMED);
+        }
+
+        switch ((int) token) {
+        case TYPE_MSG:
+            messageType = Message.MESSAGE_TYPE_MSG;
+            break;
+        case TYPE_RPY:
+            messageType = Message.MESSAGE_TYPE_RPY;
+            break;
+        case TYPE_ERR:
+            messageType = Message.MESSAGE_TYPE_ERR;
+            break;
+        case TYPE_ANS:
+            messageType = Message.MESSAGE_TYPE_ANS;
+            break;
+        case TYPE_NUL:
+            messageType = Message.MESSAGE_TYPE_NUL;
+            break;
+        case TYPE_SEQ:
+            seq = true;
+            break;
+        default:
+            throw new BEEPException(ERR_MALFORMED + ", unknown type");
+        }
+    }
+
+    private static int toInt(long value) throws BEEPException
+    {
+        if (value > Integer.MAX_VALUE) {
+            throw new BEEPException(ERR_MALFORMED);
+        }
+
+        return (int) value;
+    }
+
+    private static long toUnsignedInt(long value) throws BEEPException
+    {
+        if (value > Frame.MAX_SEQUENCE_NUMBER) {
+            throw new BEEPException(ERR_MALFORMED);
+        }
+
+        return value;
+    }
+}
@@ -17,9 +17,15 @@
 package org.beepcore.beep.core;
 
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.LinkedList;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.beepcore.beep.util.BufferSegment;
+import org.beepcore.beep.util.FileSegment;
 
 /**
  * <code>InputDataStream</code> holds a stream of
@@ -29,7 +35,19 @@ import org.beepcore.beep.util.BufferSegment;
  * <b>Note that this implementation is not synchronized.</b> If
  * multiple threads access a <code>InputDataStream</code>
  * concurrently, data may be inconsistent or lost.
+ * <p>
+ * The segments may be allocated from a
+ * <code>org.beepcore.beep.util.BufferPool</code>. A segment returned by
+ * <code>getNextSegment</code> or <code>waitForNextSegment</code> is
+ * released when the next segment is requested or the stream is closed,
+ * so its data must be copied if it is needed after that.
+ * <p>
+ * If the session has a <code>SpillPolicy</code>, segments received once
+ * the message or session is holding too much in memory are written to a
+ * temporary file and returned as <code>FileSegment</code>s which read the
+ * bytes back. The file is closed when the stream is closed.
  *
+ * @see SpillPolicy
  * @see org.beepcore.beep.util.BufferSegment
  *
  * @author Huston Franklin
@@ -86,8 +104,10 @@ public class InputDataStream {
                 if (this.channel != null) {
                     this.channel.freeReceiveBufferBytes(segment.getLength());
                 }
+                segment.release();
                 return;
             }
+            segment = spill(segment);
             this.buffers.addLast(segment);
             this.availableBytes += segment.getLength();
             this.buffers.notify();
@@ -126,6 +146,8 @@ public class InputDataStream {
         while (this.availableSegment()) {
             this.getNextSegment();
         }
+        releaseLastSegment();
+        closeSpillFile();
     }
 
     /**
@@ -141,22 +163,38 @@ public class InputDataStream {
     }
 
     /**
-     * Returns the next <code>BufferSegment</code> in this stream.
+     * Returns the next <code>BufferSegment</code> in this stream. The
+     * segment previously returned is released.
      *
      */
     synchronized public BufferSegment getNextSegment() {
         BufferSegment b;
 
+        releaseLastSegment();
+
+        boolean inMemory;
+
         synchronized (buffers) {
             b = (BufferSegment) buffers.removeFirst();
+
+            inMemory = this.channel != null && b instanceof FileSegment == false;
+            if (inMemory) {
+                this.memoryBytes -= b.getLength();
+            }
         }
 
+        this.lastSegment = b;
+
         if (this.channel != null) {
             this.channel.freeReceiveBufferBytes(b.getLength());
         }
 
         this.availableBytes -= b.getLength();
 
+        if (inMemory) {
+            this.channel.session.addBufferedBytes(-b.getLength());
+        }
+
         return b;
     }
 
@@ -164,14 +202,103 @@ public class InputDataStream {
      *
      * @return null if isComplete() is true.
      */
-    synchronized public BufferSegment waitForNextSegment() throws InterruptedException {
-            while (availableSegment() == false) {
-                if (isComplete() == true) {
-                    return null;
+    public BufferSegment waitForNextSegment() throws InterruptedException {
+        // add() and setComplete() notify on buffers
+        synchronized (buffers) {
+            while (buffers.isEmpty()) {
+                if (this.complete == true) {
+                    break;
                 }
                 buffers.wait();
             }
-            return getNextSegment();
+        }
+
+        // released outside the lock on buffers, see getNextSegment
+        if (availableSegment() == false) {
+            releaseLastSegment();
+            return null;
+        }
+        return getNextSegment();
+    }
+
+    /**
+     * Returns <code>segment</code>, or a <code>FileSegment</code> for its
+     * bytes in the spill file if keeping it in memory would exceed the
+     * session's <code>SpillPolicy</code>. Called holding the lock on
+     * <code>buffers</code>.
+     * <p>
+     * The bytes are written to the file by the session's reader thread
+     * while it holds the lock on <code>buffers</code>, so a reader of
+     * this stream waits for the write, and the session reads no further
+     * frames until it completes. Spilling only starts once the policy's
+     * memory limits have been reached, at which point reading more slowly
+     * is preferable to buffering more.
+     */
+    private BufferSegment spill(BufferSegment segment) {
+        if (this.channel == null) {
+            return segment;
+        }
+
+        SessionImpl session = this.channel.session;
+        SpillPolicy policy = session.getSpillPolicy();
+        int length = segment.getLength();
+
+        this.memoryBytes += length;
+        long sessionBytes = session.addBufferedBytes(length);
+
+        if (policy == null || length == 0 ||
+            (this.memoryBytes <= policy.getMessageThreshold() &&
+             sessionBytes <= policy.getSessionThreshold()))
+        {
+            return segment;
+        }
+
+        try {
+            if (this.spillFile == null) {
+                this.spillFile = policy.createFile();
+            }
+
+            ByteBuffer b = segment.asByteBuffer();
+            long position = this.spillLength;
+
+            while (b.hasRemaining()) {
+                position += this.spillFile.write(b, position);
+            }
+
+            BufferSegment spilled =
+                new FileSegment(this.spillFile, this.spillLength, length);
+
+            this.spillLength = position;
+            this.memoryBytes -= length;
+            session.addBufferedBytes(-length);
+            segment.release();
+
+            return spilled;
+        } catch (IOException e) {
+            log.error("Unable to spill message to disk, keeping it in memory",
+                      e);
+            return segment;
+        }
+    }
+
+    private void closeSpillFile() {
+        synchronized (this.buffers) {
+            if (this.spillFile != null) {
+                try {
+                    this.spillFile.close();
+                } catch (IOException e) {
+                    log.error("Unable to close spill file", e);
+                }
+                this.spillFile = null;
+            }
+        }
+    }
+
+    private synchronized void releaseLastSegment() {
+        if (this.lastSegment != null) {
+            this.lastSegment.release();
+            this.lastSegment = null;
+        }
     }
 
     public boolean isClosed() {
@@ -181,9 +308,10 @@ public class InputDataStream {
     /**
      * Returns <code>true</code> if no more bytes will be added to
      * those currently available on this stream.  Returns
-     * <code>false</code> if more bytes are expected.
+     * <code>false</code> if more bytes are expected. Does not lock the
+     * stream, so the channel may ask while holding its window lock.
      */
-    synchronized public boolean isComplete() {
+    public boolean isComplete() {
         return this.complete;
     }
 
@@ -194,10 +322,17 @@ public class InputDataStream {
         }
     }
 
+    private Log log = LogFactory.getLog(this.getClass());
+
     LinkedList buffers = new LinkedList();
     private int availableBytes = 0;
+    // guarded by buffers, as are spillFile and spillLength
+    private int memoryBytes = 0;
+    private FileChannel spillFile = null;
+    private long spillLength = 0;
+    private BufferSegment lastSegment = null;
     private ChannelImpl channel = null;
     private boolean closed = false;
-    private boolean complete = false;
+    private volatile boolean complete = false;
     private InputDataStreamAdapter stream = null;
 }
@@ -19,8 +19,11 @@ package org.beepcore.beep.core;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -157,6 +160,81 @@ public class InputDataStreamAdapter extends java.io.InputStream {
         return bytesRead;
     }
 
+    /**
+     * Reads up to <code>dst.remaining()</code> bytes into
+     * <code>dst</code>. Blocks until at least one byte is available and
+     * then reads those which are available.
+     *
+     * @return The number of bytes read or -1 if the end of the stream
+     * has been reached.
+     */
+    public int read(ByteBuffer dst) throws IOException
+    {
+        int len = dst.remaining();
+
+        if (len == 0) {
+            return 0;
+        }
+
+        if (waitAvailable() == -1) {
+            return -1;
+        }
+
+        int bytesRead = 0;
+
+        while (bytesRead < len && setNextBuffer()) {
+            int n = Math.min(len - bytesRead, curBuf.getLength() - pos);
+
+            curBuf.copyTo(pos, dst, n);
+
+            pos += n;
+            bytesRead += n;
+            releaseIfConsumed();
+        }
+
+        return bytesRead;
+    }
+
+    /**
+     * Returns an <code>Iterator</code> over the rest of this stream as
+     * <code>ByteBuffer</code>s, one per segment, sharing the segments'
+     * bytes rather than copying them. <code>hasNext()</code> blocks until
+     * another segment has been received or the stream is complete.
+     * <p>
+     * The bytes of a buffer are consumed when it is returned. Since
+     * segments may be pooled a buffer is only valid until the next call
+     * to <code>hasNext()</code> or <code>next()</code>.
+     */
+    public Iterator segments()
+    {
+        return new Iterator() {
+            public boolean hasNext() {
+                if (waitAvailable() == -1) {
+                    curBuf.release();
+                    return false;
+                }
+                return true;
+            }
+
+            public Object next() {
+                if (hasNext() == false) {
+                    throw new NoSuchElementException();
+                }
+
+                ByteBuffer b = curBuf.asByteBuffer();
+
+                b.position(pos);
+                pos = curBuf.getLength();
+
+                return b;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
     // Added separate read method to return byte[] buffer as a String to allow for unit test mocking
     public String readMessage() throws IOException
     {
@@ -180,6 +258,7 @@ public class InputDataStreamAdapter extends java.io.InputStream {
                              curBuf.getLength() - pos);
             pos += i;
             bytesSkipped += i;
+            releaseIfConsumed();
         }
 
         return bytesSkipped;
@@ -195,9 +274,10 @@ public class InputDataStreamAdapter extends java.io.InputStream {
             return -1;
         }
 
-        int b = curBuf.getData()[curBuf.getOffset() + pos] & 0xff;
+        int b = curBuf.get(pos) & 0xff;
 
         pos++;
+        releaseIfConsumed();
 
         return b;
     }
@@ -216,16 +296,28 @@ public class InputDataStreamAdapter extends java.io.InputStream {
             }
 
             int n = Math.min(len - bytesRead, curBuf.getLength() - pos);
-            System.arraycopy(curBuf.getData(), curBuf.getOffset() + pos,
-                             b, off + bytesRead, n);
+            curBuf.copyTo(pos, b, off + bytesRead, n);
 
             pos += n;
             bytesRead += n;
+            releaseIfConsumed();
         }
 
         return bytesRead;
     }
 
+    /**
+     * The bytes of the current segment are copied out as they are read
+     * so a segment which has been read to the end can be released
+     * straight away rather than when the next one is requested.
+     */
+    private void releaseIfConsumed()
+    {
+        if (pos == curBuf.getLength()) {
+            curBuf.release();
+        }
+    }
+
     private void parseHeaders()
     {
         while (true) {
@@ -378,6 +470,7 @@ public class InputDataStreamAdapter extends java.io.InputStream {
                 return false;
             }
 
+            curBuf.release();
             curBuf = ids.getNextSegment();
             pos = 0;
         }
@@ -17,6 +17,8 @@
  */
 package org.beepcore.beep.core;
 
+import java.util.LinkedList;
+
 import org.beepcore.beep.core.serialize.ErrorElement;
 
 /**
@@ -32,6 +34,12 @@ import org.beepcore.beep.core.serialize.ErrorElement;
  */
 class MessageMSGImpl extends MessageImpl implements MessageMSG
 {
+    /**
+     * replies sent before those of earlier MSGs, waiting for them,
+     * guarded by the channel's receive queue
+     */
+    LinkedList heldReplies = null;
+
     MessageMSGImpl(ChannelImpl channel, int msgno, InputDataStream data) {
         super(channel, msgno, data, Message.MESSAGE_TYPE_MSG);
     }
@@ -84,7 +92,8 @@ class MessageMSGImpl extends MessageImpl implements MessageMSG
             channel.session.parser.serializeError(new ErrorElement(error.getCode(),
                     error.getXMLLang(), error.getDiagnostic()));
         OutputDataStream stream =
-            new ByteOutputDataStream(errorString);
+            new ByteOutputDataStream(MimeHeaders.BEEP_XML_CONTENT_TYPE,
+                                     errorString);
         MessageStatus m = new MessageStatus(this.channel,
                                             Message.MESSAGE_TYPE_ERR,
                                             this.msgno, stream);
@@ -109,10 +118,12 @@ class MessageMSGImpl extends MessageImpl implements MessageMSG
     {
         ErrorElement error = new ErrorElement(code, diagnostic);
         byte[] errorString = channel.session.parser.serializeError(error);
+        OutputDataStream stream =
+            new ByteOutputDataStream(MimeHeaders.BEEP_XML_CONTENT_TYPE,
+                                     errorString);
         MessageStatus m = new MessageStatus(this.channel,
                                             Message.MESSAGE_TYPE_ERR,
-                                            this.msgno,
-                                            new ByteOutputDataStream(errorString));
+                                            this.msgno, stream);
         this.channel.sendMessage(m);
         return m;
     }
@@ -136,10 +147,12 @@ class MessageMSGImpl extends MessageImpl implements MessageMSG
     {
         ErrorElement error = new ErrorElement(code, xmlLang, diagnostic);
         byte[] errorString = channel.session.parser.serializeError(error);
+        OutputDataStream stream =
+            new ByteOutputDataStream(MimeHeaders.BEEP_XML_CONTENT_TYPE,
+                                     errorString);
         MessageStatus m = new MessageStatus(this.channel,
                                             Message.MESSAGE_TYPE_ERR,
-                                            this.msgno,
-                                            new ByteOutputDataStream(errorString));
+                                            this.msgno, stream);
         this.channel.sendMessage(m);
         return m;
     }
@@ -142,12 +142,7 @@ public class OutputDataStream {
     }
 
     synchronized protected BufferSegment getNextSegment(int maxLength) {
-        if (this.headersSent == false) {
-            if (this.mimeHeaders != null) {
-                this.buffers.addFirst(mimeHeaders.getBufferSegment());
-            }
-            this.headersSent = true;
-        }
+        addHeaders();
 
         BufferSegment b = (BufferSegment)buffers.getFirst();
 
@@ -155,8 +150,8 @@ public class OutputDataStream {
 
             int origLength = b.getLength();
 
-            b = new BufferSegment(b.getData(), b.getOffset() + curOffset,
-                                  Math.min(maxLength, origLength - curOffset));
+            b = b.slice(curOffset, Math.min(maxLength,
+                                            origLength - curOffset));
 
             if (curOffset + b.getLength() != origLength) {
                 curOffset += b.getLength();
@@ -168,11 +163,67 @@ public class OutputDataStream {
 
         return b;
     }
+
+    /**
+     * Same as <code>getNextSegment(int)</code> except that
+     * <code>segment</code> is pointed at the bytes and returned, unless
+     * the kind of segment being sent requires a new one.
+     *
+     * @see BufferSegment#slice(int, int, BufferSegment)
+     */
+    synchronized BufferSegment getNextSegment(int maxLength,
+                                              BufferSegment segment)
+    {
+        addHeaders();
+
+        BufferSegment b = (BufferSegment)buffers.getFirst();
+        int length = Math.min(maxLength, b.getLength() - curOffset);
+
+        segment = b.slice(curOffset, length, segment);
+
+        if (curOffset + length == b.getLength()) {
+            buffers.removeFirst();
+            curOffset = 0;
+        } else {
+            curOffset += length;
+        }
+
+        return segment;
+    }
+
+    /**
+     * Called once a frame holding segments returned by
+     * <code>getNextSegment</code> has been sent, after which the bytes
+     * they refer to are no longer used.
+     */
+    void segmentsSent() {
+    }
+
+    private void addHeaders() {
+        if (this.headersSent == false) {
+            if (this.mimeHeaders != null) {
+                this.buffers.addFirst(mimeHeaders.getBufferSegment());
+            }
+            this.headersSent = true;
+        }
+    }
     
     synchronized void setChannel(ChannelImpl channel) {
         this.channel = channel;
     }
 
+    synchronized ChannelImpl getChannel() {
+        return this.channel;
+    }
+
+    /**
+     * Called by the channel when no segment is available. Throws if the
+     * rest of the stream can never be produced, e.g. the source of a
+     * <code>StreamOutputDataStream</code> failed.
+     */
+    void checkFailed() throws BEEPException {
+    }
+
     protected final MimeHeaders mimeHeaders;
 
     private LinkedList buffers = new LinkedList();
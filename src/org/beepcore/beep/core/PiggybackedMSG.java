@@ -102,7 +102,7 @@ class PiggybackedMSG extends MessageMSGImpl implements MessageMSG {
         while (stream.availableSegment()) {
             BufferSegment b = stream.getNextSegment(MAX_PCDATA_SIZE);
 
-            tmp.write(b.getData(), 0, b.getLength());
+            tmp.write(b.getData(), b.getOffset(), b.getLength());
         }
 
         try {
@@ -116,6 +116,14 @@ class PiggybackedMSG extends MessageMSGImpl implements MessageMSG {
             throw new RuntimeException("UTF-8 not supported");
         }
 
+        boolean tuning =
+            this.channel.getState() == ChannelImpl.STATE_TUNING;
+
+        // frames for the channel may be read as soon as the reply is sent
+        if (tuning == false) {
+            this.channel.setState(ChannelImpl.STATE_ACTIVE);
+        }
+
         try {
             s.sendProfile(this.channel.getProfile(), data, this.channel);
         } catch (BEEPException e) {
@@ -123,9 +131,8 @@ class PiggybackedMSG extends MessageMSGImpl implements MessageMSG {
             throw e;
         }
 
-        if (this.channel.getState() != ChannelImpl.STATE_TUNING) {
-            this.channel.setState(ChannelImpl.STATE_ACTIVE);
-            ((SessionImpl)this.channel.getSession()).enableIO();
+        if (tuning == false) {
+            ((SessionImpl)this.channel.getSession()).resumeIO();
         }
 
         s.fireChannelStarted(this.channel);
@@ -27,6 +27,7 @@ import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 import org.beepcore.beep.util.StringUtil;
 
@@ -53,6 +54,7 @@ public class ProfileRegistry implements Cloneable {
     }
 
     private Hashtable profileListeners;
+    private Hashtable callbackExecutors;
     String localize;
 
     // Constructors
@@ -66,18 +68,22 @@ public class ProfileRegistry implements Cloneable {
     {
         this.localize = Constants.LOCALIZE_DEFAULT;
         this.profileListeners = new Hashtable();
+        this.callbackExecutors = new Hashtable();
     }
 
-    private ProfileRegistry(String localize, Hashtable profiles)
+    private ProfileRegistry(String localize, Hashtable profiles,
+                            Hashtable executors)
     {
         this.localize = localize;
         this.profileListeners = profiles;
+        this.callbackExecutors = executors;
     }
 
     public Object clone()
     {
         return new ProfileRegistry(this.localize,
-                                   (Hashtable) this.profileListeners.clone());
+                                   (Hashtable) this.profileListeners.clone(),
+                                   (Hashtable) this.callbackExecutors.clone());
     }
 
     /**
@@ -195,6 +201,40 @@ public class ProfileRegistry implements Cloneable {
         return temp.listener;
     }
 
+    /**
+     * Sets the <code>Executor</code> used to call the
+     * <code>RequestHandler</code>s and <code>ReplyListener</code>s of
+     * channels started with the specified profile, instead of the
+     * session's. Gives a busy profile its own threads so it can not keep
+     * the callbacks of other profiles waiting. Only affects channels
+     * started afterwards.
+     *
+     * @param profile
+     * @param executor the executor, or <code>null</code> to use the
+     *        session's
+     *
+     * @see CallbackExecutor
+     */
+    public void setCallbackExecutor(String profile, Executor executor)
+    {
+        if (executor == null) {
+            callbackExecutors.remove(profile);
+        } else {
+            callbackExecutors.put(profile, CallbackExecutor.wrap(executor));
+        }
+    }
+
+    /**
+     * Returns the <code>CallbackExecutor</code> set for the specified
+     * profile, or <code>null</code>.
+     *
+     * @param profile
+     */
+    public CallbackExecutor getCallbackExecutor(String profile)
+    {
+        return (CallbackExecutor) callbackExecutors.get(profile);
+    }
+
     /**
      * Set values for the BEEP greeting localize attribute.
      *
@@ -0,0 +1,278 @@
+/*
+ * ReceiveBudget.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+
+/**
+ * Limits the bytes the channels sharing the budget may have in their
+ * receive windows, the payload they have received but not yet read plus
+ * what they have told their peers they may send. Once the budget is used
+ * up, windows are advertised smaller than their receive buffer size as
+ * they are freed, down to the 4k every channel starts with. A session's
+ * channels at most pin the budget, or 4k each if that is more.
+ * <p>
+ * A budget may have a parent shared by several sessions, for instance
+ * one for the process, in which case a window is only granted what both
+ * have left. <code>watchHeap</code> makes a budget grant nothing beyond
+ * the 4k minimum while the heap is nearly full.
+ *
+ * @see org.beepcore.beep.transport.tcp.TCPSessionConfig#setReceiveBudget
+ * @see org.beepcore.beep.transport.tcp.TCPSessionConfig#setSharedReceiveBudget
+ */
+public class ReceiveBudget {
+
+    // how often the heap is checked to see if the pressure has gone
+    private static final long HEAP_CHECK_NANOS = 100L * 1000 * 1000;
+
+    private final ReceiveBudget parent;
+
+    private long limit;
+    private long reserved = 0;
+
+    private List pools = null;
+    private volatile boolean heapPressure = false;
+    private long heapCheckNanos = 0;
+
+    /**
+     * @param limit bytes the windows of the channels may hold
+     */
+    public ReceiveBudget(long limit)
+    {
+        this(limit, null);
+    }
+
+    /**
+     * @param limit bytes the windows of the channels may hold
+     * @param parent a budget shared with other sessions, or
+     * <code>null</code>
+     */
+    public ReceiveBudget(long limit, ReceiveBudget parent)
+    {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit < 0");
+        }
+
+        this.limit = limit;
+        this.parent = parent;
+    }
+
+    public ReceiveBudget getParent()
+    {
+        return parent;
+    }
+
+    public synchronized long getLimit()
+    {
+        return limit;
+    }
+
+    /**
+     * Changes the limit. Lowering it shrinks windows as they are freed.
+     */
+    public synchronized void setLimit(long limit)
+    {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit < 0");
+        }
+
+        this.limit = limit;
+    }
+
+    /**
+     * Returns the bytes currently held by the windows of the channels.
+     */
+    public synchronized long getReserved()
+    {
+        return reserved;
+    }
+
+    /**
+     * Returns <code>true</code> while <code>watchHeap</code> has found
+     * the heap nearly full.
+     */
+    public boolean isHeapPressure()
+    {
+        return heapPressure;
+    }
+
+    /**
+     * Stops the budget from granting more than the minimum window while
+     * a heap memory pool is more than <code>fraction</code> full. This
+     * sets the usage thresholds of the heap pools which support them,
+     * so it should not be used with other code which sets them, and
+     * only on one budget, usually the one shared by all sessions.
+     *
+     * @param fraction of a pool's maximum size
+     */
+    public void watchHeap(double fraction)
+    {
+        if (fraction <= 0 || fraction > 1) {
+            throw new IllegalArgumentException("fraction is not in (0, 1]");
+        }
+
+        List watched = new ArrayList();
+        Iterator i = ManagementFactory.getMemoryPoolMXBeans().iterator();
+
+        while (i.hasNext()) {
+            MemoryPoolMXBean pool = (MemoryPoolMXBean) i.next();
+            long max = pool.getUsage().getMax();
+
+            if (pool.getType() != MemoryType.HEAP ||
+                pool.isUsageThresholdSupported() == false || max == -1)
+            {
+                continue;
+            }
+
+            long threshold = (long) (max * fraction);
+
+            pool.setUsageThreshold(threshold);
+            if (pool.isCollectionUsageThresholdSupported()) {
+                pool.setCollectionUsageThreshold(threshold);
+            }
+            watched.add(pool);
+        }
+
+        synchronized (this) {
+            pools = watched;
+        }
+
+        NotificationEmitter emitter =
+            (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+
+        emitter.addNotificationListener(new NotificationListener() {
+                public void handleNotification(Notification n, Object o) {
+                    String type = n.getType();
+
+                    if (type.equals(MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED) ||
+                        type.equals(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED))
+                    {
+                        synchronized (ReceiveBudget.this) {
+                            heapPressure = true;
+                            heapCheckNanos = System.nanoTime();
+                        }
+                    }
+                }
+            }, null, null);
+    }
+
+    /**
+     * Changes a window from <code>current</code> bytes towards
+     * <code>wanted</code>, granting only what the budget has left but
+     * never less than <code>minimum</code>.
+     *
+     * @return the new size of the window
+     */
+    synchronized int resize(int current, int wanted, int minimum)
+    {
+        if (wanted <= current) {
+            int size = Math.max(wanted, minimum);
+
+            if (size < current) {
+                release(current - size);
+            } else if (size > current) {
+                reserve(size - current, size - current);
+            }
+
+            return size;
+        }
+
+        return current + (int) reserve(wanted - current,
+                                       Math.max(minimum - current, 0));
+    }
+
+    /**
+     * Gives back the bytes of a window.
+     */
+    synchronized void release(long bytes)
+    {
+        reserved -= bytes;
+
+        if (parent != null) {
+            parent.release(bytes);
+        }
+    }
+
+    /**
+     * Reserves up to <code>wanted</code> bytes, and at least
+     * <code>minimum</code> even if they are over the limit.
+     *
+     * @return the bytes reserved
+     */
+    private synchronized long reserve(long wanted, long minimum)
+    {
+        long free = isHeapFull() ? 0 : Math.max(limit - reserved, 0);
+        long granted = Math.max(Math.min(wanted, free), minimum);
+
+        if (parent != null) {
+            granted = parent.reserve(granted, minimum);
+        }
+
+        reserved += granted;
+
+        return granted;
+    }
+
+    /**
+     * Returns <code>true</code> while there is heap pressure, clearing it
+     * once the pools are back under their thresholds.
+     */
+    private boolean isHeapFull()
+    {
+        if (heapPressure == false) {
+            return false;
+        }
+
+        long now = System.nanoTime();
+
+        if (now - heapCheckNanos < HEAP_CHECK_NANOS) {
+            return true;
+        }
+
+        heapCheckNanos = now;
+
+        Iterator i = pools.iterator();
+
+        while (i.hasNext()) {
+            MemoryPoolMXBean pool = (MemoryPoolMXBean) i.next();
+
+            // what is left after a collection, if the pool tracks it
+            if (pool.isCollectionUsageThresholdSupported()
+                ? pool.isCollectionUsageThresholdExceeded()
+                : pool.isUsageThresholdExceeded())
+            {
+                return true;
+            }
+        }
+
+        heapPressure = false;
+
+        return false;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * ReplyFuture.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+
+/**
+ * The future returned by <code>Channel.sendMSGAsync</code>, listening for
+ * the replies to the MSG. It completes with the RPY, ERR or NUL ending the
+ * reply; ANS messages are passed to a <code>Consumer</code> as they
+ * arrive. Replies arriving after the future was completed otherwise, by
+ * its timeout or by <code>cancel</code>, are read and dropped so they do
+ * not hold the channel's receive window.
+ * <p>
+ * Timeouts share one timer thread, so a request waiting for its reply
+ * holds no thread.
+ *
+ * @see Channel#sendMSGAsync(OutputDataStream, Consumer, long, TimeUnit)
+ */
+class ReplyFuture extends CompletableFuture<Message>
+    implements ReplyListener
+{
+    private static ScheduledThreadPoolExecutor timer = null;
+
+    private final Consumer<? super Message> answers;
+
+    /** the RPY or ERR, which is passed again for each of its frames */
+    private Message reply = null;
+
+    ReplyFuture(Consumer<? super Message> answers)
+    {
+        this.answers = answers;
+    }
+
+    /**
+     * Completes the future with a <code>TimeoutException</code> unless it
+     * is completed within <code>timeout</code>.
+     *
+     * @param timeout 0 to wait for the reply for ever
+     * @param unit
+     */
+    void expireAfter(long timeout, TimeUnit unit)
+    {
+        if (timeout <= 0) {
+            return;
+        }
+
+        final ScheduledFuture expiry = getTimer().schedule(new Runnable() {
+                public void run() {
+                    completeExceptionally(new TimeoutException());
+                }
+            }, timeout, unit);
+
+        whenComplete(new BiConsumer<Message, Throwable>() {
+                public void accept(Message m, Throwable error) {
+                    expiry.cancel(false);
+                }
+            });
+    }
+
+    public void receiveRPY(Message message)
+    {
+        finish(message);
+    }
+
+    public void receiveERR(Message message)
+    {
+        finish(message);
+    }
+
+    public void receiveANS(Message message)
+    {
+        if (answers == null) {
+            fail(message, new BEEPException("Unexpected ANS reply"));
+            return;
+        }
+
+        if (isDone()) {
+            message.getDataStream().close();
+            return;
+        }
+
+        try {
+            answers.accept(message);
+        } catch (RuntimeException e) {
+            fail(message, e);
+        }
+    }
+
+    public void receiveNUL(Message message)
+    {
+        complete(message);
+    }
+
+    private void finish(Message message)
+    {
+        if (message == reply) {
+            return;
+        }
+        reply = message;
+
+        if (complete(message) == false) {
+            message.getDataStream().close();
+        }
+    }
+
+    private void fail(Message message, Throwable error)
+    {
+        message.getDataStream().close();
+        completeExceptionally(error);
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getTimer()
+    {
+        if (timer == null) {
+            timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "BEEP Reply Timeout");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            // a deadline is usually cancelled long before it is due
+            timer.setRemoveOnCancelPolicy(true);
+        }
+
+        return timer;
+    }
+}
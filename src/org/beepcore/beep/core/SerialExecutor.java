@@ -0,0 +1,121 @@
+/*
+ * SerialExecutor.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Runs tasks one at a time in the order they were submitted on another
+ * <code>Executor</code>, holding at most one of its threads at a time.
+ * A task which throws is logged and the ones after it still run.
+ */
+class SerialExecutor implements Executor, Runnable {
+
+    private Log log = LogFactory.getLog(this.getClass());
+
+    private final Executor executor;
+
+    /** guarded by tasks */
+    private final LinkedList tasks = new LinkedList();
+
+    /** guarded by tasks */
+    private boolean scheduled = false;
+
+    SerialExecutor(Executor executor)
+    {
+        this.executor = executor;
+    }
+
+    /**
+     * Queues <code>task</code>. If the underlying executor rejects it the
+     * exception is thrown, after any tasks queued by other threads
+     * meanwhile have been run on this thread, as they were accepted.
+     */
+    public void execute(Runnable task)
+    {
+        synchronized (tasks) {
+            tasks.addLast(task);
+
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+
+        try {
+            executor.execute(this);
+        } catch (RuntimeException e) {
+            boolean queued;
+
+            synchronized (tasks) {
+                tasks.remove(task);
+                queued = tasks.isEmpty() == false;
+                if (queued == false) {
+                    scheduled = false;
+                }
+            }
+
+            if (queued) {
+                run();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Runs the queued tasks until there are none left. If a task throws
+     * an <code>Error</code> the rest are left for the next call to
+     * <code>execute</code> to schedule.
+     */
+    public void run()
+    {
+        boolean done = false;
+
+        try {
+            while (true) {
+                Runnable task;
+
+                synchronized (tasks) {
+                    if (tasks.isEmpty()) {
+                        scheduled = false;
+                        done = true;
+                        return;
+                    }
+                    task = (Runnable) tasks.removeFirst();
+                }
+
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.error("Error running task", e);
+                }
+            }
+        } finally {
+            if (done == false) {
+                synchronized (tasks) {
+                    scheduled = false;
+                }
+            }
+        }
+    }
+}
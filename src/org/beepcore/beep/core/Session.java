@@ -18,6 +18,7 @@ package org.beepcore.beep.core;
 
 
 import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
 
 import org.beepcore.beep.core.event.ChannelListener;
 import org.beepcore.beep.core.event.SessionListener;
@@ -228,6 +229,49 @@ public interface Session {
     public Channel startChannel(Collection profiles, RequestHandler handler)
         throws BEEPException, BEEPError;
 
+    /**
+     * Sends a request to start a new Channel on this Session for the
+     * specified profile without waiting for the reply. Any number of
+     * start requests may be outstanding at once.
+     *
+     * @param profile The URI of the profile for the new Channel.
+     *
+     * @return A future completed with the Channel once it is started. It
+     *         completes exceptionally with a <code>BEEPError</code> if the
+     *         remote peer refuses to start the Channel or with a
+     *         <code>BEEPException</code> for other errors.
+     *
+     * @see #startChannel(String)
+     */
+    public CompletableFuture<Channel> startChannelAsync(String profile);
+
+    /**
+     * Sends a request to start a new Channel on this Session for the
+     * specified profile without waiting for the reply.
+     *
+     * @param profile The URI of the profile for the new Channel.
+     * @param handler A <code>RequestHandler</code> to receive MSG messages
+     *                sent by the remote peer of this Session.
+     *
+     * @see #startChannelAsync(String)
+     */
+    public CompletableFuture<Channel> startChannelAsync(String profile,
+                                                        RequestHandler handler);
+
+    /**
+     * Sends a start channel request using the given list of profiles
+     * without waiting for the reply.
+     *
+     * @param profiles A collection of <code>StartChannelProfile</code>(s).
+     * @param handler A <code>RequestHandler</code> to receive MSG messages
+     *                sent by the remote peer of this Session.
+     *
+     * @see #startChannelAsync(String)
+     * @see StartChannelProfile
+     */
+    public CompletableFuture<Channel> startChannelAsync(Collection profiles,
+                                                        RequestHandler handler);
+
     /**
      * This method is used to terminate the session when there is an
      * non-recoverable error.
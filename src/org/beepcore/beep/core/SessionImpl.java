@@ -20,6 +20,17 @@ package org.beepcore.beep.core;
 
 import java.io.UnsupportedEncodingException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.beepcore.beep.profile.tls.TLSProfile;
@@ -29,6 +40,7 @@ import org.beepcore.beep.core.event.SessionEvent;
 import org.beepcore.beep.core.event.SessionResetEvent;
 import org.beepcore.beep.core.event.SessionListener;
 import org.beepcore.beep.core.serialize.*;
+import org.beepcore.beep.util.BufferSegment;
 import org.beepcore.beep.util.StringUtil;
 
 
@@ -77,6 +89,25 @@ public abstract class SessionImpl implements Session {
 
     private static final String CHANNEL_ZERO = "0";
 
+    /** Must be a power of two */
+    private static final int CHANNEL_CACHE_SIZE = 64;
+
+    private static final byte[] CRLF_BYTES = StringUtil.stringToAscii("\r\n");
+
+    private static final byte[] SEQ_BYTES = StringUtil.stringToAscii("SEQ ");
+
+    /**
+     * The largest SEQ frame, as written by <code>encodeSEQ</code>.
+     */
+    protected static final int MAX_SEQ_SIZE = (3        // msg type
+                                                + 1      // space
+                                                + 10     // channel number
+                                                + 1      // space
+                                                + 10     // ackno
+                                                + 1      // space
+                                                + 10     // window
+                                                + 2);    // CRLF
+
     private static final String ERR_MALFORMED_XML_MSG = "Malformed XML";
     private static final String ERR_UNKNOWN_OPERATION_ELEMENT_MSG =
         "Unknown operation element";
@@ -89,10 +120,22 @@ public abstract class SessionImpl implements Session {
     
     ChannelZeroParser parser = new ChannelZeroParser();
 
+    /** parses channel zero MSGs as they are read, see isQuiescingMSG */
+    private ChannelZeroParser quiesceParser = new ChannelZeroParser();
+
     private int state;
     private long nextChannelNumber = 0;
     private ChannelImpl zero;
     private Hashtable channels = null;
+
+    /**
+     * Recently used channels indexed by the low bits of their number so
+     * frames can be matched to their channel without converting the
+     * number to a <code>String</code>. Updated while holding the lock on
+     * <code>channels</code>.
+     */
+    private final AtomicReferenceArray channelCache =
+        new AtomicReferenceArray(CHANNEL_CACHE_SIZE);
     private Hashtable properties = null;
     private List sessionListenerList =
         Collections.synchronizedList(new LinkedList());
@@ -109,6 +152,35 @@ public abstract class SessionImpl implements Session {
     private String serverName;
     private boolean sentServerName = false;
     private boolean requiresTLS = false;
+    private CallbackExecutor callbackExecutor = null;
+    private boolean asyncReplies = false;
+    private int concurrentRequests = 1;
+    private SpillPolicy spillPolicy = null;
+    private int maxReceiveWindowSize = 0;
+    private ReceiveBudget receiveBudget = null;
+
+    /** channels waiting for a SEQ to be written */
+    private final ConcurrentLinkedQueue windowUpdates =
+        new ConcurrentLinkedQueue();
+
+    /** held while the queued SEQs are taken and written */
+    private final ReentrantLock windowUpdateLock = new ReentrantLock();
+
+    /** Received payload held in memory by this session's messages */
+    private final AtomicLong bufferedBytes = new AtomicLong();
+
+    /** Completed when the greeting exchange succeeds or fails */
+    private final CompletableFuture<Session> greeting =
+        new CompletableFuture<Session>();
+
+    /** The channel zero MSG after which reading was stopped, or -1 */
+    private volatile int quiescingMsgno = -1;
+
+    /** StartReplyListeners waiting for a reply to a start request */
+    private final Set pendingStarts = Collections.synchronizedSet(new HashSet());
+
+    /** Decodes the headers passed to <code>createFrame(byte[], int)</code> */
+    private final FrameDecoder headerDecoder = new FrameDecoder();
 
     /**
      * Default Session Constructor.  A relationship between peers - a session -
@@ -151,44 +223,69 @@ public abstract class SessionImpl implements Session {
      */
     protected void init() throws BEEPException
     {
-        this.peerSupportedProfiles = null;
-
-        GreetingListener greetingListener = new GreetingListener();
-
-        zero = ChannelImpl.createChannelZero(this, greetingListener,
-                                             new ChannelZeroListener());
+        start();
 
-        channels.put(CHANNEL_ZERO, zero);
+        String message = "Greeting exchange failed";
+        Throwable cause = null;
 
-        // send greeting
-        sendGreeting();
-        changeState(Session.SESSION_STATE_GREETING_SENT);
+        // blocks until greeting is received or MAX_START_CHANNEL_WAIT is
+        // reached
+        try {
+            greeting.get(MAX_START_CHANNEL_WAIT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cause = e;
+        } catch (ExecutionException e) {
+            cause = e.getCause();
+        } catch (TimeoutException e) {
+            message += ", no greeting received within "
+                + MAX_START_CHANNEL_WAIT + " ms";
+            cause = e;
+        }
 
-        // start our listening thread we can now receive a greeting
-        this.enableIO();
+        // check the channel state and return the appropriate exception
+        if (state != SESSION_STATE_ACTIVE) {
+            throw new BEEPException(message, cause);
+        }
+    }
 
-        // blocks until greeting is received or MAX_GREETING_WAIT is reached
-        int waitCount = 0;
+    /**
+     * A non-blocking version of init(). Sends a greeting and returns a
+     * future that completes with this session once the peer's greeting
+     * has been received, or exceptionally if the exchange fails or does
+     * not complete within the greeting timeout. The future is completed
+     * on the session's callback executor, not on the thread reading the
+     * session.
+     *
+     * @throws BEEPException
+     */
+    protected CompletableFuture<Session> initAsync() throws BEEPException
+    {
+        greeting.orTimeout(MAX_START_CHANNEL_WAIT, TimeUnit.MILLISECONDS)
+            .whenComplete(new BiConsumer<Session, Throwable>() {
+                    public void accept(Session session, Throwable error) {
+                        if (error != null &&
+                            state != SESSION_STATE_ABORTED &&
+                            state != SESSION_STATE_CLOSED)
+                        {
+                            terminate("Greeting exchange failed");
+                        }
+                    }
+                });
 
-        while ((state < SESSION_STATE_ACTIVE)
-                && (waitCount < MAX_START_CHANNEL_WAIT)) {
-            try {
-                synchronized (greetingListener) {
+        start();
 
-                    //zero.wait(MAX_START_CHANNEL_INTERVAL);
-                    greetingListener.wait(MAX_START_CHANNEL_INTERVAL);
+        CallbackExecutor executor = getCallbackExecutor();
 
-                    waitCount += MAX_START_CHANNEL_INTERVAL;
-                }
-            } catch (InterruptedException e) {
-                waitCount += MAX_START_CHANNEL_INTERVAL;
-            }
+        if (executor == null) {
+            executor = CallbackExecutor.getDefault();
         }
 
-        // check the channel state and return the appropriate exception
-        if (state != SESSION_STATE_ACTIVE) {
-            throw new BEEPException("Greeting exchange failed");
-        }
+        return greeting.thenApplyAsync(new Function<Session, Session>() {
+                public Session apply(Session session) {
+                    return session;
+                }
+            }, executor);
     }
 
     /**
@@ -202,13 +299,23 @@ public abstract class SessionImpl implements Session {
     {
         log.debug("Session.tuningInit");
 
+        start();
+    }
+
+    /**
+     * Creates channel zero, sends our greeting and enables IO so the
+     * peer's greeting can be received.
+     */
+    private void start() throws BEEPException
+    {
         this.peerSupportedProfiles = null;
 
         GreetingListener greetingListener = new GreetingListener();
 
         zero = ChannelImpl.createChannelZero(this, greetingListener,
                                              new ChannelZeroListener());
-        channels.put(CHANNEL_ZERO, zero);
+
+        putChannel(zero);
 
         // send greeting
         sendGreeting();
@@ -304,7 +411,7 @@ public abstract class SessionImpl implements Session {
         this.disableIO();
         // @todo close the socket
 
-        channels.clear();
+        clearChannels();
         zero = null;
 
         this.changeState(SESSION_STATE_CLOSED);
@@ -449,11 +556,85 @@ public abstract class SessionImpl implements Session {
         return startChannelRequest(profiles, handler, false);
     }
 
+    public CompletableFuture<Channel> startChannelAsync(String profile)
+    {
+        return startChannelAsync(profile, null);
+    }
+
+    public CompletableFuture<Channel> startChannelAsync(String profile,
+                                                        RequestHandler handler)
+    {
+        LinkedList l = new LinkedList();
+
+        l.add(new StartChannelProfile(profile));
+
+        return startChannelAsync(l, handler);
+    }
+
+    public CompletableFuture<Channel> startChannelAsync(Collection profiles,
+                                                        RequestHandler handler)
+    {
+        CompletableFuture<ChannelImpl> reply;
+
+        try {
+            reply = sendStartRequest(profiles, handler, false);
+        } catch (BEEPException e) {
+            CompletableFuture<Channel> f = new CompletableFuture<Channel>();
+            f.completeExceptionally(e);
+            return f;
+        }
+
+        return reply.thenApply(new Function<ChannelImpl, Channel>() {
+                public Channel apply(ChannelImpl ch) {
+                    channelStarted(ch, false);
+                    return ch;
+                }
+            });
+    }
+
     Channel startChannelRequest(Collection profiles, RequestHandler handler,
                                 boolean tuning)
             throws BEEPException, BEEPError
     {
+        CompletableFuture<ChannelImpl> reply =
+            sendStartRequest(profiles, handler, tuning);
+        ChannelImpl ch;
+
+        try {
+            ch = reply.get();
+        } catch (InterruptedException e) {
+            log.error("Interrupted waiting for reply", e);
+            throw new BEEPException("Interrupted waiting for reply");
+        } catch (ExecutionException e) {
+            // check the channel state and return the appropriate exception
+            if (e.getCause() instanceof BEEPException) {
+                e.getCause().fillInStackTrace();
+                throw (BEEPException) e.getCause();
+            }
+            throw new BEEPException(e.getCause());
+        }
+
+        if (ch.getState() != ChannelImpl.STATE_ACTIVE) {
+            throw new BEEPException("Error channel state (" +
+                                    ch.getState() + ")");
+        }
 
+        channelStarted(ch, tuning);
+        return ch;
+    }
+
+    /**
+     * Sends a start request on channel zero without waiting for the
+     * reply. Any number of requests may be outstanding. The returned
+     * future completes with the new channel once the peer accepts it, or
+     * exceptionally with a <code>BEEPError</code> if it is refused or a
+     * <code>BEEPException</code> if the session is terminated first.
+     */
+    private CompletableFuture<ChannelImpl>
+        sendStartRequest(Collection profiles, RequestHandler handler,
+                         boolean tuning)
+            throws BEEPException
+    {
         String channelNumber = getNextFreeChannelNumber();
 
         StartElement start;
@@ -483,27 +664,24 @@ public abstract class SessionImpl implements Session {
 
         // Tell Channel Zero to start us up
         StartReplyListener reply = new StartReplyListener(ch);
-        synchronized (reply) {
-            this.zero.sendMSG(ds, reply);
-            try {
-                reply.wait();
-            } catch (InterruptedException e) {
-                log.error("Interrupted waiting for reply", e);
-                throw new BEEPException("Interrupted waiting for reply");
-            }
-        }
 
-        // check the channel state and return the appropriate exception
-        if (reply.isError()) {
-            reply.getError().fillInStackTrace();
-            throw reply.getError();
+        pendingStarts.add(reply);
+        try {
+            ChannelImpl channelZero = this.zero;
+            if (channelZero == null) {
+                throw new BEEPException("Session is not active");
+            }
+            channelZero.sendMSG(ds, reply);
+        } catch (BEEPException e) {
+            pendingStarts.remove(reply);
+            throw e;
         }
 
-        if (ch.getState() != ChannelImpl.STATE_ACTIVE) {
-            throw new BEEPException("Error channel state (" +
-                                    ch.getState() + ")");
-        }
+        return reply.started;
+    }
 
+    private void channelStarted(ChannelImpl ch, boolean tuning)
+    {
         if (tuning) {
             ch.setState(ChannelImpl.STATE_TUNING);
         }
@@ -513,7 +691,6 @@ public abstract class SessionImpl implements Session {
         }
     
         fireChannelStarted(ch);
-        return ch;
     }
 
     /**
@@ -536,10 +713,19 @@ public abstract class SessionImpl implements Session {
         }
 
         this.disableIO();
-        channels.clear();
+        clearChannels();
 
         zero = null;
 
+        greeting.completeExceptionally(new BEEPException(reason));
+
+        Object[] starts = pendingStarts.toArray();
+        pendingStarts.clear();
+        for (int i=0; i<starts.length; ++i) {
+            ((StartReplyListener) starts[i]).started.completeExceptionally(
+                new BEEPException(reason));
+        }
+
         fireSessionTerminated();
     }
     
@@ -569,6 +755,8 @@ public abstract class SessionImpl implements Session {
      * a new <code>Frame</code> object representing a BEEP MSG, RPY, ERR,
      * or NUL frames.
      *
+     * @param header the header without the trailing CRLF
+     *
      * @return a <code>Frame</code> for the specified values
      *
      * @throws BEEPException
@@ -576,9 +764,34 @@ public abstract class SessionImpl implements Session {
     protected Frame createFrame(byte[] header, int headerLength)
             throws BEEPException
     {
-        Frame f = Frame.parseHeader(this, header, headerLength);
-        int windowSize = ((ChannelImpl)f.getChannel()).getAvailableWindow();
-        int frameSize = f.getSize();
+        synchronized (headerDecoder) {
+            headerDecoder.reset();
+            headerDecoder.decode(header, 0, headerLength);
+            headerDecoder.decode(CRLF_BYTES, 0, CRLF_BYTES.length);
+
+            if (headerDecoder.isComplete() == false || headerDecoder.isSEQ()) {
+                throw new BEEPException("Malformed BEEP header");
+            }
+
+            return createFrame(headerDecoder);
+        }
+    }
+
+    /**
+     * Creates a <code>Frame</code> from a header decoded by a
+     * <code>FrameDecoder</code>. The decoder may be reset once this
+     * returns.
+     *
+     * @return a <code>Frame</code> for the decoded header
+     *
+     * @throws BEEPException if the channel does not exist or the frame is
+     *         larger than the channel's window
+     */
+    protected Frame createFrame(FrameDecoder header) throws BEEPException
+    {
+        ChannelImpl channel = getValidChannel(header.getChannel());
+        int windowSize = channel.getAvailableWindow();
+        int frameSize = header.getSize();
         // The window size and frame size have nothing in common.
         if (frameSize > windowSize) {
             throw new BEEPException("Payload size is greater than channel "
@@ -586,7 +799,9 @@ public abstract class SessionImpl implements Session {
 				    + " and channel window size is: " + windowSize);
         }
 
-        return f;
+        return new Frame(header.getMessageType(), channel,
+                         header.getMsgno(), header.isLast(),
+                         header.getSeqno(), frameSize, header.getAnsno());
     }
 
     /**
@@ -604,17 +819,42 @@ public abstract class SessionImpl implements Session {
     protected abstract void enableIO();
 
     /**
-     * Returns the channel's available window size.
+     * Records that reading stops after the channel zero MSG
+     * <code>msgno</code>, see <code>isQuiescingMSG</code>.
      */
-    protected int getChannelAvailableWindow(int channel) throws BEEPException
+    void setQuiescingMsgno(int msgno)
     {
-        ChannelImpl ch = (ChannelImpl) channels.get(Integer.toString(channel));
+        quiescingMsgno = msgno;
+    }
 
-        if (ch == null) {
-            throw new BEEPException("Session call on nonexistent channel.");
+    /**
+     * Re-enables IO if it was stopped for the channel zero MSG currently
+     * being processed. IO is left alone for other MSGs since reading was
+     * not stopped for them and may since have been stopped for a later
+     * MSG.
+     */
+    void resumeIO()
+    {
+        ChannelImpl channelZero = zero;
+
+        if (channelZero == null) {
+            return;
         }
 
-        return ch.getAvailableWindow();
+        MessageMSG m = (MessageMSG) channelZero.getAppData();
+
+        if (m != null && m.getMsgno() == quiescingMsgno) {
+            quiescingMsgno = -1;
+            this.enableIO();
+        }
+    }
+
+    /**
+     * Returns the channel's available window size.
+     */
+    protected int getChannelAvailableWindow(int channel) throws BEEPException
+    {
+        return getValidChannel(channel).getAvailableWindow();
     }
 
     /**
@@ -726,6 +966,194 @@ public abstract class SessionImpl implements Session {
         return tuningProperties;
     }
 
+    /**
+     * Sets the <code>Executor</code> used to deliver received
+     * <code>MSG</code>s to the <code>RequestHandler</code>s of this
+     * session's channels, unless their profile has its own. If none is
+     * set a thread pool shared by all sessions is used. Should be called
+     * before the session is initialized.
+     *
+     * @param executor
+     * @see ProfileRegistry#setCallbackExecutor
+     */
+    protected void setCallbackExecutor(Executor executor)
+    {
+        callbackExecutor = CallbackExecutor.wrap(executor);
+    }
+
+    CallbackExecutor getCallbackExecutor()
+    {
+        return callbackExecutor;
+    }
+
+    /**
+     * When enabled replies are passed to their <code>ReplyListener</code>s
+     * on the callback executor rather than the thread reading the
+     * session, so a slow listener only holds up the replies of its own
+     * channel. The listeners of a channel are still notified one at a
+     * time, in the order the replies arrive. Should be called before the
+     * session is initialized.
+     *
+     * @param asyncReplies
+     */
+    protected void setAsyncReplies(boolean asyncReplies)
+    {
+        this.asyncReplies = asyncReplies;
+    }
+
+    boolean isAsyncReplies()
+    {
+        return asyncReplies;
+    }
+
+    /**
+     * Sets how many received <code>MSG</code>s a channel may hand to its
+     * <code>RequestHandler</code> at once. With more than one the
+     * handler is called for later <code>MSG</code>s before the earlier
+     * ones are answered, and replies sent out of order are held until
+     * those of the earlier <code>MSG</code>s have been sent. Channel
+     * zero always handles one at a time. Should be called before the
+     * session is initialized.
+     *
+     * @param requests
+     */
+    protected void setConcurrentRequests(int requests)
+    {
+        if (requests < 1) {
+            throw new IllegalArgumentException("requests < 1");
+        }
+        this.concurrentRequests = requests;
+    }
+
+    int getConcurrentRequests()
+    {
+        return concurrentRequests;
+    }
+
+    /**
+     * Sets the policy for writing received payloads to disk instead of
+     * keeping them in memory. If none is set they are kept in memory.
+     * Should be called before the session is initialized.
+     *
+     * @param policy
+     */
+    protected void setSpillPolicy(SpillPolicy policy)
+    {
+        spillPolicy = policy;
+    }
+
+    SpillPolicy getSpillPolicy()
+    {
+        return spillPolicy;
+    }
+
+    /**
+     * Turns on auto-tuning of the receive windows of channels started
+     * after this is called. Each window is sized from the rate the
+     * application reads the channel and the round trip of its SEQs, up
+     * to <code>size</code> bytes. A <code>size</code> of 0 turns
+     * auto-tuning off.
+     *
+     * @param size
+     */
+    protected void setMaxReceiveWindowSize(int size)
+    {
+        if (size != 0 && size < ChannelImpl.DEFAULT_WINDOW_SIZE) {
+            throw new IllegalArgumentException("size is less than the " +
+                                               "default window size");
+        }
+        maxReceiveWindowSize = size;
+    }
+
+    int getMaxReceiveWindowSize()
+    {
+        return maxReceiveWindowSize;
+    }
+
+    /**
+     * Limits the receive windows of channels started after this is
+     * called to <code>budget</code>. See <code>ReceiveBudget</code>.
+     *
+     * @param budget
+     */
+    protected void setReceiveBudget(ReceiveBudget budget)
+    {
+        receiveBudget = budget;
+    }
+
+    ReceiveBudget getReceiveBudget()
+    {
+        return receiveBudget;
+    }
+
+    /**
+     * Adds <code>delta</code> to the received payload held in memory by
+     * this session's messages and returns the new total.
+     */
+    long addBufferedBytes(long delta)
+    {
+        return bufferedBytes.addAndGet(delta);
+    }
+
+    /**
+     * Queues a SEQ for <code>channel</code>, to be written by the next
+     * <code>flushWindowUpdates</code>.
+     */
+    void queueWindowUpdate(ChannelImpl channel)
+    {
+        windowUpdates.add(channel);
+    }
+
+    /**
+     * Writes the queued SEQs. If another thread is already writing SEQs
+     * this returns at once and that thread writes the ones queued
+     * meanwhile, so the SEQs of channels freed at about the same time go
+     * out in one write.
+     */
+    void flushWindowUpdates() throws BEEPException
+    {
+        while (windowUpdates.isEmpty() == false &&
+               windowUpdateLock.tryLock())
+        {
+            try {
+                writeWindowUpdates();
+            } finally {
+                windowUpdateLock.unlock();
+            }
+        }
+    }
+
+    private void writeWindowUpdates() throws BEEPException
+    {
+        ArrayList queued = new ArrayList();
+        ChannelImpl channel;
+
+        while ((channel = (ChannelImpl) windowUpdates.poll()) != null) {
+            queued.add(channel);
+        }
+
+        int count = queued.size();
+        Channel[] updated = new Channel[count];
+        long[] seqs = new long[count];
+        int[] avails = new int[count];
+
+        for (int i=0; i<count; ++i) {
+            channel = (ChannelImpl) queued.get(i);
+            updated[i] = channel;
+            channel.takeWindowUpdate(seqs, avails, i);
+        }
+
+        try {
+            updateMyReceiveBufferSizes(updated, seqs, avails, count);
+        } catch (BEEPException e) {
+            // the next flush advertises what these SEQs would have
+            for (int i=0; i<count; ++i) {
+                ((ChannelImpl) updated[i]).windowUpdateFailed();
+            }
+            throw e;
+        }
+    }
+
     public String getServerName()
     {
         return serverName;
@@ -757,6 +1185,58 @@ public abstract class SessionImpl implements Session {
                                                          int currentAvail)
         throws BEEPException;
 
+    /**
+     * Sends SEQ frames for the first <code>count</code> channels in
+     * <code>channels</code>. This implementation calls
+     * <code>updateMyReceiveBufferSize</code> for each, transports should
+     * override it to send them with a single write.
+     *
+     * @param channels
+     * @param currentSeqs
+     * @param currentAvails
+     * @param count
+     *
+     * @throws BEEPException
+     *
+     * @see #encodeSEQ
+     */
+    protected void updateMyReceiveBufferSizes(Channel[] channels,
+                                              long[] currentSeqs,
+                                              int[] currentAvails,
+                                              int count)
+        throws BEEPException
+    {
+        for (int i=0; i<count; ++i) {
+            updateMyReceiveBufferSize(channels[i], currentSeqs[i],
+                                      currentAvails[i]);
+        }
+    }
+
+    /**
+     * Writes a SEQ frame to <code>buf</code>, which must have at least
+     * <code>MAX_SEQ_SIZE</code> bytes following <code>off</code>.
+     *
+     * @return the offset following the frame
+     */
+    protected static int encodeSEQ(byte[] buf, int off, Channel channel,
+                                   long currentSeq, int currentAvail)
+    {
+        byte[] number = ((ChannelImpl) channel).getNumberAsBytes();
+
+        System.arraycopy(SEQ_BYTES, 0, buf, off, SEQ_BYTES.length);
+        off += SEQ_BYTES.length;
+        System.arraycopy(number, 0, buf, off, number.length);
+        off += number.length;
+        buf[off++] = ' ';
+        off = Frame.encodeNumber(buf, off, currentSeq);
+        buf[off++] = ' ';
+        off = Frame.encodeNumber(buf, off, currentAvail);
+        buf[off++] = '\r';
+        buf[off++] = '\n';
+
+        return off;
+    }
+
     // @todo update the java-doc to correctly identify the params
 
     /**
@@ -844,15 +1324,65 @@ public abstract class SessionImpl implements Session {
 
     ChannelImpl getValidChannel(int number) throws BEEPException
     {
-        ChannelImpl ch = (ChannelImpl) channels.get(Integer.toString(number));
+        int slot = number & (CHANNEL_CACHE_SIZE - 1);
+        ChannelImpl ch = (ChannelImpl) channelCache.get(slot);
 
-        if (ch == null) {
-            throw new BEEPException("Session call on nonexistent channel.");
+        if (ch != null && ch.getNumber() == number) {
+            return ch;
+        }
+
+        synchronized (channels) {
+            ch = (ChannelImpl) channels.get(Integer.toString(number));
+
+            if (ch == null) {
+                throw new BEEPException("Session call on nonexistent channel.");
+            }
+
+            channelCache.set(slot, ch);
         }
 
         return ch;
     }
 
+    private void putChannel(ChannelImpl ch)
+    {
+        synchronized (channels) {
+            channels.put(ch.getNumberAsString(), ch);
+            channelCache.set(ch.getNumber() & (CHANNEL_CACHE_SIZE - 1), ch);
+        }
+
+        ch.reserveWindow(receiveBudget);
+    }
+
+    private void removeChannel(ChannelImpl ch)
+    {
+        synchronized (channels) {
+            channels.remove(ch.getNumberAsString());
+            channelCache.compareAndSet(ch.getNumber() & (CHANNEL_CACHE_SIZE - 1),
+                                       ch, null);
+        }
+
+        ch.releaseWindow();
+    }
+
+    private void clearChannels()
+    {
+        Object[] cleared;
+
+        synchronized (channels) {
+            cleared = channels.values().toArray();
+            channels.clear();
+
+            for (int i=0; i<CHANNEL_CACHE_SIZE; ++i) {
+                channelCache.set(i, null);
+            }
+        }
+
+        for (int i=0; i<cleared.length; ++i) {
+            ((ChannelImpl) cleared[i]).releaseWindow();
+        }
+    }
+
     void sendProfile(String uri, String datum, ChannelImpl ch)
             throws BEEPException
     {
@@ -863,7 +1393,7 @@ public abstract class SessionImpl implements Session {
                                      parser.serializeProfile(p));
 
         // Store the Channel
-        channels.put(ch.getNumberAsString(), ch);
+        putChannel(ch);
         ((MessageMSG)zero.getAppData()).sendRPY(ds);
     }
 
@@ -962,7 +1492,7 @@ public abstract class SessionImpl implements Session {
             return;
         }
 
-        enableIO();
+        resumeIO();
                 
         ChannelImpl channel = (ChannelImpl) channels.get(channelNumber);
 
@@ -999,7 +1529,7 @@ public abstract class SessionImpl implements Session {
 
         // We're past the CCL approval
         channel.setState(ChannelImpl.STATE_CLOSED);
-        channels.remove(channel.getNumberAsString());
+        removeChannel(channel);
         fireChannelClosed(channel);
     }
 
@@ -1043,7 +1573,7 @@ public abstract class SessionImpl implements Session {
                 try {
                     changeState(SESSION_STATE_ACTIVE);
 
-                    enableIO();
+                    resumeIO();
                     throw e;
                 } catch (BEEPException x) {
                     terminate("Error changing Session state from closing " +
@@ -1176,7 +1706,7 @@ public abstract class SessionImpl implements Session {
 
                 scl.startChannel(ch, encoding, p.getData());
             } catch (StartChannelException e) {
-                this.enableIO();
+                resumeIO();
 
                 try {
                     ((MessageMSG)zero.getAppData()).sendERR(e);
@@ -1194,7 +1724,7 @@ public abstract class SessionImpl implements Session {
                         data = Base64.getDecoder().decode(p.getData());
                     } catch (Exception e) {
                         ch.abort();
-                        this.enableIO();
+                        resumeIO();
                         throw new BEEPError(BEEPError.CODE_REQUESTED_ACTION_ABORTED,
                                             "Error parsing piggybacked data.");
                     }
@@ -1220,9 +1750,11 @@ public abstract class SessionImpl implements Session {
                     return;
                 }
             } else {
+                // frames for the channel may be read as soon as the
+                // reply is sent
                 try {
-                    sendProfile(p.getUri(), ch.getStartData(), ch);
                     ch.setState(ChannelImpl.STATE_ACTIVE);
+                    sendProfile(p.getUri(), ch.getStartData(), ch);
                 } catch (BEEPException e) {
                     terminate("Error sending profile. " + e.getMessage());
 
@@ -1232,14 +1764,14 @@ public abstract class SessionImpl implements Session {
                 fireChannelStarted(ch);
 
                 if (p.getData() == null && ch.getState() != ChannelImpl.STATE_TUNING) {
-                    this.enableIO();
+                    resumeIO();
                 }
             }
 
             return;
         }
 
-        this.enableIO();
+        resumeIO();
 
         try {
             if (this.requiresTLS) {
@@ -1252,6 +1784,60 @@ public abstract class SessionImpl implements Session {
         }
     }
 
+    /**
+     * Called as the last frame of a MSG on channel zero is read, before
+     * the MSG is dispatched. Returns <code>true</code> if reading must
+     * stop until the MSG has been processed. A start that may select a
+     * tuning profile stops reading since the profile takes over the
+     * connection, as does a close which may end the session. Other starts
+     * are processed while frames for the rest of the session, including
+     * further starts, continue to be read.
+     *
+     * @param payload the MSG as received, including its MIME headers
+     */
+    boolean isQuiescingMSG(byte[] payload)
+    {
+        ChannelIndication indication;
+
+        synchronized (quiesceParser) {
+            try {
+                indication = quiesceParser.parseIndication(
+                    new InputDataStream(new BufferSegment(payload), true));
+            } catch (BEEPError e) {
+                // processMSG replies with the ERR and resumes reading
+                return true;
+            }
+        }
+
+        if (indication.getType() != ChannelIndication.START) {
+            return true;
+        }
+
+        return mayStartTuning((StartElement) indication);
+    }
+
+    /**
+     * Returns <code>true</code> if <code>start</code> names a profile
+     * registered with a <code>TuningProfile</code> listener.
+     */
+    private boolean mayStartTuning(StartElement start)
+    {
+        Iterator i = start.getProfiles().iterator();
+
+        while (i.hasNext()) {
+            ProfileElement p = (ProfileElement) i.next();
+
+            if (profileRegistry.getStartChannelListener(this.tuningProperties,
+                                                        p.getUri())
+                instanceof TuningProfile)
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     private void sendGreeting() throws BEEPException
     {
         log.debug("sendGreeting");
@@ -1289,21 +1875,22 @@ public abstract class SessionImpl implements Session {
         {
             ChannelIndication indication;
 
+            SessionImpl.this.zero.setAppData(message);
+
             try {
                 indication = parser.parseIndication(message.getDataStream());
             } catch (BEEPError e) {
-                enableIO();
+                resumeIO();
                 throw e;
             }
             
             if (indication.getType() == ChannelIndication.START) {
                 StartElement start = (StartElement)indication;
-                SessionImpl.this.zero.setAppData(message);
+
                 SessionImpl.this.processStartChannel(Integer.toString(start.getChannelNumber()),
                                                      start.getProfiles());
             } else {
                 CloseElement close = (CloseElement)indication;
-                SessionImpl.this.zero.setAppData(message);
                 SessionImpl.this.receiveCloseChannel(Integer.toString(close.getChannelNumber()),
                                                      close.getCode(),
                                                      close.getXmlLang(),
@@ -1327,11 +1914,10 @@ public abstract class SessionImpl implements Session {
                 changeState(Session.SESSION_STATE_ACTIVE);
             } catch (BEEPException e) {
                 terminate("Problem with RPY: " + e.getMessage());
+                return;
             }
 
-            synchronized (this) {
-                this.notifyAll();
-            }
+            greeting.complete(SessionImpl.this);
         }
 
         public void receiveERR(Message message)
@@ -1353,29 +1939,24 @@ public abstract class SessionImpl implements Session {
     private class StartReplyListener implements ReplyListener {
 
         ChannelImpl channel;
-        BEEPError error;
+        final CompletableFuture<ChannelImpl> started =
+            new CompletableFuture<ChannelImpl>();
 
         StartReplyListener(ChannelImpl channel)
         {
             this.channel = channel;
-            this.error = null;
-        }
-
-        boolean isError() {
-            return this.error != null;
-        }
-
-        BEEPError getError() {
-            return this.error;
         }
 
         public void receiveRPY(Message message)
         {
             ProfileElement profile;
+
+            pendingStarts.remove(this);
             try {
                 profile =
                     parser.parseStartConfirmation(message.getDataStream());
             } catch (BEEPException e) {
+                started.completeExceptionally(e);
                 terminate("Problem with RPY: " + e.getMessage());
                 return;
             }
@@ -1386,29 +1967,27 @@ public abstract class SessionImpl implements Session {
 
             // set the state
             channel.setState(ChannelImpl.STATE_ACTIVE);
-            channels.put(channel.getNumberAsString(), channel);
+            putChannel(channel);
 
             /**
              * @todo something with data
              */
 
-            // release the block waiting for the channel
-            // to start or close
-            synchronized (this) {
-                this.notify();
-            }
+            started.complete(channel);
         }
 
         public void receiveERR(Message message)
         {
             BEEPError err;
 
+            pendingStarts.remove(this);
             try {
                 ErrorElement error = parser.parseError(message.getDataStream());
 
                 err = new BEEPError(error.getCode(), error.getDiagnostic(),
                         error.getXmlLang());
             } catch (BEEPException e) {
+                started.completeExceptionally(e);
                 terminate(e.getMessage());
 
                 return;
@@ -1417,15 +1996,10 @@ public abstract class SessionImpl implements Session {
             log.error("Received an error in response to a start. code="
                       + err.getCode() + " diagnostic=" + err.getDiagnostic());
 
-            this.error = err;
-
             channel.setState(ChannelImpl.STATE_CLOSED);
-            channels.remove(channel.getNumberAsString());
+            removeChannel(channel);
 
-            // release the block waiting for the channel to start or close
-            synchronized (this) {
-                this.notify();
-            }
+            started.completeExceptionally(err);
         }
 
         public void receiveANS(Message message)
@@ -1470,7 +2044,7 @@ public abstract class SessionImpl implements Session {
             // @todo we should fire an event instead.
             // set the state
             channel.setState(ChannelImpl.STATE_CLOSING);
-            channels.remove(channel.getNumberAsString());
+            removeChannel(channel);
             channel.setState(ChannelImpl.STATE_CLOSED);
 
             // release the block waiting for the channel to
@@ -1502,7 +2076,7 @@ public abstract class SessionImpl implements Session {
 
             // set the state
             channel.setState(ChannelImpl.STATE_ACTIVE);
-            channels.remove(channel.getNumberAsString());
+            removeChannel(channel);
 
             // release the block waiting for the channel to start or close
             synchronized (this) {
@@ -0,0 +1,109 @@
+/*
+ * SpillPolicy.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Limits the received payload a session keeps in memory. Once a message
+ * has more than <code>messageThreshold</code> bytes waiting to be read,
+ * or the session's messages together have more than
+ * <code>sessionThreshold</code>, further segments are written to a
+ * temporary file for the message and read back from it by the
+ * <code>InputDataStream</code>.
+ * <p>
+ * The channel's window still bounds how much of a message is buffered,
+ * it is only freed as the application reads. Spilling bounds how much of
+ * that is on the heap, so windows can be raised for throughput.
+ *
+ * @see org.beepcore.beep.transport.tcp.TCPSessionConfig#setSpillPolicy
+ */
+public class SpillPolicy {
+
+    private final long messageThreshold;
+    private final long sessionThreshold;
+    private final File directory;
+
+    /**
+     * Creates a policy which spills to the default temporary-file
+     * directory.
+     *
+     * @param messageThreshold bytes a message may keep in memory
+     * @param sessionThreshold bytes a session's messages may keep in
+     * memory, <code>Long.MAX_VALUE</code> for no limit
+     */
+    public SpillPolicy(long messageThreshold, long sessionThreshold)
+    {
+        this(messageThreshold, sessionThreshold, null);
+    }
+
+    /**
+     * @param messageThreshold bytes a message may keep in memory
+     * @param sessionThreshold bytes a session's messages may keep in
+     * memory, <code>Long.MAX_VALUE</code> for no limit
+     * @param directory where the files are created, or <code>null</code>
+     * for the default temporary-file directory
+     */
+    public SpillPolicy(long messageThreshold, long sessionThreshold,
+                       File directory)
+    {
+        if (messageThreshold < 0 || sessionThreshold < 0) {
+            throw new IllegalArgumentException("threshold < 0");
+        }
+
+        this.messageThreshold = messageThreshold;
+        this.sessionThreshold = sessionThreshold;
+        this.directory = directory;
+    }
+
+    public long getMessageThreshold()
+    {
+        return messageThreshold;
+    }
+
+    public long getSessionThreshold()
+    {
+        return sessionThreshold;
+    }
+
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * Returns a new file for a message to spill to. The file is deleted
+     * as soon as it is open, or else when the JVM exits.
+     */
+    FileChannel createFile() throws IOException
+    {
+        File f = File.createTempFile("beep", ".spill", directory);
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+
+        if (f.delete() == false) {
+            // open files can not be deleted on some platforms
+            f.deleteOnExit();
+        }
+
+        return raf.getChannel();
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * StreamOutputDataStream.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.beepcore.beep.util.BufferSegment;
+
+
+/**
+ * <code>StreamOutputDataStream</code> represents a BEEP message's payload
+ * read from an <code>InputStream</code> or a
+ * <code>ReadableByteChannel</code>. Rather than the bytes being added
+ * up front, the channel pulls them from the source as it builds each
+ * frame, and only while the peer's window is open. At most
+ * <code>bufferSize</code> bytes of the message are held in memory,
+ * however large it is.
+ * <p>
+ * The source is never read by the thread sending the frames, which may
+ * be the session's reader thread sending in response to a SEQ. When the
+ * channel finds no bytes waiting a read is handed to an
+ * <code>Executor</code>, by default the channel's callback executor, and
+ * sending resumes once it completes. If the source fails the message is
+ * not sent: its <code>MessageStatus</code> is set to
+ * <code>MESSAGE_STATUS_NOT_SENT</code>.
+ * <p>
+ * The source may block until bytes are available. It is not closed by
+ * the stream, it must stay open until the message has been sent, that
+ * is until its <code>MessageStatus</code> is
+ * <code>MESSAGE_STATUS_SENT</code>.
+ */
+public class StreamOutputDataStream extends OutputDataStream {
+
+    /**
+     * The default number of bytes read ahead of the frame being sent,
+     * the default window size.
+     */
+    public static final int DEFAULT_BUFFER_SIZE =
+        ChannelImpl.DEFAULT_WINDOW_SIZE;
+
+    private Log log = LogFactory.getLog(this.getClass());
+
+    private final ReadableByteChannel source;
+    private final Executor reader;
+
+    // bytes [position, buffer.position()) of data are waiting to be sent,
+    // while reading the free end of the buffer belongs to the read task
+    private final byte[] data;
+    private final ByteBuffer buffer;
+    private int position = 0;
+    private boolean eof = false;
+    private boolean reading = false;
+    private IOException failure = null;
+
+    private boolean headersSent = false;
+    private BufferSegment headerSegment = null;
+    private int headerOffset = 0;
+
+    /**
+     * Creates a <code>StreamOutputDataStream</code> for the bytes of
+     * <code>in</code> with a content type of
+     * <code>DEFAULT_CONTENT_TYPE</code> and a transfer encoding of
+     * <code>DEFAULT_CONTENT_TRANSFER_ENCODING</code>.
+     *
+     * @param in The stream containing the message's payload.
+     */
+    public StreamOutputDataStream(InputStream in)
+    {
+        this(new MimeHeaders(), Channels.newChannel(in), DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a <code>StreamOutputDataStream</code> for the bytes of
+     * <code>in</code>.
+     *
+     * @param headers Mime headers to be prepended to the stream's bytes.
+     * @param in The stream containing the message's payload.
+     * @param bufferSize The number of bytes read ahead of the frame being
+     * sent. Frames are no larger than this.
+     */
+    public StreamOutputDataStream(MimeHeaders headers, InputStream in,
+                                  int bufferSize)
+    {
+        this(headers, Channels.newChannel(in), bufferSize);
+    }
+
+    /**
+     * Creates a <code>StreamOutputDataStream</code> for the bytes of
+     * <code>source</code> with a content type of
+     * <code>DEFAULT_CONTENT_TYPE</code> and a transfer encoding of
+     * <code>DEFAULT_CONTENT_TRANSFER_ENCODING</code>.
+     *
+     * @param source The blocking channel containing the message's payload.
+     */
+    public StreamOutputDataStream(ReadableByteChannel source)
+    {
+        this(new MimeHeaders(), source, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a <code>StreamOutputDataStream</code> for the bytes of
+     * <code>source</code>.
+     *
+     * @param headers Mime headers to be prepended to the stream's bytes.
+     * @param source The blocking channel containing the message's payload.
+     * @param bufferSize The number of bytes read ahead of the frame being
+     * sent. Frames are no larger than this.
+     */
+    public StreamOutputDataStream(MimeHeaders headers,
+                                  ReadableByteChannel source, int bufferSize)
+    {
+        this(headers, source, bufferSize, null);
+    }
+
+    /**
+     * Creates a <code>StreamOutputDataStream</code> for the bytes of
+     * <code>source</code>.
+     *
+     * @param headers Mime headers to be prepended to the stream's bytes.
+     * @param source The blocking channel containing the message's payload.
+     * @param bufferSize The number of bytes read ahead of the frame being
+     * sent. Frames are no larger than this.
+     * @param reader Runs the reads from <code>source</code>, if
+     * <code>null</code> the callback executor of the channel the message
+     * is sent on is used.
+     */
+    public StreamOutputDataStream(MimeHeaders headers,
+                                  ReadableByteChannel source, int bufferSize,
+                                  Executor reader)
+    {
+        super(headers);
+
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize < 1");
+        }
+
+        this.source = source;
+        this.reader = reader;
+        this.data = new byte[bufferSize];
+        this.buffer = ByteBuffer.wrap(this.data);
+    }
+
+    /**
+     * Not supported, the bytes are read from the source.
+     */
+    public void add(BufferSegment segment)
+    {
+        throw new UnsupportedOperationException("Bytes are read from the " +
+                                                "source of the stream");
+    }
+
+    /**
+     * Returns <code>true</code> once the end of the source has been read.
+     */
+    synchronized public boolean isComplete()
+    {
+        return this.eof;
+    }
+
+    /**
+     * Returns <code>true</code> if there are bytes waiting to be sent. If
+     * there are not, a read from the source into the free end of the
+     * buffer is started and the channel is asked to send once it
+     * completes.
+     */
+    synchronized boolean availableSegment()
+    {
+        if (addHeaders() || position < buffer.position()) {
+            return true;
+        }
+
+        if (eof || reading || failure != null ||
+            buffer.hasRemaining() == false)
+        {
+            // the buffer is reused once the frame has been sent
+            return false;
+        }
+
+        Executor executor = reader;
+
+        if (executor == null) {
+            executor = getChannel().getCallbackExecutor();
+        }
+
+        reading = true;
+
+        try {
+            executor.execute(new Runnable() {
+                    public void run() {
+                        read();
+                    }
+                });
+        } catch (RejectedExecutionException e) {
+            reading = false;
+            failure = new IOException("Unable to schedule read: "
+                                      + e.getMessage());
+        }
+
+        return false;
+    }
+
+    void checkFailed() throws BEEPException
+    {
+        IOException e;
+
+        synchronized (this) {
+            e = failure;
+        }
+
+        if (e != null) {
+            throw new BEEPException("Unable to read message: "
+                                    + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns a copy of the next bytes, so the buffer can be reused.
+     */
+    synchronized protected BufferSegment getNextSegment(int maxLength)
+    {
+        BufferSegment b = getNextSegment(maxLength,
+                                         new BufferSegment(new byte[0]));
+        byte[] copy = new byte[b.getLength()];
+
+        b.copyTo(0, copy, 0, copy.length);
+        segmentsSent();
+
+        return new BufferSegment(copy);
+    }
+
+    synchronized BufferSegment getNextSegment(int maxLength,
+                                              BufferSegment segment)
+    {
+        if (addHeaders()) {
+            int length = Math.min(maxLength,
+                                  headerSegment.getLength() - headerOffset);
+
+            segment = headerSegment.slice(headerOffset, length, segment);
+            headerOffset += length;
+            if (headerOffset == headerSegment.getLength()) {
+                headerSegment = null;
+            }
+
+            return segment;
+        }
+
+        int length = Math.min(maxLength, buffer.position() - position);
+
+        segment.set(data, position, length);
+        position += length;
+
+        return segment;
+    }
+
+    /**
+     * Moves the bytes which have not been sent to the start of the
+     * buffer, freeing the rest for the next read.
+     */
+    synchronized void segmentsSent()
+    {
+        if (reading) {
+            // the free end is being read into, compact after the read
+            return;
+        }
+
+        int remaining = buffer.position() - position;
+
+        System.arraycopy(data, position, data, 0, remaining);
+        buffer.position(remaining);
+        position = 0;
+    }
+
+    /**
+     * Reads from the source into the free end of the buffer, which is
+     * not touched by the sending thread while <code>reading</code> is
+     * set, and then has the channel send what was read.
+     */
+    private void read()
+    {
+        ByteBuffer target;
+
+        synchronized (this) {
+            target = buffer.duplicate();
+        }
+
+        int n;
+        IOException error = null;
+
+        try {
+            n = source.read(target);
+        } catch (IOException e) {
+            n = 0;
+            error = e;
+        }
+
+        synchronized (this) {
+            reading = false;
+
+            if (error != null) {
+                failure = error;
+            } else if (n == -1) {
+                eof = true;
+            } else {
+                buffer.position(buffer.position() + n);
+            }
+
+            if (position == buffer.position()) {
+                segmentsSent();
+            }
+        }
+
+        // called without holding this stream's lock, see OutputDataStream.add
+        try {
+            getChannel().sendQueuedMessages();
+        } catch (BEEPException e) {
+            log.error("Error sending after a read", e);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> while the mime headers are being sent.
+     */
+    private boolean addHeaders()
+    {
+        if (headersSent == false) {
+            if (mimeHeaders != null) {
+                headerSegment = mimeHeaders.getBufferSegment();
+            }
+            headersSent = true;
+        }
+
+        return headerSegment != null;
+    }
+}
@@ -20,6 +20,7 @@ package org.beepcore.beep.lib;
 
 import org.beepcore.beep.core.BEEPException;
 import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.Message;
 import org.beepcore.beep.core.MessageStatus;
 import org.beepcore.beep.core.RequestHandler;
 import org.beepcore.beep.core.OutputDataStream;
@@ -27,6 +28,7 @@ import org.beepcore.beep.core.ReplyListener;
 import org.beepcore.beep.core.Session;
 
 import java.util.Date;
+import java.util.concurrent.Flow;
 
 
 /**
@@ -102,6 +104,11 @@ public class SharedChannel implements Channel {
         return channel.sendMSG(stream, replyListener);
     }
 
+    public Flow.Publisher<Message> sendMSGAnswers(OutputDataStream stream)
+    {
+        return channel.sendMSGAnswers(stream);
+    }
+
     public RequestHandler getRequestHandler()
     {
         return channel.getRequestHandler();
@@ -133,6 +140,11 @@ public class SharedChannel implements Channel {
         return channel.getState();
     }
 
+    public long getWindowUpdatesSent()
+    {
+        return channel.getWindowUpdatesSent();
+    }
+
     /**
      * Returns the profile used to create this <code>SharedChannel</code>.
      *
@@ -79,7 +79,11 @@ public class EchoProfile
                 if (b == null) {
                     break;
                 }
-                data.add(b);
+
+                // the segment may be reused once the next one is read
+                byte[] copy = new byte[b.getLength()];
+                b.copyTo(0, copy, 0, b.getLength());
+                data.add(new BufferSegment(copy));
             } catch (InterruptedException e) {
                 message.getChannel().getSession().terminate(e.getMessage());
                 return;
@@ -0,0 +1,199 @@
+/*
+ * NIOEventLoop.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.transport.nio;
+
+
+import java.io.IOException;
+
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * A single thread multiplexing any number of non-blocking channels with
+ * a <code>Selector</code>.
+ * <p>
+ * All selection key manipulation is done on the event loop thread. Other
+ * threads hand work to the loop with <code>execute</code>, which queues the
+ * task and wakes up the selector. Tasks are run after each selection, so a
+ * key cancelled before a task was queued, including by a handler, has been
+ * deregistered by the time the task runs.
+ *
+ * @see NIOEventLoopGroup
+ */
+public class NIOEventLoop implements Runnable {
+
+    /**
+     * Receives readiness notifications for a channel registered with an
+     * <code>NIOEventLoop</code>. Both methods are called on the event loop
+     * thread and must not block.
+     */
+    public interface Handler {
+
+        /**
+         * Called once the channel has been registered with the loop.
+         */
+        public void registered(SelectionKey key);
+
+        /**
+         * Called when one or more of the interest operations of
+         * <code>key</code> are ready.
+         */
+        public void ready(SelectionKey key);
+    }
+
+    private static final String THREAD_NAME = "NIOEventLoop Thread #";
+    private static int THREAD_COUNT = 0;
+
+    private Log log = LogFactory.getLog(this.getClass());
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue tasks = new ConcurrentLinkedQueue();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public NIOEventLoop() throws IOException
+    {
+        String threadName;
+
+        synchronized (THREAD_NAME) {
+            threadName = THREAD_NAME + THREAD_COUNT++;
+        }
+
+        selector = Selector.open();
+
+        thread = new Thread(this, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs <code>task</code> on the event loop thread.
+     */
+    public void execute(Runnable task)
+    {
+        tasks.add(task);
+
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the calling thread is this loop's thread.
+     */
+    public boolean inEventLoop()
+    {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Registers <code>channel</code> with this loop. The registration is
+     * performed asynchronously on the loop thread after which
+     * <code>Handler.registered</code> is called. Tasks subsequently passed
+     * to <code>execute</code> are guaranteed to run after the registration.
+     *
+     * @param channel a non-blocking channel
+     * @param ops the initial interest set
+     * @param handler notified when the channel is ready
+     */
+    public void register(final SelectableChannel channel, final int ops,
+                         final Handler handler)
+    {
+        execute(new Runnable() {
+                public void run() {
+                    try {
+                        handler.registered(channel.register(selector, ops,
+                                                            handler));
+                    } catch (ClosedChannelException e) {
+                        log.debug("Channel closed before registration");
+                    }
+                }
+            });
+    }
+
+    /**
+     * Stops the loop and closes its selector. Channels still registered
+     * with the loop are not closed.
+     */
+    public void shutdown()
+    {
+        running = false;
+        selector.wakeup();
+    }
+
+    public void run()
+    {
+        while (running) {
+            try {
+                if (tasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+            } catch (IOException e) {
+                log.error("Error selecting", e);
+                break;
+            }
+
+            runTasks();
+
+            Iterator i = selector.selectedKeys().iterator();
+            while (i.hasNext()) {
+                SelectionKey key = (SelectionKey) i.next();
+                i.remove();
+
+                if (key.isValid() == false) {
+                    continue;
+                }
+
+                try {
+                    ((Handler) key.attachment()).ready(key);
+                } catch (Throwable e) {
+                    log.error("Uncaught exception in event loop", e);
+                    key.cancel();
+                }
+            }
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void runTasks()
+    {
+        Runnable task;
+
+        while ((task = (Runnable) tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                log.error("Uncaught exception in event loop task", e);
+            }
+        }
+    }
+}
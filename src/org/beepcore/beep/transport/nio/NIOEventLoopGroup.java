@@ -0,0 +1,88 @@
+/*
+ * NIOEventLoopGroup.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.transport.nio;
+
+
+import java.io.IOException;
+
+
+/**
+ * A fixed set of <code>NIOEventLoop</code>s that sessions are spread
+ * across in round-robin order.
+ *
+ * @see NIOEventLoop
+ */
+public class NIOEventLoopGroup {
+
+    private final NIOEventLoop[] loops;
+    private int next = 0;
+
+    /**
+     * Creates a group with one loop per available processor.
+     */
+    public NIOEventLoopGroup() throws IOException
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a group with the specified number of loops.
+     *
+     * @param size number of <code>Selector</code> threads
+     */
+    public NIOEventLoopGroup(int size) throws IOException
+    {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be at least 1");
+        }
+
+        loops = new NIOEventLoop[size];
+        for (int i=0; i<size; ++i) {
+            loops[i] = new NIOEventLoop();
+        }
+    }
+
+    /**
+     * Returns the loop the next session should be registered with.
+     */
+    public synchronized NIOEventLoop next()
+    {
+        NIOEventLoop loop = loops[next];
+
+        next = (next + 1) % loops.length;
+
+        return loop;
+    }
+
+    /**
+     * Returns the number of loops in this group.
+     */
+    public int size()
+    {
+        return loops.length;
+    }
+
+    /**
+     * Stops all of the loops in this group.
+     */
+    public void shutdown()
+    {
+        for (int i=0; i<loops.length; ++i) {
+            loops[i].shutdown();
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * NIOServer.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.transport.nio;
+
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.core.event.SessionEvent;
+import org.beepcore.beep.core.event.SessionListener;
+import org.beepcore.beep.transport.tcp.TCPSessionConfig;
+
+
+/**
+ * Accepts connections on a port and creates a listening
+ * <code>NIOSession</code> for each one.
+ * <p>
+ * The listening socket is registered for <code>OP_ACCEPT</code> with one
+ * of the loops of an <code>NIOEventLoopGroup</code>, so no thread is
+ * dedicated to accepting connections or to waiting for greetings. Each
+ * new session is assigned to the next loop of the group. Once a
+ * session's greeting exchange completes the server's
+ * <code>SessionListener</code>s are added to the session and their
+ * <code>greetingReceived</code> method is called, off the event loop.
+ * Sessions whose greeting exchange fails are terminated.
+ *
+ * @see NIOSessionCreator
+ */
+public class NIOServer implements NIOEventLoop.Handler {
+
+    private static final int DEFAULT_BACKLOG_SIZE = 100;
+    private static final int ACCEPT_ERROR_DELAY = 100;
+
+    private Log log = LogFactory.getLog(this.getClass());
+
+    private final InetAddress localInterface;
+    private final int port;
+    private final ProfileRegistry registry;
+    private final NIOEventLoopGroup group;
+    private final TCPSessionConfig config;
+    private int backlog = DEFAULT_BACKLOG_SIZE;
+    private volatile SessionListener[] listeners = new SessionListener[0];
+
+    private ServerSocketChannel server = null;
+    private NIOEventLoop loop = null;
+    private SelectionKey key = null;
+
+    /**
+     * @param port
+     * @param registry
+     *
+     * @throws BEEPException if the default event loop group could not be
+     *         created
+     */
+    public NIOServer(int port, ProfileRegistry registry)
+        throws BEEPException
+    {
+        this(null, port, registry,
+             NIOSessionCreator.getDefaultEventLoopGroup());
+    }
+
+    /**
+     * @param localInterface the address to bind to, <code>null</code> for
+     *        all interfaces
+     * @param port
+     * @param registry
+     * @param group the loops accepting connections and servicing the
+     *        sessions
+     */
+    public NIOServer(InetAddress localInterface, int port,
+                     ProfileRegistry registry, NIOEventLoopGroup group)
+    {
+        this(localInterface, port, registry, group, new TCPSessionConfig());
+    }
+
+    /**
+     * @param localInterface the address to bind to, <code>null</code> for
+     *        all interfaces
+     * @param port
+     * @param registry
+     * @param group the loops accepting connections and servicing the
+     *        sessions
+     * @param config only its <code>TCP_NODELAY</code> option applies to
+     *        NIO sessions
+     */
+    public NIOServer(InetAddress localInterface, int port,
+                     ProfileRegistry registry, NIOEventLoopGroup group,
+                     TCPSessionConfig config)
+    {
+        this.localInterface = localInterface;
+        this.port = port;
+        this.registry = (ProfileRegistry) registry.clone();
+        this.group = group;
+        this.config = config;
+    }
+
+    /**
+     * Returns the maximum number of pending connections.
+     */
+    public int getBacklog()
+    {
+        return backlog;
+    }
+
+    /**
+     * Sets the maximum number of connections the operating system queues
+     * before they are accepted. Must be called before <code>start</code>.
+     * The default is 100.
+     */
+    public void setBacklog(int backlog)
+    {
+        this.backlog = backlog;
+    }
+
+    /**
+     * Adds a listener which is added to each session accepted by this
+     * server once its greeting exchange completes.
+     */
+    public synchronized void addSessionListener(SessionListener l)
+    {
+        SessionListener[] tmp = new SessionListener[listeners.length + 1];
+
+        System.arraycopy(listeners, 0, tmp, 0, listeners.length);
+        tmp[listeners.length] = l;
+        listeners = tmp;
+    }
+
+    /**
+     * Removes a listener added with <code>addSessionListener</code>.
+     * Sessions it has already been added to are not affected.
+     */
+    public synchronized void removeSessionListener(SessionListener l)
+    {
+        List tmp = new ArrayList();
+
+        for (int i=0; i<listeners.length; ++i) {
+            if (listeners[i] != l) {
+                tmp.add(listeners[i]);
+            }
+        }
+
+        listeners =
+            (SessionListener[]) tmp.toArray(new SessionListener[tmp.size()]);
+    }
+
+    /**
+     * Returns the port the server is listening on, which is useful when
+     * the server was created with port 0.
+     */
+    public synchronized int getLocalPort()
+    {
+        if (server == null) {
+            return port;
+        }
+
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Binds the port and starts accepting connections.
+     *
+     * @throws BEEPException if the port could not be bound
+     */
+    public synchronized void start() throws BEEPException
+    {
+        if (server != null) {
+            throw new BEEPException("Server already started");
+        }
+
+        try {
+            server = ServerSocketChannel.open();
+            server.configureBlocking(false);
+            server.socket().bind(new InetSocketAddress(localInterface, port),
+                                 backlog);
+        } catch (IOException e) {
+            try {
+                server.close();
+            } catch (IOException x) {
+            }
+            server = null;
+            throw new BEEPException(e);
+        }
+
+        loop = group.next();
+        loop.register(server, SelectionKey.OP_ACCEPT, this);
+    }
+
+    /**
+     * Stops accepting connections. Sessions already accepted are not
+     * affected.
+     */
+    public synchronized void stop()
+    {
+        if (server == null) {
+            return;
+        }
+
+        try {
+            server.close();
+        } catch (IOException e) {
+        }
+
+        server = null;
+    }
+
+    // Implementation of method declared in NIOEventLoop.Handler
+    public void registered(SelectionKey key)
+    {
+        this.key = key;
+    }
+
+    // Implementation of method declared in NIOEventLoop.Handler
+    public void ready(SelectionKey key)
+    {
+        ServerSocketChannel server = (ServerSocketChannel) key.channel();
+
+        while (true) {
+            SocketChannel channel;
+
+            try {
+                channel = server.accept();
+            } catch (IOException e) {
+                if (server.isOpen() == false) {
+                    return;
+                }
+
+                // e.g. out of file descriptors, don't spin on the loop
+                log.error("Error accepting connection", e);
+                pauseAccepting();
+                return;
+            }
+
+            if (channel == null) {
+                return;
+            }
+
+            accepted(channel);
+        }
+    }
+
+    /**
+     * Stops selecting for new connections for a short while.
+     */
+    private void pauseAccepting()
+    {
+        key.interestOps(0);
+
+        CompletableFuture.delayedExecutor(ACCEPT_ERROR_DELAY,
+                                          TimeUnit.MILLISECONDS)
+            .execute(new Runnable() {
+                    public void run() {
+                        loop.execute(new Runnable() {
+                                public void run() {
+                                    if (key.isValid()) {
+                                        key.interestOps(
+                                            SelectionKey.OP_ACCEPT);
+                                    }
+                                }
+                            });
+                    }
+                });
+    }
+
+    private void accepted(final SocketChannel channel)
+    {
+        CompletableFuture<Session> session =
+            NIOSession.createListenerAsync(channel, group.next(), registry,
+                                           config);
+
+        session.whenComplete(new BiConsumer<Session, Throwable>() {
+                public void accept(Session s, Throwable error) {
+                    if (error != null) {
+                        log.debug("Greeting exchange with "
+                                  + channel.socket().getInetAddress()
+                                  + " failed", error);
+                        try {
+                            channel.close();
+                        } catch (IOException e) {
+                        }
+                        return;
+                    }
+
+                    SessionListener[] l = listeners;
+                    SessionEvent e = new SessionEvent(s);
+
+                    for (int i=0; i<l.length; ++i) {
+                        s.addSessionListener(l[i]);
+                        l[i].greetingReceived(e);
+                    }
+                }
+            });
+    }
+}
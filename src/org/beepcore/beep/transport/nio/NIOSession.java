@@ -0,0 +1,864 @@
+/*
+ * NIOSession.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.transport.nio;
+
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.Frame;
+import org.beepcore.beep.core.FrameDecoder;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.core.SessionImpl;
+import org.beepcore.beep.core.SessionCredential;
+import org.beepcore.beep.core.SessionTuningProperties;
+import org.beepcore.beep.transport.tcp.TCPSessionConfig;
+import org.beepcore.beep.util.BufferSegment;
+import org.beepcore.beep.util.StringUtil;
+
+
+/**
+ * Provides the TCP transport mapping for BEEP according to RFC 3081 using
+ * non-blocking <code>SocketChannel</code>s.
+ * <p>
+ * Unlike <code>TCPSession</code>, which dedicates a reader thread to each
+ * session, an <code>NIOSession</code> is driven by an
+ * <code>NIOEventLoop</code> shared with many other sessions. Frames are
+ * parsed on the event loop thread but <code>RequestHandler</code>s,
+ * <code>ReplyListener</code>s and <code>StartChannelListener</code>s are
+ * called on the session's callback executor, as with a
+ * <code>TCPSession</code> with asynchronous replies enabled, so a
+ * blocking profile does not hold up the other sessions on the loop.
+ *
+ * @see NIOSessionCreator
+ */
+public class NIOSession extends SessionImpl implements NIOEventLoop.Handler {
+
+    // Constants
+    private static final char[] MESSAGE_TYPE_SEQ = new char[] {'S', 'E', 'Q'};
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int FRAME_BUFFER_SIZE = 2 * 1024;
+    private static final String CRLF = "\r\n";
+
+    private static final int CHANNEL_START_ODD = 1;
+    private static final int CHANNEL_START_EVEN = 2;
+
+    private static final int STATE_HEADER = 0;
+    private static final int STATE_PAYLOAD = 1;
+    private static final int STATE_TRAILER = 2;
+
+
+    // Instance Data
+    private Log log = LogFactory.getLog(this.getClass());
+
+    private final SocketChannel channel;
+    private final NIOEventLoop loop;
+    private SelectionKey key;
+
+    // Accessed only from the event loop thread
+    private ByteBuffer readBuffer;
+    private final FrameDecoder header = new FrameDecoder();
+    private int readState = STATE_HEADER;
+    private Frame frame;
+    private byte[] payload;
+    private int count;
+    private volatile boolean paused = true;
+
+    // Accessed while holding writerLock
+    private final ByteBuffer[] frameBuffers = new ByteBuffer[1];
+
+    // Shared with sessions created by reset() on the same channel
+    private final Object writerLock;
+    private final LinkedList writeQueue;
+
+    /* Completed once the greeting exchange of a session not created by
+     * a tuning reset completes.
+     */
+    private CompletableFuture<Session> started = null;
+
+    private NIOSession(SocketChannel channel, NIOEventLoop loop,
+                       ByteBuffer readBuffer, Object writerLock,
+                       LinkedList writeQueue, ProfileRegistry registry,
+                       int firstChannel, SessionCredential localCred,
+                       SessionCredential peerCred,
+                       SessionTuningProperties tuning, String servername)
+        throws BEEPException
+    {
+        super(registry, firstChannel, localCred, peerCred, tuning, servername);
+
+        this.channel = channel;
+        this.loop = loop;
+        this.readBuffer = readBuffer;
+        this.writerLock = writerLock;
+        this.writeQueue = writeQueue;
+
+        // keep the callbacks of profiles off the event loop
+        setAsyncReplies(true);
+
+        loop.register(channel, 0, this);
+
+        if ((peerCred != null) || (localCred != null) || (tuning != null)) {
+            tuningInit();
+        } else {
+            started = initAsync();
+        }
+    }
+
+    private NIOSession(SocketChannel channel, NIOEventLoop loop,
+                       ProfileRegistry registry, int firstChannel,
+                       String servername)
+        throws BEEPException
+    {
+        this(channel, loop, emptyReadBuffer(), new Object(), new LinkedList(),
+             registry, firstChannel, null, null, null, servername);
+    }
+
+    /**
+     * Creates an <code>NIOSession</code> for a <code>SocketChannel</code>
+     * that was created by initiating a connection. Blocks the calling
+     * thread until the greeting exchange completes and so must not be
+     * called on an event loop thread, see <code>createInitiatorAsync</code>.
+     *
+     * @param channel a connected <code>SocketChannel</code>
+     * @param loop the event loop that will service this session
+     * @param registry
+     * @param servername
+     *
+     * @throws BEEPException
+     */
+    public static NIOSession createInitiator(SocketChannel channel,
+                                             NIOEventLoop loop,
+                                             ProfileRegistry registry,
+                                             String servername)
+        throws BEEPException
+    {
+        return createInitiator(channel, loop, registry, servername,
+                               new TCPSessionConfig());
+    }
+
+    /**
+     * Creates an <code>NIOSession</code> for a <code>SocketChannel</code>
+     * that was created by initiating a connection. Blocks the calling
+     * thread until the greeting exchange completes and so must not be
+     * called on an event loop thread, see <code>createInitiatorAsync</code>.
+     *
+     * @param channel a connected <code>SocketChannel</code>
+     * @param loop the event loop that will service this session
+     * @param registry
+     * @param servername
+     * @param config only its <code>TCP_NODELAY</code> option applies to
+     *        NIO sessions
+     *
+     * @throws BEEPException
+     */
+    public static NIOSession createInitiator(SocketChannel channel,
+                                             NIOEventLoop loop,
+                                             ProfileRegistry registry,
+                                             String servername,
+                                             TCPSessionConfig config)
+        throws BEEPException
+    {
+        configure(channel, config);
+
+        NIOSession session =
+            new NIOSession(channel, loop, (ProfileRegistry) registry.clone(),
+                           CHANNEL_START_ODD, servername);
+
+        session.waitForGreeting();
+
+        return session;
+    }
+
+    /**
+     * Creates an <code>NIOSession</code> for a <code>SocketChannel</code>
+     * that was created by initiating a connection without blocking the
+     * calling thread.
+     *
+     * @param channel a connected <code>SocketChannel</code>
+     * @param loop the event loop that will service this session
+     * @param registry
+     * @param servername
+     *
+     * @return a future completed with the session once the greeting
+     *         exchange completes, or exceptionally if it fails
+     */
+    public static CompletableFuture<Session>
+        createInitiatorAsync(SocketChannel channel, NIOEventLoop loop,
+                             ProfileRegistry registry, String servername)
+    {
+        return createInitiatorAsync(channel, loop, registry, servername,
+                                    new TCPSessionConfig());
+    }
+
+    /**
+     * Creates an <code>NIOSession</code> for a <code>SocketChannel</code>
+     * that was created by initiating a connection without blocking the
+     * calling thread.
+     *
+     * @param channel a connected <code>SocketChannel</code>
+     * @param loop the event loop that will service this session
+     * @param registry
+     * @param servername
+     * @param config only its <code>TCP_NODELAY</code> option applies to
+     *        NIO sessions
+     *
+     * @return a future completed with the session once the greeting
+     *         exchange completes, or exceptionally if it fails
+     */
+    public static CompletableFuture<Session>
+        createInitiatorAsync(SocketChannel channel, NIOEventLoop loop,
+                             ProfileRegistry registry, String servername,
+                             TCPSessionConfig config)
+    {
+        try {
+            configure(channel, config);
+
+            return new NIOSession(channel, loop,
+                                  (ProfileRegistry) registry.clone(),
+                                  CHANNEL_START_ODD, servername).started;
+        } catch (BEEPException e) {
+            CompletableFuture<Session> f = new CompletableFuture<Session>();
+            f.completeExceptionally(e);
+            return f;
+        }
+    }
+
+    /**
+     * Creates an <code>NIOSession</code> for a <code>SocketChannel</code>
+     * that was created by accepting a connection. Blocks the calling
+     * thread until the greeting exchange completes and so must not be
+     * called on an event loop thread, see <code>createListenerAsync</code>.
+     *
+     * @param channel a connected <code>SocketChannel</code>
+     * @param loop the event loop that will service this session
+     * @param registry
+     *
+     * @throws BEEPException
+     */
+    public static NIOSession createListener(SocketChannel channel,
+                                            NIOEventLoop loop,
+                                            ProfileRegistry registry)
+        throws BEEPException
+    {
+        return createListener(channel, loop, registry,
+                              new TCPSessionConfig());
+    }
+
+    /**
+     * Creates an <code>NIOSession</code> for a <code>SocketChannel</code>
+     * that was created by accepting a connection. Blocks the calling
+     * thread until the greeting exchange completes and so must not be
+     * called on an event loop thread, see <code>createListenerAsync</code>.
+     *
+     * @param channel a connected <code>SocketChannel</code>
+     * @param loop the event loop that will service this session
+     * @param registry
+     * @param config only its <code>TCP_NODELAY</code> option applies to
+     *        NIO sessions
+     *
+     * @throws BEEPException
+     */
+    public static NIOSession createListener(SocketChannel channel,
+                                            NIOEventLoop loop,
+                                            ProfileRegistry registry,
+                                            TCPSessionConfig config)
+        throws BEEPException
+    {
+        configure(channel, config);
+
+        NIOSession session =
+            new NIOSession(channel, loop, (ProfileRegistry) registry.clone(),
+                           CHANNEL_START_EVEN, null);
+
+        session.waitForGreeting();
+
+        return session;
+    }
+
+    /**
+     * Creates an <code>NIOSession</code> for a <code>SocketChannel</code>
+     * that was created by accepting a connection without blocking the
+     * calling thread.
+     *
+     * @param channel a connected <code>SocketChannel</code>
+     * @param loop the event loop that will service this session
+     * @param registry
+     *
+     * @return a future completed with the session once the greeting
+     *         exchange completes, or exceptionally if it fails
+     */
+    public static CompletableFuture<Session>
+        createListenerAsync(SocketChannel channel, NIOEventLoop loop,
+                            ProfileRegistry registry)
+    {
+        return createListenerAsync(channel, loop, registry,
+                                   new TCPSessionConfig());
+    }
+
+    /**
+     * Creates an <code>NIOSession</code> for a <code>SocketChannel</code>
+     * that was created by accepting a connection without blocking the
+     * calling thread.
+     *
+     * @param channel a connected <code>SocketChannel</code>
+     * @param loop the event loop that will service this session
+     * @param registry
+     * @param config only its <code>TCP_NODELAY</code> option applies to
+     *        NIO sessions
+     *
+     * @return a future completed with the session once the greeting
+     *         exchange completes, or exceptionally if it fails
+     */
+    public static CompletableFuture<Session>
+        createListenerAsync(SocketChannel channel, NIOEventLoop loop,
+                            ProfileRegistry registry,
+                            TCPSessionConfig config)
+    {
+        try {
+            configure(channel, config);
+
+            return new NIOSession(channel, loop,
+                                  (ProfileRegistry) registry.clone(),
+                                  CHANNEL_START_EVEN, null).started;
+        } catch (BEEPException e) {
+            CompletableFuture<Session> f = new CompletableFuture<Session>();
+            f.completeExceptionally(e);
+            return f;
+        }
+    }
+
+    // Overrides method in Session
+    public void close() throws BEEPException
+    {
+        super.close();
+
+        closeChannel();
+    }
+
+    public SocketChannel getSocketChannel()
+    {
+        return this.channel;
+    }
+
+    // Overrides method in Session
+    public void terminate(String reason)
+    {
+        super.terminate(reason);
+
+        closeChannel();
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    public String toString() {
+        return super.toString() + " (" +
+            channel.socket().getLocalSocketAddress() + "-" +
+            channel.socket().getRemoteSocketAddress() + ")";
+    }
+
+    // Implementation of method declared in Session
+    protected void disableIO()
+    {
+        paused = true;
+    }
+
+    // Implementation of method declared in Session
+    protected void enableIO()
+    {
+        loop.execute(new Runnable() {
+                public void run() {
+                    // the channel may have been handed to a new session
+                    if (key == null || key.isValid() == false ||
+                        key.attachment() != NIOSession.this)
+                    {
+                        return;
+                    }
+
+                    paused = false;
+
+                    try {
+                        processReadBuffer();
+                    } catch (BEEPException e) {
+                        terminate(e.getMessage());
+                        return;
+                    }
+
+                    updateInterestOps();
+                }
+            });
+    }
+
+    // Implementation of method declared in Session
+    protected int getMaxFrameSize()
+    {
+        return 1400;
+    }
+
+    /**
+     * Writes the header, payload, and trailer to the channel. If the
+     * socket's send buffer is full the remainder of the frame is queued
+     * and written by the event loop once the channel is writable.
+     *
+     * @param f the Frame to send.
+     *
+     * @throws BEEPException
+     */
+    protected void sendFrame(Frame f) throws BEEPException
+    {
+        BufferSegment[] bs = f.getBytes();
+        int n = 0;
+
+        for (int i=0; i<bs.length; ++i) {
+            n += bs[i].getLength();
+        }
+
+        // copy the frame into a reused buffer rather than wrapping each
+        // segment, frames are at most getMaxFrameSize() plus the header
+        synchronized (writerLock) {
+            ByteBuffer b = frameBuffers[0];
+
+            if (b == null || b.capacity() < n) {
+                b = ByteBuffer.allocateDirect(Math.max(n, FRAME_BUFFER_SIZE));
+                frameBuffers[0] = b;
+            }
+
+            b.clear();
+            for (int i=0; i<bs.length; ++i) {
+                bs[i].copyTo(0, b, bs[i].getLength());
+            }
+            b.flip();
+
+            write(frameBuffers);
+        }
+    }
+
+    // Implementation of method declared in Session
+    protected Session reset(SessionCredential localCred,
+                            SessionCredential peerCred,
+                            SessionTuningProperties tuning,
+                            ProfileRegistry reg, Object argument)
+            throws BEEPException
+    {
+        if (log.isTraceEnabled()) {
+            log.trace("Reset as "
+                      + (isInitiator() ? "INITIATOR" : "LISTENER"));
+        }
+
+        if (argument != null && argument != channel) {
+            throw new BEEPException("NIOSession does not support replacing "
+                                    + "the underlying connection on reset");
+        }
+
+        if (reg == null) {
+            reg = this.getProfileRegistry();
+        }
+
+        paused = true;
+
+        /* The new session takes over the read buffer, which may already
+         * hold bytes that arrived after the frame that completed the
+         * tuning, as well as any frames still waiting to be written.
+         */
+        Session newSession =
+            new NIOSession(channel, loop, readBuffer, writerLock, writeQueue,
+                           reg, (isInitiator() ? CHANNEL_START_ODD :
+                                 CHANNEL_START_EVEN),
+                           localCred, peerCred, tuning, null);
+
+        this.fireSessionReset(newSession);
+
+        return newSession;
+    }
+
+    /**
+     * Update the channel window size with the remote peer by sending
+     * SEQ frames as per RFC 3081.
+     *
+     * @return true if the Receive Buffer Size was updated
+     *
+     * @throws BEEPException
+     */
+    protected boolean updateMyReceiveBufferSize(Channel channel,
+                                                long currentSeq,
+                                                int currentAvail)
+            throws BEEPException
+    {
+        StringBuffer sb = new StringBuffer(Frame.MAX_HEADER_SIZE);
+
+        sb.append(MESSAGE_TYPE_SEQ);
+        sb.append(' ');
+        sb.append(this.getChannelNumberAsString(channel));
+        sb.append(' ');
+        sb.append(Long.toString(currentSeq));
+        sb.append(' ');
+        sb.append(Integer.toString(currentAvail));
+        sb.append(CRLF);
+
+        if (log.isDebugEnabled()) {
+            log.debug("Wrote: " + sb.toString());
+        }
+
+        write(new ByteBuffer[] {
+            ByteBuffer.wrap(StringUtil.stringBufferToAscii(sb))
+        });
+
+        return true;
+    }
+
+    /**
+     * Sends the SEQ frames of several channels with a single write.
+     *
+     * @throws BEEPException
+     */
+    protected void updateMyReceiveBufferSizes(Channel[] channels,
+                                              long[] currentSeqs,
+                                              int[] currentAvails,
+                                              int count)
+            throws BEEPException
+    {
+        byte[] buf = new byte[count * MAX_SEQ_SIZE];
+        int length = 0;
+
+        for (int i=0; i<count; ++i) {
+            length = encodeSEQ(buf, length, channels[i], currentSeqs[i],
+                               currentAvails[i]);
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Wrote: " + StringUtil.asciiToString(buf, 0, length));
+        }
+
+        write(new ByteBuffer[] {ByteBuffer.wrap(buf, 0, length)});
+    }
+
+    // Implementation of method declared in NIOEventLoop.Handler
+    public void registered(SelectionKey key)
+    {
+        this.key = key;
+
+        updateInterestOps();
+    }
+
+    // Implementation of method declared in NIOEventLoop.Handler
+    public void ready(SelectionKey key)
+    {
+        try {
+            if (key.isWritable()) {
+                flushWriteQueue();
+            }
+
+            if (key.isValid() && key.isReadable()) {
+                read();
+            }
+        } catch (IOException e) {
+            if (channel.isOpen()) {
+                log.error(e);
+                terminate(e.getMessage());
+            }
+            return;
+        } catch (BEEPException e) {
+            terminate(e.getMessage());
+            return;
+        }
+
+        updateInterestOps();
+    }
+
+    private void read() throws IOException, BEEPException
+    {
+        if (paused) {
+            return;
+        }
+
+        readBuffer.compact();
+        int n;
+        try {
+            n = channel.read(readBuffer);
+        } finally {
+            readBuffer.flip();
+        }
+
+        if (n == -1) {
+            terminate("Session aborted by remote peer.");
+            return;
+        }
+
+        processReadBuffer();
+    }
+
+    /**
+     * Posts each complete frame in the read buffer until either the
+     * buffer is exhausted or IO is disabled.
+     */
+    private void processReadBuffer() throws BEEPException
+    {
+        while (paused == false && readBuffer.hasRemaining()) {
+            switch (readState) {
+            case STATE_HEADER:
+                if (processHeader() == false) {
+                    return;
+                }
+                break;
+            case STATE_PAYLOAD:
+                int n = Math.min(readBuffer.remaining(),
+                                 payload.length - count);
+                readBuffer.get(payload, count, n);
+                count += n;
+
+                if (count == payload.length) {
+                    readState = STATE_TRAILER;
+                    count = 0;
+                }
+                break;
+            case STATE_TRAILER:
+                byte b = readBuffer.get();
+
+                if (b != (byte) Frame.TRAILER.charAt(count)) {
+                    throw new BEEPException("Malformed BEEP frame, "
+                                            + "invalid trailer");
+                }
+
+                if (++count == Frame.TRAILER.length()) {
+                    Frame f = frame;
+
+                    f.addPayload(new BufferSegment(payload));
+
+                    frame = null;
+                    payload = null;
+                    readState = STATE_HEADER;
+
+                    if (log.isTraceEnabled()) {
+                        log.trace("Posting frame " + f);
+                    }
+
+                    if (postFrame(f) == false) {
+                        paused = true;
+                    }
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Decodes header bytes from the read buffer and handles the header
+     * once it is complete.
+     *
+     * @return false if more data is required
+     */
+    private boolean processHeader() throws BEEPException
+    {
+        header.decode(readBuffer);
+
+        if (header.isComplete() == false) {
+            return false;
+        }
+
+        if (log.isTraceEnabled()) {
+            log.trace(header);
+        }
+
+        if (header.isSEQ()) {
+            processSEQFrame();
+            header.reset();
+            return true;
+        }
+
+        frame = createFrame(header);
+        header.reset();
+        payload = new byte[frame.getSize()];
+        count = 0;
+
+        if (payload.length == 0) {
+            readState = STATE_TRAILER;
+        } else {
+            readState = STATE_PAYLOAD;
+        }
+
+        return true;
+    }
+
+    private void processSEQFrame() throws BEEPException
+    {
+        int channelNum = header.getChannel();
+        long ackNum = header.getAckno();
+        int window = header.getWindow();
+
+        if (log.isDebugEnabled()) {
+            log.debug("Read: SEQ " + channelNum + " " + ackNum + " " + window);
+        }
+
+        // update the channel with the new receive window size
+        this.updatePeerReceiveBufferSize(channelNum, ackNum, window);
+    }
+
+    private void write(ByteBuffer[] buffers) throws BEEPException
+    {
+        synchronized (writerLock) {
+            if (writeQueue.isEmpty()) {
+                try {
+                    long n;
+                    do {
+                        n = channel.write(buffers);
+                    } while (n > 0 && buffers[buffers.length - 1].hasRemaining());
+                } catch (IOException e) {
+                    throw new BEEPException(e);
+                }
+
+                if (buffers[buffers.length - 1].hasRemaining() == false) {
+                    return;
+                }
+            }
+
+            /* The caller may reuse the frame's buffers once we return
+             * so copy what is left before queueing it.
+             */
+            int remaining = 0;
+            for (int i=0; i<buffers.length; ++i) {
+                remaining += buffers[i].remaining();
+            }
+
+            ByteBuffer pending = ByteBuffer.allocate(remaining);
+            for (int i=0; i<buffers.length; ++i) {
+                pending.put(buffers[i]);
+            }
+            pending.flip();
+
+            boolean wasEmpty = writeQueue.isEmpty();
+
+            writeQueue.add(pending);
+
+            if (wasEmpty) {
+                loop.execute(new Runnable() {
+                        public void run() {
+                            updateInterestOps();
+                        }
+                    });
+            }
+        }
+    }
+
+    private void flushWriteQueue() throws IOException
+    {
+        synchronized (writerLock) {
+            while (writeQueue.isEmpty() == false) {
+                ByteBuffer b = (ByteBuffer) writeQueue.getFirst();
+
+                channel.write(b);
+
+                if (b.hasRemaining()) {
+                    return;
+                }
+
+                writeQueue.removeFirst();
+            }
+        }
+    }
+
+    /**
+     * Sets the key's interest set to reflect whether this session is
+     * reading and has pending writes. Must be called on the event loop.
+     */
+    private void updateInterestOps()
+    {
+        if (key == null || key.isValid() == false ||
+            key.attachment() != this)
+        {
+            return;
+        }
+
+        int ops = 0;
+
+        if (paused == false) {
+            ops |= SelectionKey.OP_READ;
+        }
+
+        synchronized (writerLock) {
+            if (writeQueue.isEmpty() == false) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+        }
+
+        key.interestOps(ops);
+    }
+
+    private void closeChannel()
+    {
+        paused = true;
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Waits for the greeting exchange started by the constructor.
+     *
+     * @throws BEEPException if the exchange fails or times out
+     */
+    private void waitForGreeting() throws BEEPException
+    {
+        try {
+            started.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            terminate("Interrupted waiting for greeting");
+            throw new BEEPException("Greeting exchange failed", e);
+        } catch (ExecutionException e) {
+            throw new BEEPException("Greeting exchange failed",
+                                    e.getCause());
+        }
+    }
+
+    private static void configure(SocketChannel channel,
+                                  TCPSessionConfig config)
+        throws BEEPException
+    {
+        try {
+            channel.configureBlocking(false);
+            if (config.isTcpNoDelay()) {
+                channel.socket().setTcpNoDelay(true);
+            }
+        } catch (IOException e) {
+            throw new BEEPException(e);
+        }
+    }
+
+    private static ByteBuffer emptyReadBuffer()
+    {
+        ByteBuffer b = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        b.flip();
+
+        return b;
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * NIOSessionCreator.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.transport.nio;
+
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.util.Hashtable;
+
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.transport.tcp.TCPSessionConfig;
+
+
+/**
+ * This class provides a means for applications to create BEEP sessions
+ * over non-blocking sockets. Sessions are assigned round-robin to the
+ * loops of an <code>NIOEventLoopGroup</code>; unless one is specified a
+ * shared group with one loop per processor is used.
+ * <p>
+ * The <code>initiate</code> and <code>listen</code> methods block the
+ * calling thread until the session's greeting exchange completes and
+ * <code>listen</code> accepts a single connection per call. Servers
+ * should use an <code>NIOServer</code>, which accepts connections on an
+ * event loop.
+ *
+ * @see NIOServer
+ * @see NIOSession
+ * @see org.beepcore.beep.transport.tcp.TCPSessionCreator
+ */
+public class NIOSessionCreator {
+
+    // Constants
+    private static final int DEFAULT_TABLE_SIZE = 4;
+    private static final int DEFAULT_BACKLOG_SIZE = 100;
+
+    // Data
+    private static Hashtable listenerSockets = null;
+    private static NIOEventLoopGroup defaultGroup = null;
+
+    /**
+     * Returns the <code>NIOEventLoopGroup</code> used when one is not
+     * specified, creating it if necessary.
+     *
+     * @throws BEEPException
+     */
+    public static synchronized NIOEventLoopGroup getDefaultEventLoopGroup()
+        throws BEEPException
+    {
+        if (defaultGroup == null) {
+            try {
+                defaultGroup = new NIOEventLoopGroup();
+            } catch (IOException x) {
+                throw new BEEPException(x);
+            }
+        }
+
+        return defaultGroup;
+    }
+
+    /**
+     * Method initiate
+     *
+     *
+     * @param host
+     * @param port
+     * @param registry
+     * @param servername
+     * @param group
+     *
+     * @throws BEEPException
+     *
+     */
+    public static NIOSession initiate(InetAddress host, int port,
+                                      ProfileRegistry registry,
+                                      String servername,
+                                      NIOEventLoopGroup group)
+            throws BEEPException
+    {
+        return initiate(host, port, registry, servername, group,
+                        new TCPSessionConfig());
+    }
+
+    /**
+     * Method initiate
+     *
+     *
+     * @param host
+     * @param port
+     * @param registry
+     * @param servername
+     * @param group
+     * @param config only its <code>TCP_NODELAY</code> option applies to
+     *        NIO sessions
+     *
+     * @throws BEEPException
+     *
+     */
+    public static NIOSession initiate(InetAddress host, int port,
+                                      ProfileRegistry registry,
+                                      String servername,
+                                      NIOEventLoopGroup group,
+                                      TCPSessionConfig config)
+            throws BEEPException
+    {
+        try {
+            SocketChannel channel =
+                SocketChannel.open(new InetSocketAddress(host, port));
+
+            return NIOSession.createInitiator(channel, group.next(),
+                                              registry, servername, config);
+        } catch (IOException x) {
+            throw new BEEPException(x);
+        }
+    }
+
+    /**
+     * Method initiate
+     *
+     *
+     * @param host
+     * @param port
+     * @param registry
+     * @param servername
+     *
+     * @throws BEEPException
+     *
+     */
+    public static NIOSession initiate(InetAddress host, int port,
+                                      ProfileRegistry registry,
+                                      String servername)
+            throws BEEPException
+    {
+        return initiate(host, port, registry, servername,
+                        getDefaultEventLoopGroup());
+    }
+
+    /**
+     * Method initiate
+     *
+     *
+     * @param host
+     * @param port
+     * @param registry
+     *
+     * @throws BEEPException
+     *
+     */
+    public static NIOSession initiate(InetAddress host, int port,
+                                      ProfileRegistry registry)
+        throws BEEPException
+    {
+        return initiate(host, port, registry, null);
+    }
+
+    /**
+     * Method initiate
+     *
+     *
+     * @param host
+     * @param port
+     * @param registry
+     *
+     * @throws BEEPException
+     *
+     */
+    public static NIOSession initiate(String host, int port,
+                                      ProfileRegistry registry)
+        throws BEEPException
+    {
+        try {
+            return initiate(InetAddress.getByName(host), port, registry);
+        } catch (UnknownHostException x) {
+            throw new BEEPException("Unable to connect, unkown host");
+        }
+    }
+
+    /**
+     * Method listen
+     *
+     *
+     * @param port
+     * @param registry
+     *
+     * @throws BEEPException
+     *
+     */
+    public static NIOSession listen(int port, ProfileRegistry registry)
+            throws BEEPException
+    {
+        return listen(null, port, registry, getDefaultEventLoopGroup());
+    }
+
+    /**
+     * Method listen
+     *
+     *
+     * @param localInterface
+     * @param port
+     * @param registry
+     * @param group
+     *
+     * @throws BEEPException
+     *
+     */
+    public static NIOSession listen(InetAddress localInterface, int port,
+                                    ProfileRegistry registry,
+                                    NIOEventLoopGroup group)
+            throws BEEPException
+    {
+        return listen(localInterface, port, registry, group,
+                      new TCPSessionConfig());
+    }
+
+    /**
+     * Method listen
+     *
+     *
+     * @param localInterface
+     * @param port
+     * @param registry
+     * @param group
+     * @param config only its <code>TCP_NODELAY</code> option applies to
+     *        NIO sessions
+     *
+     * @throws BEEPException
+     *
+     */
+    public static NIOSession listen(InetAddress localInterface, int port,
+                                    ProfileRegistry registry,
+                                    NIOEventLoopGroup group,
+                                    TCPSessionConfig config)
+            throws BEEPException
+    {
+        ServerSocketChannel socket = null;
+
+        synchronized (NIOSessionCreator.class) {
+            if (listenerSockets == null) {
+                listenerSockets = new Hashtable(DEFAULT_TABLE_SIZE);
+            }
+
+            socket = (ServerSocketChannel)
+                listenerSockets.get(Integer.toString(port));
+
+            // Bind if we're not listening on this port
+            if (socket == null) {
+                try {
+                    socket = ServerSocketChannel.open();
+                    socket.socket().bind(new InetSocketAddress(localInterface,
+                                                               port),
+                                         DEFAULT_BACKLOG_SIZE);
+
+                    listenerSockets.put(Integer.toString(port), socket);
+                } catch (Exception x) {
+                    throw new BEEPException(x);
+                }
+            }
+        }
+
+        // Listen
+        try {
+            SocketChannel peer = socket.accept();
+
+            return NIOSession.createListener(peer, group.next(), registry,
+                                             config);
+        } catch (IOException e) {
+            throw new BEEPException(e);
+        }
+    }
+
+    /**
+     * Method listen
+     *
+     *
+     * @param localInterface
+     * @param port
+     * @param registry
+     *
+     * @throws BEEPException
+     *
+     */
+    public static NIOSession listen(String localInterface, int port,
+                                    ProfileRegistry registry)
+            throws BEEPException
+    {
+        try {
+            InetAddress addr = null;
+
+            if (localInterface != null) {
+                addr = InetAddress.getByName(localInterface);
+            }
+
+            return listen(addr, port, registry, getDefaultEventLoopGroup());
+        } catch (UnknownHostException x) {
+            throw new BEEPException(x);
+        }
+    }
+}
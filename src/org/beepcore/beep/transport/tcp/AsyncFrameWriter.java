@@ -0,0 +1,341 @@
+/*
+ * AsyncFrameWriter.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.transport.tcp;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.channels.GatheringByteChannel;
+
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.util.BufferSegment;
+import org.beepcore.beep.util.FileSegment;
+
+
+/**
+ * Writes frames for a <code>TCPSession</code> on a dedicated thread.
+ * <p>
+ * Producers copy the segments of a frame (or SEQ) straight into the
+ * batch being built and return without touching the socket, so the
+ * segments may be reused as soon as <code>write</code> returns. The
+ * writer thread swaps the batch for a second buffer and writes it with
+ * one <code>write()</code> and one <code>flush()</code> while producers
+ * fill the other.
+ * <p>
+ * Besides the batch being written at most <code>MAX_QUEUED_BYTES</code>
+ * are queued, a producer which would go past that blocks until the
+ * writer has caught up, as it would have blocked on the socket without
+ * the writer. Frames holding a <code>FileSegment</code> are not copied:
+ * once everything queued before them has been written the producer hands
+ * them to the session's gathering write, which moves the file with
+ * <code>transferTo</code>.
+ * <p>
+ * Producers hold this object's lock only while copying their frame into
+ * the batch. A lock-free handoff, with each frame copied into an array
+ * of its own and added to a <code>ConcurrentLinkedQueue</code>, was
+ * measured with <code>FrameWriteBenchmark</code> and was slower for 1, 4
+ * and 16 producers alike, as each frame then costs an allocation, a
+ * second copy into the batch and at times an unpark of the writer
+ * thread.
+ *
+ * @see TCPSessionConfig#setAsyncWriter
+ */
+class AsyncFrameWriter implements Runnable {
+
+    /** Initial size of the batch buffers */
+    private static final int MAX_BATCH_SIZE = 64 * 1024;
+
+    /** Producers block while this many bytes are waiting to be written */
+    private static final int MAX_QUEUED_BYTES = 256 * 1024;
+
+    private static final String THREAD_NAME = "TCPSession Writer #";
+    private static int THREAD_COUNT = 0;
+
+    private Log log = LogFactory.getLog(this.getClass());
+
+    private final OutputStream os;
+    private final GatheringByteChannel channel;
+    private final TCPSession session;
+    private final Thread thread;
+
+    // Accessed while holding this object's lock
+    private byte[] batch = new byte[MAX_BATCH_SIZE];
+    private byte[] spare = new byte[MAX_BATCH_SIZE];
+    private int length = 0;
+    private int count = 0;
+    private boolean writing = false;
+    private long queued = 0;
+    private long written = 0;
+    private boolean running = true;
+    private IOException failure = null;
+
+    /**
+     * @param session the session to terminate if a write fails
+     * @param os the stream to write to
+     * @param channel the socket's channel, if any, used for frames with
+     *        a <code>FileSegment</code>
+     * @param threads creates the writer thread, if <code>null</code> a
+     *        daemon platform thread is used
+     */
+    AsyncFrameWriter(TCPSession session, OutputStream os,
+                     GatheringByteChannel channel, ThreadFactory threads)
+    {
+        this.session = session;
+        this.os = os;
+        this.channel = channel;
+
+        if (threads != null) {
+            thread = threads.newThread(this);
+        } else {
+            String threadName;
+
+            synchronized (THREAD_NAME) {
+                threadName = THREAD_NAME + THREAD_COUNT++;
+            }
+
+            thread = new Thread(this, threadName);
+            thread.setDaemon(true);
+        }
+
+        thread.start();
+    }
+
+    /**
+     * Queues a copy of the segments to be written, waiting while
+     * <code>MAX_QUEUED_BYTES</code> are already queued.
+     *
+     * @throws BEEPException if the writer has failed or been shut down,
+     *         or the calling thread is interrupted while waiting
+     */
+    void write(BufferSegment[] segments) throws BEEPException
+    {
+        int n = 0;
+        boolean file = false;
+
+        for (int i=0; i<segments.length; ++i) {
+            n += segments[i].getLength();
+            file |= segments[i] instanceof FileSegment;
+        }
+
+        if (file && channel != null) {
+            writeDirect(segments);
+            return;
+        }
+
+        synchronized (this) {
+            // a frame larger than the limit is queued on its own
+            while (running && length > 0 && length + n > MAX_QUEUED_BYTES) {
+                await();
+            }
+
+            checkRunning();
+
+            if (length + n > batch.length) {
+                byte[] tmp = new byte[Math.max(batch.length * 2, length + n)];
+                System.arraycopy(batch, 0, tmp, 0, length);
+                batch = tmp;
+            }
+
+            for (int i=0; i<segments.length; ++i) {
+                BufferSegment b = segments[i];
+
+                b.copyTo(0, batch, length, b.getLength());
+                length += b.getLength();
+            }
+
+            ++count;
+            ++queued;
+
+            if (writing == false) {
+                this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until everything queued before this call has been written.
+     * Returns immediately if called from the writer thread or once the
+     * writer has stopped.
+     */
+    void flush()
+    {
+        if (Thread.currentThread() == thread) {
+            return;
+        }
+
+        synchronized (this) {
+            long target = queued;
+
+            while (failure == null && written < target) {
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the writer accepting frames. Those already queued are still
+     * written before the writer thread exits, unless the socket fails or
+     * is closed first, in which case they are discarded and logged.
+     */
+    synchronized void shutdown()
+    {
+        running = false;
+        this.notifyAll();
+    }
+
+    public void run()
+    {
+        byte[] b;
+        int n;
+        int frames;
+
+        while (true) {
+            synchronized (this) {
+                while (length == 0 && running) {
+                    try {
+                        this.wait();
+                    } catch (InterruptedException e) {
+                    }
+                }
+
+                if (length == 0) {
+                    return;
+                }
+
+                // producers fill the spare buffer while this one is written
+                b = batch;
+                n = length;
+                frames = count;
+                batch = spare;
+                length = 0;
+                count = 0;
+                writing = true;
+            }
+
+            try {
+                os.write(b, 0, n);
+                os.flush();
+            } catch (IOException e) {
+                fail(e, n);
+                return;
+            }
+
+            if (log.isTraceEnabled()) {
+                log.trace("Wrote " + frames + " frames in " + n + " bytes");
+            }
+
+            synchronized (this) {
+                // a single large frame may have grown the buffer
+                spare = (b.length > MAX_BATCH_SIZE ?
+                         new byte[MAX_BATCH_SIZE] : b);
+                written += frames;
+                writing = false;
+                this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes a frame holding a <code>FileSegment</code> on the calling
+     * thread once the frames queued before it have been written. Other
+     * producers wait until it has been written.
+     */
+    private void writeDirect(BufferSegment[] segments) throws BEEPException
+    {
+        synchronized (this) {
+            while (running && (length > 0 || writing)) {
+                await();
+            }
+
+            checkRunning();
+
+            try {
+                session.writeSegments(channel, segments);
+            } catch (IOException e) {
+                throw new BEEPException(e);
+            }
+
+            ++queued;
+            ++written;
+        }
+    }
+
+    private void fail(IOException e, int n)
+    {
+        int discarded;
+        boolean shutdown;
+
+        synchronized (this) {
+            discarded = length;
+            shutdown = (running == false);
+            failure = e;
+            running = false;
+            length = 0;
+            count = 0;
+            writing = false;
+            this.notifyAll();
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Write failed, discarded " + (n + discarded)
+                      + " queued bytes", e);
+        }
+
+        // the socket was closed by the session shutting the writer down
+        if (shutdown == false) {
+            session.terminate(e.getMessage());
+        }
+    }
+
+    /**
+     * Waits for the writer thread to make progress. Must be called while
+     * holding this object's lock.
+     */
+    private void await() throws BEEPException
+    {
+        try {
+            this.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BEEPException("Interrupted waiting for the writer");
+        }
+    }
+
+    /**
+     * Must be called while holding this object's lock.
+     */
+    private void checkRunning() throws BEEPException
+    {
+        if (running == false) {
+            if (failure != null) {
+                throw new BEEPException(failure);
+            }
+            throw new BEEPException("Session writer is closed");
+        }
+    }
+}
@@ -0,0 +1,445 @@
+/*
+ * TCPServer.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.transport.tcp;
+
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiConsumer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.core.event.SessionEvent;
+import org.beepcore.beep.core.event.SessionListener;
+
+
+/**
+ * Accepts TCP connections on a port and creates a listening
+ * <code>TCPSession</code> for each one.
+ * <p>
+ * Connections are accepted by dedicated acceptor threads which hand each
+ * one to a worker thread. The worker creates the session and sends its
+ * greeting; the peer's greeting is received by the session's reader, so
+ * a slow or silent client does not delay the connections accepted after
+ * it. Once a session's greeting exchange
+ * completes the server's <code>SessionListener</code>s are added to the
+ * session and their <code>greetingReceived</code> method is called.
+ * Sessions whose greeting exchange fails are terminated.
+ * <p>
+ * With more than one acceptor each acceptor binds its own socket to the
+ * port with <code>SO_REUSEPORT</code>, letting the kernel spread new
+ * connections across them. This requires an operating system supporting
+ * the option.
+ * <p>
+ * The acceptor threads are not daemon threads: once started, a server
+ * keeps the JVM running until <code>stop</code> is called. A thread
+ * which has nothing else to do may wait for that with
+ * <code>awaitStop</code>.
+ *
+ * @see TCPSessionCreator
+ */
+public class TCPServer {
+
+    private static final int DEFAULT_BACKLOG_SIZE = 100;
+    private static final int ACCEPT_ERROR_DELAY = 100;
+    private static final String THREAD_NAME = "TCPServer Acceptor #";
+    private static final String WORKER_THREAD_NAME = "TCPServer Worker #";
+    private static int THREAD_COUNT = 0;
+    private static int WORKER_THREAD_COUNT = 0;
+
+    private Log log = LogFactory.getLog(this.getClass());
+
+    private final InetAddress localInterface;
+    private final int port;
+    private final ProfileRegistry registry;
+    private final TCPSessionConfig config;
+    private int backlog = DEFAULT_BACKLOG_SIZE;
+    private int acceptorCount = 1;
+    private volatile SessionListener[] listeners = new SessionListener[0];
+
+    // guarded by acceptors
+    private final List acceptors = new ArrayList();
+    private ExecutorService workers = null;
+    private volatile boolean running = false;
+
+    /**
+     * @param port
+     * @param registry
+     */
+    public TCPServer(int port, ProfileRegistry registry)
+    {
+        this(null, port, registry, TCPSessionConfig.DEFAULT);
+    }
+
+    /**
+     * @param localInterface the address to bind to, <code>null</code> for
+     *        all interfaces
+     * @param port
+     * @param registry
+     * @param config
+     */
+    public TCPServer(InetAddress localInterface, int port,
+                     ProfileRegistry registry, TCPSessionConfig config)
+    {
+        this.localInterface = localInterface;
+        this.port = port;
+        this.registry = (ProfileRegistry) registry.clone();
+        this.config = (TCPSessionConfig) config.clone();
+    }
+
+    /**
+     * Returns the maximum number of pending connections per acceptor.
+     */
+    public int getBacklog()
+    {
+        return backlog;
+    }
+
+    /**
+     * Sets the maximum number of connections the operating system queues
+     * for each acceptor before they are accepted. Must be called before
+     * <code>start</code>. The default is 100.
+     */
+    public void setBacklog(int backlog)
+    {
+        this.backlog = backlog;
+    }
+
+    /**
+     * Returns the number of acceptor threads.
+     */
+    public int getAcceptorCount()
+    {
+        return acceptorCount;
+    }
+
+    /**
+     * Sets the number of acceptor threads. With more than one each is
+     * bound to the port with <code>SO_REUSEPORT</code>. Must be called
+     * before <code>start</code>. The default is 1.
+     */
+    public void setAcceptorCount(int acceptorCount)
+    {
+        if (acceptorCount < 1) {
+            throw new IllegalArgumentException("acceptorCount < 1");
+        }
+
+        this.acceptorCount = acceptorCount;
+    }
+
+    /**
+     * Adds a listener which is added to each session accepted by this
+     * server once its greeting exchange completes.
+     */
+    public synchronized void addSessionListener(SessionListener l)
+    {
+        SessionListener[] tmp = new SessionListener[listeners.length + 1];
+
+        System.arraycopy(listeners, 0, tmp, 0, listeners.length);
+        tmp[listeners.length] = l;
+        listeners = tmp;
+    }
+
+    /**
+     * Removes a listener added with <code>addSessionListener</code>.
+     * Sessions it has already been added to are not affected.
+     */
+    public synchronized void removeSessionListener(SessionListener l)
+    {
+        List tmp = new ArrayList();
+
+        for (int i=0; i<listeners.length; ++i) {
+            if (listeners[i] != l) {
+                tmp.add(listeners[i]);
+            }
+        }
+
+        listeners =
+            (SessionListener[]) tmp.toArray(new SessionListener[tmp.size()]);
+    }
+
+    /**
+     * Returns the port the server is listening on, which is useful when
+     * the server was created with port 0.
+     */
+    public int getLocalPort()
+    {
+        synchronized (acceptors) {
+            if (acceptors.isEmpty()) {
+                return port;
+            }
+
+            return ((Acceptor) acceptors.get(0)).server.socket()
+                .getLocalPort();
+        }
+    }
+
+    /**
+     * Binds the acceptors and starts accepting connections.
+     *
+     * @throws BEEPException if the port could not be bound or
+     *         <code>SO_REUSEPORT</code> is required but not supported
+     */
+    public void start() throws BEEPException
+    {
+        synchronized (acceptors) {
+            if (running) {
+                throw new BEEPException("Server already started");
+            }
+
+            int boundPort = port;
+
+            try {
+                for (int i=0; i<acceptorCount; ++i) {
+                    ServerSocketChannel server = ServerSocketChannel.open();
+
+                    if (acceptorCount > 1) {
+                        if (server.supportedOptions()
+                            .contains(StandardSocketOptions.SO_REUSEPORT)
+                            == false)
+                        {
+                            server.close();
+                            throw new BEEPException("SO_REUSEPORT is not "
+                                                    + "supported, use a "
+                                                    + "single acceptor");
+                        }
+                        server.setOption(StandardSocketOptions.SO_REUSEPORT,
+                                         Boolean.TRUE);
+                    }
+
+                    server.socket().bind(new InetSocketAddress(localInterface,
+                                                               boundPort),
+                                         backlog);
+
+                    // the others bind to the port picked for the first
+                    boundPort = server.socket().getLocalPort();
+
+                    acceptors.add(new Acceptor(server));
+                }
+            } catch (IOException e) {
+                closeAcceptors();
+                throw new BEEPException(e);
+            } catch (BEEPException e) {
+                closeAcceptors();
+                throw e;
+            }
+
+            running = true;
+            workers = Executors.newCachedThreadPool(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        String threadName;
+
+                        synchronized (WORKER_THREAD_NAME) {
+                            threadName = WORKER_THREAD_NAME
+                                + WORKER_THREAD_COUNT++;
+                        }
+
+                        Thread t = new Thread(r, threadName);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+            for (int i=0; i<acceptors.size(); ++i) {
+                ((Acceptor) acceptors.get(i)).thread.start();
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections. Sessions already accepted are not
+     * affected, nor are those whose greeting is being sent.
+     */
+    public void stop()
+    {
+        synchronized (acceptors) {
+            running = false;
+            closeAcceptors();
+
+            if (workers != null) {
+                workers.shutdown();
+                workers = null;
+            }
+
+            acceptors.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until <code>stop</code> is called. Returns immediately if the
+     * server is not running.
+     *
+     * @throws InterruptedException if the calling thread is interrupted
+     *         while waiting
+     */
+    public void awaitStop() throws InterruptedException
+    {
+        synchronized (acceptors) {
+            while (running) {
+                acceptors.wait();
+            }
+        }
+    }
+
+    private void closeAcceptors()
+    {
+        for (int i=0; i<acceptors.size(); ++i) {
+            try {
+                ((Acceptor) acceptors.get(i)).server.close();
+            } catch (IOException e) {
+            }
+        }
+
+        acceptors.clear();
+    }
+
+    /**
+     * Creates the session for an accepted connection on a worker thread,
+     * since sending the greeting may block.
+     */
+    private void accepted(final SocketChannel channel)
+    {
+        ExecutorService w;
+
+        synchronized (acceptors) {
+            w = workers;
+        }
+
+        if (w == null) {
+            throw new RejectedExecutionException("Server stopped");
+        }
+
+        w.execute(new Runnable() {
+                public void run() {
+                    try {
+                        createSession(channel);
+                    } catch (Throwable e) {
+                        log.error("Error creating session", e);
+                        try {
+                            channel.close();
+                        } catch (IOException x) {
+                        }
+                    }
+                }
+            });
+    }
+
+    private void createSession(SocketChannel channel)
+    {
+        final Socket socket = channel.socket();
+
+        CompletableFuture<Session> session =
+            TCPSession.createListenerAsync(socket, registry, config);
+
+        session.whenComplete(new BiConsumer<Session, Throwable>() {
+                public void accept(Session s, Throwable error) {
+                    if (error != null) {
+                        log.debug("Greeting exchange with "
+                                  + socket.getInetAddress() + " failed",
+                                  error);
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                        }
+                        return;
+                    }
+
+                    SessionListener[] l = listeners;
+                    SessionEvent e = new SessionEvent(s);
+
+                    for (int i=0; i<l.length; ++i) {
+                        s.addSessionListener(l[i]);
+                        l[i].greetingReceived(e);
+                    }
+                }
+            });
+    }
+
+    private class Acceptor implements Runnable {
+        final ServerSocketChannel server;
+        final Thread thread;
+
+        Acceptor(ServerSocketChannel server)
+        {
+            String threadName;
+
+            synchronized (THREAD_NAME) {
+                threadName = THREAD_NAME + THREAD_COUNT++;
+            }
+
+            this.server = server;
+            this.thread = new Thread(this, threadName);
+        }
+
+        public void run()
+        {
+            while (running) {
+                SocketChannel channel;
+
+                try {
+                    channel = server.accept();
+                } catch (ClosedChannelException e) {
+                    break;
+                } catch (IOException e) {
+                    if (running == false) {
+                        break;
+                    }
+
+                    // e.g. out of file descriptors, don't spin
+                    log.error("Error accepting connection", e);
+                    try {
+                        Thread.sleep(ACCEPT_ERROR_DELAY);
+                    } catch (InterruptedException x) {
+                    }
+                    continue;
+                }
+
+                try {
+                    accepted(channel);
+                } catch (Throwable e) {
+                    log.error("Error creating session", e);
+                    try {
+                        channel.close();
+                    } catch (IOException x) {
+                    }
+                }
+            }
+
+            log.debug("Acceptor exiting");
+        }
+    }
+}
@@ -45,20 +45,31 @@ import java.io.OutputStream;
 
 import java.net.Socket;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.beepcore.beep.core.BEEPException;
 import org.beepcore.beep.core.Channel;
 import org.beepcore.beep.core.Frame;
+import org.beepcore.beep.core.FrameDecoder;
 import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.ReceiveBudget;
 import org.beepcore.beep.core.Session;
 import org.beepcore.beep.core.SessionImpl;
 import org.beepcore.beep.core.SessionCredential;
 import org.beepcore.beep.core.SessionTuningProperties;
+import org.beepcore.beep.util.BufferPool;
 import org.beepcore.beep.util.BufferSegment;
-import org.beepcore.beep.util.HeaderParser;
+import org.beepcore.beep.util.FileSegment;
 import org.beepcore.beep.util.StringUtil;
+import org.beepcore.beep.util.VirtualThreads;
 
 
 /**
@@ -75,16 +86,15 @@ public class TCPSession extends SessionImpl {
     // Constants
     private static final char[] MESSAGE_TYPE_SEQ = new char[] {'S', 'E', 'Q'};
     private static final int MAX_RECEIVE_BUFFER_SIZE = 64 * 1024;
+    /**
+     * Frames smaller than this are copied into a single buffer before
+     * being written. Below this size the copy is cheaper than the
+     * overhead of a gathering write (see FrameWriteBenchmark).
+     */
+    private static final int GATHERING_WRITE_THRESHOLD = 16 * 1024;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
     private static final String TCP_MAPPING = "TCP Mapping";
     private static final String CRLF = "\r\n";
-    private static final int MIN_SEQ_HEADER_SIZE = (3        // msg type
-                                                    + 1      // space
-                                                    + 1      // channel number
-                                                    + 1      // space
-                                                    + 1      // acknum
-                                                    + 1      // space
-                                                    + 1      // window
-                                                    + CRLF.length());
 
     private static final int CHANNEL_START_ODD = 1;
     private static final int CHANNEL_START_EVEN = 2;
@@ -93,14 +103,38 @@ public class TCPSession extends SessionImpl {
     // Instance Data
     private Log log = LogFactory.getLog(this.getClass());
 
-    private byte headerBuffer[] = new byte[Frame.MAX_HEADER_SIZE];
+    private final FrameDecoder header = new FrameDecoder();
     private byte[] outputBuf = new byte[0];
     private Object writerLock;
+
+    /* Bytes read from the socket but not yet parsed are between
+     * readOffset and readLimit. Only the reader thread touches these
+     * while IO is enabled.
+     */
+    private byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+    private int readOffset = 0;
+    private int readLimit = 0;
+    private final TCPSessionConfig config;
+    private AsyncFrameWriter writer = null;
     private Socket socket;
-    private boolean running;
+
+    /* The reader thread is started by the first enableIO() and waits on
+     * ioLock while IO is disabled. ioGeneration counts the calls to
+     * enableIO() so the reader can tell if IO was enabled again while it
+     * was posting a frame after which it should stop.
+     */
+    private final Object ioLock = new Object();
+    private volatile boolean running = false;
+    private volatile int ioGeneration = 0;
+    private boolean readerExit = false;
     private static int THREAD_COUNT = 0;
     private static final String THREAD_NAME = "TCPSession Thread #";
+    private static ThreadFactory virtualThreadFactory = null;
+    private static Executor virtualCallbackExecutor = null;
+    private static boolean warnedVirtualThreads = false;
     private Thread thread;
+    private boolean virtualThreads = false;
+    private CompletableFuture<Session> started = null;
 
     /**
      * @param sock the Socket for this TCPConnection
@@ -125,21 +159,80 @@ public class TCPSession extends SessionImpl {
      * doesn't block the thread of the former (soon to die) session.
      *
      * @param firstChannel
+     * @param pending bytes already read from <code>sock</code> by a
+     *        previous session on the same socket, may be <code>null</code>
+     * @param config
+     * @param async if <code>true</code> the constructor returns once the
+     *        greeting has been sent, see <code>createInitiatorAsync</code>
      *
      * @throws BEEPException
      */
     private TCPSession(Socket sock, ProfileRegistry registry, int firstChannel,
                        SessionCredential localCred, SessionCredential peerCred,
-                       SessionTuningProperties tuning, String servername)
+                       SessionTuningProperties tuning, String servername,
+                       byte[] pending, TCPSessionConfig config, boolean async)
             throws BEEPException
     {
 	super(registry, firstChannel, localCred, peerCred, tuning, servername);
 
         socket = sock;
         writerLock = new Object();
+        this.config = config;
+
+        setSpillPolicy(config.getSpillPolicy());
+        setMaxReceiveWindowSize(config.getMaxReceiveWindowSize());
+        setAsyncReplies(config.isAsyncReplies());
+        setConcurrentRequests(config.getConcurrentRequests());
+
+        if (config.getReceiveBudget() != 0 ||
+            config.getSharedReceiveBudget() != null)
+        {
+            long limit = config.getReceiveBudget() != 0
+                ? config.getReceiveBudget() : Long.MAX_VALUE;
+
+            setReceiveBudget(new ReceiveBudget(limit,
+                                               config.getSharedReceiveBudget()));
+        }
+
+        if (config.isVirtualThreads()) {
+            if (VirtualThreads.isSupported()) {
+                virtualThreads = true;
+                setCallbackExecutor(getVirtualCallbackExecutor());
+            } else if (warnedVirtualThreads == false) {
+                warnedVirtualThreads = true;
+                log.warn("Virtual threads are not supported by this JVM, "
+                         + "using platform threads");
+            }
+        }
+
+        if (config.getCallbackExecutor() != null) {
+            setCallbackExecutor(config.getCallbackExecutor());
+        }
+
+        if (config.isAsyncWriter()) {
+            try {
+                writer = new AsyncFrameWriter(this, socket.getOutputStream(),
+                                              socket.getChannel(),
+                                              (virtualThreads ?
+                                               getVirtualThreadFactory() :
+                                               null));
+            } catch (IOException e) {
+                throw new BEEPException(e);
+            }
+        }
+
+        if (pending != null) {
+            if (pending.length > readBuffer.length) {
+                readBuffer = new byte[pending.length];
+            }
+            System.arraycopy(pending, 0, readBuffer, 0, pending.length);
+            readLimit = pending.length;
+        }
 
         if ((peerCred != null) || (localCred != null) || (tuning != null)) {
             tuningInit();
+        } else if (async) {
+            started = initAsync();
         } else {
             init();
         }
@@ -149,6 +242,14 @@ public class TCPSession extends SessionImpl {
         } catch (Exception x) {
             log.debug("Socket doesn't support setting receive buffer size");
         }
+
+        if (config.isTcpNoDelay()) {
+            try {
+                socket.setTcpNoDelay(true);
+            } catch (Exception x) {
+                log.debug("Socket doesn't support disabling Nagle's algorithm");
+            }
+        }
     }
 
     /**
@@ -167,10 +268,67 @@ public class TCPSession extends SessionImpl {
 					     ProfileRegistry registry,
 					     String servername)
             throws BEEPException
+    {
+        return createInitiator(sock, registry, servername,
+                               TCPSessionConfig.DEFAULT);
+    }
+
+    /**
+     * Creates a TCPSession for a Socket that was created by
+     * initiating a connection.
+     *
+     *
+     * @param sock
+     * @param registry
+     * @param servername
+     * @param config
+     *
+     * @throws BEEPException
+     *
+     */
+    public static TCPSession createInitiator(Socket sock,
+                                             ProfileRegistry registry,
+                                             String servername,
+                                             TCPSessionConfig config)
+            throws BEEPException
     {
         return new TCPSession(sock, (ProfileRegistry) registry.clone(),
-			      CHANNEL_START_ODD, null, null, null, servername);
+                              CHANNEL_START_ODD, null, null, null, servername,
+                              null, (TCPSessionConfig) config.clone(), false);
     }
+
+    /**
+     * Creates a TCPSession for a Socket that was created by initiating a
+     * connection without waiting for the peer's greeting. The returned
+     * future completes with the session once it is active, or
+     * exceptionally with a <code>BEEPException</code> if the greeting
+     * exchange fails.
+     *
+     *
+     * @param sock
+     * @param registry
+     * @param servername
+     * @param config
+     *
+     * @see TCPSessionCreator#initiateAsync
+     */
+    public static CompletableFuture<Session>
+        createInitiatorAsync(Socket sock, ProfileRegistry registry,
+                             String servername, TCPSessionConfig config)
+    {
+        try {
+            return new TCPSession(sock, (ProfileRegistry) registry.clone(),
+                                  CHANNEL_START_ODD, null, null, null,
+                                  servername, null,
+                                  (TCPSessionConfig) config.clone(),
+                                  true).started;
+        } catch (BEEPException e) {
+            CompletableFuture<Session> f = new CompletableFuture<Session>();
+            f.completeExceptionally(e);
+            return f;
+        }
+    }
+
     /**
      * Creates a TCPSession for a Socket that was created by
      * initiating a connection.
@@ -203,9 +361,60 @@ public class TCPSession extends SessionImpl {
     public static TCPSession createListener(Socket sock,
                                             ProfileRegistry registry)
             throws BEEPException
+    {
+        return createListener(sock, registry, TCPSessionConfig.DEFAULT);
+    }
+
+    /**
+     * Creates a TCPSession for a Socket that was created by
+     * listening and accepting a connection.
+     *
+     *
+     * @param sock
+     * @param registry
+     * @param config
+     *
+     * @throws BEEPException
+     *
+     */
+    public static TCPSession createListener(Socket sock,
+                                            ProfileRegistry registry,
+                                            TCPSessionConfig config)
+            throws BEEPException
     {
         return new TCPSession(sock, (ProfileRegistry) registry.clone(),
-                              CHANNEL_START_EVEN, null, null, null, null);
+                              CHANNEL_START_EVEN, null, null, null, null, null,
+                              (TCPSessionConfig) config.clone(), false);
+    }
+
+    /**
+     * Creates a TCPSession for a Socket that was created by listening and
+     * accepting a connection without waiting for the peer's greeting.
+     * The returned future completes with the session once it is active,
+     * or exceptionally with a <code>BEEPException</code> if the greeting
+     * exchange fails.
+     *
+     *
+     * @param sock
+     * @param registry
+     * @param config
+     *
+     * @see TCPServer
+     */
+    public static CompletableFuture<Session>
+        createListenerAsync(Socket sock, ProfileRegistry registry,
+                            TCPSessionConfig config)
+    {
+        try {
+            return new TCPSession(sock, (ProfileRegistry) registry.clone(),
+                                  CHANNEL_START_EVEN, null, null, null, null,
+                                  null, (TCPSessionConfig) config.clone(),
+                                  true).started;
+        } catch (BEEPException e) {
+            CompletableFuture<Session> f = new CompletableFuture<Session>();
+            f.completeExceptionally(e);
+            return f;
+        }
     }
 
     // Overrides method in Session
@@ -213,6 +422,13 @@ public class TCPSession extends SessionImpl {
     {
         super.close();
 
+        if (writer != null) {
+            writer.flush();
+            writer.shutdown();
+        }
+
+        stopReader();
+
         if (socket != null) {
             try {
                 socket.close();
@@ -233,6 +449,12 @@ public class TCPSession extends SessionImpl {
     {
         super.terminate(reason);
 
+        if (writer != null) {
+            writer.shutdown();
+        }
+
+        stopReader();
+
         if (socket != null) {
             try {
                 socket.close();
@@ -240,7 +462,6 @@ public class TCPSession extends SessionImpl {
             }
 
             socket = null;
-            running = false;
         }
     }
 
@@ -256,98 +477,191 @@ public class TCPSession extends SessionImpl {
     // Implementation of method declared in Session
     protected void disableIO()
     {
-        running = false;
+        synchronized (ioLock) {
+            running = false;
+        }
+
+        // tuning profiles take over the socket once IO is disabled
+        if (writer != null) {
+            writer.flush();
+        }
     }
 
     // Implementation of method declared in Session
     protected void enableIO()
     {
-        running = false;
-        thread = null;
+        synchronized (ioLock) {
+            ++ioGeneration;
+            running = true;
+
+            if (thread != null) {
+                ioLock.notifyAll();
+                return;
+            }
 
-        if (thread == null) {
             String threadName;
 
             synchronized (THREAD_NAME) {
                 threadName = new String(THREAD_NAME + THREAD_COUNT++);
             }
 
-            thread = new Thread(threadName)
-                {
+            Runnable reader = new Runnable() {
                     public void run() {
-                        processNextFrame();
+                        processFrames();
                     }
                 };
 
-            thread.setDaemon(true);
+            if (virtualThreads) {
+                thread = getVirtualThreadFactory().newThread(reader);
+            } else {
+                thread = new Thread(reader, threadName);
+                thread.setDaemon(true);
+            }
+
             thread.start();
         }
     }
 
+    /**
+     * Makes the reader thread exit once it is done with the current frame
+     * or, if IO is disabled, right away.
+     */
+    private void stopReader()
+    {
+        synchronized (ioLock) {
+            readerExit = true;
+            running = false;
+            ioLock.notifyAll();
+        }
+    }
+
     // Implementation of method declared in Session
     protected int getMaxFrameSize()
     {
-        /**
-         * @todo - test this and find an optimal frame size, key it up
-         * to approximate ethernet packet size, less header, trailer
-         */
-        return 1400;
+        return config.getMaxFrameSize();
     }
 
     /**
      * Generates a header, then writes the header, payload, and
      * trailer to the wire.
+     * <p>
+     * If the session has an asynchronous writer the frame is queued for
+     * it. Otherwise, if the socket has an associated channel (sockets
+     * created by <code>TCPSessionCreator</code> do), large frames and
+     * frames with a <code>FileSegment</code> are handed directly to a
+     * gathering write, with file segments moved by
+     * <code>transferTo</code>. Small frames, and all frames on sockets
+     * without a channel (e.g. once TLS has been negotiated), are copied
+     * into a single buffer and written to the socket's
+     * <code>OutputStream</code>.
      *
      * @param f the Frame to send.
-     * @return boolean true of the frame was sent, false otherwise.
      *
      * @throws BEEPException
-     *
-     * @todo make this one write operation later.
      */
     protected void sendFrame(Frame f) throws BEEPException
     {
-        try {
+        if (writer != null) {
+            writer.write(f.getBytes());
+            return;
+        }
 
-            OutputStream os = socket.getOutputStream();
+        try {
+            BufferSegment[] bs = f.getBytes();
+            GatheringByteChannel channel = socket.getChannel();
+
+            int n = 0;
+            boolean file = false;
+            for (int i=0; i<bs.length; ++i) {
+                n += bs[i].getLength();
+                file |= bs[i] instanceof FileSegment;
+            }
 
             synchronized (writerLock) {
-                /* Inspite of the extra data copy if is faster to have
-                 * a single call to write() (at least with the JVMs we
-                 * have tested with).
-                 */
-                BufferSegment[] bs = f.getBytes();
-
-                int n = 0;
-                for (int i=0; i<bs.length; ++i) {
-                    n += bs[i].getLength();
+                if (channel != null &&
+                    (n >= GATHERING_WRITE_THRESHOLD || file))
+                {
+                    writeSegments(channel, bs);
+                } else {
+                    copySegments(socket.getOutputStream(), bs, n);
                 }
+            }
+        } catch (IOException e) {
+            throw new BEEPException(e);
+        } catch (Exception e) {
+            throw new BEEPException(e);
+        }
+    }
 
-                if (n > outputBuf.length) {
-                    outputBuf = new byte[n];
-                }
+    void writeSegments(GatheringByteChannel channel,
+                       BufferSegment[] bs)
+        throws IOException
+    {
+        ByteBuffer[] buffers = new ByteBuffer[bs.length];
+        int start = 0;
+
+        for (int i=0; i<bs.length; ++i) {
+            if (bs[i] instanceof FileSegment) {
+                // write what precedes the file segment, then the file
+                writeBuffers(channel, buffers, start, i - start);
+                ((FileSegment) bs[i]).transferTo(channel);
+                start = i + 1;
+            } else {
+                buffers[i] = bs[i].asByteBuffer();
+            }
+        }
+        writeBuffers(channel, buffers, start, bs.length - start);
 
-                int off = 0;
+        if (log.isTraceEnabled()) {
+            StringBuffer sb = new StringBuffer("Wrote the following\n");
+            for (int i=0; i<bs.length; ++i) {
+                sb.append(new String(bs[i].getData(), bs[i].getOffset(),
+                                     bs[i].getLength()));
+            }
+            log.trace(sb.toString());
+        }
+    }
 
-                for (int i=0; i<bs.length; ++i) {
-                    System.arraycopy(bs[i].getData(), bs[i].getOffset(),
-                                     outputBuf, off, bs[i].getLength());
+    private static void writeBuffers(GatheringByteChannel channel,
+                                     ByteBuffer[] buffers, int offset,
+                                     int length)
+        throws IOException
+    {
+        if (length == 0) {
+            return;
+        }
 
-                    off += bs[i].getLength();
-                }
+        ByteBuffer last = buffers[offset + length - 1];
+        do {
+            channel.write(buffers, offset, length);
+        } while (last.hasRemaining());
+    }
 
-                os.write(outputBuf, 0, n);
-                os.flush();
+    private void copySegments(OutputStream os, BufferSegment[] bs, int n)
+        throws IOException
+    {
+        /* Inspite of the extra data copy if is faster to have
+         * a single call to write() (at least with the JVMs we
+         * have tested with).
+         */
+        if (n > outputBuf.length) {
+            outputBuf = new byte[n];
+        }
 
-                if (log.isTraceEnabled()) {
-                    log.trace("Wrote the following\n" +
-                              new String(outputBuf, 0, n));
-                }
-            }
-        } catch (IOException e) {
-            throw new BEEPException(e);
-        } catch (Exception e) {
-            throw new BEEPException(e);
+        int off = 0;
+
+        for (int i=0; i<bs.length; ++i) {
+            bs[i].copyTo(0, outputBuf, off, bs[i].getLength());
+
+            off += bs[i].getLength();
+        }
+
+        os.write(outputBuf, 0, n);
+        os.flush();
+
+        if (log.isTraceEnabled()) {
+            log.trace("Wrote the following\n" +
+                      new String(outputBuf, 0, n));
         }
     }
 
@@ -375,10 +689,39 @@ public class TCPSession extends SessionImpl {
             reg = this.getProfileRegistry();
         }
 
+        /* The reader may have buffered data sent by the peer after the
+         * frame that completed the tuning. It belongs to the new session,
+         * which can only make sense of it if it is on the same socket.
+         */
+        if (writer != null) {
+            writer.flush();
+            writer.shutdown();
+        }
+
+        byte[] pending = null;
+
+        int n;
+
+        // IO is disabled during the tuning so the reader is waiting
+        stopReader();
+        n = readLimit - readOffset;
+
+        if (n > 0) {
+            if (s != socket) {
+                throw new BEEPException("Received data on the old socket "
+                                        + "after the tuning reset");
+            }
+
+            pending = new byte[n];
+            System.arraycopy(readBuffer, readOffset, pending, 0, n);
+            readOffset = readLimit;
+        }
+
         Session newSession = new TCPSession(s, reg,
                                             (isInitiator() ? CHANNEL_START_ODD:
                                              CHANNEL_START_EVEN),
-                                            localCred, peerCred, tuning, null);
+                                            localCred, peerCred, tuning, null,
+                                            pending, config, false);
 
         this.fireSessionReset(newSession);
 
@@ -412,6 +755,13 @@ public class TCPSession extends SessionImpl {
         sb.append(Integer.toString(currentAvail));
         sb.append(CRLF);
 
+        if (writer != null) {
+            writer.write(new BufferSegment[] {
+                new BufferSegment(StringUtil.stringBufferToAscii(sb))
+            });
+            return true;
+        }
+
         try {
             if (log.isDebugEnabled()) {
                 log.debug("Wrote: " + sb.toString());
@@ -430,67 +780,72 @@ public class TCPSession extends SessionImpl {
         return true;
     }
 
-    private void processNextFrame()
+    /**
+     * Sends the SEQ frames of several channels with a single write.
+     *
+     * @throws BEEPException
+     */
+    protected void updateMyReceiveBufferSizes(Channel[] channels,
+                                              long[] currentSeqs,
+                                              int[] currentAvails,
+                                              int count)
+            throws BEEPException
     {
-        running = true;
-        
-        if (socket == null) {
-            running = false;
+        byte[] buf = new byte[count * MAX_SEQ_SIZE];
+        int length = 0;
+
+        for (int i=0; i<count; ++i) {
+            length = encodeSEQ(buf, length, channels[i], currentSeqs[i],
+                               currentAvails[i]);
+        }
+
+        if (writer != null) {
+            writer.write(new BufferSegment[] {
+                new BufferSegment(buf, 0, length)
+            });
             return;
         }
 
         try {
-            InputStream is = socket.getInputStream();
-
-            while (running) {
-                if (log.isTraceEnabled()) {
-                    log.trace("Processing next frame");
-                }
-
-                int amountRead;
-                headerBuffer = new byte[Frame.MAX_HEADER_SIZE];
+            if (log.isDebugEnabled()) {
+                log.debug("Wrote: " + StringUtil.asciiToString(buf, 0, length));
+            }
 
-                try {
-                    do {
-                        amountRead =
-                            is.read(headerBuffer, 0, MIN_SEQ_HEADER_SIZE);
+            OutputStream os = socket.getOutputStream();
 
-                        if (amountRead == -1) {
-                            throw new SessionAbortedException();
-                        }
-                    } while (amountRead == 0);
+            synchronized (writerLock) {
+                os.write(buf, 0, length);
+                os.flush();
+            }
+        } catch (IOException x) {
+            throw new BEEPException("Unable to send SEQ", x);
+        }
+    }
 
-                } catch (java.net.SocketException e) {
-                    if (running) {
-                        throw e;
+    /**
+     * Body of the reader thread. Reads frames while IO is enabled and
+     * waits for enableIO() while it is disabled.
+     */
+    private void processFrames()
+    {
+        while (true) {
+            synchronized (ioLock) {
+                while (running == false && readerExit == false) {
+                    try {
+                        ioLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
                     }
-
-                    // socket closed intentionally (session closing)
-                    // so just return
-                    return;
                 }
 
-                if (headerBuffer[0] == (byte) MESSAGE_TYPE_SEQ[0]) {
-                    processSEQFrame(headerBuffer, amountRead, is);
-                    continue;
-                } else {
-                    if (processCoreFrame(headerBuffer, amountRead, is) == false)
-                    {
-                        break;
-                    }
+                if (readerExit) {
+                    break;
                 }
             }
-        } catch (IOException e) {
-            log.error(e);
 
-            socket = null;
-
-            terminate(e.getMessage());
-        } catch (SessionAbortedException e) {
-            terminate("Session aborted by remote peer.");
-        } catch (Throwable e) {
-            log.error(e);
-            terminate(e.getMessage());
+            if (readFrames() == false) {
+                break;
+            }
         }
 
         if (log.isDebugEnabled()) {
@@ -499,229 +854,230 @@ public class TCPSession extends SessionImpl {
         }
     }
 
-    private boolean processCoreFrame(byte[] headerBuffer, int amountRead,
-                                     InputStream is)
-        throws SessionAbortedException, BEEPException, IOException
+    /**
+     * Reads and posts frames until IO is disabled.
+     *
+     * @return false if the reader should exit
+     */
+    private boolean readFrames()
     {
-        int headerLength = 0;
-        int amountToRead = Frame.MIN_FRAME_SIZE - amountRead;
+        Socket sock = socket;
 
-    headerFound:
-        while (true) {
-            int tokenCount = 6;
-
-            try {
-                int n = is.read(headerBuffer, amountRead, amountToRead);
+        if (sock == null) {
+            return false;
+        }
 
-                if (n == -1) {
-                    throw new SessionAbortedException();
-                }
+        try {
+            InputStream is = sock.getInputStream();
 
-                if (n == 0) {
-                    continue;
+            while (running) {
+                if (log.isTraceEnabled()) {
+                    log.trace("Processing next frame");
                 }
 
-                amountRead += n;
+                int generation = ioGeneration;
 
-            } catch (java.net.SocketException e) {
-                if (running) {
-                    throw e;
+                if (readHeader(is) == false) {
+                    // socket closed intentionally (session closing)
+                    return false;
                 }
 
-                // socket closed intentionally (session closing)
-                // so just return
-                return false;
+                if (header.isSEQ()) {
+                    processSEQFrame();
+                } else if (processCoreFrame(is) == false) {
+                    // stop unless IO has already been enabled again
+                    synchronized (ioLock) {
+                        if (ioGeneration == generation) {
+                            running = false;
+                        }
+                    }
+                }
             }
 
-            while (headerLength < amountRead) {
-                if (headerBuffer[headerLength] == '\n') {
-                    if (headerLength == 0 ||
-                        headerBuffer[headerLength - 1] != '\r')
-                    {
-                        throw new BEEPException("Malformed BEEP header");
-                    }
+            return true;
+        } catch (IOException e) {
+            log.error(e);
 
-                    ++headerLength;
-                    break headerFound;
-                }
+            socket = null;
 
-                if (headerBuffer[headerLength] == ' ') {
-                    if (tokenCount > 1) { // This is for ANS frames
-                        --tokenCount;
-                    }
-                }
+            terminate(e.getMessage());
+        } catch (SessionAbortedException e) {
+            terminate("Session aborted by remote peer.");
+        } catch (Throwable e) {
+            log.error(e);
+            terminate(e.getMessage());
+        }
 
-                ++headerLength;
-            }
+        return false;
+    }
 
-            if (headerLength > Frame.MAX_HEADER_SIZE) {
-                throw new BEEPException("Malformed BEEP header, no CRLF");
-            }
+    /**
+     * Reads more data from the socket into the read buffer. Unparsed
+     * data is first moved to the start of the buffer.
+     *
+     * @return false if the socket was closed intentionally
+     */
+    private boolean fill(InputStream is)
+        throws SessionAbortedException, IOException
+    {
+        int remaining = readLimit - readOffset;
 
-            /* 2 = 1 for the min token size and 1 is for the separator ' '
-             * or "\r\n"
-             * amountToRead = (tokenCount * 2) + Frame.TRAILER.length();
-             */
-            /* TLH: changed amountToRead for header to be 1 byte at a time
-             * Temporary fix. Found issues when using tokenCount * 2,
-             * where 1st byte of ANS was accidentally read from NUL header
-             * causing Malformed BEEP Header exception
-             */
-            amountToRead = 1;
+        if (readOffset > 0) {
+            System.arraycopy(readBuffer, readOffset, readBuffer, 0, remaining);
+            readOffset = 0;
+            readLimit = remaining;
         }
 
-        if (log.isTraceEnabled()) {
-            log.trace(new String(headerBuffer, 0, headerLength));
-        }
-
-        Frame f = super.createFrame(headerBuffer,
-                                    headerLength - CRLF.length());
-        byte[] payload = new byte[f.getSize()];
-
-        int count = amountRead - headerLength;
-        if (count > payload.length) {
-            System.arraycopy(headerBuffer, headerLength, payload, 0,
-                             payload.length);
-            count -= payload.length;
-            
-            for (int i = 0; i < Frame.TRAILER.length(); ++i) {
-                int b;
-                if (count > 0) {
-                    b = headerBuffer[headerLength + payload.length + i];
-                    --count;
-                } else {
-                    b = is.read();
-
-                    if (b == -1) {
-                        throw new SessionAbortedException();
-                    }
-                }
+        try {
+            int n;
 
-                if (((byte) b) != ((byte) Frame.TRAILER.charAt(i))) {
-                    throw new BEEPException("Malformed BEEP frame, "
-                                            + "invalid trailer");
-                }
-            }
-        } else {
-            System.arraycopy(headerBuffer, headerLength, payload, 0, count);
+            do {
+                n = is.read(readBuffer, readLimit,
+                            readBuffer.length - readLimit);
 
-            while (count < payload.length) {
-                int n = is.read(payload, count, payload.length - count);
                 if (n == -1) {
                     throw new SessionAbortedException();
                 }
-                count += n;
-            }
+            } while (n == 0);
 
-            if (log.isTraceEnabled()) {
-                log.trace(new String(payload));
+            readLimit += n;
+        } catch (java.net.SocketException e) {
+            if (running) {
+                throw e;
             }
 
-            for (int i = 0; i < Frame.TRAILER.length(); ++i) {
-                int b = is.read();
-
-                if (b == -1) {
-                    throw new SessionAbortedException();
-                }
-
-                if (((byte) b) != ((byte) Frame.TRAILER.charAt(i))) {
-                    throw new BEEPException("Malformed BEEP frame, "
-                                            + "invalid trailer");
-                }
-            }
+            // socket closed intentionally (session closing)
+            return false;
         }
 
-        f.addPayload(new BufferSegment(payload));
-
-        return super.postFrame(f);
+        return true;
     }
 
-    private void processSEQFrame(byte[] headerBuffer, int amountRead,
-                                 InputStream is)
+    /**
+     * Decodes the next header, including the CRLF, from the read buffer
+     * into <code>header</code>.
+     *
+     * @return false if the socket was closed intentionally
+     */
+    private boolean readHeader(InputStream is)
         throws BEEPException, IOException, SessionAbortedException
     {
-        int headerLength = 0;
-        int tokenCount = 4;
+        header.reset();
 
-    headerFound:
         while (true) {
+            readOffset += header.decode(readBuffer, readOffset,
+                                        readLimit - readOffset);
 
-            while (headerLength < amountRead) {
-                if (headerBuffer[headerLength] == '\n') {
-                    if (headerLength == 0 ||
-                        headerBuffer[headerLength - 1] != '\r')
-                    {
-                        throw new BEEPException("Malformed BEEP header");
-                    }
-
-                    ++headerLength;
-                    break headerFound;
-                }
-
-                if (headerBuffer[headerLength] == ' ') {
-                    if (tokenCount > 1) {
-                        --tokenCount;
-                    }
+            if (header.isComplete()) {
+                if (log.isTraceEnabled()) {
+                    log.trace(header);
                 }
 
-                ++headerLength;
+                return true;
             }
 
-            if (headerLength > Frame.MAX_HEADER_SIZE) {
-                throw new BEEPException("Malformed BEEP header, no CRLF");
+            if (fill(is) == false) {
+                return false;
             }
+        }
+    }
 
-            int amountToRead = headerBuffer[headerLength - 1] == '\r' ? 1 :
-                tokenCount * 2;
-            try {
-                /* 2 = 1 for the min token size and 1 is for the separator ' '
-                 * or "\r\n"
-                 */
-                int n = is.read(headerBuffer, amountRead, amountToRead);
+    private boolean processCoreFrame(InputStream is)
+        throws SessionAbortedException, BEEPException, IOException
+    {
+        Frame f = super.createFrame(header);
+        BufferPool pool = config.getBufferPool();
+        BufferSegment segment;
 
-                if (n == -1) {
-                    throw new SessionAbortedException();
-                }
+        if (pool != null) {
+            segment = pool.allocate(f.getSize());
+        } else {
+            segment = new BufferSegment(new byte[f.getSize()]);
+        }
 
-                if (n == 0) {
-                    continue;
-                }
+        byte[] payload = segment.getData();
+        int offset = segment.getOffset();
+        int length = segment.getLength();
 
-                amountRead += n;
+        int count = Math.min(readLimit - readOffset, length);
+        System.arraycopy(readBuffer, readOffset, payload, offset, count);
+        readOffset += count;
 
+        // The read buffer is empty, read the rest directly into the payload
+        while (count < length) {
+            int n;
+
+            try {
+                n = is.read(payload, offset + count, length - count);
             } catch (java.net.SocketException e) {
                 if (running) {
                     throw e;
                 }
 
-                // socket closed intentionally (session closing)
-                // so just return
-                return;
+                return false;
+            }
+
+            if (n == -1) {
+                throw new SessionAbortedException();
             }
+            count += n;
         }
 
-        // Process the header
-        HeaderParser header = new HeaderParser(headerBuffer,
-                                               headerLength - CRLF.length());
-        
-        char[] type = header.parseType();
-        if (java.util.Arrays.equals(type, MESSAGE_TYPE_SEQ) == false) {
-            throw new BEEPException("Malformed BEEP header");
+        if (log.isTraceEnabled()) {
+            log.trace(new String(payload, offset, length));
         }
 
-        int channelNum = header.parseInt();
-        long ackNum = header.parseUnsignedInt();
-        int window = header.parseInt();
+        while (readLimit - readOffset < Frame.TRAILER.length()) {
+            if (fill(is) == false) {
+                return false;
+            }
+        }
 
-        if (header.hasMoreTokens()) {
-            throw new BEEPException("Malformed BEEP Header");
+        for (int i = 0; i < Frame.TRAILER.length(); ++i) {
+            if (readBuffer[readOffset++] != ((byte) Frame.TRAILER.charAt(i))) {
+                throw new BEEPException("Malformed BEEP frame, "
+                                        + "invalid trailer");
+            }
+        }
+
+        f.addPayload(segment);
+
+        return super.postFrame(f);
+    }
+
+    private void processSEQFrame() throws BEEPException
+    {
+        int channelNum = header.getChannel();
+        long ackNum = header.getAckno();
+        int window = header.getWindow();
+
+        if (log.isDebugEnabled()) {
+            log.debug("Read: SEQ " + channelNum + " " + ackNum + " " + window);
         }
-        log.debug("Read: SEQ " + channelNum + " " + ackNum + " " + window);
 
         // update the channel with the new receive window size
         this.updatePeerReceiveBufferSize(channelNum, ackNum, window);
     }
     
+    private static synchronized ThreadFactory getVirtualThreadFactory()
+    {
+        if (virtualThreadFactory == null) {
+            virtualThreadFactory = VirtualThreads.newThreadFactory(THREAD_NAME);
+        }
+
+        return virtualThreadFactory;
+    }
+
+    private static synchronized Executor getVirtualCallbackExecutor()
+    {
+        if (virtualCallbackExecutor == null) {
+            virtualCallbackExecutor =
+                VirtualThreads.newExecutor("TCPSession Callback #");
+        }
+
+        return virtualCallbackExecutor;
+    }
+
     private static class SessionAbortedException extends Exception {
     }
 }
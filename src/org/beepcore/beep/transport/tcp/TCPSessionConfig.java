@@ -0,0 +1,344 @@
+/*
+ * TCPSessionConfig.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.transport.tcp;
+
+
+import java.util.concurrent.Executor;
+
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.ReceiveBudget;
+import org.beepcore.beep.core.SpillPolicy;
+import org.beepcore.beep.util.BufferPool;
+
+/**
+ * Options controlling how a <code>TCPSession</code> uses its socket. A
+ * configuration may be passed to the <code>TCPSessionCreator</code>
+ * methods; sessions created without one use the defaults. Sessions
+ * created by a tuning reset inherit the configuration of the session
+ * they replace.
+ *
+ * @see TCPSessionCreator
+ */
+public class TCPSessionConfig implements Cloneable {
+
+    static final TCPSessionConfig DEFAULT = new TCPSessionConfig();
+
+    public static final int DEFAULT_MAX_FRAME_SIZE = 1400;
+
+    private boolean asyncWriter = false;
+    private boolean virtualThreads = false;
+    private boolean asyncReplies = false;
+    private boolean tcpNoDelay = false;
+    private int concurrentRequests = 1;
+    private BufferPool bufferPool = null;
+    private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private SpillPolicy spillPolicy = null;
+    private int maxReceiveWindowSize = 0;
+    private long receiveBudget = 0;
+    private ReceiveBudget sharedReceiveBudget = null;
+    private Executor callbackExecutor = null;
+
+    public TCPSessionConfig()
+    {
+    }
+
+    /**
+     * Returns <code>true</code> if frames are written by a separate
+     * writer thread.
+     */
+    public boolean isAsyncWriter()
+    {
+        return asyncWriter;
+    }
+
+    /**
+     * When enabled frames and SEQs are queued for a per-session writer
+     * thread which coalesces everything queued into a single write, so
+     * threads sending messages do not block on the socket until a bounded
+     * amount of data is waiting to be written. Disabled by default.
+     */
+    public void setAsyncWriter(boolean asyncWriter)
+    {
+        this.asyncWriter = asyncWriter;
+    }
+
+    /**
+     * Returns <code>true</code> if replies are passed to their listeners
+     * on the callback executor.
+     */
+    public boolean isAsyncReplies()
+    {
+        return asyncReplies;
+    }
+
+    /**
+     * When enabled <code>ReplyListener</code>s are notified on the
+     * session's callback executor instead of the thread reading the
+     * socket, so a listener which takes its time only delays the replies
+     * of its own channel. Each channel's listeners are still notified
+     * one at a time in the order the replies arrive. Disabled by
+     * default.
+     */
+    public void setAsyncReplies(boolean asyncReplies)
+    {
+        this.asyncReplies = asyncReplies;
+    }
+
+    /**
+     * Returns <code>true</code> if Nagle's algorithm is disabled on the
+     * session's socket.
+     */
+    public boolean isTcpNoDelay()
+    {
+        return tcpNoDelay;
+    }
+
+    /**
+     * When enabled the session sets <code>TCP_NODELAY</code> on its
+     * socket. A SEQ held back by Nagle's algorithm until the peer's
+     * delayed ACK can stall a sender waiting for the window, which hurts
+     * sessions exchanging many small windows, such as those of
+     * <code>Channel.sendMSGAnswers</code>. Disabled by default.
+     */
+    public void setTcpNoDelay(boolean tcpNoDelay)
+    {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    /**
+     * Returns how many <code>MSG</code>s a channel may process at once.
+     */
+    public int getConcurrentRequests()
+    {
+        return concurrentRequests;
+    }
+
+    /**
+     * Lets a channel call its <code>RequestHandler</code> for up to
+     * <code>requests</code> received <code>MSG</code>s at once on the
+     * callback executor, instead of waiting for each to be answered
+     * before handing over the next. Replies still go out in msgno order
+     * as BEEP requires: those sent early are held until the earlier
+     * <code>MSG</code>s have been answered. The handler must be safe to
+     * call from several threads. Defaults to 1.
+     */
+    public void setConcurrentRequests(int requests)
+    {
+        if (requests < 1) {
+            throw new IllegalArgumentException("requests < 1");
+        }
+        this.concurrentRequests = requests;
+    }
+
+    /**
+     * Returns <code>true</code> if the session's threads should be
+     * virtual threads.
+     */
+    public boolean isVirtualThreads()
+    {
+        return virtualThreads;
+    }
+
+    /**
+     * When enabled the session's reader (and writer) run on virtual
+     * threads and <code>RequestHandler.receiveMSG</code> is called on a
+     * new virtual thread instead of the shared callback pool. Reply
+     * listeners are called by the reader so they also run on a virtual
+     * thread. Requires Java 21; on older JVMs platform threads are used.
+     * Disabled by default.
+     */
+    public void setVirtualThreads(boolean virtualThreads)
+    {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Returns the pool received payloads are allocated from, or
+     * <code>null</code> if each payload is a new array.
+     */
+    public BufferPool getBufferPool()
+    {
+        return bufferPool;
+    }
+
+    /**
+     * Sets a pool to read received payloads into instead of allocating
+     * an array for each frame. The pool may be shared by many sessions.
+     * With a pool the segments returned by <code>InputDataStream</code>
+     * are only valid until the next segment is requested or the stream
+     * is closed, applications must copy data they keep longer. Streams
+     * should be closed once they have been read. Not set by default.
+     */
+    public void setBufferPool(BufferPool bufferPool)
+    {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Returns the largest payload the session puts in a frame.
+     */
+    public int getMaxFrameSize()
+    {
+        return maxFrameSize;
+    }
+
+    /**
+     * Sets the largest payload the session puts in a frame, the default
+     * approximates an ethernet packet. Frames are also limited by the
+     * peer's window. Larger frames cut the per frame overhead of bulk
+     * transfers, in particular of a <code>FileOutputDataStream</code>
+     * whose payload is sent with <code>transferTo</code>.
+     */
+    public void setMaxFrameSize(int maxFrameSize)
+    {
+        if (maxFrameSize < 1) {
+            throw new IllegalArgumentException("maxFrameSize < 1");
+        }
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Returns the policy for writing received payloads to disk, or
+     * <code>null</code> if they are kept in memory.
+     */
+    public SpillPolicy getSpillPolicy()
+    {
+        return spillPolicy;
+    }
+
+    /**
+     * Sets a policy for writing received payloads to temporary files
+     * once a message, or the session, holds more than a threshold in
+     * memory. The application reads them back from the
+     * <code>InputDataStream</code> as usual. This lets channels use large
+     * windows without the session holding a window of each message on
+     * the heap. Not set by default.
+     */
+    public void setSpillPolicy(SpillPolicy spillPolicy)
+    {
+        this.spillPolicy = spillPolicy;
+    }
+
+    /**
+     * Returns the largest receive window auto-tuning may advertise, or 0
+     * if windows are not auto-tuned.
+     */
+    public int getMaxReceiveWindowSize()
+    {
+        return maxReceiveWindowSize;
+    }
+
+    /**
+     * Turns on auto-tuning of channel receive windows, up to
+     * <code>size</code> bytes. A window grows while the peer is waiting
+     * for it to open and the application keeps up, and shrinks when the
+     * application falls behind, so long, fast links are not limited by
+     * the 4k default window. Channels whose size is set with
+     * <code>setReceiveBufferSize</code> are not tuned. 0, the default,
+     * turns auto-tuning off.
+     */
+    public void setMaxReceiveWindowSize(int size)
+    {
+        if (size != 0 && size < Channel.DEFAULT_WINDOW_SIZE) {
+            throw new IllegalArgumentException("size < " +
+                                               Channel.DEFAULT_WINDOW_SIZE);
+        }
+        this.maxReceiveWindowSize = size;
+    }
+
+    /**
+     * Returns the bytes each session's receive windows may hold, or 0
+     * if there is no limit per session.
+     */
+    public long getReceiveBudget()
+    {
+        return receiveBudget;
+    }
+
+    /**
+     * Limits the bytes the receive windows of each session's channels
+     * may hold together, what has been received and not yet read plus
+     * what the peer has been told it may send. Once the limit is reached
+     * windows are advertised smaller than their receive buffer size, down
+     * to 4k, so a peer opening many channels can not pin a large window
+     * for each. 0, the default, means no limit.
+     *
+     * @see ReceiveBudget
+     */
+    public void setReceiveBudget(long bytes)
+    {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("bytes < 0");
+        }
+        this.receiveBudget = bytes;
+    }
+
+    /**
+     * Returns the budget shared by the sessions, or <code>null</code>.
+     */
+    public ReceiveBudget getSharedReceiveBudget()
+    {
+        return sharedReceiveBudget;
+    }
+
+    /**
+     * Sets a budget the receive windows of all sessions created with
+     * this configuration are reserved from, for instance one for the
+     * whole process, which may also watch the heap with
+     * <code>ReceiveBudget.watchHeap</code>. Not set by default.
+     */
+    public void setSharedReceiveBudget(ReceiveBudget budget)
+    {
+        this.sharedReceiveBudget = budget;
+    }
+
+    /**
+     * Returns the executor for the sessions' callbacks, or
+     * <code>null</code>.
+     */
+    public Executor getCallbackExecutor()
+    {
+        return callbackExecutor;
+    }
+
+    /**
+     * Sets the <code>Executor</code> calling the
+     * <code>RequestHandler</code>s, and with <code>setAsyncReplies</code>
+     * the <code>ReplyListener</code>s, of the channels of sessions created
+     * with this configuration. Each channel's callbacks are still made
+     * one at a time. Profiles with their own executor in the
+     * <code>ProfileRegistry</code> use that instead. Not set by default,
+     * which uses a pool shared by all sessions, or new virtual threads
+     * with <code>setVirtualThreads</code>.
+     *
+     * @see org.beepcore.beep.core.CallbackExecutor
+     * @see org.beepcore.beep.core.ProfileRegistry#setCallbackExecutor
+     */
+    public void setCallbackExecutor(Executor executor)
+    {
+        this.callbackExecutor = executor;
+    }
+
+    public Object clone()
+    {
+        try {
+            return super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new InternalError();
+        }
+    }
+}
@@ -21,14 +21,30 @@ package org.beepcore.beep.transport.tcp;
 import java.io.IOException;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.ServerSocket;
 import java.net.UnknownHostException;
 
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
 import java.util.Hashtable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 import org.beepcore.beep.core.BEEPException;
 import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.transport.nio.NIOEventLoop;
 
 
 /**
@@ -51,9 +67,14 @@ public class TCPSessionCreator {
     private static final String ERR_BIND_FAILURE = "Bind Failed";
     private static final String ERR_CONNECT_FAILURE = "Connect Failed";
     private static final String ERR_LISTEN_FAILURE = "Accept Failed";
+    private static final String ERR_UNKNOWN_HOST =
+        "Unable to connect, unkown host";
+    private static final int MAX_WORKER_THREADS = 4;
 
     // Data
     private static Hashtable listenerSockets = null;
+    private static ThreadPoolExecutor workers = null;
+    private static NIOEventLoop connector = null;
 
     /**
      * Method initiate
@@ -69,7 +90,7 @@ public class TCPSessionCreator {
             throws BEEPException
     {
         try {
-            return TCPSession.createInitiator(new Socket(host, port),
+            return TCPSession.createInitiator(connect(host, port),
                                               new ProfileRegistry());
         } catch (IOException x) {
             throw new BEEPException(x);
@@ -92,10 +113,33 @@ public class TCPSessionCreator {
                                       ProfileRegistry registry,
                                       String servername)
             throws BEEPException
+    {
+        return initiate(host, port, registry, servername,
+                        TCPSessionConfig.DEFAULT);
+    }
+
+    /**
+     * Method initiate
+     *
+     *
+     * @param host
+     * @param port
+     * @param registry
+     * @param servername
+     * @param config
+     *
+     * @throws BEEPException
+     *
+     */
+    public static TCPSession initiate(InetAddress host, int port,
+                                      ProfileRegistry registry,
+                                      String servername,
+                                      TCPSessionConfig config)
+            throws BEEPException
     {
         try {
-            return TCPSession.createInitiator(new Socket(host, port),
-                                              registry, servername);
+            return TCPSession.createInitiator(connect(host, port),
+                                              registry, servername, config);
         } catch (IOException x) {
             throw new BEEPException(x);
         }
@@ -174,6 +218,144 @@ public class TCPSessionCreator {
         }
     }
 
+    public static TCPSession initiate(String host, int port,
+                                      ProfileRegistry registry,
+                                      String servername,
+                                      TCPSessionConfig config)
+        throws BEEPException
+    {
+        try {
+            return initiate(InetAddress.getByName(host), port, registry,
+                            servername, config);
+        } catch (UnknownHostException x) {
+            throw new BEEPException("Unable to connect, unkown host");
+        }
+    }
+
+    /**
+     * Initiates a session without blocking the calling thread. The host
+     * name is resolved on a small shared pool, the connection is made with
+     * a non-blocking connect and the greeting exchange completes on the
+     * session's reader, so no thread waits for any of these steps.
+     *
+     * @return a future completed with the session once it is active, or
+     *         exceptionally with a <code>BEEPException</code>
+     *
+     * @param host
+     * @param port
+     * @param registry
+     * @param servername
+     * @param config
+     */
+    public static CompletableFuture<Session>
+        initiateAsync(final String host, final int port,
+                      final ProfileRegistry registry,
+                      final String servername,
+                      final TCPSessionConfig config)
+    {
+        final CompletableFuture<InetAddress> address =
+            new CompletableFuture<InetAddress>();
+
+        getWorkers().execute(new Runnable() {
+                public void run() {
+                    try {
+                        address.complete(InetAddress.getByName(host));
+                    } catch (UnknownHostException x) {
+                        address.completeExceptionally(
+                            new BEEPException(ERR_UNKNOWN_HOST));
+                    }
+                }
+            });
+
+        return address.thenCompose(
+            new Function<InetAddress, CompletionStage<Session>>() {
+                public CompletionStage<Session> apply(InetAddress addr) {
+                    return initiateAsync(addr, port, registry, servername,
+                                         config);
+                }
+            });
+    }
+
+    /**
+     * Initiates a session without blocking the calling thread.
+     *
+     * @return a future completed with the session once it is active, or
+     *         exceptionally with a <code>BEEPException</code>
+     *
+     * @param host
+     * @param port
+     * @param registry
+     * @param servername
+     * @param config
+     *
+     * @see #initiateAsync(String, int, ProfileRegistry, String,
+     *                     TCPSessionConfig)
+     */
+    public static CompletableFuture<Session>
+        initiateAsync(InetAddress host, int port,
+                      final ProfileRegistry registry,
+                      final String servername,
+                      final TCPSessionConfig config)
+    {
+        final SocketChannel channel;
+        final CompletableFuture<SocketChannel> connected =
+            new CompletableFuture<SocketChannel>();
+
+        try {
+            channel = SocketChannel.open();
+        } catch (IOException x) {
+            CompletableFuture<Session> f = new CompletableFuture<Session>();
+            f.completeExceptionally(new BEEPException(x));
+            return f;
+        }
+
+        try {
+            channel.configureBlocking(false);
+            if (channel.connect(new InetSocketAddress(host, port))) {
+                channel.configureBlocking(true);
+                connected.complete(channel);
+            } else {
+                getConnector().register(channel, SelectionKey.OP_CONNECT,
+                                        new ConnectHandler(channel,
+                                                           connected));
+            }
+        } catch (Exception x) {
+            connected.completeExceptionally(new BEEPException(x));
+        }
+
+        /* The connect completes on the connector loop which must not
+         * block writing the greeting or wait for a reader thread to start.
+         */
+        Executor executor = config.getCallbackExecutor();
+
+        if (executor == null) {
+            executor = getWorkers();
+        }
+
+        CompletableFuture<Session> session = connected.thenComposeAsync(
+            new Function<SocketChannel, CompletionStage<Session>>() {
+                public CompletionStage<Session> apply(SocketChannel c) {
+                    return TCPSession.createInitiatorAsync(c.socket(),
+                                                           registry,
+                                                           servername,
+                                                           config);
+                }
+            }, executor);
+
+        session.whenComplete(new BiConsumer<Session, Throwable>() {
+                public void accept(Session s, Throwable error) {
+                    if (error != null) {
+                        try {
+                            channel.close();
+                        } catch (IOException x) {
+                        }
+                    }
+                }
+            });
+
+        return session;
+    }
+
     /**
      * Method listen
      *
@@ -192,6 +374,26 @@ public class TCPSessionCreator {
         return listen(temp, port, registry);
     }
 
+    /**
+     * Method listen
+     *
+     *
+     * @param port
+     * @param registry
+     * @param config
+     *
+     * @throws BEEPException
+     *
+     */
+    public static TCPSession listen(int port, ProfileRegistry registry,
+                                    TCPSessionConfig config)
+            throws BEEPException
+    {
+        InetAddress temp = null;
+
+        return listen(temp, port, registry, config);
+    }
+
     /**
      * Method listen
      *
@@ -206,6 +408,27 @@ public class TCPSessionCreator {
     public static TCPSession listen(InetAddress localInterface, int port,
                                     ProfileRegistry registry)
             throws BEEPException
+    {
+        return listen(localInterface, port, registry,
+                      TCPSessionConfig.DEFAULT);
+    }
+
+    /**
+     * Method listen
+     *
+     *
+     * @param localInterface
+     * @param port
+     * @param registry
+     * @param config
+     *
+     * @throws BEEPException
+     *
+     */
+    public static TCPSession listen(InetAddress localInterface, int port,
+                                    ProfileRegistry registry,
+                                    TCPSessionConfig config)
+            throws BEEPException
     {
         ServerSocket socket = null;
         Socket peer = null;
@@ -221,12 +444,11 @@ public class TCPSessionCreator {
 
             // Bind to interface/port pair
             try {
-                if (localInterface == null) {
-                    socket = new ServerSocket(port, DEFAULT_BACKLOG_SIZE);
-                } else {
-                    socket = new ServerSocket(port, DEFAULT_BACKLOG_SIZE,
-                                              localInterface);
-                }
+                // Use a channel so accepted sockets support gathering
+                // writes
+                socket = ServerSocketChannel.open().socket();
+                socket.bind(new InetSocketAddress(localInterface, port),
+                            DEFAULT_BACKLOG_SIZE);
 
                 listenerSockets.put(Integer.toString(port), socket);
             } catch (Exception x) {
@@ -238,7 +460,7 @@ public class TCPSessionCreator {
         try {
             peer = socket.accept();
 
-            return TCPSession.createListener(peer, registry);
+            return TCPSession.createListener(peer, registry, config);
         } catch (Exception e) {
             throw new BEEPException(e);
         }
@@ -271,4 +493,106 @@ public class TCPSessionCreator {
             throw new BEEPException(x);
         }
     }
+
+    /**
+     * Connects a socket backed by a <code>SocketChannel</code>, which
+     * allows <code>TCPSession</code> to write frames without copying them.
+     */
+    private static Socket connect(InetAddress host, int port)
+        throws IOException
+    {
+        return SocketChannel.open(new InetSocketAddress(host, port)).socket();
+    }
+
+    /**
+     * Returns the pool resolving host names and creating the sessions of
+     * <code>initiateAsync</code> whose configuration has no callback
+     * executor, keeping both off the caller's thread and the connector.
+     */
+    private static synchronized ThreadPoolExecutor getWorkers()
+    {
+        if (workers == null) {
+            workers = new ThreadPoolExecutor(MAX_WORKER_THREADS,
+                                             MAX_WORKER_THREADS,
+                                             60, TimeUnit.SECONDS,
+                                             new LinkedBlockingQueue());
+            workers.allowCoreThreadTimeOut(true);
+            workers.setThreadFactory(new ThreadFactory() {
+                    private int count = 0;
+
+                    public synchronized Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "TCPSessionCreator Worker #"
+                                              + count++);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+
+        return workers;
+    }
+
+    private static synchronized NIOEventLoop getConnector()
+        throws BEEPException
+    {
+        if (connector == null) {
+            try {
+                connector = new NIOEventLoop();
+            } catch (IOException x) {
+                throw new BEEPException(x);
+            }
+        }
+
+        return connector;
+    }
+
+    /**
+     * Completes a non-blocking connect on the connector loop and switches
+     * the channel back to blocking mode for use by a
+     * <code>TCPSession</code>.
+     */
+    private static class ConnectHandler implements NIOEventLoop.Handler {
+        private final SocketChannel channel;
+        private final CompletableFuture<SocketChannel> connected;
+
+        ConnectHandler(SocketChannel channel,
+                       CompletableFuture<SocketChannel> connected)
+        {
+            this.channel = channel;
+            this.connected = connected;
+        }
+
+        public void registered(SelectionKey key)
+        {
+        }
+
+        public void ready(SelectionKey key)
+        {
+            try {
+                if (channel.finishConnect() == false) {
+                    return;
+                }
+            } catch (IOException x) {
+                key.cancel();
+                connected.completeExceptionally(new BEEPException(x));
+                return;
+            }
+
+            // The channel can only be made blocking once the cancelled
+            // key has been deregistered by the next selection.
+            key.cancel();
+            connector.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            channel.configureBlocking(true);
+                        } catch (IOException x) {
+                            connected.completeExceptionally(
+                                new BEEPException(x));
+                            return;
+                        }
+                        connected.complete(channel);
+                    }
+                });
+        }
+    }
 }
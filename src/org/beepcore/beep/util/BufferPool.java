@@ -0,0 +1,208 @@
+/*
+ * BufferPool.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.util;
+
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A pool of large byte arrays (slabs) which received payloads are carved
+ * out of.
+ * <p>
+ * <code>allocate</code> returns a <code>BufferSegment</code> for the next
+ * free range of the current slab. Each slab counts the segments carved
+ * out of it which have not been released, once the pool has moved on to
+ * another slab and every segment has been released the slab is put back
+ * on a free list to be reused. A slab with segments which are never
+ * released is not reused but is garbage collected as usual once the
+ * segments are no longer referenced.
+ * <p>
+ * Requests larger than a quarter of the slab size are not pooled. A pool
+ * is thread safe and may be shared by any number of sessions.
+ *
+ * @see BufferSegment#release
+ */
+public class BufferPool {
+
+    public static final int DEFAULT_SLAB_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_FREE_SLABS = 64;
+
+    private final int slabSize;
+    private final int maxFreeSlabs;
+    private final int maxPooledLength;
+
+    private final ConcurrentLinkedQueue<Slab> free =
+        new ConcurrentLinkedQueue<Slab>();
+    private final AtomicInteger freeCount = new AtomicInteger();
+    private final AtomicInteger slabsCreated = new AtomicInteger();
+
+    private Slab current;
+
+    public BufferPool()
+    {
+        this(DEFAULT_SLAB_SIZE, DEFAULT_MAX_FREE_SLABS);
+    }
+
+    /**
+     * @param slabSize the size of the arrays segments are carved from
+     * @param maxFreeSlabs the number of unused slabs kept for reuse
+     */
+    public BufferPool(int slabSize, int maxFreeSlabs)
+    {
+        if (slabSize < 1) {
+            throw new IllegalArgumentException("slabSize < 1");
+        }
+
+        this.slabSize = slabSize;
+        this.maxFreeSlabs = maxFreeSlabs;
+        this.maxPooledLength = slabSize / 4;
+    }
+
+    /**
+     * Returns a segment of <code>length</code> bytes. The contents of the
+     * segment are undefined. The segment must be released once its data
+     * is no longer needed for the memory to be reused.
+     */
+    public BufferSegment allocate(int length)
+    {
+        if (length > maxPooledLength) {
+            return new BufferSegment(new byte[length]);
+        }
+
+        synchronized (this) {
+            Slab slab = current;
+
+            if (slab == null || slabSize - slab.position < length) {
+                if (slab != null) {
+                    // the pool no longer allocates from it
+                    slab.release();
+                }
+
+                slab = takeSlab();
+                current = slab;
+            }
+
+            int offset = slab.position;
+
+            slab.position += length;
+            slab.refs.incrementAndGet();
+
+            return new PooledSegment(slab, offset, length);
+        }
+    }
+
+    /**
+     * Returns the number of slabs this pool has created. This stays flat
+     * once the pool reaches a steady state.
+     */
+    public int getSlabsCreated()
+    {
+        return slabsCreated.get();
+    }
+
+    /**
+     * Returns the number of slabs waiting to be reused.
+     */
+    public int getFreeSlabs()
+    {
+        return freeCount.get();
+    }
+
+    public int getSlabSize()
+    {
+        return slabSize;
+    }
+
+    private Slab takeSlab()
+    {
+        Slab slab = free.poll();
+
+        if (slab == null) {
+            slabsCreated.incrementAndGet();
+            slab = new Slab(new byte[slabSize]);
+        } else {
+            freeCount.decrementAndGet();
+        }
+
+        slab.position = 0;
+        slab.refs.set(1);
+
+        return slab;
+    }
+
+    private void recycle(Slab slab)
+    {
+        if (freeCount.incrementAndGet() > maxFreeSlabs) {
+            freeCount.decrementAndGet();
+            return;
+        }
+
+        free.add(slab);
+    }
+
+    private class Slab {
+        final byte[] data;
+        final AtomicInteger refs = new AtomicInteger();
+        int position;
+
+        Slab(byte[] data)
+        {
+            this.data = data;
+        }
+
+        void release()
+        {
+            if (refs.decrementAndGet() == 0) {
+                recycle(this);
+            }
+        }
+    }
+
+    private static class PooledSegment extends BufferSegment {
+        private Slab slab;
+
+        PooledSegment(Slab slab, int offset, int length)
+        {
+            super(slab.data, offset, length);
+            this.slab = slab;
+        }
+
+        /**
+         * Also drops the reference to the slab's array so a segment used
+         * after it has been released fails rather than reading bytes the
+         * slab now holds for another segment.
+         */
+        public void release()
+        {
+            Slab s;
+
+            synchronized (this) {
+                s = slab;
+                slab = null;
+                if (s != null) {
+                    set((byte[]) null, getOffset(), getLength());
+                }
+            }
+
+            if (s != null) {
+                s.release();
+            }
+        }
+    }
+}
@@ -16,12 +16,21 @@
  */
 package org.beepcore.beep.util;
 
+import java.nio.ByteBuffer;
+
 /**
  * A <code>BufferSegment</code> represents a BEEP Frame payload and holds
  * the BEEP Frames's Header, Trailer and the message payload.
  *
  * It contains a byte array an offset into the array and the
  * length from the offset.
+ * <p>
+ * A segment may instead be backed by a <code>ByteBuffer</code>, such as
+ * a direct buffer or a mapped file, in which case
+ * <code>hasArray()</code> returns <code>false</code>. The bytes of such
+ * a segment are best accessed with <code>asByteBuffer()</code>,
+ * <code>get</code> or <code>copyTo</code>; <code>getData()</code> copies
+ * them onto the heap.
  *
  * @author Huston Franklin
  * @version $Revision: 1.3 $, $Date: 2001/11/23 15:10:56 $
@@ -55,14 +64,128 @@ public class BufferSegment {
         this.length = length;
     }
 
+    /**
+     * Constructor BufferSegment
+     *
+     * @param buffer A buffer containing a BEEP Frame payload between its
+     * position and limit. The buffer's position and limit are not
+     * changed.
+     */
+    public BufferSegment(ByteBuffer buffer)
+    {
+        if (buffer.hasArray()) {
+            this.data = buffer.array();
+            this.offset = buffer.arrayOffset() + buffer.position();
+        } else {
+            this.buffer = buffer;
+            this.offset = buffer.position();
+        }
+        this.length = buffer.remaining();
+    }
+
+    private BufferSegment(byte[] data, ByteBuffer buffer, int offset,
+                          int length)
+    {
+        this.data = data;
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Returns a new segment for <code>length</code> bytes of this
+     * segment starting <code>offset</code> bytes into it. The bytes are
+     * shared, not copied.
+     */
+    public BufferSegment slice(int offset, int length)
+    {
+        return new BufferSegment(this.data, this.buffer,
+                                 this.offset + offset, length);
+    }
+
+    /**
+     * Same as <code>slice(int, int)</code> except that, where possible,
+     * <code>segment</code> is pointed at the bytes and returned instead
+     * of a new segment being created.
+     */
+    public BufferSegment slice(int offset, int length, BufferSegment segment)
+    {
+        segment.set(this, offset, length);
+        return segment;
+    }
+
+    /**
+     * Points this segment at a different range of bytes. This is only
+     * for segments which are not shared, such as those a
+     * <code>Frame</code> reuses for each frame a channel sends.
+     */
+    public void set(byte[] data, int offset, int length)
+    {
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+        this.buffer = null;
+        this.copy = null;
+    }
+
+    /**
+     * Points this segment at <code>length</code> bytes of
+     * <code>segment</code> starting <code>offset</code> bytes into it.
+     *
+     * @see #set(byte[], int, int)
+     */
+    public void set(BufferSegment segment, int offset, int length)
+    {
+        this.data = segment.data;
+        this.offset = segment.offset + offset;
+        this.length = length;
+        this.buffer = segment.buffer;
+        this.copy = null;
+    }
+
+    /**
+     * Called once the data in this segment is no longer needed. Segments
+     * allocated from a <code>BufferPool</code> return their memory to
+     * the pool, for other segments this does nothing. The data must not
+     * be used after the segment has been released.
+     *
+     * @see BufferPool
+     */
+    public void release()
+    {
+    }
+
+    /**
+     * Returns <code>true</code> if the bytes of this segment are in the
+     * array returned by <code>getData()</code>, <code>false</code> if
+     * <code>getData()</code> has to copy them.
+     */
+    public boolean hasArray()
+    {
+        return this.buffer == null;
+    }
+
+    /**
+     * Returns the array holding the bytes of this segment. For a
+     * segment backed by a buffer without an accessible array the bytes
+     * are copied into a new array the first time this is called.
+     */
     public byte[] getData()
     {
-        return this.data;
+        if (this.buffer == null) {
+            return this.data;
+        }
+
+        if (this.copy == null) {
+            this.copy = new byte[this.length];
+            copyTo(0, this.copy, 0, this.length);
+        }
+        return this.copy;
     }
 
     public int getOffset()
     {
-        return this.offset;
+        return this.buffer == null ? this.offset : 0;
     }
 
     public int getLength()
@@ -70,8 +193,76 @@ public class BufferSegment {
         return this.length;
     }
 
+    /**
+     * Returns the byte at <code>index</code> from the start of this
+     * segment.
+     */
+    public byte get(int index)
+    {
+        if (this.buffer == null) {
+            return this.data[this.offset + index];
+        }
+        return this.buffer.get(this.offset + index);
+    }
+
+    /**
+     * Copies <code>length</code> bytes starting <code>index</code> bytes
+     * into this segment to <code>dst</code>.
+     */
+    public void copyTo(int index, byte[] dst, int dstOffset, int length)
+    {
+        if (this.buffer == null) {
+            System.arraycopy(this.data, this.offset + index, dst, dstOffset,
+                             length);
+            return;
+        }
+
+        ByteBuffer b = this.buffer.duplicate();
+
+        b.position(this.offset + index);
+        b.get(dst, dstOffset, length);
+    }
+
+    /**
+     * Copies <code>length</code> bytes starting <code>index</code> bytes
+     * into this segment to <code>dst</code> at its position.
+     */
+    public void copyTo(int index, ByteBuffer dst, int length)
+    {
+        if (this.buffer == null) {
+            dst.put(this.data, this.offset + index, length);
+            return;
+        }
+
+        ByteBuffer b = this.buffer.duplicate();
+
+        b.limit(this.offset + index + length);
+        b.position(this.offset + index);
+        dst.put(b);
+    }
+
+    /**
+     * Returns a buffer whose position is zero and whose limit is the
+     * length of this segment, sharing this segment's bytes.
+     */
+    public ByteBuffer asByteBuffer()
+    {
+        if (this.buffer == null) {
+            return ByteBuffer.wrap(this.data, this.offset, this.length)
+                .slice();
+        }
+
+        ByteBuffer b = this.buffer.duplicate();
+
+        b.limit(this.offset + this.length);
+        b.position(this.offset);
+        return b.slice();
+    }
+
     private byte[] data;
     private int offset;
     private int length;
+    private ByteBuffer buffer = null;
+    private byte[] copy = null;
 }
 
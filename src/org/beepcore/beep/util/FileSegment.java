@@ -0,0 +1,178 @@
+/*
+ * FileSegment.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.util;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+
+/**
+ * A <code>BufferSegment</code> for a region of a file. The bytes are not
+ * read until they are needed. Transports which write to a channel move
+ * them with <code>transferTo</code>, letting the operating system send
+ * them straight from the file (e.g. with sendfile), others read them as
+ * they copy the frame. Received segments which have been spilled to
+ * disk are also <code>FileSegment</code>s.
+ *
+ * @see org.beepcore.beep.core.FileOutputDataStream
+ * @see org.beepcore.beep.core.SpillPolicy
+ */
+public class FileSegment extends BufferSegment {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final FileChannel file;
+    private final long position;
+    private byte[] copy = null;
+
+    /**
+     * @param file the file to read from, it must remain open until the
+     * segment has been sent
+     * @param position the position in the file of the first byte
+     * @param length the number of bytes
+     */
+    public FileSegment(FileChannel file, long position, int length)
+    {
+        super(EMPTY, 0, length);
+        this.file = file;
+        this.position = position;
+    }
+
+    public FileChannel getFile()
+    {
+        return this.file;
+    }
+
+    public long getPosition()
+    {
+        return this.position;
+    }
+
+    public boolean hasArray()
+    {
+        return false;
+    }
+
+    /**
+     * Reads the bytes of this segment into a new array the first time it
+     * is called.
+     */
+    public byte[] getData()
+    {
+        if (this.copy == null) {
+            byte[] b = new byte[getLength()];
+
+            copyTo(0, b, 0, b.length);
+            this.copy = b;
+        }
+        return this.copy;
+    }
+
+    public int getOffset()
+    {
+        return 0;
+    }
+
+    public byte get(int index)
+    {
+        ByteBuffer b = ByteBuffer.allocate(1);
+
+        read(index, b);
+        return b.get(0);
+    }
+
+    public void copyTo(int index, byte[] dst, int dstOffset, int length)
+    {
+        read(index, ByteBuffer.wrap(dst, dstOffset, length));
+    }
+
+    public void copyTo(int index, ByteBuffer dst, int length)
+    {
+        ByteBuffer b = dst.duplicate();
+
+        b.limit(b.position() + length);
+        read(index, b);
+        dst.position(b.position());
+    }
+
+    /**
+     * Returns a heap buffer holding the bytes of this segment.
+     */
+    public ByteBuffer asByteBuffer()
+    {
+        return ByteBuffer.wrap(getData());
+    }
+
+    public BufferSegment slice(int offset, int length)
+    {
+        return new FileSegment(this.file, this.position + offset, length);
+    }
+
+    /**
+     * Returns a new segment since a reused <code>BufferSegment</code>
+     * cannot refer to a file.
+     */
+    public BufferSegment slice(int offset, int length, BufferSegment segment)
+    {
+        return slice(offset, length);
+    }
+
+    /**
+     * Writes the bytes of this segment to <code>target</code> with
+     * <code>FileChannel.transferTo</code>.
+     */
+    public void transferTo(WritableByteChannel target) throws IOException
+    {
+        long pos = this.position;
+        long end = this.position + getLength();
+
+        while (pos < end) {
+            long n = this.file.transferTo(pos, end - pos, target);
+
+            if (n <= 0 && pos >= this.file.size()) {
+                throw new IOException("File truncated while being sent");
+            }
+            pos += n;
+        }
+    }
+
+    /**
+     * Fills <code>dst</code> with the bytes starting <code>index</code>
+     * bytes into this segment.
+     */
+    private void read(int index, ByteBuffer dst)
+    {
+        long pos = this.position + index;
+
+        try {
+            while (dst.hasRemaining()) {
+                int n = this.file.read(dst, pos);
+
+                if (n < 0) {
+                    throw new IOException("File ends before the segment");
+                }
+                pos += n;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read file segment: "
+                                       + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * VirtualThreads.java  $Revision$ $Date$
+ *
+ * Copyright (c) 2004 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.util;
+
+
+import java.lang.reflect.Method;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Access to virtual threads (Java 21 and later) without requiring them at
+ * compile time. On older JVMs, and on Java 19 and 20 unless preview
+ * features are enabled, <code>isSupported()</code> returns
+ * <code>false</code> and the factory methods throw
+ * <code>UnsupportedOperationException</code>.
+ */
+public class VirtualThreads
+{
+    private static final Method ofVirtual;
+    private static final Method name;
+    private static final Method factory;
+
+    static {
+        Method o = null;
+        Method n = null;
+        Method f = null;
+
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+
+            o = Thread.class.getMethod("ofVirtual", new Class<?>[0]);
+            n = builder.getMethod("name",
+                                  new Class<?>[] {String.class, long.class});
+            f = builder.getMethod("factory", new Class<?>[0]);
+
+            /* The methods exist as a preview API on Java 19 and 20 where
+             * they throw unless preview features are enabled, so build a
+             * factory and an (unstarted) thread to find out.
+             */
+            ThreadFactory probe =
+                (ThreadFactory) f.invoke(o.invoke(null, new Object[0]),
+                                         new Object[0]);
+
+            probe.newThread(new Runnable() {
+                    public void run() {
+                    }
+                });
+        } catch (Exception e) {
+            o = null;
+        }
+
+        ofVirtual = o;
+        name = n;
+        factory = f;
+    }
+
+    private VirtualThreads() {}
+
+    /**
+     * Returns <code>true</code> if this JVM supports virtual threads.
+     */
+    public static boolean isSupported()
+    {
+        return ofVirtual != null;
+    }
+
+    /**
+     * Returns a <code>ThreadFactory</code> creating virtual threads named
+     * <code>prefix</code> followed by a sequence number.
+     */
+    public static ThreadFactory newThreadFactory(String prefix)
+    {
+        if (ofVirtual == null) {
+            throw new UnsupportedOperationException("Virtual threads are not "
+                                                    + "supported by this JVM");
+        }
+
+        try {
+            Object builder = ofVirtual.invoke(null, new Object[0]);
+
+            builder = name.invoke(builder,
+                                  new Object[] {prefix, Long.valueOf(0)});
+
+            return (ThreadFactory) factory.invoke(builder, new Object[0]);
+        } catch (Exception e) {
+            throw new UnsupportedOperationException(e.toString());
+        }
+    }
+
+    /**
+     * Returns an <code>Executor</code> that runs each task on a new
+     * virtual thread.
+     */
+    public static Executor newExecutor(String prefix)
+    {
+        final ThreadFactory threads = newThreadFactory(prefix);
+
+        return new Executor() {
+                public void execute(Runnable task) {
+                    threads.newThread(task).start();
+                }
+            };
+    }
+}
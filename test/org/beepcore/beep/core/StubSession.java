@@ -0,0 +1,140 @@
+/*
+ * StubSession.java
+ *
+ * Copyright (c) 2001 Invisible Worlds, Inc.  All rights reserved.
+ * Copyright (c) 2001 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.beepcore.beep.util.BufferSegment;
+
+/**
+ * A session without a transport. Each frame sent is recorded as a string
+ * holding its header, payload and trailer, and is acknowledged straight
+ * away unless <code>ack</code> is cleared. SEQs are recorded as strings
+ * too, and fail while <code>failSEQ</code> is set.
+ */
+class StubSession extends SessionImpl {
+    /** The frames sent, as strings */
+    final List frames = new ArrayList();
+
+    /** The <code>Frame</code> objects passed to <code>sendFrame</code> */
+    final List sent = new ArrayList();
+
+    /** The SEQs written, as "channel ackno window" */
+    final List seqs = new ArrayList();
+
+    /** Whether sent frames are acknowledged with a full window */
+    boolean ack = true;
+
+    /** Whether writing a SEQ throws */
+    volatile boolean failSEQ = false;
+
+    int maxFrameSize = 1400;
+
+    StubSession() throws BEEPException {
+        super(new ProfileRegistry(), 1, null, null, null, null);
+    }
+
+    /**
+     * Returns a new active channel of this session.
+     */
+    ChannelImpl channel(String number) {
+        ChannelImpl channel = new ChannelImpl(null, number, this);
+
+        channel.setState(ChannelImpl.STATE_ACTIVE);
+
+        return channel;
+    }
+
+    protected void sendFrame(Frame f) throws BEEPException {
+        BufferSegment[] bs = f.getBytes();
+        StringBuffer sb = new StringBuffer();
+
+        for (int i=0; i<bs.length; ++i) {
+            byte[] b = new byte[bs[i].getLength()];
+
+            bs[i].copyTo(0, b, 0, b.length);
+            for (int j=0; j<b.length; ++j) {
+                sb.append((char) (b[j] & 0xff));
+            }
+        }
+
+        synchronized (this) {
+            frames.add(sb.toString());
+            sent.add(f);
+        }
+
+        if (ack) {
+            ((ChannelImpl) f.getChannel())
+                .updatePeerReceiveBufferSize(f.getSeqno() + f.getSize(),
+                                             ChannelImpl.DEFAULT_WINDOW_SIZE);
+        }
+    }
+
+    /**
+     * Returns a frame received on <code>channel</code> holding
+     * <code>payload</code>.
+     */
+    static Frame frame(int messageType, ChannelImpl channel, int msgno,
+                       boolean last, long seqno, String payload, int ansno) {
+        byte[] b = new byte[payload.length()];
+
+        for (int i=0; i<b.length; ++i) {
+            b[i] = (byte) payload.charAt(i);
+        }
+
+        Frame f = new Frame(messageType, channel, msgno, last, seqno,
+                            b.length, ansno);
+        f.addPayload(new BufferSegment(b));
+
+        return f;
+    }
+
+    protected int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    protected boolean updateMyReceiveBufferSize(Channel channel,
+                                                long currentSeq,
+                                                int currentAvail)
+        throws BEEPException {
+        if (failSEQ) {
+            throw new BEEPException("SEQ failed");
+        }
+
+        synchronized (this) {
+            seqs.add(channel.getNumber() + " " + currentSeq + " "
+                     + currentAvail);
+        }
+
+        return true;
+    }
+
+    protected Session reset(SessionCredential localCred,
+                            SessionCredential peerCred,
+                            SessionTuningProperties tuning,
+                            ProfileRegistry registry, Object argument) {
+        return this;
+    }
+
+    protected void disableIO() {
+    }
+
+    protected void enableIO() {
+    }
+}
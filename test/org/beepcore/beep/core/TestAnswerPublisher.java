@@ -0,0 +1,229 @@
+/*
+ * TestAnswerPublisher.java
+ *
+ * Copyright (c) 2001 Invisible Worlds, Inc.  All rights reserved.
+ * Copyright (c) 2001 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+import junit.framework.*;
+
+public class TestAnswerPublisher extends TestCase {
+    // set once the MSGs have been sent, as a window already advertised
+    // can not be taken back
+    private static final int WINDOW_SIZE = 65536;
+
+    protected StubSession session;
+    protected ChannelImpl channel;
+
+    public TestAnswerPublisher(String name) {
+        super(name);
+    }
+
+    public void testWindowLimitedByDemand() throws BEEPException {
+        Recorder r = new Recorder();
+
+        channel.sendMSGAnswers(new StringOutputDataStream("answers"))
+            .subscribe(r);
+        channel.setReceiveBufferSize(WINDOW_SIZE);
+        r.subscription.request(2);
+
+        assertEquals("SEQ", "1 0 8192", lastSEQ());
+    }
+
+    public void testWindowLimitedByEveryPublisher() throws BEEPException {
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+
+        channel.sendMSGAnswers(new StringOutputDataStream("first"))
+            .subscribe(first);
+        channel.sendMSGAnswers(new StringOutputDataStream("second"))
+            .subscribe(second);
+        channel.setReceiveBufferSize(WINDOW_SIZE);
+        first.subscription.request(1);
+        second.subscription.request(2);
+
+        // the answers to the second MSG may follow those to the first
+        assertEquals("SEQ", "1 0 12288", lastSEQ());
+    }
+
+    public void testWindowOpensAfterAnswers() throws BEEPException {
+        Recorder r = new Recorder();
+
+        channel.sendMSGAnswers(new StringOutputDataStream("answers"))
+            .subscribe(r);
+        channel.sendMSGAsync(new StringOutputDataStream("plain"));
+        channel.setReceiveBufferSize(WINDOW_SIZE);
+        r.subscription.request(1);
+        assertEquals("SEQ", "1 0 4096", lastSEQ());
+
+        Frame f = StubSession.frame(Message.MESSAGE_TYPE_ANS, channel, 1,
+                                    true, 0, "\r\nanswer", 0);
+        channel.postFrame(f);
+        channel.postFrame(StubSession.frame(Message.MESSAGE_TYPE_NUL,
+                                            channel, 1, true, f.getSize(),
+                                            "", -1));
+
+        assertEquals("answers", 1, r.received.size());
+        assertTrue("complete", r.complete);
+
+        // the replies to the next MSG are not limited
+        assertEquals("SEQ", "1 " + f.getSize() + " " + WINDOW_SIZE,
+                     lastSEQ());
+    }
+
+    public void testAnswersOnDemand() {
+        AnswerPublisher p = new AnswerPublisher(null, 0);
+        Recorder r = new Recorder();
+
+        p.subscribe(r);
+        p.receiveANS(message(Message.MESSAGE_TYPE_ANS));
+        p.receiveANS(message(Message.MESSAGE_TYPE_ANS));
+        p.receiveNUL(message(Message.MESSAGE_TYPE_NUL));
+        assertEquals("before request", 0, r.received.size());
+
+        r.subscription.request(1);
+        assertEquals("first", 1, r.received.size());
+        assertFalse("complete", r.complete);
+
+        r.subscription.request(1);
+        assertEquals("second", 2, r.received.size());
+        assertTrue("complete", r.complete);
+        assertNull("error", r.error);
+    }
+
+    /**
+     * Rule 3.9: a request of less than one signals onError with an
+     * IllegalArgumentException.
+     */
+    public void testNonPositiveRequest() {
+        AnswerPublisher p = new AnswerPublisher(null, 0);
+        Recorder r = new Recorder();
+        Message ans = message(Message.MESSAGE_TYPE_ANS);
+
+        p.subscribe(r);
+        r.subscription.request(0);
+
+        assertTrue("error", r.error instanceof IllegalArgumentException);
+
+        // the answers still to come are discarded
+        p.receiveANS(ans);
+        p.receiveNUL(message(Message.MESSAGE_TYPE_NUL));
+
+        assertEquals("answers", 0, r.received.size());
+        assertTrue("closed", ans.getDataStream().isClosed());
+        assertFalse("complete", r.complete);
+    }
+
+    public void testCancel() {
+        AnswerPublisher p = new AnswerPublisher(null, 0);
+        Recorder r = new Recorder();
+        Message queued = message(Message.MESSAGE_TYPE_ANS);
+        Message late = message(Message.MESSAGE_TYPE_ANS);
+
+        p.subscribe(r);
+        p.receiveANS(queued);
+        r.subscription.cancel();
+        p.receiveANS(late);
+        p.receiveNUL(message(Message.MESSAGE_TYPE_NUL));
+        r.subscription.request(1);
+
+        assertEquals("answers", 0, r.received.size());
+        assertTrue("queued closed", queued.getDataStream().isClosed());
+        assertTrue("late closed", late.getDataStream().isClosed());
+        assertFalse("complete", r.complete);
+        assertNull("error", r.error);
+    }
+
+    public void testCancelOpensWindow() throws BEEPException {
+        Recorder r = new Recorder();
+
+        channel.sendMSGAnswers(new StringOutputDataStream("answers"))
+            .subscribe(r);
+        channel.setReceiveBufferSize(WINDOW_SIZE);
+        assertEquals("SEQ", "1 0 4096", lastSEQ());
+
+        r.subscription.cancel();
+        assertEquals("SEQ", "1 0 " + WINDOW_SIZE, lastSEQ());
+    }
+
+    public void testSecondSubscriber() {
+        AnswerPublisher p = new AnswerPublisher(null, 0);
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+
+        p.subscribe(first);
+        p.subscribe(second);
+
+        assertNull("first", first.error);
+        assertNotNull("subscription", second.subscription);
+        assertTrue("second", second.error instanceof IllegalStateException);
+    }
+
+    private Message message(int messageType) {
+        InputDataStream data = new InputDataStream();
+
+        data.setComplete();
+
+        return new MessageImpl(channel, 1, data, messageType);
+    }
+
+    private String lastSEQ() {
+        return (String) session.seqs.get(session.seqs.size() - 1);
+    }
+
+    /**
+     * Records what it is given and closes the answers at once.
+     */
+    static class Recorder implements Flow.Subscriber<Message> {
+        Flow.Subscription subscription;
+        final List received = new ArrayList();
+        Throwable error;
+        boolean complete;
+
+        public void onSubscribe(Flow.Subscription s) {
+            subscription = s;
+        }
+
+        public void onNext(Message m) {
+            received.add(m);
+            m.getDataStream().close();
+        }
+
+        public void onError(Throwable e) {
+            error = e;
+        }
+
+        public void onComplete() {
+            complete = true;
+        }
+    }
+
+    protected void setUp() throws BEEPException {
+        session = new StubSession();
+        channel = session.channel("1");
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestAnswerPublisher.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}
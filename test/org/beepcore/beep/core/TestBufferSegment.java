@@ -0,0 +1,201 @@
+/*
+ * TestBufferSegment.java
+ *
+ * Copyright (c) 2001 Invisible Worlds, Inc.  All rights reserved.
+ * Copyright (c) 2001 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+
+import org.beepcore.beep.util.BufferSegment;
+import org.beepcore.beep.util.FileSegment;
+
+import junit.framework.*;
+
+public class TestBufferSegment extends TestCase {
+    private static final String TEXT = "hello world";
+
+    protected File file;
+    protected RandomAccessFile raf;
+
+    public TestBufferSegment(String name) {
+        super(name);
+    }
+
+    public void testDirectBuffer() {
+        ByteBuffer buf = ByteBuffer.allocateDirect(TEXT.length());
+        buf.put(TEXT.getBytes());
+        buf.flip();
+
+        BufferSegment b = new BufferSegment(buf);
+
+        assertFalse("hasArray", b.hasArray());
+        assertEquals("length", TEXT.length(), b.getLength());
+        assertEquals("get", 'w', b.get(6));
+        assertEquals("getOffset", 0, b.getOffset());
+        assertEquals("getData", TEXT, new String(b.getData()));
+
+        byte[] dst = new byte[5];
+        b.copyTo(6, dst, 0, 5);
+        assertEquals("copyTo", "world", new String(dst));
+
+        assertEquals("slice", "world", string(b.slice(6, 5).asByteBuffer()));
+        assertEquals("buffer unchanged", 0, buf.position());
+    }
+
+    public void testHeapBuffer() {
+        byte[] data = ("xx" + TEXT).getBytes();
+        ByteBuffer buf = ByteBuffer.wrap(data, 2, TEXT.length());
+
+        BufferSegment b = new BufferSegment(buf);
+
+        assertTrue("hasArray", b.hasArray());
+        assertSame("getData", data, b.getData());
+        assertEquals("getOffset", 2, b.getOffset());
+        assertEquals("get", 'h', b.get(0));
+        assertEquals("asByteBuffer", TEXT, string(b.asByteBuffer()));
+    }
+
+    public void testReadOnlyBuffer() {
+        ByteBuffer buf = ByteBuffer.wrap(TEXT.getBytes()).asReadOnlyBuffer();
+
+        BufferSegment b = new BufferSegment(buf);
+
+        assertFalse("hasArray", b.hasArray());
+        assertEquals("getData", TEXT, new String(b.getData()));
+
+        ByteBuffer dst = ByteBuffer.allocate(5);
+        b.copyTo(0, dst, 5);
+        assertEquals("copyTo", 5, dst.position());
+        dst.flip();
+        assertEquals("copyTo", "hello", string(dst));
+    }
+
+    public void testFileSegment() throws IOException {
+        FileSegment b = new FileSegment(raf.getChannel(), 6, 5);
+
+        assertFalse("hasArray", b.hasArray());
+        assertEquals("get", 'o', b.get(1));
+        assertEquals("getData", "world", new String(b.getData()));
+        assertEquals("asByteBuffer", "world", string(b.asByteBuffer()));
+
+        BufferSegment s = b.slice(1, 3, new BufferSegment(null, 0, 0));
+        assertTrue("slice of a file", s instanceof FileSegment);
+        assertEquals("slice", "orl", new String(s.getData()));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        b.transferTo(Channels.newChannel(out));
+        assertEquals("transferTo", "world", out.toString());
+    }
+
+    public void testSendFile() throws BEEPException, IOException {
+        StubSession session = new StubSession();
+        ChannelImpl channel = session.channel("1");
+        FileChannel fc = raf.getChannel();
+
+        session.maxFrameSize = 8;
+        channel.sendMSG(new FileOutputDataStream(fc), null);
+
+        StringBuffer sb = new StringBuffer();
+        for (int i=0; i<session.frames.size(); ++i) {
+            String f = (String) session.frames.get(i);
+            sb.append(f.substring(f.indexOf("\r\n") + 2,
+                                  f.length() - "END\r\n".length()));
+        }
+
+        assertEquals("payload", "\r\n" + TEXT, sb.toString());
+    }
+
+    public void testReadIntoByteBuffer() throws IOException {
+        InputDataStream data = stream();
+        InputDataStreamAdapter is = data.getInputStream();
+        ByteBuffer dst = ByteBuffer.allocateDirect(TEXT.length() + 1);
+
+        while (is.read(dst) != -1) {
+        }
+
+        dst.flip();
+        assertEquals("read", TEXT, string(dst));
+    }
+
+    public void testSegments() throws IOException {
+        InputDataStream data = stream();
+        Iterator i = data.getInputStream().segments();
+        StringBuffer sb = new StringBuffer();
+
+        while (i.hasNext()) {
+            sb.append(string((ByteBuffer) i.next()));
+        }
+
+        assertEquals("segments", TEXT, sb.toString());
+    }
+
+    /**
+     * Returns a complete stream with empty MIME headers and
+     * <code>TEXT</code> split over an array and a direct buffer.
+     */
+    private static InputDataStream stream() {
+        InputDataStream data = new InputDataStream();
+        ByteBuffer buf = ByteBuffer.allocateDirect(6);
+
+        buf.put(" world".getBytes());
+        buf.flip();
+
+        data.add(new BufferSegment("\r\nhello".getBytes()));
+        data.add(new BufferSegment(buf));
+        data.setComplete();
+
+        return data;
+    }
+
+    private static String string(ByteBuffer buf) {
+        byte[] b = new byte[buf.remaining()];
+
+        buf.duplicate().get(b);
+
+        return new String(b);
+    }
+
+    protected void setUp() throws IOException {
+        file = File.createTempFile("TestBufferSegment", null);
+
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(TEXT.getBytes());
+        out.close();
+
+        raf = new RandomAccessFile(file, "r");
+    }
+
+    protected void tearDown() throws IOException {
+        raf.close();
+        file.delete();
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestBufferSegment.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * TestFrame.java
+ *
+ * Copyright (c) 2001 Invisible Worlds, Inc.  All rights reserved.
+ * Copyright (c) 2001 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+import junit.framework.*;
+
+public class TestFrame extends TestCase {
+    protected StubSession session;
+    protected ChannelImpl channel;
+
+    public TestFrame(String name) {
+        super(name);
+    }
+
+    public void testEncodeHeader() {
+        assertEquals("MSG", "MSG 1 12 . 345 6789\r\n",
+                     header(new Frame(Message.MESSAGE_TYPE_MSG, channel,
+                                      12, true, 345, 6789, -1)));
+        assertEquals("ANS", "ANS 1 0 * 4294967295 0 7\r\n",
+                     header(new Frame(Message.MESSAGE_TYPE_ANS, channel,
+                                      0, false, Frame.MAX_SEQUENCE_NUMBER,
+                                      0, 7)));
+        assertEquals("NUL", "NUL 1 2147483647 . 0 0\r\n",
+                     header(new Frame(Message.MESSAGE_TYPE_NUL, channel,
+                                      Integer.MAX_VALUE, true, 0, 0, -1)));
+    }
+
+    public void testEncodedHeaderDecodes() throws BEEPException {
+        Frame f = new Frame(Message.MESSAGE_TYPE_ANS, channel, 3, false,
+                            123456789, 1400, 42);
+        byte[] b = new byte[Frame.MAX_HEADER_SIZE];
+        int n = f.encodeHeader(b);
+        FrameDecoder decoder = new FrameDecoder();
+
+        assertEquals("consumed", n, decoder.decode(b, 0, n));
+        assertTrue("complete", decoder.isComplete());
+        assertEquals("type", Message.MESSAGE_TYPE_ANS,
+                     decoder.getMessageType());
+        assertEquals("channel", 1, decoder.getChannel());
+        assertEquals("msgno", 3, decoder.getMsgno());
+        assertFalse("last", decoder.isLast());
+        assertEquals("seqno", 123456789, decoder.getSeqno());
+        assertEquals("size", 1400, decoder.getSize());
+        assertEquals("ansno", 42, decoder.getAnsno());
+    }
+
+    public void testFrameReused() throws BEEPException {
+        channel.sendMSG(new StringOutputDataStream("hello"), null);
+        channel.sendMSG(new StringOutputDataStream("world"), null);
+
+        assertEquals("frames", 2, session.frames.size());
+        assertSame("frame reused", session.sent.get(0), session.sent.get(1));
+        assertTrue("first",
+                   ((String) session.frames.get(0)).endsWith("helloEND\r\n"));
+        assertTrue("second",
+                   ((String) session.frames.get(1)).endsWith("worldEND\r\n"));
+
+        // the frame drops the payload once it has been sent
+        Frame f = (Frame) session.sent.get(0);
+        assertFalse("payload cleared", f.getPayload().hasNext());
+    }
+
+    public void testMessageSplitAcrossFrames() throws BEEPException {
+        session.maxFrameSize = 4;
+
+        channel.sendMSG(new ByteOutputDataStream("abcdefghij".getBytes()),
+                        null);
+
+        // the payload starts with the CRLF ending the empty MIME headers
+        assertEquals("frames", 3, session.frames.size());
+        assertEquals("first", "MSG 1 1 * 0 4\r\n\r\nabEND\r\n",
+                     session.frames.get(0));
+        assertEquals("second", "MSG 1 1 * 4 4\r\ncdefEND\r\n",
+                     session.frames.get(1));
+        assertEquals("last", "MSG 1 1 . 8 4\r\nghijEND\r\n",
+                     session.frames.get(2));
+    }
+
+    private static String header(Frame f) {
+        byte[] b = new byte[Frame.MAX_HEADER_SIZE];
+
+        return new String(b, 0, f.encodeHeader(b));
+    }
+
+    protected void setUp() throws BEEPException {
+        session = new StubSession();
+        channel = session.channel("1");
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestFrame.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}
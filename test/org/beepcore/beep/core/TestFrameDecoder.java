@@ -0,0 +1,162 @@
+/*
+ * TestFrameDecoder.java
+ *
+ * Copyright (c) 2001 Invisible Worlds, Inc.  All rights reserved.
+ * Copyright (c) 2001 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+import java.nio.ByteBuffer;
+
+import org.beepcore.beep.util.StringUtil;
+
+import junit.framework.*;
+
+public class TestFrameDecoder extends TestCase {
+    protected FrameDecoder decoder;
+
+    public TestFrameDecoder(String name) {
+        super(name);
+    }
+
+    public void testWholeHeader() throws BEEPException {
+        byte[] b = StringUtil.stringToAscii("MSG 1 2 . 3 4\r\npayload");
+
+        assertEquals("consumed", 15, decoder.decode(b, 0, b.length));
+        assertTrue("complete", decoder.isComplete());
+        assertFalse("SEQ", decoder.isSEQ());
+        assertEquals("type", Message.MESSAGE_TYPE_MSG,
+                     decoder.getMessageType());
+        assertEquals("channel", 1, decoder.getChannel());
+        assertEquals("msgno", 2, decoder.getMsgno());
+        assertTrue("last", decoder.isLast());
+        assertEquals("seqno", 3, decoder.getSeqno());
+        assertEquals("size", 4, decoder.getSize());
+        assertEquals("ansno", -1, decoder.getAnsno());
+
+        // nothing more is consumed until the decoder is reset
+        assertEquals("consumed after complete", 0,
+                     decoder.decode(b, 15, b.length - 15));
+    }
+
+    public void testHeaderSplitByteByByte() throws BEEPException {
+        byte[] b = StringUtil.stringToAscii("ANS 7 8 * 4294967295 10 11\r\n");
+
+        for (int i=0; i<b.length; ++i) {
+            assertFalse("complete at " + i, decoder.isComplete());
+            assertEquals("consumed at " + i, 1, decoder.decode(b, i, 1));
+        }
+
+        assertTrue("complete", decoder.isComplete());
+        assertEquals("type", Message.MESSAGE_TYPE_ANS,
+                     decoder.getMessageType());
+        assertEquals("channel", 7, decoder.getChannel());
+        assertEquals("msgno", 8, decoder.getMsgno());
+        assertFalse("last", decoder.isLast());
+        assertEquals("seqno", Frame.MAX_SEQUENCE_NUMBER, decoder.getSeqno());
+        assertEquals("size", 10, decoder.getSize());
+        assertEquals("ansno", 11, decoder.getAnsno());
+    }
+
+    public void testSEQ() throws BEEPException {
+        byte[] b = StringUtil.stringToAscii("SEQ 3 4096 8192\r\n");
+
+        // split in two pieces
+        assertEquals("first piece", 9, decoder.decode(b, 0, 9));
+        assertFalse("complete", decoder.isComplete());
+        assertEquals("second piece", b.length - 9,
+                     decoder.decode(b, 9, b.length - 9));
+
+        assertTrue("complete", decoder.isComplete());
+        assertTrue("SEQ", decoder.isSEQ());
+        assertEquals("channel", 3, decoder.getChannel());
+        assertEquals("ackno", 4096, decoder.getAckno());
+        assertEquals("window", 8192, decoder.getWindow());
+    }
+
+    public void testReset() throws BEEPException {
+        byte[] b = StringUtil.stringToAscii("RPY 1 2 . 3 4\r\nNUL 5 6 . 7 0\r\n");
+
+        int n = decoder.decode(b, 0, b.length);
+        assertEquals("type", Message.MESSAGE_TYPE_RPY,
+                     decoder.getMessageType());
+
+        decoder.reset();
+        assertFalse("complete after reset", decoder.isComplete());
+
+        decoder.decode(b, n, b.length - n);
+        assertTrue("complete", decoder.isComplete());
+        assertEquals("type", Message.MESSAGE_TYPE_NUL,
+                     decoder.getMessageType());
+        assertEquals("channel", 5, decoder.getChannel());
+        assertEquals("size", 0, decoder.getSize());
+    }
+
+    public void testDirectByteBuffer() throws BEEPException {
+        byte[] b = StringUtil.stringToAscii("ERR 1 2 . 3 4\r\nxxxx");
+        ByteBuffer buf = ByteBuffer.allocateDirect(b.length);
+
+        buf.put(b);
+        buf.flip();
+        buf.limit(6);
+
+        decoder.decode(buf);
+        assertEquals("position", 6, buf.position());
+        assertFalse("complete", decoder.isComplete());
+
+        buf.limit(b.length);
+        decoder.decode(buf);
+
+        assertTrue("complete", decoder.isComplete());
+        assertEquals("position after header", 15, buf.position());
+        assertEquals("type", Message.MESSAGE_TYPE_ERR,
+                     decoder.getMessageType());
+        assertEquals("size", 4, decoder.getSize());
+    }
+
+    public void testMalformed() {
+        String[] headers = {
+            "FOO 1 2 . 3 4\r\n",
+            "MSG 1 2 . 3\r\n",
+            "MSG 1 2 x 3 4\r\n",
+            "MSG 1 2 . 3 4 5 6\r\n",
+            "MSG 1 2 . 4294967296 4\r\n",
+            "MSG 1 2 . 3 4\r\r",
+            "SEQ 1 2\r\n",
+        };
+
+        for (int i=0; i<headers.length; ++i) {
+            byte[] b = StringUtil.stringToAscii(headers[i]);
+
+            decoder.reset();
+            try {
+                decoder.decode(b, 0, b.length);
+                fail("decoded " + headers[i]);
+            } catch (BEEPException e) {
+            }
+        }
+    }
+
+    protected void setUp() {
+        decoder = new FrameDecoder();
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestFrameDecoder.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}
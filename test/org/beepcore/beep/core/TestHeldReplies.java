@@ -0,0 +1,118 @@
+/*
+ * TestHeldReplies.java
+ *
+ * Copyright (c) 2001 Invisible Worlds, Inc.  All rights reserved.
+ * Copyright (c) 2001 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.*;
+
+public class TestHeldReplies extends TestCase {
+    private static final int TIMEOUT = 5000;
+    private static final int MSGS = 3;
+
+    protected StubSession session;
+    protected ChannelImpl channel;
+    protected MessageMSG[] received;
+    protected CountDownLatch dispatched;
+
+    public TestHeldReplies(String name) {
+        super(name);
+    }
+
+    public void testRepliesInOrder() throws Exception {
+        long seqno = 0;
+
+        for (int i=1; i<=MSGS; ++i) {
+            Frame f = StubSession.frame(Message.MESSAGE_TYPE_MSG, channel,
+                                        i, true, seqno, "\r\n" + i, -1);
+            seqno += f.getSize();
+            channel.postFrame(f);
+        }
+
+        // all of them are handed to the handler before any is answered
+        assertTrue("dispatched",
+                   dispatched.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // the later MSGs are answered first, concurrently
+        Thread[] repliers = new Thread[MSGS - 1];
+        final List errors = new ArrayList();
+
+        for (int i=0; i<repliers.length; ++i) {
+            final MessageMSG m = received[MSGS - i];
+
+            repliers[i] = new Thread() {
+                    public void run() {
+                        try {
+                            m.sendRPY(new StringOutputDataStream(
+                                          "reply " + m.getMsgno()));
+                        } catch (BEEPException e) {
+                            synchronized (errors) {
+                                errors.add(e);
+                            }
+                        }
+                    }
+                };
+            repliers[i].start();
+        }
+
+        for (int i=0; i<repliers.length; ++i) {
+            repliers[i].join(TIMEOUT);
+        }
+
+        assertEquals("errors", "[]", errors.toString());
+        assertEquals("held", 0, session.frames.size());
+
+        received[1].sendRPY(new StringOutputDataStream("reply 1"));
+
+        assertEquals("frames", MSGS, session.frames.size());
+        for (int i=0; i<MSGS; ++i) {
+            String f = (String) session.frames.get(i);
+
+            assertTrue("RPY " + (i + 1) + " in " + f,
+                       f.startsWith("RPY 1 " + (i + 1) + " . "));
+            assertTrue("payload " + (i + 1) + " in " + f,
+                       f.endsWith("reply " + (i + 1) + "END\r\n"));
+        }
+    }
+
+    protected void setUp() throws BEEPException {
+        session = new StubSession();
+        session.setConcurrentRequests(MSGS);
+        channel = session.channel("1");
+        received = new MessageMSG[MSGS + 1];
+        dispatched = new CountDownLatch(MSGS);
+
+        channel.setRequestHandler(new RequestHandler() {
+                public void receiveMSG(MessageMSG message) {
+                    received[message.getMsgno()] = message;
+                    dispatched.countDown();
+                }
+            });
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestHeldReplies.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}
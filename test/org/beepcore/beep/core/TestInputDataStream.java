@@ -0,0 +1,86 @@
+/*
+ * TestInputDataStream.java
+ *
+ * Copyright (c) 2001 Invisible Worlds, Inc.  All rights reserved.
+ * Copyright (c) 2001 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+import org.beepcore.beep.util.BufferSegment;
+
+import junit.framework.*;
+
+public class TestInputDataStream extends TestCase {
+    protected InputDataStream data;
+
+    public TestInputDataStream(String name) {
+        super(name);
+    }
+
+    public void testWaitForNextSegment() throws InterruptedException {
+        final BufferSegment segment = new BufferSegment(new byte[10]);
+
+        later(new Runnable() {
+                public void run() {
+                    data.add(segment);
+                }
+            });
+
+        // used to throw IllegalMonitorStateException when it had to wait
+        BufferSegment b = data.waitForNextSegment();
+
+        assertNotNull("segment", b);
+        assertEquals("length", 10, b.getLength());
+    }
+
+    public void testWaitForNextSegmentComplete() throws InterruptedException {
+        later(new Runnable() {
+                public void run() {
+                    data.setComplete();
+                }
+            });
+
+        assertNull("segment of a complete stream", data.waitForNextSegment());
+    }
+
+    /**
+     * Runs <code>task</code> on another thread once the test thread has
+     * had time to start waiting.
+     */
+    private static void later(final Runnable task) {
+        Thread t = new Thread() {
+                public void run() {
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                    }
+                    task.run();
+                }
+            };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    protected void setUp() {
+        data = new InputDataStream();
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestInputDataStream.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * TestPartialMSG.java
+ *
+ * Copyright (c) 2001 Invisible Worlds, Inc.  All rights reserved.
+ * Copyright (c) 2001 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.beepcore.beep.util.BufferSegment;
+
+import junit.framework.*;
+
+public class TestPartialMSG extends TestCase {
+    private static final int TIMEOUT = 5000;
+
+    protected StubSession session;
+    protected ChannelImpl channel;
+    protected List received;
+
+    public TestPartialMSG(String name) {
+        super(name);
+    }
+
+    /**
+     * A MSG split by the window may be answered before its last frame
+     * arrives. The rest of it must not be taken for a new MSG.
+     */
+    public void testAnsweredAfterFirstFrame() throws Exception {
+        Frame f = frame(Message.MESSAGE_TYPE_MSG, channel, 1,
+                                    false, 0, "\r\nfirst ", -1);
+        long seqno = f.getSize();
+
+        channel.postFrame(f);
+        awaitFrames(1);
+
+        f = frame(Message.MESSAGE_TYPE_MSG, channel, 1, true,
+                              seqno, "last", -1);
+        seqno += f.getSize();
+        channel.postFrame(f);
+
+        channel.postFrame(frame(Message.MESSAGE_TYPE_MSG,
+                                            channel, 2, true, seqno,
+                                            "\r\nnext", -1));
+        awaitFrames(2);
+
+        assertEquals("MSGs", 2, received.size());
+        assertTrue("RPY 1", ((String) session.frames.get(0))
+                   .startsWith("RPY 1 1 . "));
+        assertTrue("RPY 2", ((String) session.frames.get(1))
+                   .startsWith("RPY 1 2 . "));
+
+        InputDataStream data =
+            ((MessageMSG) received.get(0)).getDataStream();
+        assertTrue("complete", data.isComplete());
+        assertEquals("payload", "\r\nfirst last".length(),
+                     data.available());
+    }
+
+    /**
+     * Returns a frame received on <code>channel</code> holding
+     * <code>payload</code>.
+     */
+    private Frame frame(int messageType, ChannelImpl channel, int msgno,
+                        boolean last, long seqno, String payload, int ansno) {
+        Frame f = new Frame(messageType, channel, msgno, last, seqno,
+                            payload.length(), ansno);
+        f.addPayload(new BufferSegment(payload.getBytes()));
+
+        return f;
+    }
+
+    /**
+     * Waits until <code>n</code> frames have been sent.
+     */
+    private void awaitFrames(int n) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT;
+
+        while (System.currentTimeMillis() < end) {
+            synchronized (session) {
+                if (session.frames.size() >= n) {
+                    return;
+                }
+            }
+            Thread.sleep(10);
+        }
+
+        fail("frames sent " + session.frames.size());
+    }
+
+    protected void setUp() throws BEEPException {
+        session = new StubSession();
+        channel = session.channel("1");
+        received = new ArrayList();
+
+        // replies at once, without waiting for the rest of the MSG
+        channel.setRequestHandler(new RequestHandler() {
+                public void receiveMSG(MessageMSG message) {
+                    synchronized (received) {
+                        received.add(message);
+                    }
+                    try {
+                        message.sendRPY(new StringOutputDataStream("ok"));
+                    } catch (BEEPException e) {
+                    }
+                }
+            });
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestPartialMSG.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}
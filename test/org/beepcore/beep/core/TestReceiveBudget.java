@@ -0,0 +1,125 @@
+/*
+ * TestReceiveBudget.java
+ *
+ * Copyright (c) 2001 Invisible Worlds, Inc.  All rights reserved.
+ * Copyright (c) 2001 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+import junit.framework.*;
+
+public class TestReceiveBudget extends TestCase {
+    protected StubSession session;
+    protected ReceiveBudget budget;
+
+    public TestReceiveBudget(String name) {
+        super(name);
+    }
+
+    public void testReserveAndRelease() {
+        assertEquals("resize", 4096, budget.resize(0, 4096, 4096));
+        assertEquals("reserved", 4096, budget.getReserved());
+
+        assertEquals("grow", 6000, budget.resize(4096, 8192, 4096));
+        assertEquals("reserved", 6000, budget.getReserved());
+
+        assertEquals("shrink", 4096, budget.resize(6000, 0, 4096));
+        assertEquals("reserved", 4096, budget.getReserved());
+
+        budget.release(4096);
+        assertEquals("released", 0, budget.getReserved());
+    }
+
+    public void testMinimumOverLimit() {
+        budget.resize(0, 4096, 4096);
+
+        // every window gets its minimum even once the budget is used up
+        assertEquals("minimum", 4096, budget.resize(0, 8192, 4096));
+        assertEquals("reserved", 8192, budget.getReserved());
+        assertEquals("nothing left", 4096, budget.resize(4096, 8192, 4096));
+    }
+
+    public void testParent() {
+        ReceiveBudget parent = new ReceiveBudget(5000);
+        ReceiveBudget child = new ReceiveBudget(Long.MAX_VALUE, parent);
+
+        assertEquals("resize", 5000, child.resize(0, 8192, 0));
+        assertEquals("child", 5000, child.getReserved());
+        assertEquals("parent", 5000, parent.getReserved());
+
+        child.release(5000);
+        assertEquals("child released", 0, child.getReserved());
+        assertEquals("parent released", 0, parent.getReserved());
+    }
+
+    public void testChannelWindows() throws BEEPException {
+        ChannelImpl one = session.channel("1");
+        ChannelImpl two = session.channel("3");
+
+        one.reserveWindow(budget);
+        two.reserveWindow(budget);
+        assertEquals("reserved", 8192, budget.getReserved());
+
+        // the budget has nothing left for a larger window
+        one.setReceiveBufferSize(16384);
+        assertEquals("SEQ", "1 0 4096", session.seqs.get(0));
+
+        // until another channel gives its window back
+        two.releaseWindow();
+        assertEquals("released", 4096, budget.getReserved());
+
+        one.setReceiveBufferSize(16384);
+        assertEquals("SEQ", "1 0 6000", session.seqs.get(1));
+        assertEquals("reserved", 6000, budget.getReserved());
+
+        one.releaseWindow();
+        one.releaseWindow();
+        two.releaseWindow();
+        assertEquals("released once", 0, budget.getReserved());
+    }
+
+    public void testOverflow() throws BEEPException {
+        ChannelImpl channel = session.channel("1");
+        StringBuffer sb = new StringBuffer();
+
+        budget.setLimit(0);
+        channel.reserveWindow(budget);
+        channel.setReceiveBufferSize(16384);
+        while (sb.length() < 5000) {
+            sb.append('x');
+        }
+
+        // the peer may only send what the budget granted
+        try {
+            channel.postFrame(StubSession.frame(Message.MESSAGE_TYPE_MSG,
+                                                channel, 1, true, 0,
+                                                sb.toString(), -1));
+            fail("received more than the window");
+        } catch (BEEPException e) {
+        }
+    }
+
+    protected void setUp() throws BEEPException {
+        session = new StubSession();
+        budget = new ReceiveBudget(6000);
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestReceiveBudget.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * TestReplyFuture.java
+ *
+ * Copyright (c) 2001 Invisible Worlds, Inc.  All rights reserved.
+ * Copyright (c) 2001 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+import junit.framework.*;
+
+public class TestReplyFuture extends TestCase {
+    private static final int TIMEOUT = 5000;
+
+    protected StubSession session;
+    protected ChannelImpl channel;
+    protected List answers;
+
+    public TestReplyFuture(String name) {
+        super(name);
+    }
+
+    public void testReply() throws Exception {
+        ReplyFuture f = new ReplyFuture(null);
+        Message rpy = message(Message.MESSAGE_TYPE_RPY);
+
+        f.expireAfter(TIMEOUT, TimeUnit.MILLISECONDS);
+        f.receiveRPY(rpy);
+
+        assertSame("reply", rpy, f.get());
+        assertFalse("closed", rpy.getDataStream().isClosed());
+    }
+
+    public void testTimeout() throws Exception {
+        ReplyFuture f = new ReplyFuture(null);
+
+        f.expireAfter(50, TimeUnit.MILLISECONDS);
+
+        try {
+            f.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("no timeout");
+        } catch (ExecutionException e) {
+            assertTrue("cause", e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    public void testLateReplyClosed() throws Exception {
+        ReplyFuture f = new ReplyFuture(new Consumer<Message>() {
+                public void accept(Message m) {
+                    answers.add(m);
+                }
+            });
+
+        f.expireAfter(50, TimeUnit.MILLISECONDS);
+        awaitDone(f);
+
+        Message ans = message(Message.MESSAGE_TYPE_ANS);
+        Message rpy = message(Message.MESSAGE_TYPE_RPY);
+
+        f.receiveANS(ans);
+        f.receiveRPY(rpy);
+
+        assertEquals("answers", 0, answers.size());
+        assertTrue("ANS closed", ans.getDataStream().isClosed());
+        assertTrue("RPY closed", rpy.getDataStream().isClosed());
+    }
+
+    public void testCancelledReplyClosed() {
+        ReplyFuture f = new ReplyFuture(null);
+        Message rpy = message(Message.MESSAGE_TYPE_RPY);
+
+        f.cancel(false);
+        f.receiveRPY(rpy);
+
+        assertTrue("closed", rpy.getDataStream().isClosed());
+    }
+
+    /**
+     * A reply arriving after the timeout is read and dropped, so the
+     * window it used is advertised again.
+     */
+    public void testLateReplyFreesWindow() throws Exception {
+        CompletableFuture<Message> f =
+            channel.sendMSGAsync(new StringOutputDataStream("request"),
+                                 50, TimeUnit.MILLISECONDS);
+
+        awaitDone(f);
+        assertEquals("SEQs", 0, session.seqs.size());
+
+        StringBuffer sb = new StringBuffer("\r\n");
+        while (sb.length() < 3000) {
+            sb.append('x');
+        }
+        channel.postFrame(StubSession.frame(Message.MESSAGE_TYPE_RPY,
+                                            channel, 1, true, 0,
+                                            sb.toString(), -1));
+
+        assertEquals("SEQs", 1, session.seqs.size());
+        assertEquals("SEQ", "1 3000 4096", session.seqs.get(0));
+    }
+
+    private Message message(int messageType) {
+        InputDataStream data = new InputDataStream();
+
+        data.setComplete();
+
+        return new MessageImpl(channel, 1, data, messageType);
+    }
+
+    private static void awaitDone(CompletableFuture f)
+        throws InterruptedException
+    {
+        long end = System.currentTimeMillis() + TIMEOUT;
+
+        while (f.isDone() == false && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+
+        assertTrue("done", f.isDone());
+    }
+
+    protected void setUp() throws BEEPException {
+        session = new StubSession();
+        channel = session.channel("1");
+        answers = new ArrayList();
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestReplyFuture.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}
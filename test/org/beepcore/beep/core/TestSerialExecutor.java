@@ -0,0 +1,100 @@
+/*
+ * TestSerialExecutor.java
+ *
+ * Copyright (c) 2001 Invisible Worlds, Inc.  All rights reserved.
+ * Copyright (c) 2001 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import junit.framework.*;
+
+public class TestSerialExecutor extends TestCase {
+    protected List ran;
+    protected boolean reject;
+    protected Runnable meanwhile;
+    protected SerialExecutor serial;
+
+    public TestSerialExecutor(String name) {
+        super(name);
+    }
+
+    public void testTaskThrows() {
+        serial.execute(new Runnable() {
+                public void run() {
+                    throw new IllegalStateException("broken");
+                }
+            });
+        serial.execute(task("after"));
+
+        assertEquals("ran", "[after]", ran.toString());
+    }
+
+    public void testRejected() {
+        reject = true;
+        meanwhile = task("meanwhile");
+
+        try {
+            serial.execute(task("rejected"));
+            fail("not rejected");
+        } catch (RejectedExecutionException e) {
+        }
+
+        // the task queued meanwhile had been accepted
+        assertEquals("ran", "[meanwhile]", ran.toString());
+
+        reject = false;
+        serial.execute(task("later"));
+        assertEquals("ran", "[meanwhile, later]", ran.toString());
+    }
+
+    private Runnable task(final String name) {
+        return new Runnable() {
+                public void run() {
+                    ran.add(name);
+                }
+            };
+    }
+
+    protected void setUp() {
+        ran = new ArrayList();
+
+        // runs tasks on the calling thread, or rejects them after
+        // another task has been queued
+        serial = new SerialExecutor(new Executor() {
+                public void execute(Runnable r) {
+                    if (reject) {
+                        if (meanwhile != null) {
+                            serial.execute(meanwhile);
+                            meanwhile = null;
+                        }
+                        throw new RejectedExecutionException();
+                    }
+                    r.run();
+                }
+            });
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestSerialExecutor.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}
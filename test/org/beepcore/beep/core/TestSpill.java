@@ -0,0 +1,189 @@
+/*
+ * TestSpill.java
+ *
+ * Copyright (c) 2001 Invisible Worlds, Inc.  All rights reserved.
+ * Copyright (c) 2001 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+import org.beepcore.beep.util.BufferSegment;
+import org.beepcore.beep.util.FileSegment;
+
+import junit.framework.*;
+
+/**
+ * Spills received segments to disk once a <code>SpillPolicy</code>
+ * limit is reached and reads them back.
+ */
+public class TestSpill extends TestCase {
+    protected StubSession session;
+    protected InputDataStream data;
+
+    public TestSpill(String name) {
+        super(name);
+    }
+
+    public void testMessageThreshold() {
+        session.setSpillPolicy(new SpillPolicy(100, Long.MAX_VALUE));
+
+        data.add(segment(60, 'a'));
+        data.add(segment(60, 'b'));
+        data.add(segment(60, 'c'));
+
+        assertFalse("first segment spilled",
+                    data.buffers.get(0) instanceof FileSegment);
+        assertTrue("second segment in memory",
+                   data.buffers.get(1) instanceof FileSegment);
+        assertTrue("third segment in memory",
+                   data.buffers.get(2) instanceof FileSegment);
+        assertEquals("bytes in memory", 60, session.addBufferedBytes(0));
+        assertEquals("available", 180, data.available());
+    }
+
+    public void testSessionThreshold() {
+        session.setSpillPolicy(new SpillPolicy(Long.MAX_VALUE, 100));
+
+        InputDataStream other = new InputDataStream(session.channel("3"));
+
+        other.add(segment(60, 'a'));
+        data.add(segment(60, 'b'));
+
+        assertFalse("first message spilled",
+                    other.buffers.get(0) instanceof FileSegment);
+        assertTrue("second message in memory",
+                   data.buffers.get(0) instanceof FileSegment);
+        assertEquals("bytes in memory", 60, session.addBufferedBytes(0));
+
+        other.close();
+        assertEquals("bytes in memory after close", 0,
+                     session.addBufferedBytes(0));
+
+        // the session is below its limit again
+        data.add(segment(60, 'c'));
+        assertFalse("segment spilled once memory was freed",
+                    data.buffers.get(1) instanceof FileSegment);
+    }
+
+    public void testReadSpilledThroughAdapter() throws IOException {
+        session.setSpillPolicy(new SpillPolicy(10, Long.MAX_VALUE));
+
+        // a message without MIME headers
+        data.add(new BufferSegment("\r\n".getBytes()));
+        data.add(segment(50, 'a'));
+        data.add(segment(50, 'b'));
+        data.setComplete();
+
+        InputStream in = data.getInputStream();
+        byte[] b = new byte[200];
+        int n = 0;
+        int r;
+
+        while ((r = in.read(b, n, b.length - n)) != -1) {
+            n += r;
+        }
+
+        assertEquals("bytes read", 100, n);
+        for (int i=0; i<n; ++i) {
+            assertEquals("byte " + i, i < 50 ? 'a' : 'b', (char) b[i]);
+        }
+        assertEquals("bytes in memory", 0, session.addBufferedBytes(0));
+    }
+
+    public void testReadSpilledSegments() {
+        session.setSpillPolicy(new SpillPolicy(0, Long.MAX_VALUE));
+
+        data.add(segment(40, 'a'));
+        data.add(segment(30, 'b'));
+        data.setComplete();
+
+        BufferSegment first = data.getNextSegment();
+        assertTrue("spilled", first instanceof FileSegment);
+        assertEquals("length", 40, first.getLength());
+        assertEquals("first byte", 'a', (char) first.get(0));
+
+        BufferSegment second = data.getNextSegment();
+        byte[] b = new byte[second.getLength()];
+        second.copyTo(0, b, 0, b.length);
+        assertEquals("second segment", new String(segment(30, 'b').getData()),
+                     new String(b));
+
+        assertFalse("segments left", data.availableSegment());
+        assertEquals("available", 0, data.available());
+        assertEquals("bytes in memory", 0, session.addBufferedBytes(0));
+    }
+
+    public void testBufferedBytesAfterClose() {
+        session.setSpillPolicy(new SpillPolicy(100, Long.MAX_VALUE));
+
+        data.add(segment(60, 'a'));
+        data.add(segment(60, 'b'));
+        assertEquals("bytes in memory", 60, session.addBufferedBytes(0));
+
+        data.close();
+        assertEquals("bytes in memory after close", 0,
+                     session.addBufferedBytes(0));
+
+        // segments arriving after close are discarded
+        data.add(segment(60, 'c'));
+        assertEquals("bytes in memory after a late segment", 0,
+                     session.addBufferedBytes(0));
+    }
+
+    public void testCloseClosesSpillFile() {
+        session.setSpillPolicy(new SpillPolicy(0, Long.MAX_VALUE));
+
+        data.add(segment(10, 'a'));
+        FileSegment spilled = (FileSegment) data.buffers.get(0);
+        FileChannel file = spilled.getFile();
+
+        assertTrue("spill file open", file.isOpen());
+        data.close();
+        assertFalse("spill file open after close", file.isOpen());
+
+        try {
+            spilled.getData();
+            fail("read a segment of a closed spill file");
+        } catch (RuntimeException e) {
+            assertTrue("cause " + e.getCause(),
+                       e.getCause() instanceof IOException);
+        }
+    }
+
+    private static BufferSegment segment(int length, char c) {
+        byte[] b = new byte[length];
+
+        for (int i=0; i<length; ++i) {
+            b[i] = (byte) c;
+        }
+
+        return new BufferSegment(b);
+    }
+
+    protected void setUp() throws BEEPException {
+        session = new StubSession();
+        data = new InputDataStream(session.channel("1"));
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestSpill.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * TestStartChannel.java
+ *
+ * Copyright (c) 2001 Invisible Worlds, Inc.  All rights reserved.
+ * Copyright (c) 2001 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.beepcore.beep.transport.tcp.TCPServer;
+import org.beepcore.beep.transport.tcp.TCPSessionConfig;
+import org.beepcore.beep.transport.tcp.TCPSessionCreator;
+
+import junit.framework.*;
+
+/**
+ * Starts channels while messages are exchanged on another channel of the
+ * session. Reading continues while a profile's <code>startChannel</code>
+ * runs, but stops while a tuning profile may be taking over the session.
+ */
+public class TestStartChannel extends TestCase {
+    private static final String ECHO_URI = "http://example.org/test/echo";
+    private static final String SLOW_URI = "http://example.org/test/slow";
+    private static final String TUNING_URI = "http://example.org/test/tuning";
+
+    private static final int TIMEOUT = 5000;
+
+    protected TCPServer server;
+    protected Session session;
+    protected Channel echo;
+
+    // counted down when a blocking startChannel has been called
+    protected CountDownLatch entered;
+
+    // counted down to let the blocking startChannel return
+    protected CountDownLatch release;
+
+    // MSGs received on the echo channel
+    protected AtomicInteger received;
+
+    public TestStartChannel(String name) {
+        super(name);
+    }
+
+    public void testStartWhileReading() throws Exception {
+        Starter starter = new Starter(SLOW_URI);
+
+        assertTrue("startChannel called",
+                   entered.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // the echo is read while the start is still being processed
+        assertTrue("echo while starting", echo());
+
+        release.countDown();
+
+        assertNotNull("started channel", starter.await());
+    }
+
+    public void testStartPipelinedBehindSlowStart() throws Exception {
+        Starter starter = new Starter(SLOW_URI);
+
+        assertTrue("startChannel called",
+                   entered.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // a second start queued behind the slow one must not stop reading
+        CompletableFuture<Channel> second = session.startChannelAsync(ECHO_URI);
+
+        assertTrue("echo behind a pipelined start", echo());
+        assertFalse("second start processed early", second.isDone());
+
+        release.countDown();
+
+        assertNotNull("started channel", starter.await());
+        assertNotNull("second channel",
+                      second.get(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    public void testTuningStartStopsReading() throws Exception {
+        Starter starter = new Starter(TUNING_URI);
+
+        assertTrue("startChannel called",
+                   entered.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        Replies replies = new Replies();
+        echo.sendMSG(new StringOutputDataStream("echo"), replies);
+
+        Thread.sleep(500);
+        assertEquals("MSGs read while tuning may start", 0, received.get());
+
+        // the tuning profile declines, so reading resumes
+        release.countDown();
+
+        assertTrue("echo after the start",
+                   replies.done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals("MSGs read", 1, received.get());
+        Object r = starter.await();
+        assertTrue("start declined " + r, r instanceof BEEPError);
+    }
+
+    public void testStartSplitAcrossFrames() throws Exception {
+        // start data spanning several frames, within the parser's limit
+        char[] c = new char[4000];
+        Arrays.fill(c, 'x');
+        String data = new String(c);
+
+        Channel ch = session.startChannel(ECHO_URI, false, data);
+
+        assertNotNull("started channel", ch);
+        assertTrue("echo after the start", echo());
+    }
+
+    /**
+     * Sends a MSG on the echo channel and returns <code>true</code> if
+     * the reply arrives in time.
+     */
+    private boolean echo() throws Exception {
+        Replies replies = new Replies();
+
+        echo.sendMSG(new StringOutputDataStream("echo"), replies);
+
+        return replies.done.await(TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    protected void setUp() throws Exception {
+        entered = new CountDownLatch(1);
+        release = new CountDownLatch(1);
+        received = new AtomicInteger();
+
+        ProfileRegistry reg = new ProfileRegistry();
+        reg.addStartChannelListener(ECHO_URI, new Echo(), null);
+        reg.addStartChannelListener(SLOW_URI, new Slow(), null);
+        reg.addStartChannelListener(TUNING_URI, new Tuning(), null);
+
+        server = new TCPServer(InetAddress.getByName("127.0.0.1"), 0, reg,
+                               new TCPSessionConfig());
+        server.start();
+
+        session = TCPSessionCreator.initiate(InetAddress.getByName("127.0.0.1"),
+                                             server.getLocalPort(),
+                                             new ProfileRegistry());
+        echo = session.startChannel(ECHO_URI);
+    }
+
+    protected void tearDown() {
+        release.countDown();
+        session.terminate("test done");
+        server.stop();
+    }
+
+    /**
+     * Starts a channel on its own thread since the start may only
+     * complete once the test has released the profile.
+     */
+    private class Starter extends Thread {
+        private final String uri;
+        private Object result = null;
+
+        Starter(String uri) {
+            this.uri = uri;
+            setDaemon(true);
+            start();
+        }
+
+        public void run() {
+            Object r;
+
+            try {
+                r = session.startChannel(uri);
+            } catch (BEEPException e) {
+                r = e;
+            }
+
+            synchronized (this) {
+                result = r;
+                notifyAll();
+            }
+        }
+
+        synchronized Object await() throws InterruptedException {
+            long end = System.currentTimeMillis() + TIMEOUT;
+
+            while (result == null && System.currentTimeMillis() < end) {
+                wait(end - System.currentTimeMillis());
+            }
+
+            return result;
+        }
+    }
+
+    private static class Replies implements ReplyListener {
+        final CountDownLatch done = new CountDownLatch(1);
+
+        public void receiveRPY(Message message) {
+            message.getDataStream().close();
+            done.countDown();
+        }
+
+        public void receiveERR(Message message) {
+            message.getDataStream().close();
+        }
+
+        public void receiveANS(Message message) {
+            message.getDataStream().close();
+        }
+
+        public void receiveNUL(Message message) {
+        }
+    }
+
+    private class Echo implements StartChannelListener, RequestHandler {
+        public boolean advertiseProfile(Session session) {
+            return true;
+        }
+
+        public void startChannel(Channel channel, String encoding,
+                                 String data) {
+            channel.setRequestHandler(this);
+            if (data != null) {
+                channel.setStartData("started");
+            }
+        }
+
+        public void closeChannel(Channel channel) {
+        }
+
+        public void receiveMSG(MessageMSG message) {
+            received.incrementAndGet();
+            message.getDataStream().close();
+            try {
+                message.sendRPY(new StringOutputDataStream("echo"));
+            } catch (BEEPException e) {
+                fail(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Waits for the test before accepting the channel.
+     */
+    private class Slow implements StartChannelListener {
+        public boolean advertiseProfile(Session session) {
+            return true;
+        }
+
+        public void startChannel(Channel channel, String encoding,
+                                 String data) {
+            entered.countDown();
+            try {
+                release.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+            }
+        }
+
+        public void closeChannel(Channel channel) {
+        }
+    }
+
+    /**
+     * A tuning profile which waits for the test and then declines the
+     * channel.
+     */
+    private class Tuning extends TuningProfile
+        implements StartChannelListener
+    {
+        public boolean advertiseProfile(Session session) {
+            return true;
+        }
+
+        public void startChannel(Channel channel, String encoding,
+                                 String data)
+            throws StartChannelException
+        {
+            entered.countDown();
+            try {
+                release.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+            }
+
+            throw new StartChannelException(
+                BEEPError.CODE_REQUESTED_ACTION_NOT_TAKEN2, "declined");
+        }
+
+        public void closeChannel(Channel channel) {
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestStartChannel.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * TestStreamOutputDataStream.java
+ *
+ * Copyright (c) 2001 Invisible Worlds, Inc.  All rights reserved.
+ * Copyright (c) 2001 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.*;
+
+public class TestStreamOutputDataStream extends TestCase {
+    private static final int TIMEOUT = 5000;
+
+    protected StubSession session;
+    protected ChannelImpl channel;
+    protected ExecutorService reader;
+
+    public TestStreamOutputDataStream(String name) {
+        super(name);
+    }
+
+    public void testSend() throws Exception {
+        byte[] data = new byte[10000];
+        for (int i=0; i<data.length; ++i) {
+            data[i] = (byte) ('a' + i % 26);
+        }
+
+        MessageStatus status =
+            channel.sendMSG(stream(Channels.newChannel(
+                                new ByteArrayInputStream(data))), null);
+
+        assertEquals("status", MessageStatus.MESSAGE_STATUS_SENT,
+                     await(status));
+
+        StringBuffer sb = new StringBuffer();
+        synchronized (session) {
+            for (int i=0; i<session.frames.size(); ++i) {
+                String f = (String) session.frames.get(i);
+                sb.append(f.substring(f.indexOf("\r\n") + 2,
+                                      f.length() - "END\r\n".length()));
+            }
+        }
+
+        assertEquals("payload", "\r\n" + new String(data), sb.toString());
+    }
+
+    public void testReadOffSendingThread() throws Exception {
+        final Thread sender = Thread.currentThread();
+        final boolean[] onSender = new boolean[1];
+
+        ReadableByteChannel source = new Source() {
+                public int read(ByteBuffer dst) {
+                    if (Thread.currentThread() == sender) {
+                        onSender[0] = true;
+                    }
+                    return -1;
+                }
+            };
+
+        MessageStatus status = channel.sendMSG(stream(source), null);
+
+        assertEquals("status", MessageStatus.MESSAGE_STATUS_SENT,
+                     await(status));
+        assertFalse("read by the sending thread", onSender[0]);
+    }
+
+    public void testSourceFails() throws Exception {
+        final CountDownLatch sent = new CountDownLatch(1);
+
+        // fails once sendMSG has returned, otherwise sendMSG would throw
+        ReadableByteChannel source = new Source() {
+                public int read(ByteBuffer dst) throws IOException {
+                    try {
+                        sent.await();
+                    } catch (InterruptedException e) {
+                    }
+                    throw new IOException("broken");
+                }
+            };
+
+        MessageStatus status = channel.sendMSG(stream(source), null);
+        sent.countDown();
+
+        assertEquals("status", MessageStatus.MESSAGE_STATUS_NOT_SENT,
+                     await(status));
+    }
+
+    private StreamOutputDataStream stream(ReadableByteChannel source) {
+        return new StreamOutputDataStream(new MimeHeaders(), source, 1000,
+                                          reader);
+    }
+
+    /**
+     * Waits for <code>status</code> to leave
+     * <code>MESSAGE_STATUS_UNK</code> and returns it.
+     */
+    private static int await(MessageStatus status)
+        throws InterruptedException
+    {
+        long end = System.currentTimeMillis() + TIMEOUT;
+
+        while (status.getMessageStatus() == MessageStatus.MESSAGE_STATUS_UNK
+               && System.currentTimeMillis() < end)
+        {
+            Thread.sleep(10);
+        }
+
+        return status.getMessageStatus();
+    }
+
+    private abstract static class Source implements ReadableByteChannel {
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    protected void setUp() throws BEEPException {
+        session = new StubSession();
+        channel = session.channel("1");
+        reader = Executors.newSingleThreadExecutor();
+    }
+
+    protected void tearDown() {
+        reader.shutdown();
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestStreamOutputDataStream.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * TestTransport.java
+ *
+ * Copyright (c) 2001 Invisible Worlds, Inc.  All rights reserved.
+ * Copyright (c) 2001 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.beepcore.beep.core.event.SessionEvent;
+import org.beepcore.beep.core.event.SessionListener;
+import org.beepcore.beep.core.event.SessionResetEvent;
+import org.beepcore.beep.transport.nio.NIOServer;
+import org.beepcore.beep.transport.nio.NIOSessionCreator;
+import org.beepcore.beep.transport.tcp.TCPServer;
+import org.beepcore.beep.transport.tcp.TCPSessionConfig;
+import org.beepcore.beep.transport.tcp.TCPSessionCreator;
+
+import junit.framework.*;
+
+/**
+ * Exchanges a MSG and its RPY over loopback with each transport mode,
+ * then closes the initiating session and checks that the listening
+ * session closes cleanly as well.
+ */
+public class TestTransport extends TestCase {
+    private static final String ECHO_URI = "http://example.org/test/echo";
+
+    private static final int TIMEOUT = 10000;
+
+    /** Receive window of the echo channels, so large frames fit */
+    private static final int WINDOW = 64 * 1024;
+
+    protected InetAddress localhost;
+    protected ProfileRegistry registry;
+    protected TCPServer server;
+    protected NIOServer nioServer;
+    protected Peer peer;
+
+    public TestTransport(String name) {
+        super(name);
+    }
+
+    public void testNIO() throws Exception {
+        nioServer = new NIOServer(localhost, 0, registry,
+                                  NIOSessionCreator.getDefaultEventLoopGroup());
+        nioServer.addSessionListener(peer);
+        nioServer.start();
+
+        Session session = NIOSessionCreator.initiate(localhost,
+                                                     nioServer.getLocalPort(),
+                                                     new ProfileRegistry());
+
+        exchange(session, 1000);
+        close(session);
+    }
+
+    public void testGatheringWrite() throws Exception {
+        // frames above TCPSession's gathering write threshold of 16k
+        TCPSessionConfig config = new TCPSessionConfig();
+        config.setMaxFrameSize(WINDOW);
+
+        Session session = initiate(config);
+
+        exchange(session, 40000);
+        close(session);
+    }
+
+    public void testAsyncWriter() throws Exception {
+        TCPSessionConfig config = new TCPSessionConfig();
+        config.setAsyncWriter(true);
+
+        Session session = initiate(config);
+
+        exchange(session, 10000);
+        close(session);
+    }
+
+    public void testVirtualThreads() throws Exception {
+        // falls back to platform threads on JVMs without virtual threads
+        TCPSessionConfig config = new TCPSessionConfig();
+        config.setVirtualThreads(true);
+
+        Session session = initiate(config);
+
+        exchange(session, 10000);
+        close(session);
+    }
+
+    public void testInitiateAsync() throws Exception {
+        TCPSessionConfig config = new TCPSessionConfig();
+        startServer(config);
+
+        Session session =
+            TCPSessionCreator.initiateAsync(localhost, server.getLocalPort(),
+                                            new ProfileRegistry(), null,
+                                            config)
+            .get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+        exchange(session, 1000);
+        close(session);
+    }
+
+    public void testTCPServer() throws Exception {
+        startServer(new TCPSessionConfig());
+
+        // several sessions, accepted one after another
+        Session[] sessions = new Session[3];
+
+        for (int i=0; i<sessions.length; ++i) {
+            sessions[i] = TCPSessionCreator.initiate(localhost,
+                                                     server.getLocalPort(),
+                                                     new ProfileRegistry());
+        }
+
+        for (int i=0; i<sessions.length; ++i) {
+            exchange(sessions[i], 1000);
+        }
+
+        assertTrue("peers greeted", peer.greeted.await(TIMEOUT,
+                                                       TimeUnit.MILLISECONDS));
+        close(sessions[0]);
+    }
+
+    /**
+     * Starts a channel on <code>session</code> and sends a MSG of
+     * <code>size</code> bytes, which the peer echoes in its RPY.
+     */
+    private void exchange(Session session, int size) throws Exception {
+        Channel channel = session.startChannel(ECHO_URI);
+        ((ChannelImpl) channel).setReceiveBufferSize(WINDOW);
+
+        byte[] data = new byte[size];
+        for (int i=0; i<size; ++i) {
+            data[i] = (byte) i;
+        }
+
+        Message reply =
+            channel.sendMSGAsync(new ByteOutputDataStream(data))
+            .get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+        assertEquals("reply type", Message.MESSAGE_TYPE_RPY,
+                     reply.getMessageType());
+        assertTrue("echoed payload", Arrays.equals(data, read(reply)));
+
+        channel.close();
+    }
+
+    /**
+     * Closes <code>session</code> and waits for the peer's session to
+     * close.
+     */
+    private void close(Session session) throws Exception {
+        session.close();
+
+        assertEquals("state", Session.SESSION_STATE_CLOSED,
+                     session.getState());
+        assertTrue("peer closed",
+                   peer.closed.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals("peer state", Session.SESSION_STATE_CLOSED,
+                     peer.closedState);
+    }
+
+    private Session initiate(TCPSessionConfig config) throws Exception {
+        startServer(config);
+
+        return TCPSessionCreator.initiate(localhost, server.getLocalPort(),
+                                          new ProfileRegistry(), null,
+                                          config);
+    }
+
+    private void startServer(TCPSessionConfig config) throws Exception {
+        server = new TCPServer(localhost, 0, registry, config);
+        server.addSessionListener(peer);
+        server.start();
+    }
+
+    private static byte[] read(Message message) throws IOException {
+        InputStream in = message.getDataStream().getInputStream();
+        byte[] b = new byte[message.getDataStream().available()];
+        int n = 0;
+        int r;
+
+        while (true) {
+            if (n == b.length) {
+                byte[] tmp = new byte[Math.max(b.length * 2, 1024)];
+                System.arraycopy(b, 0, tmp, 0, n);
+                b = tmp;
+            }
+            if ((r = in.read(b, n, b.length - n)) == -1) {
+                break;
+            }
+            n += r;
+        }
+        in.close();
+
+        byte[] data = new byte[n];
+        System.arraycopy(b, 0, data, 0, n);
+        return data;
+    }
+
+    protected void setUp() throws Exception {
+        localhost = InetAddress.getByName("127.0.0.1");
+        peer = new Peer();
+
+        registry = new ProfileRegistry();
+        registry.addStartChannelListener(ECHO_URI, new Echo(), null);
+    }
+
+    protected void tearDown() {
+        if (server != null) {
+            server.stop();
+        }
+        if (nioServer != null) {
+            nioServer.stop();
+        }
+    }
+
+    /**
+     * Records the listening side's sessions.
+     */
+    private static class Peer implements SessionListener {
+        final CountDownLatch greeted = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        volatile int closedState = -1;
+
+        public void greetingReceived(SessionEvent e) {
+            greeted.countDown();
+        }
+
+        public void sessionClosed(SessionEvent e) {
+            // only the first session to close is checked
+            if (closed.getCount() > 0) {
+                closedState = ((Session) e.getSource()).getState();
+                closed.countDown();
+            }
+        }
+
+        public void sessionReset(SessionResetEvent e) {
+        }
+    }
+
+    private static class Echo implements StartChannelListener,
+                                         RequestHandler
+    {
+        public boolean advertiseProfile(Session session) {
+            return true;
+        }
+
+        public void startChannel(Channel channel, String encoding,
+                                 String data)
+        {
+            channel.setRequestHandler(this);
+        }
+
+        public void closeChannel(Channel channel) {
+        }
+
+        public void receiveMSG(MessageMSG message) {
+            try {
+                // the channel is not yet known to the session, and its
+                // window can not be advertised, while it is being started
+                ChannelImpl channel = (ChannelImpl) message.getChannel();
+                if (channel.getBufferSize() != WINDOW) {
+                    channel.setReceiveBufferSize(WINDOW);
+                }
+
+                message.sendRPY(new ByteOutputDataStream(read(message)));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestTransport.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}
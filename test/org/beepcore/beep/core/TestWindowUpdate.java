@@ -0,0 +1,93 @@
+/*
+ * TestWindowUpdate.java
+ *
+ * Copyright (c) 2001 Invisible Worlds, Inc.  All rights reserved.
+ * Copyright (c) 2001 Huston Franklin.  All rights reserved.
+ *
+ * The contents of this file are subject to the Blocks Public License (the
+ * "License"); You may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.beepcore.org/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied.  See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ */
+package org.beepcore.beep.core;
+
+import junit.framework.*;
+
+public class TestWindowUpdate extends TestCase {
+    protected StubSession session;
+    protected ChannelImpl channel;
+
+    public TestWindowUpdate(String name) {
+        super(name);
+    }
+
+    public void testSEQ() throws BEEPException {
+        receive(3000);
+        channel.freeReceiveBufferBytes(3000);
+
+        assertEquals("SEQs", 1, session.seqs.size());
+        assertEquals("SEQ", "1 3000 4096", session.seqs.get(0));
+        assertEquals("sent", 1, channel.getWindowUpdatesSent());
+
+        Channel c = channel;
+        assertEquals("sent through Channel", 1, c.getWindowUpdatesSent());
+    }
+
+    public void testFailedSEQRetried() throws BEEPException {
+        receive(3000);
+
+        session.failSEQ = true;
+        channel.freeReceiveBufferBytes(3000);
+
+        assertEquals("SEQs", 0, session.seqs.size());
+        assertEquals("sent", 0, channel.getWindowUpdatesSent());
+
+        // the freed bytes are still owed to the peer
+        session.failSEQ = false;
+        session.flushWindowUpdates();
+
+        assertEquals("SEQs", 1, session.seqs.size());
+        assertEquals("SEQ", "1 3000 4096", session.seqs.get(0));
+        assertEquals("sent", 1, channel.getWindowUpdatesSent());
+        assertEquals("window", 4096, channel.getAvailableWindow());
+    }
+
+    /**
+     * Receives a MSG of <code>size</code> bytes, which the application
+     * leaves unread.
+     */
+    private void receive(int size) throws BEEPException {
+        StringBuffer sb = new StringBuffer("\r\n");
+
+        while (sb.length() < size) {
+            sb.append('x');
+        }
+
+        channel.postFrame(StubSession.frame(Message.MESSAGE_TYPE_MSG,
+                                            channel, 1, true, 0,
+                                            sb.toString(), -1));
+    }
+
+    protected void setUp() throws BEEPException {
+        session = new StubSession();
+        channel = session.channel("1");
+        channel.setRequestHandler(new RequestHandler() {
+                public void receiveMSG(MessageMSG message) {
+                }
+            });
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestWindowUpdate.class);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+}